@@ -23,7 +23,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.KeyStore;
@@ -43,17 +42,21 @@ import javax.net.ssl.TrustManagerFactory;
 import jline.ConsoleReader;
 import spade.core.AbstractVertex;
 import spade.core.AbstractEdge;
+import spade.core.DotWriter;
 import spade.core.Graph;
+import spade.core.GraphReader;
 import spade.core.Settings;
 
 public class Query {
 
     private static PrintStream outputStream;
     private static PrintStream SPADEQueryIn;
-    private static ObjectInputStream SPADEQueryOut;
+    private static GraphReader SPADEQueryOut;
     private static final String SPADE_ROOT = Settings.getProperty("spade_root");
     private static final String historyFile = SPADE_ROOT + "cfg/query.history";
     private static final String COMMAND_PROMPT = "-> ";
+    // Number of received elements after which progress is shown
+    private static final int PROGRESS_THRESHOLD = 10000;
     private static HashMap<String, Graph> graphObjects;
     private static HashMap<String, String> graphExpressions;
     private static String QUERY_STORAGE = "Neo4j";
@@ -106,7 +109,7 @@ public class Query {
 
             OutputStream outStream = remoteSocket.getOutputStream();
             InputStream inStream = remoteSocket.getInputStream();
-            SPADEQueryOut = new ObjectInputStream(inStream);
+            SPADEQueryOut = new GraphReader(inStream);
             SPADEQueryIn = new PrintStream(outStream);
         } catch (NumberFormatException | IOException exception) {
             outputStream.println("Error connecting to SPADE");
@@ -127,7 +130,7 @@ public class Query {
             }
 
             SPADEQueryIn.println("");
-            String commands = (String) SPADEQueryOut.readObject();
+            String commands = SPADEQueryOut.readMessage();
             System.out.println(commands + "\n");
 
             while (true) {
@@ -161,11 +164,61 @@ public class Query {
                     exception.printStackTrace();
                 }
             }
-        } catch (IOException | ClassNotFoundException exception) {
+        } catch (IOException exception) {
             exception.printStackTrace();
         }
     }
 
+    /**
+     * Receives a query result, showing the number of elements received so far
+     * while a large result is being transferred.
+     */
+    private static Graph receiveGraph() throws IOException {
+        Graph resultGraph = new Graph();
+        resultGraph.transformed = receive(GraphReader.graphBuilder(resultGraph));
+        resultGraph.commitIndex();
+        return resultGraph;
+    }
+
+    /**
+     * Passes the elements of a query result to a listener as they arrive,
+     * showing the number of elements received so far while a large result is
+     * being transferred.
+     */
+    private static boolean receive(final GraphReader.Listener listener) throws IOException {
+        final int[] counts = new int[2];
+        boolean transformed = SPADEQueryOut.readGraph(new GraphReader.Listener() {
+            @Override
+            public void putVertex(AbstractVertex vertex) {
+                listener.putVertex(vertex);
+                counts[0]++;
+            }
+
+            @Override
+            public void putEdge(AbstractEdge edge) {
+                listener.putEdge(edge);
+                counts[1]++;
+            }
+
+            @Override
+            public void putNetworkVertex(AbstractVertex vertex, int depth) {
+                listener.putNetworkVertex(vertex, depth);
+            }
+
+            @Override
+            public void chunkReceived() {
+                listener.chunkReceived();
+                if (counts[0] + counts[1] >= PROGRESS_THRESHOLD) {
+                    System.out.print("\rReceived " + counts[0] + " vertices and " + counts[1] + " edges");
+                }
+            }
+        });
+        if (counts[0] + counts[1] >= PROGRESS_THRESHOLD) {
+            System.out.println();
+        }
+        return transformed;
+    }
+
     private static void parseQuery(String input) {
         // Accepts input of the following form and generates the corresponding
         // query expression to pass to the Query class:
@@ -180,6 +233,7 @@ public class Query {
         //   <result> = getLineage(<result>, depth, direction, terminating expression)
         //   <result> = <result>.getChildren(expression)
         //   <result> = <result>.getParents(expression)
+        //   <result> = <query> > <path>
 
         //   <result>.print(annotations)
         //   export <result> <path>
@@ -193,6 +247,16 @@ public class Query {
         Pattern printPattern = Pattern.compile("([a-zA-Z0-9]+\\.)print\\((.*)\\)[;]?");
         Pattern childrenPattern = Pattern.compile("([a-zA-Z0-9]+)\\s*=\\s*([a-zA-Z0-9]+\\.)getChildren\\((.+)\\)[;]?");
         Pattern parentsPattern = Pattern.compile("([a-zA-Z0-9]+)\\s*=\\s*([a-zA-Z0-9]+\\.)getParents\\((.+)\\)[;]?");
+        Pattern exportPattern = Pattern.compile("(.+\\))\\s*>\\s*(\\S+)");
+
+        // A result from SPADE can be exported to a DOT file as it arrives,
+        // without being kept as a graph
+        String exportPath = null;
+        Matcher exportMatcher = exportPattern.matcher(input);
+        if (exportMatcher.matches()) {
+            input = exportMatcher.group(1);
+            exportPath = exportMatcher.group(2);
+        }
 
         Matcher vertexMatcher = vertexPattern.matcher(input);
         Matcher edgeMatcher = edgePattern.matcher(input);
@@ -230,30 +294,42 @@ public class Query {
             queryString = "query " + QUERY_STORAGE + " lineage " + vertexId + " " + depth + " " + direction + " " + terminatingExpression;
             try {
                 if ((queryTarget == null) && graphObjects.containsKey(vertexId)) {
+                    // The lineages are added to one graph or file as they
+                    // arrive
                     Graph totalGraphs = new Graph();
+                    DotWriter exportWriter = (exportPath == null) ? null : new DotWriter(exportPath);
+                    GraphReader.Listener target = (exportWriter == null) ? GraphReader.graphBuilder(totalGraphs) : exportWriter;
                     long begintime = System.currentTimeMillis();
-                    for (AbstractVertex vertex : graphObjects.get(vertexId).vertexSet()) {
-                        String storageId = vertex.getAnnotation(Settings.getProperty("storage_identifier"));
-                        queryString = "query " + QUERY_STORAGE + " lineage " + storageId + " " + depth + " " + direction + " " + terminatingExpression;
-                        SPADEQueryIn.println(queryString);
-                        String resultString = (String) SPADEQueryOut.readObject();
-                        if (resultString.equals("graph")) {
-                            Graph resultGraph = (Graph) SPADEQueryOut.readObject();
-                            totalGraphs = Graph.union(totalGraphs, resultGraph);
-                        } else {
-                            outputStream.println(resultString + "\n");
+                    try {
+                        for (AbstractVertex vertex : graphObjects.get(vertexId).vertexSet()) {
+                            String storageId = vertex.getAnnotation(Settings.getProperty("storage_identifier"));
+                            queryString = "query " + QUERY_STORAGE + " lineage " + storageId + " " + depth + " " + direction + " " + terminatingExpression;
+                            SPADEQueryIn.println(queryString);
+                            String resultString = SPADEQueryOut.readMessage();
+                            if (resultString.equals("graph")) {
+                                totalGraphs.transformed |= receive(target);
+                            } else {
+                                outputStream.println(resultString + "\n");
+                            }
+                        }
+                    } finally {
+                        if (exportWriter != null) {
+                            exportWriter.close();
                         }
                     }
                     long endtime = System.currentTimeMillis();
                     long elapsedtime = endtime - begintime;
                     System.out.println("Time taken for query: " + elapsedtime + " ms");
 
-                    graphObjects.put(result, totalGraphs);
-                    String queryExpression = input.split("\\s*=\\s*")[1];
-                    graphExpressions.put(result, queryExpression);
+                    if (exportWriter == null) {
+                        totalGraphs.commitIndex();
+                        graphObjects.put(result, totalGraphs);
+                        String queryExpression = input.split("\\s*=\\s*")[1];
+                        graphExpressions.put(result, queryExpression);
+                    }
                     return;
                 }
-            } catch (IOException | ClassNotFoundException exception) {
+            } catch (IOException exception) {
                 exception.printStackTrace();
             }
         } else if (printMatcher.matches()) {
@@ -316,9 +392,13 @@ public class Query {
                 long begintime, endtime;
                 begintime = System.currentTimeMillis();
                 SPADEQueryIn.println(queryString);
-                String resultString = (String) SPADEQueryOut.readObject();
-                if (resultString.equals("graph")) {
-                    Graph resultGraph = (Graph) SPADEQueryOut.readObject();
+                String resultString = SPADEQueryOut.readMessage();
+                if (resultString.equals("graph") && (exportPath != null)) {
+                    try (DotWriter exportWriter = new DotWriter(exportPath)) {
+                        receive(exportWriter);
+                    }
+                } else if (resultString.equals("graph")) {
+                    Graph resultGraph = receiveGraph();
                     String queryExpression = input.split("\\s*=\\s*")[1];
                     graphObjects.put(result, resultGraph);
                     graphExpressions.put(result, queryExpression);
@@ -357,7 +437,7 @@ public class Query {
                     graphExpressions.put(result, queryExpression);
                 }
             }
-        } catch (IOException | ClassNotFoundException | NumberFormatException exception) {
+        } catch (IOException | NumberFormatException exception) {
             exception.printStackTrace();
         }
     }
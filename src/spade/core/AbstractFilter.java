@@ -26,12 +26,25 @@ package spade.core;
  */
 public abstract class AbstractFilter {
 
+    private static final int PARTITION_LOCKS = 64;
+    /**
+     * Set by the Kernel when provenance elements are dispatched to the filter
+     * list from more than one thread.
+     */
+    static volatile boolean concurrentDispatch = false;
     private AbstractFilter nextFilter;
+    private final Object[] partitionLocks = new Object[PARTITION_LOCKS];
     /**
      * The arguments that a specific filter instance is initialized with.
      */
     public String arguments;
 
+    public AbstractFilter() {
+        for (int i = 0; i < PARTITION_LOCKS; i++) {
+            partitionLocks[i] = new Object();
+        }
+    }
+
     /**
      * This method is invoked by the kernel when initializing a filter.
      *
@@ -66,7 +79,7 @@ public abstract class AbstractFilter {
      * @param vertex The vertex to be sent to the next filter.
      */
     public final void putInNextFilter(AbstractVertex vertex) {
-        nextFilter.putVertex(vertex);
+        dispatchVertex(nextFilter, vertex);
     }
 
     /**
@@ -75,7 +88,95 @@ public abstract class AbstractFilter {
      * @param edge The edge to be sent to the next filter.
      */
     public final void putInNextFilter(AbstractEdge edge) {
-        nextFilter.putEdge(edge);
+        dispatchEdge(nextFilter, edge);
+    }
+
+    /**
+     * Sends a vertex to the given filter. When elements are dispatched from
+     * multiple threads, calls to filters that are not thread-safe are
+     * serialized either on the whole filter or on the partition of the
+     * vertex.
+     *
+     * @param filter The filter to send the vertex to.
+     * @param vertex The vertex to be sent.
+     */
+    static void dispatchVertex(AbstractFilter filter, AbstractVertex vertex) {
+        if (!concurrentDispatch || filter.isThreadSafe()) {
+            filter.putVertex(vertex);
+        } else {
+            synchronized (filter.getLock(filter.getPartitionKey(vertex))) {
+                filter.putVertex(vertex);
+            }
+        }
+    }
+
+    /**
+     * Sends an edge to the given filter. See dispatchVertex.
+     *
+     * @param filter The filter to send the edge to.
+     * @param edge The edge to be sent.
+     */
+    static void dispatchEdge(AbstractFilter filter, AbstractEdge edge) {
+        if (!concurrentDispatch || filter.isThreadSafe()) {
+            filter.putEdge(edge);
+        } else {
+            synchronized (filter.getLock(filter.getPartitionKey(edge))) {
+                filter.putEdge(edge);
+            }
+        }
+    }
+
+    private Object getLock(String partitionKey) {
+        if (partitionKey == null || !isPartitioned()) {
+            return this;
+        }
+        return partitionLocks[(partitionKey.hashCode() & 0x7fffffff) % PARTITION_LOCKS];
+    }
+
+    /**
+     * Filters that keep no state, or guard their state themselves, override
+     * this method so that they can be called from multiple dispatch threads at
+     * the same time.
+     *
+     * @return True if putVertex and putEdge can be called concurrently.
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Filters whose state is partitioned by a key (for example a process id)
+     * override this method along with getPartitionKey. Elements with different
+     * keys may then be processed concurrently while elements with the same key
+     * are serialized.
+     *
+     * @return True if the filter state is partitioned by key.
+     */
+    public boolean isPartitioned() {
+        return false;
+    }
+
+    /**
+     * Returns the partition key of a vertex for a partitioned filter. A null
+     * key means the vertex does not touch the partitioned state and is
+     * serialized on the whole filter.
+     *
+     * @param vertex The vertex received by this filter.
+     * @return The partition key or null.
+     */
+    public String getPartitionKey(AbstractVertex vertex) {
+        return null;
+    }
+
+    /**
+     * Returns the partition key of an edge for a partitioned filter. See
+     * getPartitionKey(AbstractVertex).
+     *
+     * @param edge The edge received by this filter.
+     * @return The partition key or null.
+     */
+    public String getPartitionKey(AbstractEdge edge) {
+        return null;
     }
 
     /**
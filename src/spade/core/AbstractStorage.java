@@ -19,6 +19,9 @@
  */
 package spade.core;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * This is the base class for storages.
  *
@@ -71,6 +74,40 @@ public abstract class AbstractStorage {
      * @return True if the edge was processed successfully.
      */
     public abstract boolean putEdge(AbstractEdge incomingEdge);
+
+    /**
+     * This method is triggered when the storage receives a batch of vertices.
+     * Storages with a more efficient bulk write path override it.
+     *
+     * @param incomingVertices The vertices received by this storage, in order.
+     * @return The number of vertices processed successfully.
+     */
+    public int putVertices(List<AbstractVertex> incomingVertices) {
+        int count = 0;
+        for (AbstractVertex incomingVertex : incomingVertices) {
+            if (putVertex(incomingVertex)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * This method is triggered when the storage receives a batch of edges.
+     * Storages with a more efficient bulk write path override it.
+     *
+     * @param incomingEdges The edges received by this storage, in order.
+     * @return The number of edges processed successfully.
+     */
+    public int putEdges(List<AbstractEdge> incomingEdges) {
+        int count = 0;
+        for (AbstractEdge incomingEdge : incomingEdges) {
+            if (putEdge(incomingEdge)) {
+                count++;
+            }
+        }
+        return count;
+    }
     
     /**
      * This method returns current edge count.
@@ -187,6 +224,38 @@ public abstract class AbstractStorage {
         throw new UnsupportedOperationException("Unsupported operation.");
     }
 
+    /**
+     * Query method that passes the lineage of a given vertex to a listener.
+     * Storages that can traverse incrementally override it to pass on each
+     * element as the traversal reaches it, so that the result can be sent
+     * without being held in memory. By default the lineage is computed as a
+     * graph and then passed on.
+     *
+     * @param vertexId The source vertex of the lineage.
+     * @param depth The maximum depth of the lineage.
+     * @param direction The direction in which to get the lineage.
+     * @param terminatingExpression The query expression on which to terminate
+     * lineage or null.
+     * @param listener The listener that receives the elements of the result.
+     * @return False if the direction is not valid.
+     */
+    public boolean getLineage(int vertexId, int depth, String direction, String terminatingExpression, GraphReader.Listener listener) {
+        Graph resultGraph = getLineage(vertexId, depth, direction, terminatingExpression);
+        if (resultGraph == null) {
+            return false;
+        }
+        for (AbstractVertex vertex : resultGraph.vertexSet()) {
+            listener.putVertex(vertex);
+        }
+        for (AbstractEdge edge : resultGraph.edgeSet()) {
+            listener.putEdge(edge);
+        }
+        for (Map.Entry<AbstractVertex, Integer> entry : resultGraph.networkMap().entrySet()) {
+            listener.putNetworkVertex(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
     public Graph getLineage(int vertexId, String direction) {
         return getLineage(vertexId, Integer.MAX_VALUE, direction, null);
     }
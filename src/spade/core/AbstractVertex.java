@@ -20,7 +20,6 @@
 package spade.core;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -32,9 +31,10 @@ import java.util.Map;
 public abstract class AbstractVertex implements Serializable {
 
     /**
-     * A map containing the annotations for this vertex.
+     * A map containing the annotations for this vertex. Keys are interned and
+     * the hash code is cached, see AnnotationMap.
      */
-    protected Map<String, String> annotations = new HashMap<>();
+    protected Map<String, String> annotations = new AnnotationMap();
 
     /**
      * Returns the map containing the annotations for this vertex.
@@ -0,0 +1,377 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact map used for the annotations of vertices and edges. Keys are
+ * interned in a global dictionary and each map only keeps two small arrays:
+ * the sorted ids of its keys and the corresponding values. Values of keys
+ * that only take a few distinct values (such as type, operation or uid) are
+ * shared between maps. The hash code is cached until the map is modified so
+ * that hash set lookups of vertices and edges do not rehash all annotations.
+ *
+ * The map otherwise behaves like a HashMap with String keys, except that null
+ * keys are not supported.
+ */
+public final class AnnotationMap extends AbstractMap<String, String> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Values longer than this are assumed to be unique and never shared
+    private static final int MAXIMUM_SHARED_VALUE_LENGTH = 64;
+    // Number of distinct values after which a key stops sharing its values
+    private static final int MAXIMUM_SHARED_VALUES = 4096;
+    private static final int[] NO_KEYS = new int[0];
+    private static final String[] NO_VALUES = new String[0];
+
+    private static final ConcurrentHashMap<String, Integer> keyIds = new ConcurrentHashMap<>();
+    private static volatile String[] keyNames = new String[64];
+    private static volatile ConcurrentHashMap<String, String>[] sharedValues = newSharedValues(64);
+
+    private transient int[] keys = NO_KEYS;
+    private transient String[] values = NO_VALUES;
+    private transient int size;
+    // Cached hash code, 0 if not computed yet. A single field so that
+    // threads sharing the map cannot see a stale hash marked as valid.
+    private transient int hash;
+
+    public AnnotationMap() {
+    }
+
+    public AnnotationMap(Map<String, String> annotations) {
+        putAll(annotations);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentHashMap<String, String>[] newSharedValues(int length) {
+        return new ConcurrentHashMap[length];
+    }
+
+    private static int getKeyId(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        Integer id = keyIds.get(key);
+        return id == null ? -1 : id;
+    }
+
+    private static int internKey(String key) {
+        Integer id = keyIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        synchronized (keyIds) {
+            id = keyIds.get(key);
+            if (id != null) {
+                return id;
+            }
+            int newId = keyIds.size();
+            if (newId == keyNames.length) {
+                String[] newKeyNames = Arrays.copyOf(keyNames, newId * 2);
+                ConcurrentHashMap<String, String>[] newSharedValues = Arrays.copyOf(sharedValues, newId * 2);
+                sharedValues = newSharedValues;
+                keyNames = newKeyNames;
+            }
+            // Use a private copy so the dictionary does not pin larger strings
+            keyNames[newId] = new String(key);
+            sharedValues[newId] = new ConcurrentHashMap<>();
+            keyIds.put(keyNames[newId], newId);
+            return newId;
+        }
+    }
+
+    // Returns an equal value shared with other maps when the key has few
+    // distinct values.
+    private static String shareValue(int keyId, String value) {
+        if (value == null || value.length() > MAXIMUM_SHARED_VALUE_LENGTH) {
+            return value;
+        }
+        ConcurrentHashMap<String, String> pool = sharedValues[keyId];
+        if (pool == null) {
+            return value;
+        }
+        String sharedValue = pool.get(value);
+        if (sharedValue != null) {
+            return sharedValue;
+        }
+        if (pool.size() >= MAXIMUM_SHARED_VALUES) {
+            // High-cardinality key, such as a path or a time. Written under
+            // the dictionary lock so that it is not lost to a resize.
+            synchronized (keyIds) {
+                sharedValues[keyId] = null;
+            }
+            return value;
+        }
+        sharedValue = pool.putIfAbsent(value, value);
+        return sharedValue == null ? value : sharedValue;
+    }
+
+    private int indexOf(int keyId) {
+        return Arrays.binarySearch(keys, 0, size, keyId);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int keyId = getKeyId(key);
+        return keyId >= 0 && indexOf(keyId) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int keyId = getKeyId(key);
+        if (keyId < 0) {
+            return null;
+        }
+        int index = indexOf(keyId);
+        return index < 0 ? null : values[index];
+    }
+
+    @Override
+    public String put(String key, String value) {
+        if (key == null) {
+            throw new NullPointerException("Annotation keys cannot be null");
+        }
+        int keyId = internKey(key);
+        value = shareValue(keyId, value);
+        hash = 0;
+        int index = indexOf(keyId);
+        if (index >= 0) {
+            String oldValue = values[index];
+            values[index] = value;
+            return oldValue;
+        }
+        index = -(index + 1);
+        if (size == keys.length) {
+            int newLength = Math.max(4, size + (size >> 1));
+            keys = Arrays.copyOf(keys, newLength);
+            values = Arrays.copyOf(values, newLength);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        keys[index] = keyId;
+        values[index] = value;
+        size++;
+        return null;
+    }
+
+    @Override
+    public String remove(Object key) {
+        int keyId = getKeyId(key);
+        if (keyId < 0) {
+            return null;
+        }
+        int index = indexOf(keyId);
+        if (index < 0) {
+            return null;
+        }
+        String oldValue = values[index];
+        removeAt(index);
+        return oldValue;
+    }
+
+    private void removeAt(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        values[size] = null;
+        hash = 0;
+    }
+
+    @Override
+    public void clear() {
+        keys = NO_KEYS;
+        values = NO_VALUES;
+        size = 0;
+        hash = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+
+        private int next;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Entry(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+
+    private final class Entry implements Map.Entry<String, String> {
+
+        private final int index;
+
+        private Entry(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey() {
+            return keyNames[keys[index]];
+        }
+
+        @Override
+        public String getValue() {
+            return values[index];
+        }
+
+        @Override
+        public String setValue(String value) {
+            String oldValue = values[index];
+            values[index] = shareValue(keys[index], value);
+            hash = 0;
+            return oldValue;
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            if (!(thatObject instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> thatEntry = (Map.Entry<?, ?>) thatObject;
+            return getKey().equals(thatEntry.getKey())
+                    && (getValue() == null ? thatEntry.getValue() == null : getValue().equals(thatEntry.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ (getValue() == null ? 0 : getValue().hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    @Override
+    public boolean equals(Object thatObject) {
+        if (this == thatObject) {
+            return true;
+        }
+        if (!(thatObject instanceof AnnotationMap)) {
+            return super.equals(thatObject);
+        }
+        AnnotationMap thatMap = (AnnotationMap) thatObject;
+        if (size != thatMap.size || hashCode() != thatMap.hashCode()) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (keys[i] != thatMap.keys[i]) {
+                return false;
+            }
+            String value = values[i];
+            String thatValue = thatMap.values[i];
+            if (value != thatValue && (value == null || !value.equals(thatValue))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same value as the hash code of a HashMap with the same entries.
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            String[] names = keyNames;
+            for (int i = 0; i < size; i++) {
+                h += names[keys[i]].hashCode() ^ (values[i] == null ? 0 : values[i].hashCode());
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeObject(keyNames[keys[i]]);
+            out.writeObject(values[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        keys = NO_KEYS;
+        values = NO_VALUES;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            put((String) in.readObject(), (String) in.readObject());
+        }
+    }
+}
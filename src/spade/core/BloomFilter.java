@@ -21,12 +21,19 @@
  */
 package spade.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Implementation of a Bloom-filter, as described here:
@@ -40,30 +47,57 @@ import java.util.Collection;
  * were proposed in comments in his blog:
  * http://blog.locut.us/2008/01/12/a-decent-stand-alone-java-bloom-filter-implementation/
  *
+ * Filters keep their bits in an array of longs that is updated with
+ * compare-and-set, so concurrent writers and readers never block, and each
+ * thread computes MD5 digests with its own MessageDigest. With
+ * sketch_hash=hash64 new filters derive all k bit positions from one seeded
+ * 64-bit hash by double hashing instead of k MD5 digests. Older peers can only
+ * query MD5 filters, so MD5 stays the default until every peer is upgraded.
+ * Filters received from peers keep the scheme they were built with. The
+ * serialized form is unchanged apart from the added hash scheme.
+ *
  * @param <E> Object type that is to be inserted into the Bloom filter, e.g. String or Integer.
  * @author Magnus Skjegstad <magnus@skjegstad.com>
  */
 public class BloomFilter<E> implements Serializable {
-    private BitSet bitset;
+    private static final long serialVersionUID = -4451498270929112812L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("bitset", BitSet.class),
+        new ObjectStreamField("bitSetSize", int.class),
+        new ObjectStreamField("bitsPerElement", double.class),
+        new ObjectStreamField("expectedNumberOfFilterElements", int.class),
+        new ObjectStreamField("numberOfAddedElements", int.class),
+        new ObjectStreamField("k", int.class),
+        new ObjectStreamField("hashScheme", int.class)
+    };
+
+    static final int LEGACY_HASH = 0; // k salted MD5 digests, used by older peers
+    static final int FAST_HASH = 1; // one seeded 64-bit hash with double hashing
+    // The scheme of new filters; the bits of two schemes cannot be combined
+    static final int DEFAULT_HASH = "hash64".equalsIgnoreCase(Settings.getProperty("sketch_hash")) ? FAST_HASH : LEGACY_HASH;
+    private static final long HASH_SEED = 0x5350414445424c4dL;
+
+    private transient AtomicLongArray bits;
     private int bitSetSize;
     private double bitsPerElement;
     private int expectedNumberOfFilterElements; // expected (maximum) number of elements to be added
-    private int numberOfAddedElements; // number of elements actually added to the Bloom filter
+    private transient AtomicInteger numberOfAddedElements; // number of elements actually added to the Bloom filter
     private int k; // number of hash functions
+    private int hashScheme = DEFAULT_HASH;
 
     static final Charset charset = Charset.forName("UTF-8"); // encoding used for storing hash values as strings
 
     static final String hashName = "MD5"; // MD5 gives good enough accuracy in most circumstances. Change to SHA1 if it's needed
-    static final MessageDigest digestFunction;
-    static { // The digest method is reused between instances
-        MessageDigest tmp;
-        try {
-            tmp = java.security.MessageDigest.getInstance(hashName);
-        } catch (NoSuchAlgorithmException e) {
-            tmp = null;
+    static final ThreadLocal<MessageDigest> digestFunction = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() { // The digest method is reused between instances of a thread
+            try {
+                return java.security.MessageDigest.getInstance(hashName);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
         }
-        digestFunction = tmp;
-    }
+    };
 
     /**
       * Constructs an empty Bloom filter. The total length of the Bloom filter will be
@@ -78,8 +112,8 @@ public class BloomFilter<E> implements Serializable {
       this.k = k;
       this.bitsPerElement = c;
       this.bitSetSize = (int)Math.ceil(c * n);
-      numberOfAddedElements = 0;
-      this.bitset = new BitSet(bitSetSize);
+      numberOfAddedElements = new AtomicInteger();
+      this.bits = new AtomicLongArray(words(bitSetSize));
     }
 
     /**
@@ -119,8 +153,273 @@ public class BloomFilter<E> implements Serializable {
      */
     public BloomFilter(int bitSetSize, int expectedNumberOfFilterElements, int actualNumberOfFilterElements, BitSet filterData) {
         this(bitSetSize, expectedNumberOfFilterElements);
-        this.bitset = filterData;
-        this.numberOfAddedElements = actualNumberOfFilterElements;
+        setBits(filterData);
+        this.numberOfAddedElements.set(actualNumberOfFilterElements);
+    }
+
+    /**
+     * Returns a filter with the same parameters, hash scheme and contents.
+     *
+     * @return a copy of this filter.
+     */
+    public BloomFilter<E> copy() {
+        BloomFilter<E> result = new BloomFilter<>(bitsPerElement, expectedNumberOfFilterElements, k);
+        result.bitSetSize = bitSetSize;
+        result.bits = new AtomicLongArray(toLongArray());
+        result.hashScheme = hashScheme;
+        result.numberOfAddedElements.set(numberOfAddedElements.get());
+        return result;
+    }
+
+    private static int words(int bitSetSize) {
+        return (bitSetSize + 63) >>> 6;
+    }
+
+    private long[] toLongArray() {
+        long[] result = new long[bits.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bits.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a snapshot of the bit words, used to ship filters as deltas.
+     */
+    long[] getWords() {
+        return toLongArray();
+    }
+
+    /**
+     * Replaces the bit words and the element count with those of a received
+     * delta. The words are written in place, so bits set concurrently in a
+     * word after it was written are kept.
+     */
+    void setWords(long[] words, int addedElements) {
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, (i < words.length) ? words[i] : 0);
+        }
+        numberOfAddedElements.set(addedElements);
+    }
+
+    int getNumberOfAddedElements() {
+        return numberOfAddedElements.get();
+    }
+
+    private void setBits(BitSet filterData) {
+        long[] words = (filterData == null) ? new long[0] : filterData.toLongArray();
+        bits = new AtomicLongArray(words(bitSetSize));
+        for (int i = 0; i < Math.min(words.length, bits.length()); i++) {
+            bits.set(i, words[i]);
+        }
+    }
+
+    /**
+     * Computes the seeded 64-bit hash from which the bit positions of an
+     * element are derived. Strings are hashed as their UTF-8 encoding, without
+     * encoding them when they are plain ASCII.
+     *
+     * @param val specifies the input data.
+     * @return the hash.
+     */
+    public static long hash64(String val) {
+        long h = HASH_SEED ^ val.length();
+        for (int i = 0; i < val.length(); i++) {
+            char c = val.charAt(i);
+            if (c >= 0x80) {
+                return hash64(val.getBytes(charset));
+            }
+            h = (h ^ c) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+        }
+        return finish(h);
+    }
+
+    /**
+     * Computes the seeded 64-bit hash of an array of bytes.
+     *
+     * @param data specifies input data.
+     * @return the hash.
+     */
+    public static long hash64(byte[] data) {
+        long h = HASH_SEED ^ data.length;
+        for (byte b : data) {
+            h = (h ^ (b & 0xFF)) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+        }
+        return finish(h);
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Derives the i-th of k positions from a 64-bit hash as h1 + i * h2,
+     * which is as good as k independent hash functions for a Bloom filter
+     * (Kirsch and Mitzenmacher).
+     *
+     * @param hash the hash of the element.
+     * @param i the index of the position.
+     * @param size the number of positions.
+     * @return the position.
+     */
+    static int position(long hash, int i, int size) {
+        int combined = (int) hash + i * (int) (hash >>> 32);
+        return (combined & Integer.MAX_VALUE) % size;
+    }
+
+    boolean isFastHash() {
+        return hashScheme == FAST_HASH;
+    }
+
+    void setHashScheme(int hashScheme) {
+        this.hashScheme = hashScheme;
+    }
+
+    private void set(int bit) {
+        int word = bit >>> 6;
+        long mask = 1L << bit;
+        long current;
+        do {
+            current = bits.get(word);
+            if ((current & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(word, current, current | mask));
+    }
+
+    private void unset(int bit) {
+        int word = bit >>> 6;
+        long mask = 1L << bit;
+        long current;
+        do {
+            current = bits.get(word);
+            if ((current & mask) == 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(word, current, current & ~mask));
+    }
+
+    private boolean get(int bit) {
+        return (bits.get(bit >>> 6) & (1L << bit)) != 0;
+    }
+
+    /**
+     * Adds an element by its hash. Only valid for filters using the fast
+     * hash; see hash64.
+     *
+     * @param hash the hash of the element.
+     */
+    void addHash(long hash) {
+        for (int i = 0; i < k; i++) {
+            set(position(hash, i, bitSetSize));
+        }
+        numberOfAddedElements.incrementAndGet();
+    }
+
+    /**
+     * Checks an element by its hash. Only valid for filters using the fast
+     * hash; see hash64.
+     *
+     * @param hash the hash of the element.
+     * @return true if the element could have been inserted into the Bloom filter.
+     */
+    boolean containsHash(long hash) {
+        for (int i = 0; i < k; i++) {
+            if (!get(position(hash, i, bitSetSize))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the bits of another filter can be combined with those of
+     * this one, which requires the same size, k and hash scheme.
+     *
+     * @param other the other filter.
+     * @return true if the filters can be combined.
+     */
+    public boolean isCompatible(BloomFilter<?> other) {
+        return bitSetSize == other.bitSetSize && k == other.k && hashScheme == other.hashScheme;
+    }
+
+    private void checkCompatible(BloomFilter<?> other) {
+        if (!isCompatible(other)) {
+            throw new IllegalArgumentException("Cannot combine Bloom filters of size " + bitSetSize + ", k " + k + ", hash scheme " + hashScheme
+                    + " and size " + other.bitSetSize + ", k " + other.k + ", hash scheme " + other.hashScheme);
+        }
+    }
+
+    /**
+     * Sets every bit that is set in another filter of the same size.
+     *
+     * @param other the filter to merge into this one.
+     * @throws IllegalArgumentException if the filters are not compatible.
+     */
+    public void or(BloomFilter<?> other) {
+        checkCompatible(other);
+        int length = Math.min(bits.length(), other.bits.length());
+        for (int word = 0; word < length; word++) {
+            long add = other.bits.get(word);
+            long current;
+            do {
+                current = bits.get(word);
+                if ((current | add) == current) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, current, current | add));
+        }
+    }
+
+    /**
+     * Clears every bit that is not set in another filter of the same size.
+     *
+     * @param other the filter to intersect this one with.
+     * @throws IllegalArgumentException if the filters are not compatible.
+     */
+    public void and(BloomFilter<?> other) {
+        checkCompatible(other);
+        for (int word = 0; word < bits.length(); word++) {
+            long keep = (word < other.bits.length()) ? other.bits.get(word) : 0;
+            long current;
+            do {
+                current = bits.get(word);
+                if ((current & keep) == current) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, current, current & keep));
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("bitset", getBitSet());
+        fields.put("bitSetSize", bitSetSize);
+        fields.put("bitsPerElement", bitsPerElement);
+        fields.put("expectedNumberOfFilterElements", expectedNumberOfFilterElements);
+        fields.put("numberOfAddedElements", numberOfAddedElements.get());
+        fields.put("k", k);
+        fields.put("hashScheme", hashScheme);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        bitSetSize = fields.get("bitSetSize", 0);
+        bitsPerElement = fields.get("bitsPerElement", 0.0);
+        expectedNumberOfFilterElements = fields.get("expectedNumberOfFilterElements", 0);
+        numberOfAddedElements = new AtomicInteger(fields.get("numberOfAddedElements", 0));
+        k = fields.get("k", 0);
+        // Streams from older peers have no hash scheme and were filled with MD5
+        hashScheme = fields.get("hashScheme", LEGACY_HASH);
+        setBits((BitSet) fields.get("bitset", null));
     }
 
     /**
@@ -166,15 +465,13 @@ public class BloomFilter<E> implements Serializable {
     public static int[] createHashes(byte[] data, int hashes) {
         int[] result = new int[hashes];
 
+        MessageDigest digestFunction = BloomFilter.digestFunction.get();
         int k = 0;
         byte salt = 0;
         while (k < hashes) {
-            byte[] digest;
-            synchronized (digestFunction) {
-                digestFunction.update(salt);
-                salt++;
-                digest = digestFunction.digest(data);                
-            }
+            digestFunction.update(salt);
+            salt++;
+            byte[] digest = digestFunction.digest(data);
         
             for (int i = 0; i < digest.length/4 && k < hashes; i++) {
                 int h = 0;
@@ -213,10 +510,10 @@ public class BloomFilter<E> implements Serializable {
         if (this.bitSetSize != other.bitSetSize) {
             return false;
         }
-        if (this.bitset != other.bitset && (this.bitset == null || !this.bitset.equals(other.bitset))) {
+        if (this.hashScheme != other.hashScheme) {
             return false;
         }
-        return true;
+        return Arrays.equals(toLongArray(), other.toLongArray());
     }
 
     /**
@@ -226,7 +523,7 @@ public class BloomFilter<E> implements Serializable {
     @Override
     public int hashCode() {
         int hash = 7;
-        hash = 61 * hash + (this.bitset != null ? this.bitset.hashCode() : 0);
+        hash = 61 * hash + getBitSet().hashCode();
         hash = 61 * hash + this.expectedNumberOfFilterElements;
         hash = 61 * hash + this.bitSetSize;
         hash = 61 * hash + this.k;
@@ -270,7 +567,7 @@ public class BloomFilter<E> implements Serializable {
      * @return probability of false positives.
      */
     public double getFalsePositiveProbability() {
-        return getFalsePositiveProbability(numberOfAddedElements);
+        return getFalsePositiveProbability(numberOfAddedElements.get());
     }
 
 
@@ -290,8 +587,10 @@ public class BloomFilter<E> implements Serializable {
      * Sets all bits to false in the Bloom filter.
      */
     public void clear() {
-        bitset.clear();
-        numberOfAddedElements = 0;
+        for (int word = 0; word < bits.length(); word++) {
+            bits.set(word, 0);
+        }
+        numberOfAddedElements.set(0);
     }
 
     /**
@@ -301,7 +600,11 @@ public class BloomFilter<E> implements Serializable {
      * @param element is an element to register in the Bloom filter.
      */
     public void add(E element) {
-       add(element.toString().getBytes(charset));
+       if (hashScheme == FAST_HASH) {
+           addHash(hash64(element.toString()));
+       } else {
+           add(element.toString().getBytes(charset));
+       }
     }
 
     /**
@@ -310,10 +613,14 @@ public class BloomFilter<E> implements Serializable {
      * @param bytes array of bytes to add to the Bloom filter.
      */
     public void add(byte[] bytes) {
+       if (hashScheme == FAST_HASH) {
+           addHash(hash64(bytes));
+           return;
+       }
        int[] hashes = createHashes(bytes, k);
        for (int hash : hashes)
-           bitset.set(Math.abs(hash % bitSetSize), true);
-       numberOfAddedElements ++;
+           set(Math.abs(hash % bitSetSize));
+       numberOfAddedElements.incrementAndGet();
     }
 
     /**
@@ -334,6 +641,9 @@ public class BloomFilter<E> implements Serializable {
      * @return true if the element could have been inserted into the Bloom filter.
      */
     public boolean contains(E element) {
+        if (hashScheme == FAST_HASH) {
+            return containsHash(hash64(element.toString()));
+        }
         return contains(element.toString().getBytes(charset));
     }
 
@@ -346,9 +656,12 @@ public class BloomFilter<E> implements Serializable {
      * @return true if the array could have been inserted into the Bloom filter.
      */
     public boolean contains(byte[] bytes) {
+        if (hashScheme == FAST_HASH) {
+            return containsHash(hash64(bytes));
+        }
         int[] hashes = createHashes(bytes, k);
         for (int hash : hashes) {
-            if (!bitset.get(Math.abs(hash % bitSetSize))) {
+            if (!get(Math.abs(hash % bitSetSize))) {
                 return false;
             }
         }
@@ -375,7 +688,7 @@ public class BloomFilter<E> implements Serializable {
      * @return true if the bit is set, false if it is not.
      */
     public boolean getBit(int bit) {
-        return bitset.get(bit);
+        return get(bit);
     }
 
     /**
@@ -384,15 +697,20 @@ public class BloomFilter<E> implements Serializable {
      * @param value If true, the bit is set. If false, the bit is cleared.
      */
     public void setBit(int bit, boolean value) {
-        bitset.set(bit, value);
+        if (value) {
+            set(bit);
+        } else {
+            unset(bit);
+        }
     }
 
     /**
-     * Return the bit set used to store the Bloom filter.
+     * Return a copy of the bits of the Bloom filter. Use or() and and() to
+     * combine filters.
      * @return bit set representing the Bloom filter.
      */
     public BitSet getBitSet() {
-        return bitset;
+        return BitSet.valueOf(toLongArray());
     }
 
     /**
@@ -412,7 +730,7 @@ public class BloomFilter<E> implements Serializable {
      * @return number of elements added to the Bloom filter.
      */
     public int count() {
-        return this.numberOfAddedElements;
+        return this.numberOfAddedElements.get();
     }
 
     /**
@@ -442,6 +760,6 @@ public class BloomFilter<E> implements Serializable {
      * @return number of bits per element.
      */
     public double getBitsPerElement() {
-        return this.bitSetSize / (double)numberOfAddedElements;
+        return this.bitSetSize / (double)numberOfAddedElements.get();
     }
 }
@@ -21,6 +21,7 @@ package spade.core;
 
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This is the buffer class which is used by reporters to send provenance
@@ -31,6 +32,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class Buffer {
 
     private final Queue<Object> queue;
+    private volatile Thread consumer;
 
     /**
      * Empty constructor for this class.
@@ -97,4 +99,35 @@ public class Buffer {
     public int size() {
         return queue.size();
     }
+
+    /**
+     * This method can be used by reporters to throttle themselves when the
+     * buffer cannot accept any more elements.
+     *
+     * @return True if the buffer is at capacity. Always false for the
+     * unbounded buffer.
+     */
+    public boolean isFull() {
+        return false;
+    }
+
+    /**
+     * This method is called by the Kernel to register the thread that drains
+     * this buffer so that it can be woken up when new elements arrive.
+     *
+     * @param consumerThread The thread extracting elements from this buffer.
+     */
+    public void setConsumer(Thread consumerThread) {
+        consumer = consumerThread;
+    }
+
+    /**
+     * Wakes up the consumer thread if it is parked waiting for elements.
+     */
+    protected final void wakeConsumer() {
+        Thread consumerThread = consumer;
+        if (consumerThread != null) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dispatches provenance elements from reporter buffers to the filter list
+ * using multiple threads. Each reporter is drained by exactly one worker so
+ * that the order of elements from a reporter is preserved. Workers are either
+ * dedicated to a single reporter or shared from a fixed size pool.
+ */
+class Dispatcher {
+
+    private static final Logger logger = Logger.getLogger(Dispatcher.class.getName());
+    private final int poolSize;
+    private final List<Worker> pool = new ArrayList<>();
+    private final Map<AbstractReporter, Worker> assignments = Collections.synchronizedMap(new HashMap<AbstractReporter, Worker>());
+    private volatile boolean running = true;
+
+    /**
+     * @param poolSize The number of worker threads to share between reporters
+     * or 0 for one worker per reporter.
+     */
+    Dispatcher(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Assigns a reporter to a worker. With a shared pool, the worker with the
+     * fewest reporters is picked.
+     *
+     * @param reporter The reporter whose buffer is to be drained.
+     */
+    synchronized void addReporter(AbstractReporter reporter) {
+        Worker worker;
+        if (poolSize <= 0) {
+            worker = new Worker("dispatch-" + reporter.getClass().getSimpleName(), true);
+        } else {
+            if (pool.size() < poolSize) {
+                pool.add(new Worker("dispatch-" + pool.size(), false));
+            }
+            worker = pool.get(0);
+            for (Worker candidate : pool) {
+                if (candidate.reporters.size() < worker.reporters.size()) {
+                    worker = candidate;
+                }
+            }
+        }
+        reporter.getBuffer().setConsumer(worker.thread);
+        worker.reporters.add(reporter);
+        assignments.put(reporter, worker);
+        if (!worker.thread.isAlive()) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Takes a reporter away from its worker without draining its buffer, e.g.,
+     * when the reporter failed to launch. A dedicated worker then stops.
+     *
+     * @param reporter The reporter.
+     */
+    synchronized void removeReporter(AbstractReporter reporter) {
+        Worker worker = assignments.remove(reporter);
+        if (worker != null) {
+            worker.reporters.remove(reporter);
+        }
+    }
+
+    /**
+     * @return True if no worker is in the middle of dispatching elements.
+     */
+    boolean isIdle() {
+        synchronized (assignments) {
+            for (Worker worker : assignments.values()) {
+                if (!worker.idle) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops all workers.
+     */
+    void shutdown() {
+        running = false;
+        synchronized (assignments) {
+            for (Worker worker : assignments.values()) {
+                worker.thread.interrupt();
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private final List<AbstractReporter> reporters = new CopyOnWriteArrayList<>();
+        private final boolean dedicated;
+        private final Thread thread;
+        private volatile boolean idle = false;
+
+        Worker(String name, boolean dedicated) {
+            this.dedicated = dedicated;
+            this.thread = new Thread(this, name);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    idle = false;
+                    boolean drainedAll = true;
+                    for (AbstractReporter reporter : reporters) {
+                        int drained = Kernel.drainBuffer(reporter);
+                        if (drained < 0) {
+                            // The reporter has been removed and its buffer is empty.
+                            reporters.remove(reporter);
+                            assignments.remove(reporter);
+                        } else if (drained == Kernel.BATCH_BUFFER_ELEMENTS) {
+                            drainedAll = false;
+                        }
+                    }
+                    if (dedicated && reporters.isEmpty()) {
+                        break;
+                    }
+                    if (drainedAll) {
+                        idle = true;
+                        Kernel.waitForBufferElements();
+                    }
+                }
+            } catch (Exception exception) {
+                logger.log(Level.SEVERE, null, exception);
+            } finally {
+                idle = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a graph to a file in the DOT format of Graphviz one element at a
+ * time. As a GraphReader.Listener it can export a query result while it is
+ * being received, without keeping its edges in memory.
+ */
+public class DotWriter implements GraphReader.Listener, Closeable {
+
+    private static final Logger logger = Logger.getLogger(DotWriter.class.getName());
+    private static final String ID_STRING = Settings.getProperty("storage_identifier");
+
+    private final Writer writer;
+    private final Map<AbstractVertex, Integer> vertexKeys = new HashMap<>();
+
+    /**
+     * Creates the file and writes the header of the graph.
+     *
+     * @param path The path of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    public DotWriter(String path) throws IOException {
+        writer = new BufferedWriter(new FileWriter(path, false));
+        writer.write("digraph spade2dot {\n" + "graph [rankdir = \"RL\"];\n" + "node [fontname=\"Helvetica\" fontsize=\"8\" style=\"filled\" margin=\"0.0,0.0\"];\n"
+                + "edge [fontname=\"Helvetica\" fontsize=\"8\"];\n");
+    }
+
+    @Override
+    public void putVertex(AbstractVertex vertex) {
+        getVertexKey(vertex);
+    }
+
+    private String getVertexKey(AbstractVertex vertex) {
+        Integer key = vertexKeys.get(vertex);
+        if (key == null) {
+            key = vertexKeys.size();
+            vertexKeys.put(vertex, key);
+            exportVertex(vertex, key.toString());
+        }
+        return key.toString();
+    }
+
+    private void exportVertex(AbstractVertex vertex, String key) {
+        try {
+            StringBuilder annotationString = new StringBuilder();
+            for (Map.Entry<String, String> currentEntry : vertex.getAnnotations().entrySet()) {
+                String annotationKey = currentEntry.getKey();
+                String value = currentEntry.getValue();
+                if (annotationKey.equals(ID_STRING)) {
+                    continue;
+                }
+                annotationString.append(annotationKey.replace("\\", "\\\\")).append(":").append(value.replace("\\", "\\\\")).append("\\n");
+            }
+            String vertexString = annotationString.substring(0, annotationString.length() - 2);
+            String shape = "box";
+            String color = "white";
+            String type = vertex.getAnnotation("type");
+            if (type.equalsIgnoreCase("Agent")) {
+                shape = "octagon";
+                color = "rosybrown1";
+            } else if (type.equalsIgnoreCase("Process") || type.equalsIgnoreCase("Activity")) {
+                shape = "box";
+                color = "lightsteelblue1";
+            } else if (type.equalsIgnoreCase("Artifact") || type.equalsIgnoreCase("Entity")) {
+                shape = "ellipse";
+                color = "khaki1";
+                String subtype = vertex.getAnnotation("subtype");
+                if ("network".equalsIgnoreCase(subtype)) {
+                    shape = "diamond";
+                    color = "palegreen1";
+                }
+            }
+
+            writer.write("\"" + key + "\" [label=\"" + vertexString.replace("\"", "'") + "\" shape=\"" + shape + "\" fillcolor=\"" + color + "\"];\n");
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, null, exception);
+        }
+    }
+
+    @Override
+    public void putEdge(AbstractEdge edge) {
+        String srckey = getVertexKey(edge.getSourceVertex());
+        String dstkey = getVertexKey(edge.getDestinationVertex());
+        try {
+            StringBuilder annotationString = new StringBuilder();
+            for (Map.Entry<String, String> currentEntry : edge.getAnnotations().entrySet()) {
+                String key = currentEntry.getKey();
+                String value = currentEntry.getValue();
+                if (key.equals(ID_STRING)) {
+                    continue;
+                }
+                annotationString.append(key.replace("\\", "\\\\")).append(":").append(value.replace("\\", "\\\\")).append("\\n");
+            }
+            String color = "black";
+            String type = edge.getAnnotation("type");
+            if (type.equalsIgnoreCase("Used")) {
+                color = "green";
+            } else if (type.equalsIgnoreCase("WasGeneratedBy")) {
+                color = "red";
+            } else if (type.equalsIgnoreCase("WasTriggeredBy")) {
+                color = "blue";
+            } else if (type.equalsIgnoreCase("WasControlledBy")) {
+                color = "purple";
+            } else if (type.equalsIgnoreCase("WasDerivedFrom")) {
+                color = "orange";
+            }
+            String style = "solid";
+            if (edge.getAnnotation("success") != null && edge.getAnnotation("success").equals("false")) {
+                style = "dashed";
+            }
+
+            String edgeString = "(" + annotationString.substring(0, annotationString.length() - 2) + ")";
+            writer.write("\"" + srckey + "\" -> \"" + dstkey + "\" [label=\"" + edgeString.replace("\"", "'") + "\" color=\"" + color + "\" style=\"" + style + "\"];\n");
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, null, exception);
+        }
+    }
+
+    @Override
+    public void putNetworkVertex(AbstractVertex vertex, int depth) {
+    }
+
+    @Override
+    public void chunkReceived() {
+        try {
+            writer.flush();
+        } catch (IOException exception) {
+            logger.log(Level.SEVERE, null, exception);
+        }
+    }
+
+    /**
+     * Writes the end of the graph and closes the file.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.write("}\n");
+        writer.close();
+    }
+}
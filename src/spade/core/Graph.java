@@ -22,10 +22,11 @@ package spade.core;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -81,10 +82,13 @@ public class Graph extends AbstractStorage implements Serializable {
     private static final Pattern nodePattern = Pattern.compile("\"(.*)\" \\[label=\"(.*)\" shape=\"(\\w*)\" fillcolor=\"(\\w*)\"", Pattern.DOTALL);
     private static final Pattern edgePattern = Pattern.compile("\"(.*)\" -> \"(.*)\" \\[label=\"(.*)\" color=\"(\\w*)\"", Pattern.DOTALL);
     private static final Pattern longPattern = Pattern.compile("^[-+]?[0-9]+$");
+    private static final Pattern idPattern = Pattern.compile("^(\\w+):\\s*\"?(\\d+)\"?$");
     private static final Pattern doublePattern = Pattern.compile("^[-+]?[0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?$");
 
-    private transient Analyzer analyzer = new KeywordAnalyzer();
-    private transient QueryParser queryParser = new QueryParser(Version.LUCENE_35, null, analyzer);
+    // Buffer size used while building the Lucene indexes in bulk
+    private static final double INDEX_RAM_BUFFER_MB = 64;
+    private transient Analyzer analyzer;
+    private transient QueryParser queryParser;
     private Set<AbstractVertex> vertexSet = new LinkedHashSet<>();
     private Map<Integer, AbstractVertex> vertexIdentifiers = new HashMap<>();
     private Map<AbstractVertex, Integer> reverseVertexIdentifiers = new HashMap<>();
@@ -98,10 +102,22 @@ public class Graph extends AbstractStorage implements Serializable {
      * whether the network boundaries have been properly transformed.
      */
     public boolean transformed = false;
-    private Directory vertexIndex;
-    private Directory edgeIndex;
+    // The Lucene indexes are only needed for expression queries on this graph
+    // so they are built on the first such query, see ensureIndex().
+    private transient Directory vertexIndex;
+    private transient Directory edgeIndex;
     private transient IndexWriter vertexIndexWriter;
     private transient IndexWriter edgeIndexWriter;
+    private transient boolean indexDirty;
+    // Adjacency arrays for traversals, see ensureAdjacency()
+    private transient int[] outOffsets;
+    private transient int[] outTargets;
+    private transient int[] outEdges;
+    private transient int[] inOffsets;
+    private transient int[] inTargets;
+    private transient int[] inEdges;
+    private transient int adjacencyEdgeCount;
+    private transient int adjacencyVertexLimit;
     
     public void mergeThreads() {
 
@@ -111,17 +127,78 @@ public class Graph extends AbstractStorage implements Serializable {
      * An empty constructor.
      */
     public Graph() {
-        // Lucene initialization
-        try {
+    }
+
+    /**
+     * Builds the Lucene indexes of this graph if they do not exist yet and
+     * commits the documents added since the last query. The indexes are built
+     * in a single pass over the vertices and edges added so far, after which
+     * new elements are indexed as they are added.
+     *
+     * @throws IOException If the indexes cannot be written.
+     */
+    private synchronized void ensureIndex() throws IOException {
+        if (queryParser == null) {
+            analyzer = new KeywordAnalyzer();
+            queryParser = new QueryParser(Version.LUCENE_35, null, analyzer);
+            queryParser.setAllowLeadingWildcard(true);
+        }
+        if (vertexIndex == null) {
             vertexIndex = new RAMDirectory();
             edgeIndex = new RAMDirectory();
-            vertexIndexWriter = new IndexWriter(vertexIndex, new IndexWriterConfig(Version.LUCENE_35, analyzer));
-            edgeIndexWriter = new IndexWriter(edgeIndex, new IndexWriterConfig(Version.LUCENE_35, analyzer));
-            queryParser.setAllowLeadingWildcard(true);
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
+            vertexIndexWriter = new IndexWriter(vertexIndex, newIndexWriterConfig());
+            edgeIndexWriter = new IndexWriter(edgeIndex, newIndexWriterConfig());
+            for (Map.Entry<Integer, AbstractVertex> entry : vertexIdentifiers.entrySet()) {
+                vertexIndexWriter.addDocument(createVertexDocument(entry.getValue(), entry.getKey()));
+            }
+            for (Map.Entry<Integer, AbstractEdge> entry : edgeIdentifiers.entrySet()) {
+                edgeIndexWriter.addDocument(createEdgeDocument(entry.getValue(), entry.getKey()));
+            }
+            indexDirty = true;
+        }
+        if (indexDirty) {
+            vertexIndexWriter.commit();
+            edgeIndexWriter.commit();
+            indexDirty = false;
         }
     }
+
+    private IndexWriterConfig newIndexWriterConfig() {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_35, analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setRAMBufferSizeMB(INDEX_RAM_BUFFER_MB);
+        return config;
+    }
+
+    private Document createVertexDocument(AbstractVertex vertex, int id) {
+        Document doc = new Document();
+        for (Map.Entry<String, String> currentEntry : vertex.getAnnotations().entrySet()) {
+            String key = currentEntry.getKey();
+            String value = currentEntry.getValue();
+            if (key.equals(ID_STRING)) {
+                continue;
+            }
+            doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
+        }
+        doc.add(new Field(ID_STRING, Integer.toString(id), Field.Store.YES, Field.Index.ANALYZED));
+        return doc;
+    }
+
+    private Document createEdgeDocument(AbstractEdge edge, int id) {
+        Document doc = new Document();
+        for (Map.Entry<String, String> currentEntry : edge.getAnnotations().entrySet()) {
+            String key = currentEntry.getKey();
+            String value = currentEntry.getValue();
+            if (key.equals(ID_STRING)) {
+                continue;
+            }
+            doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
+        }
+        doc.add(new Field(ID_STRING, Integer.toString(id), Field.Store.YES, Field.Index.ANALYZED));
+        doc.add(new Field(SRC_VERTEX_ID, Integer.toString(reverseVertexIdentifiers.get(edge.getSourceVertex())), Field.Store.YES, Field.Index.ANALYZED));
+        doc.add(new Field(DST_VERTEX_ID, Integer.toString(reverseVertexIdentifiers.get(edge.getDestinationVertex())), Field.Store.YES, Field.Index.ANALYZED));
+        return doc;
+    }
     
     public AbstractVertex getVertex(int id) {
         return vertexIdentifiers.get(id);
@@ -162,20 +239,12 @@ public class Graph extends AbstractStorage implements Serializable {
         if (reverseVertexIdentifiers.containsKey(inputVertex)) {
             return false;
         }
-        // Add vertex to Lucene index
         try {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : inputVertex.getAnnotations().entrySet()) {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key.equals(ID_STRING)) {
-                    continue;
-                }
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
+            // Only index the vertex now if the index has already been built
+            if (vertexIndexWriter != null) {
+                vertexIndexWriter.addDocument(createVertexDocument(inputVertex, serial_number));
+                indexDirty = true;
             }
-            doc.add(new Field(ID_STRING, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            vertexIndexWriter.addDocument(doc);
-            // vertexIndexWriter.commit();
 
             vertexIdentifiers.put(serial_number, inputVertex);
             reverseVertexIdentifiers.put(inputVertex, serial_number);
@@ -192,29 +261,26 @@ public class Graph extends AbstractStorage implements Serializable {
      * before it is finally committed.
      *
      * @param inputEdge The edge to be added
-     * @return
+     * @return False if the edge is already in the graph or one of its
+     * endpoints is not.
      */
     @Override
     public boolean putEdge(AbstractEdge inputEdge) {
         if (reverseEdgeIdentifiers.containsKey(inputEdge)) {
             return false;
         }
-        // Add edge to Lucene index
+        // The indexes and the adjacency arrays refer to edge endpoints by
+        // their vertex identifiers, so dangling edges are not added.
+        if (!reverseVertexIdentifiers.containsKey(inputEdge.getSourceVertex())
+                || !reverseVertexIdentifiers.containsKey(inputEdge.getDestinationVertex())) {
+            return false;
+        }
         try {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : inputEdge.getAnnotations().entrySet()) {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key.equals(ID_STRING)) {
-                    continue;
-                }
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
+            // Only index the edge now if the index has already been built
+            if (edgeIndexWriter != null) {
+                edgeIndexWriter.addDocument(createEdgeDocument(inputEdge, serial_number));
+                indexDirty = true;
             }
-            doc.add(new Field(ID_STRING, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(SRC_VERTEX_ID, Integer.toString(reverseVertexIdentifiers.get(inputEdge.getSourceVertex())), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(DST_VERTEX_ID, Integer.toString(reverseVertexIdentifiers.get(inputEdge.getDestinationVertex())), Field.Store.YES, Field.Index.ANALYZED));
-            edgeIndexWriter.addDocument(doc);
-            // edgeIndexWriter.commit();
 
             edgeIdentifiers.put(serial_number, inputEdge);
             reverseEdgeIdentifiers.put(inputEdge, serial_number);
@@ -226,10 +292,17 @@ public class Graph extends AbstractStorage implements Serializable {
         return true;
     }
 
+    /**
+     * Kept for callers that commit after adding elements. Since the indexes
+     * are built and committed on demand this only commits pending documents
+     * when the indexes already exist.
+     */
     public void commitIndex() {
+        if (vertexIndexWriter == null) {
+            return;
+        }
         try {
-            vertexIndexWriter.commit();
-            edgeIndexWriter.commit();
+            ensureIndex();
         } catch (Exception exception) {
             logger.log(Level.SEVERE, null, exception);
         }
@@ -345,7 +418,10 @@ public class Graph extends AbstractStorage implements Serializable {
             resultGraph.putVertex(vertex);
         }
         for (AbstractEdge edge : edges) {
-            resultGraph.putEdge(edge);
+            // Edges of removed vertices are removed with them
+            if (vertices.contains(edge.getSourceVertex()) && vertices.contains(edge.getDestinationVertex())) {
+                resultGraph.putEdge(edge);
+            }
         }
 
         resultGraph.commitIndex();
@@ -455,98 +531,13 @@ public class Graph extends AbstractStorage implements Serializable {
         if ((path == null) || vertexSet.isEmpty()) {
             return;
         }
-        try {
-            FileWriter writer = new FileWriter(path, false);
-            writer.write("digraph spade2dot {\n" + "graph [rankdir = \"RL\"];\n" + "node [fontname=\"Helvetica\" fontsize=\"8\" style=\"filled\" margin=\"0.0,0.0\"];\n"
-                    + "edge [fontname=\"Helvetica\" fontsize=\"8\"];\n");
-            writer.flush();
-
+        try (DotWriter writer = new DotWriter(path)) {
             for (AbstractVertex vertex : vertexSet) {
-                exportVertex(vertex, writer);
+                writer.putVertex(vertex);
             }
             for (AbstractEdge edge : edgeSet) {
-                exportEdge(edge, writer);
-            }
-
-            writer.write("}\n");
-            writer.flush();
-            writer.close();
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
-        }
-    }
-
-    private void exportVertex(AbstractVertex vertex, FileWriter writer) {
-        try {
-            StringBuilder annotationString = new StringBuilder();
-            for (Map.Entry<String, String> currentEntry : vertex.getAnnotations().entrySet()) {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key.equals(ID_STRING)) {
-                    continue;
-                }
-                annotationString.append(key.replace("\\", "\\\\")).append(":").append(value.replace("\\", "\\\\")).append("\\n");
-            }
-            String vertexString = annotationString.substring(0, annotationString.length() - 2);
-            String shape = "box";
-            String color = "white";
-            String type = vertex.getAnnotation("type");
-            if (type.equalsIgnoreCase("Agent")) {
-                shape = "octagon";
-                color = "rosybrown1";
-            } else if (type.equalsIgnoreCase("Process") || type.equalsIgnoreCase("Activity")) {
-                shape = "box";
-                color = "lightsteelblue1";
-            } else if (type.equalsIgnoreCase("Artifact") || type.equalsIgnoreCase("Entity")) {
-                shape = "ellipse";
-                color = "khaki1";
-                String subtype = vertex.getAnnotation("subtype");
-                if ("network".equalsIgnoreCase(subtype)) {
-                    shape = "diamond";
-                    color = "palegreen1";
-                }
-            }
-
-            String key = Integer.toString(reverseVertexIdentifiers.get(vertex));
-            writer.write("\"" + key + "\" [label=\"" + vertexString.replace("\"", "'") + "\" shape=\"" + shape + "\" fillcolor=\"" + color + "\"];\n");
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
-        }
-    }
-
-    private void exportEdge(AbstractEdge edge, FileWriter writer) {
-        try {
-            StringBuilder annotationString = new StringBuilder();
-            for (Map.Entry<String, String> currentEntry : edge.getAnnotations().entrySet()) {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key.equals(ID_STRING)) {
-                    continue;
-                }
-                annotationString.append(key.replace("\\", "\\\\")).append(":").append(value.replace("\\", "\\\\")).append("\\n");
-            }
-            String color = "black";
-            String type = edge.getAnnotation("type");
-            if (type.equalsIgnoreCase("Used")) {
-                color = "green";
-            } else if (type.equalsIgnoreCase("WasGeneratedBy")) {
-                color = "red";
-            } else if (type.equalsIgnoreCase("WasTriggeredBy")) {
-                color = "blue";
-            } else if (type.equalsIgnoreCase("WasControlledBy")) {
-                color = "purple";
-            } else if (type.equalsIgnoreCase("WasDerivedFrom")) {
-                color = "orange";
+                writer.putEdge(edge);
             }
-            String style = "solid";
-            if (edge.getAnnotation("success") != null && edge.getAnnotation("success").equals("false")) {
-                style = "dashed";
-            }
-
-            String edgeString = "(" + annotationString.substring(0, annotationString.length() - 2) + ")";
-            String srckey = Integer.toString(reverseVertexIdentifiers.get(edge.getSourceVertex()));
-            String dstkey = Integer.toString(reverseVertexIdentifiers.get(edge.getDestinationVertex()));
-            writer.write("\"" + srckey + "\" -> \"" + dstkey + "\" [label=\"" + edgeString.replace("\"", "'") + "\" color=\"" + color + "\" style=\"" + style + "\"];\n");
         } catch (Exception exception) {
             logger.log(Level.SEVERE, null, exception);
         }
@@ -564,6 +555,7 @@ public class Graph extends AbstractStorage implements Serializable {
 
     public List<Integer> listVertices(String expression) {
         try {
+            ensureIndex();
             List<Integer> results = new ArrayList<>();
             IndexReader reader = IndexReader.open(vertexIndex);
             IndexSearcher searcher = new IndexSearcher(reader);
@@ -587,6 +579,7 @@ public class Graph extends AbstractStorage implements Serializable {
     @Override
     public Graph getVertices(String expression) {
         try {
+            ensureIndex();
             IndexReader reader = IndexReader.open(vertexIndex);
             IndexSearcher searcher = new IndexSearcher(reader);
             ScoreDoc[] hits = searcher.search(queryParser.parse(expression), MAX_QUERY_HITS).scoreDocs;
@@ -632,79 +625,7 @@ public class Graph extends AbstractStorage implements Serializable {
             } else if (!DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()) && !DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase())) {
                 return null;
             }
-
-            Graph resultGraph = new Graph();
-
-            IndexReader vertexReader = IndexReader.open(vertexIndex);
-            IndexSearcher vertexSearcher = new IndexSearcher(vertexReader);
-            Set<Integer> terminatingSet = new HashSet<>();
-            if ((terminatingExpression != null) && (!terminatingExpression.trim().equalsIgnoreCase("null"))) {
-                ScoreDoc[] hits = vertexSearcher.search(queryParser.parse(terminatingExpression), MAX_QUERY_HITS).scoreDocs;
-                for (int i = 0; i < hits.length; ++i) {
-                    int docId = hits[i].doc;
-                    Document foundDoc = vertexSearcher.doc(docId);
-                    int id = Integer.parseInt(foundDoc.get(ID_STRING));
-                    terminatingSet.add(id);
-                }
-            }
-            Set<Integer> processedVertices = new HashSet<>();
-            ScoreDoc[] hits = vertexSearcher.search(queryParser.parse(vertexExpression), MAX_QUERY_HITS).scoreDocs;
-            for (int i = 0; i < hits.length; ++i) {
-                int docId = hits[i].doc;
-                Document foundDoc = vertexSearcher.doc(docId);
-                int vertex_identifier = Integer.parseInt(foundDoc.get(ID_STRING));
-                resultGraph.putVertex(vertexIdentifiers.get(vertex_identifier));
-                processedVertices.add(vertex_identifier);
-            }
-            vertexSearcher.close();
-            vertexReader.close();
-
-            Set<Integer> doneVertices = new HashSet<>();
-            doneVertices.addAll(processedVertices);
-
-            IndexReader edgeReader = IndexReader.open(edgeIndex);
-            IndexSearcher edgeSearcher = new IndexSearcher(edgeReader);
-            for (int i = 0; i <= depth; i++) {
-                Set<Integer> tempProcessedVertices = new HashSet<>();
-                for (int currentVertexId : processedVertices) {
-                    String queryString = null;
-                    if (DIRECTION_ANCESTORS.startsWith(direction.toLowerCase())) {
-                        queryString = SRC_VERTEX_ID + ":\"" + currentVertexId + "\"";
-                    } else if (DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase())) {
-                        queryString = DST_VERTEX_ID + ":\"" + currentVertexId + "\"";
-                    }
-
-                    hits = edgeSearcher.search(queryParser.parse(queryString), MAX_QUERY_HITS).scoreDocs;
-                    for (int j = 0; j < hits.length; ++j) {
-                        int docId = hits[j].doc;
-                        Document foundDoc = edgeSearcher.doc(docId);
-                        int edgeId = Integer.parseInt(foundDoc.get(ID_STRING));
-                        AbstractEdge tempEdge = edgeIdentifiers.get(edgeId);
-                        int otherVertexId = 0;
-                        if (DIRECTION_ANCESTORS.startsWith(direction.toLowerCase())) {
-                            otherVertexId = reverseVertexIdentifiers.get(tempEdge.getDestinationVertex());
-                        } else if (DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase())) {
-                            otherVertexId = reverseVertexIdentifiers.get(tempEdge.getSourceVertex());
-                        }
-                        if (!terminatingSet.contains(otherVertexId)) {
-                            resultGraph.putVertex(vertexIdentifiers.get(otherVertexId));
-                            resultGraph.putEdge(tempEdge);
-                            if (doneVertices.add(otherVertexId)) {
-                                tempProcessedVertices.add(otherVertexId);
-                            }
-                        }
-                    }
-                }
-                if (tempProcessedVertices.isEmpty()) {
-                    break;
-                }
-                processedVertices = tempProcessedVertices;
-            }
-
-            edgeSearcher.close();
-            edgeReader.close();
-            resultGraph.commitIndex();
-            return resultGraph;
+            return traverse(findVertexIds(vertexExpression), depth, direction, findTerminatingVertices(terminatingExpression));
         } catch (IOException | ParseException | NumberFormatException exception) {
             logger.log(Level.SEVERE, null, exception);
             return null;
@@ -734,79 +655,156 @@ public class Graph extends AbstractStorage implements Serializable {
             } else if (!DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()) && !DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase())) {
                 return null;
             }
-
-            Graph resultGraph = new Graph();
-
-            IndexReader vertexReader = IndexReader.open(vertexIndex);
-            IndexSearcher vertexSearcher = new IndexSearcher(vertexReader);
-            Set<Integer> terminatingSet = new HashSet<>();
-            if ((terminatingExpression != null) && (!terminatingExpression.trim().equalsIgnoreCase("null"))) {
-                ScoreDoc[] hits = vertexSearcher.search(queryParser.parse(terminatingExpression), MAX_QUERY_HITS).scoreDocs;
-                for (int i = 0; i < hits.length; ++i) {
-                    int docId = hits[i].doc;
-                    Document foundDoc = vertexSearcher.doc(docId);
-                    int id = Integer.parseInt(foundDoc.get(ID_STRING));
-                    terminatingSet.add(id);
+            int[] vertexIds = new int[srcGraph.vertexSet().size()];
+            int count = 0;
+            for (AbstractVertex vertex : srcGraph.vertexSet()) {
+                Integer id = reverseVertexIdentifiers.get(vertex);
+                if (id != null) {
+                    vertexIds[count++] = id;
                 }
             }
-            vertexSearcher.close();
-            vertexReader.close();
+            return traverse(Arrays.copyOf(vertexIds, count), depth, direction, findTerminatingVertices(terminatingExpression));
+        } catch (IOException | ParseException | NumberFormatException exception) {
+            logger.log(Level.SEVERE, null, exception);
+            return null;
+        }
+    }
 
-            Set<Integer> processedVertices = new HashSet<>();
-            for (AbstractVertex vertex : srcGraph.vertexSet()) {
-                resultGraph.putVertex(vertex);
-                processedVertices.add(reverseVertexIdentifiers.get(vertex));
+    // Returns the ids of the vertices matching the expression. Expressions
+    // naming a single vertex id are answered without the Lucene index.
+    private int[] findVertexIds(String expression) throws IOException, ParseException {
+        Matcher idMatcher = idPattern.matcher(expression.trim());
+        if (idMatcher.matches() && idMatcher.group(1).equals(ID_STRING)) {
+            int id = Integer.parseInt(idMatcher.group(2));
+            return vertexIdentifiers.containsKey(id) ? new int[]{id} : new int[0];
+        }
+        ensureIndex();
+        IndexReader vertexReader = IndexReader.open(vertexIndex);
+        IndexSearcher vertexSearcher = new IndexSearcher(vertexReader);
+        ScoreDoc[] hits = vertexSearcher.search(queryParser.parse(expression), MAX_QUERY_HITS).scoreDocs;
+        int[] vertexIds = new int[hits.length];
+        for (int i = 0; i < hits.length; ++i) {
+            Document foundDoc = vertexSearcher.doc(hits[i].doc);
+            vertexIds[i] = Integer.parseInt(foundDoc.get(ID_STRING));
+        }
+        vertexSearcher.close();
+        vertexReader.close();
+        return vertexIds;
+    }
+
+    private BitSet findTerminatingVertices(String terminatingExpression) throws IOException, ParseException {
+        BitSet terminatingSet = new BitSet();
+        if ((terminatingExpression != null) && (!terminatingExpression.trim().equalsIgnoreCase("null"))) {
+            for (int id : findVertexIds(terminatingExpression)) {
+                terminatingSet.set(id);
             }
+        }
+        return terminatingSet;
+    }
 
-            Set<Integer> doneVertices = new HashSet<>();
-            doneVertices.addAll(processedVertices);
-
-            IndexReader edgeReader = IndexReader.open(edgeIndex);
-            IndexSearcher edgeSearcher = new IndexSearcher(edgeReader);
-            for (int i = 0; i <= depth; i++) {
-                Set<Integer> tempProcessedVertices = new HashSet<>();
-                for (int currentVertexId : processedVertices) {
-                    String queryString = null;
-                    if (DIRECTION_ANCESTORS.startsWith(direction.toLowerCase())) {
-                        queryString = SRC_VERTEX_ID + ":\"" + currentVertexId + "\"";
-                    } else if (DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase())) {
-                        queryString = DST_VERTEX_ID + ":\"" + currentVertexId + "\"";
-                    }
+    /**
+     * Builds the adjacency arrays of this graph if edges were added since they
+     * were last built. The arrays are in compressed sparse row form indexed by
+     * vertex id: the out-neighbours of vertex v are outTargets[outOffsets[v]]
+     * to outTargets[outOffsets[v + 1] - 1], connected by the edges with the
+     * ids at the same positions in outEdges, and likewise for in-neighbours.
+     */
+    private synchronized void ensureAdjacency() {
+        if (outOffsets != null && adjacencyEdgeCount == edgeIdentifiers.size() && adjacencyVertexLimit == serial_number) {
+            return;
+        }
+        int vertexLimit = serial_number;
+        int edgeCount = edgeIdentifiers.size();
+        int[] sources = new int[edgeCount];
+        int[] destinations = new int[edgeCount];
+        int[] edgeIds = new int[edgeCount];
+        int[] newOutOffsets = new int[vertexLimit + 1];
+        int[] newInOffsets = new int[vertexLimit + 1];
+        int k = 0;
+        for (Map.Entry<Integer, AbstractEdge> entry : edgeIdentifiers.entrySet()) {
+            AbstractEdge edge = entry.getValue();
+            edgeIds[k] = entry.getKey();
+            sources[k] = reverseVertexIdentifiers.get(edge.getSourceVertex());
+            destinations[k] = reverseVertexIdentifiers.get(edge.getDestinationVertex());
+            newOutOffsets[sources[k] + 1]++;
+            newInOffsets[destinations[k] + 1]++;
+            k++;
+        }
+        for (int v = 0; v < vertexLimit; v++) {
+            newOutOffsets[v + 1] += newOutOffsets[v];
+            newInOffsets[v + 1] += newInOffsets[v];
+        }
+        int[] outPositions = Arrays.copyOf(newOutOffsets, vertexLimit);
+        int[] inPositions = Arrays.copyOf(newInOffsets, vertexLimit);
+        int[] newOutTargets = new int[edgeCount];
+        int[] newOutEdges = new int[edgeCount];
+        int[] newInTargets = new int[edgeCount];
+        int[] newInEdges = new int[edgeCount];
+        for (int i = 0; i < edgeCount; i++) {
+            int out = outPositions[sources[i]]++;
+            newOutTargets[out] = destinations[i];
+            newOutEdges[out] = edgeIds[i];
+            int in = inPositions[destinations[i]]++;
+            newInTargets[in] = sources[i];
+            newInEdges[in] = edgeIds[i];
+        }
+        outOffsets = newOutOffsets;
+        outTargets = newOutTargets;
+        outEdges = newOutEdges;
+        inOffsets = newInOffsets;
+        inTargets = newInTargets;
+        inEdges = newInEdges;
+        adjacencyEdgeCount = edgeCount;
+        adjacencyVertexLimit = vertexLimit;
+    }
 
-                    ScoreDoc[] hits = edgeSearcher.search(queryParser.parse(queryString), MAX_QUERY_HITS).scoreDocs;
-                    for (int j = 0; j < hits.length; ++j) {
-                        int docId = hits[j].doc;
-                        Document foundDoc = edgeSearcher.doc(docId);
-                        int edgeId = Integer.parseInt(foundDoc.get(ID_STRING));
-                        AbstractEdge tempEdge = edgeIdentifiers.get(edgeId);
-                        int otherVertexId = 0;
-                        if (DIRECTION_ANCESTORS.startsWith(direction.toLowerCase())) {
-                            otherVertexId = reverseVertexIdentifiers.get(tempEdge.getDestinationVertex());
-                        } else if (DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase())) {
-                            otherVertexId = reverseVertexIdentifiers.get(tempEdge.getSourceVertex());
-                        }
-                        if (!terminatingSet.contains(otherVertexId)) {
-                            resultGraph.putVertex(vertexIdentifiers.get(otherVertexId));
-                            resultGraph.putEdge(tempEdge);
-                            if (doneVertices.add(otherVertexId)) {
-                                tempProcessedVertices.add(otherVertexId);
-                            }
+    // Breadth-first traversal over the adjacency arrays. Ancestors are
+    // reached through outgoing edges and descendants through incoming ones.
+    private Graph traverse(int[] startIds, int depth, String direction, BitSet terminatingSet) {
+        ensureAdjacency();
+        boolean ancestors = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase());
+        int[] offsets = ancestors ? outOffsets : inOffsets;
+        int[] targets = ancestors ? outTargets : inTargets;
+        int[] edges = ancestors ? outEdges : inEdges;
+
+        Graph resultGraph = new Graph();
+        BitSet doneVertices = new BitSet(adjacencyVertexLimit);
+        int[] frontier = new int[Math.max(startIds.length, 16)];
+        int frontierSize = 0;
+        for (int id : startIds) {
+            resultGraph.putVertex(vertexIdentifiers.get(id));
+            if (!doneVertices.get(id)) {
+                doneVertices.set(id);
+                frontier[frontierSize++] = id;
+            }
+        }
+        int[] next = new int[frontier.length];
+        for (int i = 0; i <= depth && frontierSize > 0; i++) {
+            int nextSize = 0;
+            for (int f = 0; f < frontierSize; f++) {
+                int currentVertexId = frontier[f];
+                for (int j = offsets[currentVertexId]; j < offsets[currentVertexId + 1]; j++) {
+                    int otherVertexId = targets[j];
+                    if (terminatingSet.get(otherVertexId)) {
+                        continue;
+                    }
+                    resultGraph.putVertex(vertexIdentifiers.get(otherVertexId));
+                    resultGraph.putEdge(edgeIdentifiers.get(edges[j]));
+                    if (!doneVertices.get(otherVertexId)) {
+                        doneVertices.set(otherVertexId);
+                        if (nextSize == next.length) {
+                            next = Arrays.copyOf(next, nextSize * 2);
                         }
+                        next[nextSize++] = otherVertexId;
                     }
                 }
-                if (tempProcessedVertices.isEmpty()) {
-                    break;
-                }
-                processedVertices = tempProcessedVertices;
             }
-
-            edgeSearcher.close();
-            edgeReader.close();
-            resultGraph.commitIndex();
-            return resultGraph;
-        } catch (IOException | ParseException | NumberFormatException exception) {
-            logger.log(Level.SEVERE, null, exception);
-            return null;
+            int[] swap = frontier;
+            frontier = next;
+            next = swap.length >= frontier.length ? swap : new int[frontier.length];
+            frontierSize = nextSize;
         }
+        resultGraph.commitIndex();
+        return resultGraph;
     }
 }
@@ -0,0 +1,291 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads query results written by a GraphWriter. Results can either be
+ * collected into a Graph or handed to a Listener element by element as they
+ * arrive, for example to display or export a large result without waiting
+ * for all of it.
+ */
+public class GraphReader implements Closeable {
+
+    /**
+     * Receives the elements of a graph as they are read.
+     */
+    public interface Listener {
+
+        void putVertex(AbstractVertex vertex);
+
+        void putEdge(AbstractEdge edge);
+
+        void putNetworkVertex(AbstractVertex vertex, int depth);
+
+        /**
+         * Called after each chunk of elements and at the end of the graph.
+         */
+        void chunkReceived();
+    }
+
+    private final DataInputStream in;
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Constructor<? extends AbstractVertex>> vertexConstructors = new HashMap<>();
+    private final Map<String, Constructor<? extends AbstractEdge>> edgeConstructors = new HashMap<>();
+    private boolean transformed;
+
+    public GraphReader(InputStream inputStream) {
+        in = new DataInputStream(new BufferedInputStream(inputStream, 1 << 16));
+    }
+
+    /**
+     * Reads a text message.
+     *
+     * @return The message.
+     * @throws IOException If the stream cannot be read or does not contain a
+     * message.
+     */
+    public String readMessage() throws IOException {
+        int tag = nextRecord();
+        if (tag != GraphWriter.MESSAGE) {
+            throw new IOException("Expected message but found record " + (char) tag);
+        }
+        return readString();
+    }
+
+    /**
+     * Reads a complete graph.
+     *
+     * @return The graph.
+     * @throws IOException If the stream cannot be read or does not contain a
+     * graph.
+     */
+    public Graph readGraph() throws IOException {
+        Graph graph = new Graph();
+        readGraph(graphBuilder(graph));
+        graph.transformed = transformed;
+        graph.commitIndex();
+        return graph;
+    }
+
+    /**
+     * Reads a graph and passes its elements to the listener as they arrive.
+     *
+     * @param listener The listener.
+     * @return The transformed flag of the graph.
+     * @throws IOException If the stream cannot be read or does not contain a
+     * graph.
+     */
+    public boolean readGraph(Listener listener) throws IOException {
+        int tag = nextRecord();
+        if (tag != GraphWriter.GRAPH_BEGIN) {
+            throw new IOException("Expected graph but found record " + (char) tag);
+        }
+        return readGraphElements(listener);
+    }
+
+    /**
+     * Reads whichever comes next, a text message or a complete graph.
+     *
+     * @return The message as a String or the graph as a Graph.
+     * @throws IOException If the stream cannot be read or contains neither.
+     */
+    public Object readMessageOrGraph() throws IOException {
+        int tag = nextRecord();
+        if (tag == GraphWriter.MESSAGE) {
+            return readString();
+        } else if (tag != GraphWriter.GRAPH_BEGIN) {
+            throw new IOException("Expected message or graph but found record " + (char) tag);
+        }
+        Graph graph = new Graph();
+        graph.transformed = readGraphElements(graphBuilder(graph));
+        graph.commitIndex();
+        return graph;
+    }
+
+    /**
+     * Returns a listener that adds the elements it receives to a graph.
+     *
+     * @param graph The graph.
+     * @return The listener.
+     */
+    public static Listener graphBuilder(final Graph graph) {
+        return new Listener() {
+            @Override
+            public void putVertex(AbstractVertex vertex) {
+                graph.putVertex(vertex);
+            }
+
+            @Override
+            public void putEdge(AbstractEdge edge) {
+                graph.putEdge(edge);
+            }
+
+            @Override
+            public void putNetworkVertex(AbstractVertex vertex, int depth) {
+                graph.putNetworkVertex(vertex, depth);
+            }
+
+            @Override
+            public void chunkReceived() {
+            }
+        };
+    }
+
+    private boolean readGraphElements(Listener listener) throws IOException {
+        int tag;
+        List<AbstractVertex> vertices = new ArrayList<>();
+        while (true) {
+            tag = nextRecord();
+            switch (tag) {
+                case GraphWriter.VERTEX: {
+                    AbstractVertex vertex = newVertex(strings.get(in.readInt()));
+                    readAnnotations(vertex.getAnnotations());
+                    vertices.add(vertex);
+                    listener.putVertex(vertex);
+                    break;
+                }
+                case GraphWriter.EDGE: {
+                    String className = strings.get(in.readInt());
+                    AbstractVertex sourceVertex = vertices.get(in.readInt());
+                    AbstractVertex destinationVertex = vertices.get(in.readInt());
+                    AbstractEdge edge = newEdge(className, sourceVertex, destinationVertex);
+                    readAnnotations(edge.getAnnotations());
+                    listener.putEdge(edge);
+                    break;
+                }
+                case GraphWriter.NETWORK_VERTEX: {
+                    AbstractVertex vertex = vertices.get(in.readInt());
+                    listener.putNetworkVertex(vertex, in.readInt());
+                    break;
+                }
+                case GraphWriter.CHUNK_END:
+                    listener.chunkReceived();
+                    break;
+                case GraphWriter.GRAPH_END:
+                    transformed = in.readBoolean();
+                    listener.chunkReceived();
+                    return transformed;
+                default:
+                    throw new IOException("Unexpected record " + (char) tag);
+            }
+        }
+    }
+
+    // Reads the next record tag, handling string definitions on the way.
+    private int nextRecord() throws IOException {
+        int tag = in.readUnsignedByte();
+        while (tag == GraphWriter.STRING) {
+            strings.add(readString());
+            tag = in.readUnsignedByte();
+        }
+        return tag;
+    }
+
+    // Replaces the annotations set by the element constructor.
+    private void readAnnotations(Map<String, String> annotations) throws IOException {
+        annotations.clear();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = strings.get(in.readInt());
+            String value = readString();
+            if (value != null) {
+                annotations.put(key, value);
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Class names come from the peer, so a class is only loaded, without
+    // being initialized, and then rejected unless it is of the expected kind.
+    private static <T> Class<? extends T> loadClass(String className, Class<T> kind) throws ClassNotFoundException {
+        return Class.forName(className, false, GraphReader.class.getClassLoader()).asSubclass(kind);
+    }
+
+    // Vertices are recreated with their original class when it is available.
+    private AbstractVertex newVertex(String className) {
+        try {
+            Constructor<? extends AbstractVertex> constructor = vertexConstructors.get(className);
+            if (constructor == null) {
+                constructor = loadClass(className, AbstractVertex.class).getConstructor();
+                vertexConstructors.put(className, constructor);
+            }
+            return constructor.newInstance();
+        } catch (Exception exception) {
+            return new Vertex();
+        }
+    }
+
+    // Edge classes take their typed endpoints in a two argument constructor.
+    private AbstractEdge newEdge(String className, AbstractVertex sourceVertex, AbstractVertex destinationVertex) {
+        try {
+            Constructor<? extends AbstractEdge> constructor = edgeConstructors.get(className);
+            if (constructor == null) {
+                for (Constructor<?> candidate : loadClass(className, AbstractEdge.class).getConstructors()) {
+                    Class<?>[] parameterTypes = candidate.getParameterTypes();
+                    if (parameterTypes.length == 2 && AbstractVertex.class.isAssignableFrom(parameterTypes[0])
+                            && AbstractVertex.class.isAssignableFrom(parameterTypes[1])) {
+                        constructor = asEdgeConstructor(candidate);
+                        break;
+                    }
+                }
+                if (constructor == null) {
+                    return new Edge(sourceVertex, destinationVertex);
+                }
+                edgeConstructors.put(className, constructor);
+            }
+            return constructor.newInstance(sourceVertex, destinationVertex);
+        } catch (Exception exception) {
+            return new Edge(sourceVertex, destinationVertex);
+        }
+    }
+
+    // getConstructors of an AbstractEdge subclass only returns its own
+    // constructors.
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends AbstractEdge> asEdgeConstructor(Constructor<?> constructor) {
+        return (Constructor<? extends AbstractEdge>) constructor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes query results to a stream in a compact binary format that can be
+ * consumed incrementally by a GraphReader. Unlike Java serialization of a
+ * Graph, elements are written one at a time as they are produced, without
+ * the Lucene indexes or the identifier maps of the graph. Annotation keys and
+ * class names are sent once per connection and then referred to by number.
+ * Elements are grouped in chunks and the stream is flushed after each chunk,
+ * so the reader can start working on the first chunk while later ones are
+ * still being written. A slow reader blocks the writer through the socket
+ * buffers instead of making it buffer the result.
+ */
+public class GraphWriter implements Closeable {
+
+    // Record tags shared with GraphReader
+    static final int STRING = 'S';
+    static final int MESSAGE = 'M';
+    static final int GRAPH_BEGIN = 'G';
+    static final int VERTEX = 'V';
+    static final int EDGE = 'E';
+    static final int NETWORK_VERTEX = 'N';
+    static final int CHUNK_END = 'C';
+    static final int GRAPH_END = 'Z';
+
+    // Number of elements written before the stream is flushed
+    public static final int CHUNK_SIZE = 1000;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<AbstractVertex, Integer> vertexIds = new HashMap<>();
+    private int chunkCount;
+    private boolean inGraph;
+
+    public GraphWriter(OutputStream outputStream) {
+        out = new DataOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+    }
+
+    /**
+     * Sends a text message, such as the "graph" marker sent before a result or
+     * the list of query commands.
+     *
+     * @param message The message.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void writeMessage(String message) throws IOException {
+        out.writeByte(MESSAGE);
+        writeString(message);
+        out.flush();
+    }
+
+    /**
+     * Starts a graph. Elements can then be written as they become available.
+     *
+     * @throws IOException If the stream cannot be written.
+     */
+    public void beginGraph() throws IOException {
+        out.writeByte(GRAPH_BEGIN);
+        inGraph = true;
+        chunkCount = 0;
+    }
+
+    /**
+     * Writes a vertex of the current graph. Vertices already written in this
+     * graph are skipped.
+     *
+     * @param vertex The vertex.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putVertex(AbstractVertex vertex) throws IOException {
+        getVertexId(vertex);
+    }
+
+    private int getVertexId(AbstractVertex vertex) throws IOException {
+        Integer id = vertexIds.get(vertex);
+        if (id != null) {
+            return id;
+        }
+        id = vertexIds.size();
+        vertexIds.put(vertex, id);
+        int classId = getStringId(vertex.getClass().getName());
+        defineKeys(vertex.getAnnotations());
+        out.writeByte(VERTEX);
+        out.writeInt(classId);
+        writeAnnotations(vertex.getAnnotations());
+        elementWritten();
+        return id;
+    }
+
+    /**
+     * Writes an edge of the current graph. Its endpoints are written first if
+     * needed.
+     *
+     * @param edge The edge.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putEdge(AbstractEdge edge) throws IOException {
+        int sourceId = getVertexId(edge.getSourceVertex());
+        int destinationId = getVertexId(edge.getDestinationVertex());
+        int classId = getStringId(edge.getClass().getName());
+        defineKeys(edge.getAnnotations());
+        out.writeByte(EDGE);
+        out.writeInt(classId);
+        out.writeInt(sourceId);
+        out.writeInt(destinationId);
+        writeAnnotations(edge.getAnnotations());
+        elementWritten();
+    }
+
+    /**
+     * Marks a vertex of the current graph as a network vertex.
+     *
+     * @param vertex The network vertex.
+     * @param depth The depth of the vertex from the source vertex.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putNetworkVertex(AbstractVertex vertex, int depth) throws IOException {
+        int id = getVertexId(vertex);
+        out.writeByte(NETWORK_VERTEX);
+        out.writeInt(id);
+        out.writeInt(depth);
+    }
+
+    /**
+     * Ends the current graph and flushes the stream.
+     *
+     * @param transformed The transformed flag of the graph.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void endGraph(boolean transformed) throws IOException {
+        out.writeByte(GRAPH_END);
+        out.writeBoolean(transformed);
+        out.flush();
+        vertexIds.clear();
+        inGraph = false;
+    }
+
+    /**
+     * Writes a complete graph.
+     *
+     * @param graph The graph.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void writeGraph(Graph graph) throws IOException {
+        beginGraph();
+        for (AbstractVertex vertex : graph.vertexSet()) {
+            putVertex(vertex);
+        }
+        for (AbstractEdge edge : graph.edgeSet()) {
+            putEdge(edge);
+        }
+        for (Map.Entry<AbstractVertex, Integer> entry : graph.networkMap().entrySet()) {
+            putNetworkVertex(entry.getKey(), entry.getValue());
+        }
+        endGraph(graph.transformed);
+    }
+
+    /**
+     * Returns a listener that writes the elements it receives to the current
+     * graph, so that a storage traversal can write its result as it goes.
+     * Since listeners cannot throw checked exceptions, a failed write is
+     * thrown as a WriteFailure, which also stops the traversal.
+     *
+     * @return The listener.
+     */
+    public GraphReader.Listener listener() {
+        return new GraphReader.Listener() {
+            @Override
+            public void putVertex(AbstractVertex vertex) {
+                try {
+                    GraphWriter.this.putVertex(vertex);
+                } catch (IOException exception) {
+                    throw new WriteFailure(exception);
+                }
+            }
+
+            @Override
+            public void putEdge(AbstractEdge edge) {
+                try {
+                    GraphWriter.this.putEdge(edge);
+                } catch (IOException exception) {
+                    throw new WriteFailure(exception);
+                }
+            }
+
+            @Override
+            public void putNetworkVertex(AbstractVertex vertex, int depth) {
+                try {
+                    GraphWriter.this.putNetworkVertex(vertex, depth);
+                } catch (IOException exception) {
+                    throw new WriteFailure(exception);
+                }
+            }
+
+            @Override
+            public void chunkReceived() {
+            }
+        };
+    }
+
+    /**
+     * Thrown by the listener of a GraphWriter when the stream cannot be
+     * written.
+     */
+    public static class WriteFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        WriteFailure(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    private void elementWritten() throws IOException {
+        chunkCount++;
+        if (chunkCount == CHUNK_SIZE) {
+            out.writeByte(CHUNK_END);
+            out.flush();
+            chunkCount = 0;
+        }
+    }
+
+    private void writeAnnotations(Map<String, String> annotations) throws IOException {
+        out.writeInt(annotations.size());
+        for (Map.Entry<String, String> entry : annotations.entrySet()) {
+            out.writeInt(strings.get(entry.getKey()));
+            writeString(entry.getValue());
+        }
+    }
+
+    // Strings must be defined before the record that uses them starts.
+    private void defineKeys(Map<String, String> annotations) throws IOException {
+        for (String key : annotations.keySet()) {
+            getStringId(key);
+        }
+    }
+
+    // Keys and class names are defined once and referred to by number.
+    private int getStringId(String string) throws IOException {
+        Integer id = strings.get(string);
+        if (id == null) {
+            id = strings.size();
+            strings.put(string, id);
+            out.writeByte(STRING);
+            writeString(string);
+        }
+        return id;
+    }
+
+    private void writeString(String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inGraph) {
+            endGraph(false);
+        }
+        out.close();
+    }
+}
@@ -27,7 +27,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.ServerSocket;
@@ -45,6 +44,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -129,7 +132,7 @@ public class Kernel {
     private static List<ServerSocket> serverSockets;
     private static Set<AbstractReporter> removereporters;
     private static Set<AbstractStorage> removestorages;
-    private static final int BATCH_BUFFER_ELEMENTS = 10000;
+    static final int BATCH_BUFFER_ELEMENTS = 10000;
     private static final int MAIN_THREAD_SLEEP_DELAY = 10;
     private static final int REMOVE_WAIT_DELAY = 100;
     //private static final int FIRST_TRANSFORMER = 0;
@@ -157,6 +160,39 @@ public class Kernel {
     private static final String QUERY_SELECT_STORAGE = "storage Neo4j|SQL (default: Neo4j)";    
     private static final String QUERY_EXIT_STRING = "exit";
     private static final Logger logger = Logger.getLogger(Kernel.class.getName());
+    /**
+     * Connections to the sketch servers of remote hosts, kept open between
+     * requests.
+     */
+    public static final RemoteConnectionPool sketchConnections = new RemoteConnectionPool(4, 60000, parseIntSetting("connection_timeout", 15000));
+    /**
+     * Multiplexed connections to the query servers of remote hosts, shared by
+     * all remote queries.
+     */
+    public static final RemoteQueryClient queryConnections = new RemoteQueryClient(parseIntSetting("remote_query_connections", 2),
+            parseIntSetting("connection_timeout", 15000), parseIntSetting("remote_query_timeout", 120000));
+    // Buffer configuration. A capacity of zero (the default) selects the
+    // unbounded buffer, any other value a bounded RingBuffer.
+    private static final int BUFFER_CAPACITY = parseIntSetting("buffer_capacity", 0);
+    private static final RingBuffer.WaitStrategy BUFFER_WAIT_STRATEGY = RingBuffer.WaitStrategy.parse(Settings.getProperty("buffer_wait_strategy"), RingBuffer.WaitStrategy.PARK);
+    private static final boolean BUFFER_BLOCK_WHEN_FULL = !"reject".equalsIgnoreCase(Settings.getProperty("buffer_full_policy"));
+    // Dispatch configuration. In the default single mode the main thread
+    // dispatches the elements of all reporters. In parallel mode reporters are
+    // drained by dispatch workers (dispatch_threads of them or one per reporter
+    // if 0) and the main thread only commits elements to the storages.
+    private static final boolean PARALLEL_DISPATCH = "parallel".equalsIgnoreCase(Settings.getProperty("dispatch_mode"));
+    private static final int DISPATCH_THREADS = parseIntSetting("dispatch_threads", 0);
+    private static final int COMMIT_QUEUE_CAPACITY = 10 * BATCH_BUFFER_ELEMENTS;
+    // Storage configuration. A queue capacity of zero (the default) makes the
+    // storages get written to on the committing thread, any other value gives
+    // each storage its own queue and writer thread. Both settings can be
+    // overridden per storage by appending the lower case storage name, e.g.,
+    // storage_overflow_policy_neo4j.
+    private static final String STORAGE_QUEUE_CAPACITY = "storage_queue_capacity";
+    private static final String STORAGE_OVERFLOW_POLICY = "storage_overflow_policy";
+    private static Map<AbstractStorage, StorageWriter> storageWriters;
+    private static FinalCommitFilter commitFilter;
+    private static Dispatcher dispatcher;
     private static boolean ANDROID_PLATFORM = false;
     // Members for creating secure sockets
     private static KeyStore clientKeyStorePublic;
@@ -272,7 +308,7 @@ public class Kernel {
                         reporter.shutdown();
                     }
                     // Wait for main thread to consume all provenance data.
-                    while (!reporters.isEmpty()) {
+                    while (!reporters.isEmpty() || !isDispatchDrained()) {
                         for (Iterator<AbstractReporter> reporterIterator = reporters.iterator(); reporterIterator.hasNext();) {
                             AbstractReporter currentReporter = reporterIterator.next();
                             Buffer currentBuffer = currentReporter.getBuffer();
@@ -292,7 +328,7 @@ public class Kernel {
                     }
                     // Shut down storages.
                     for (AbstractStorage storage : storages) {
-                        storage.shutdown();
+                        shutdownStorage(storage);
                     }
                     // Shut down server sockets.
                     for (ServerSocket socket : serverSockets) {
@@ -310,6 +346,7 @@ public class Kernel {
         // Basic initialization
         reporters = Collections.synchronizedSet(new HashSet<AbstractReporter>());
         storages = Collections.synchronizedSet(new HashSet<AbstractStorage>());
+        storageWriters = new ConcurrentHashMap<>();
         removereporters = Collections.synchronizedSet(new HashSet<AbstractReporter>());
         removestorages = Collections.synchronizedSet(new HashSet<AbstractStorage>());
         transformers = Collections.synchronizedList(new LinkedList<AbstractTransformer>());
@@ -326,11 +363,20 @@ public class Kernel {
         // and also maintains a pointer to the list of active storages to which
         // the provenance data is finally passed. It also has a reference to
         // the SketchManager and triggers its putVertex() and putEdge() methods
-        FinalCommitFilter commitFilter = new FinalCommitFilter();
+        commitFilter = new FinalCommitFilter();
         commitFilter.storages = storages;
         commitFilter.sketches = sketches;
+        commitFilter.storageWriters = storageWriters;
         filters.add(commitFilter);
 
+        if (PARALLEL_DISPATCH) {
+            // Filters are run on the dispatch workers while the storages are
+            // fed by the main thread through the commit queue.
+            commitFilter.setCommitQueue(new LinkedBlockingQueue<Object>(COMMIT_QUEUE_CAPACITY));
+            AbstractFilter.concurrentDispatch = true;
+            dispatcher = new Dispatcher(DISPATCH_THREADS);
+        }
+
         // The final transformer is used to send vertex and edge objects to
         // their corresponding result Graph.
         // FinalTransformer finalTransformer = new FinalTransformer();
@@ -372,7 +418,7 @@ public class Kernel {
                                     reporterIterator.remove();
                                 }
                             }
-                            if (reporters.isEmpty()) {
+                            if (reporters.isEmpty() && isDispatchDrained()) {
                                 shutdown();
                                 break;
                             }
@@ -385,8 +431,16 @@ public class Kernel {
                             // thread-context for their transactions. For
                             // example, this is true for
                             // the embedded neo4j graph database.
+                            commitFilter.commitBatch();
                             for (AbstractStorage currentStorage : storages) {
-                                currentStorage.flushTransactions();
+                                StorageWriter writer = storageWriters.get(currentStorage);
+                                if (writer != null) {
+                                    // Flushed on the writer thread once the
+                                    // elements queued so far are written.
+                                    writer.flushTransactions();
+                                } else {
+                                    currentStorage.flushTransactions();
+                                }
                             }
                             flushTransactions = false;
                         }
@@ -394,38 +448,38 @@ public class Kernel {
                             // Check if a storage is marked for removal. If it
                             // is, shut it down and
                             // remove it from the list.
+                            commitFilter.commitBatch();
                             for (Iterator<AbstractStorage> iterator = removestorages.iterator(); iterator.hasNext();) {
                                 AbstractStorage currentStorage = iterator.next();
-                                currentStorage.shutdown();
+                                shutdownStorage(currentStorage);
                                 iterator.remove();
                             }
                         }
+                        if (dispatcher != null) {
+                            // Reporters are drained by the dispatch workers.
+                            // This thread only commits the filtered elements.
+                            commitFilter.commitPending(BATCH_BUFFER_ELEMENTS, MAIN_THREAD_SLEEP_DELAY);
+                            continue;
+                        }
+                        boolean drainedAll = true;
                         for (AbstractReporter reporter : reporters) {
                             // This loop performs the actual task of committing
                             // provenance data to
-                            // the storages. Each reporter is selected and the
-                            // nested loop is used to
-                            // extract buffer elements in a batch manner for
-                            // increased efficiency.
-                            // The elements are then passed to the filter list.
-                            Buffer buffer = reporter.getBuffer();
-                            for (int i = 0; i < BATCH_BUFFER_ELEMENTS; i++) {
-                                Object bufferelement = buffer.getBufferElement();
-                                if (bufferelement instanceof AbstractVertex) {
-                                    AbstractVertex tempVertex = (AbstractVertex) bufferelement;
-                                    filters.get(FIRST_FILTER).putVertex(tempVertex);
-                                } else if (bufferelement instanceof AbstractEdge) {
-                                    AbstractEdge tempEdge = (AbstractEdge) bufferelement;
-                                    filters.get(FIRST_FILTER).putEdge(tempEdge);
-                                } else if (bufferelement == null) {
-                                    if (removereporters.contains(reporter)) {
-                                        removereporters.remove(reporter);
-                                    }
-                                    break;
-                                }
+                            // the storages. Each reporter is selected and
+                            // buffer elements are extracted in a batch manner
+                            // for increased efficiency.
+                            if (drainBuffer(reporter) == BATCH_BUFFER_ELEMENTS) {
+                                drainedAll = false;
                             }
                         }
-                        Thread.sleep(MAIN_THREAD_SLEEP_DELAY);
+                        // Write out the elements collected in this pass.
+                        commitFilter.commitBatch();
+                        // Only wait when all buffers have been drained. Buffers
+                        // wake this thread up when new elements arrive so the
+                        // delay is an upper bound rather than a fixed cost.
+                        if (drainedAll) {
+                            waitForBufferElements();
+                        }
                     }
                 } catch (Exception exception) {
                     logger.log(Level.SEVERE, null, exception);
@@ -850,8 +904,12 @@ public class Kernel {
                 return;
             }
             // Create a new buffer and allocate it to this reporter.
-            Buffer buffer = new Buffer();
+            Buffer buffer = createBuffer();
+            buffer.setConsumer(mainThread);
             reporter.setBuffer(buffer);
+            if (dispatcher != null) {
+                dispatcher.addReporter(reporter);
+            }
             if (reporter.launch(arguments)) {
                 // The launch() method must return true to indicate a successful
                 // launch.
@@ -865,6 +923,9 @@ public class Kernel {
                 logger.log(Level.INFO, "Reporter added: {0}", classname);
                 outputStream.println("done");
             } else {
+                if (dispatcher != null) {
+                    dispatcher.removeReporter(reporter);
+                }
                 outputStream.println("failed");
             }
         } else if (tokens[1].equalsIgnoreCase("storage")) {
@@ -893,6 +954,16 @@ public class Kernel {
                 storage.arguments = arguments;
                 storage.vertexCount = 0;
                 storage.edgeCount = 0;
+                int queueCapacity = parseIntSetting(getStorageSettingName(STORAGE_QUEUE_CAPACITY, classname), parseIntSetting(STORAGE_QUEUE_CAPACITY, 0));
+                if (queueCapacity > 0) {
+                    String policy = Settings.getProperty(getStorageSettingName(STORAGE_OVERFLOW_POLICY, classname));
+                    if (policy == null) {
+                        policy = Settings.getProperty(STORAGE_OVERFLOW_POLICY);
+                    }
+                    StorageWriter writer = new StorageWriter(storage, queueCapacity, StorageWriter.OverflowPolicy.parse(policy, StorageWriter.OverflowPolicy.BLOCK));
+                    writer.start();
+                    storageWriters.put(storage, writer);
+                }
                 storages.add(storage);
                 logger.log(Level.INFO, "Storage added: {0}", classname);
                 outputStream.println("done");
@@ -1073,13 +1144,26 @@ public class Kernel {
             outputStream.println(storages.size() + " storage(s) added:");
             int count = 1;
             for (AbstractStorage storage : storages) {
-                // Print the names and arguments of all storages.
+                // Print the names and arguments of all storages along with
+                // the number of elements added and queued.
                 String arguments = storage.arguments;
                 outputStream.print("\t" + count + ". " + storage.getClass().getName().split("\\.")[2]);
                 if (arguments != null) {
                     outputStream.print(" (" + arguments + ")");
                 }
-                outputStream.println();
+                outputStream.print(" [" + storage.getVertexCount() + " vertices, " + storage.getEdgeCount() + " edges");
+                StorageWriter writer = storageWriters.get(storage);
+                if (writer != null) {
+                    outputStream.print(", queued " + writer.getQueueDepth() + "/" + writer.getCapacity()
+                            + " (" + writer.getOverflowPolicy().name().toLowerCase() + ")");
+                    if (writer.getDroppedCount() > 0) {
+                        outputStream.print(", dropped " + writer.getDroppedCount());
+                    }
+                    if (writer.getSpilledCount() > 0) {
+                        outputStream.print(", spilled " + writer.getSpilledCount());
+                    }
+                }
+                outputStream.println("]");
                 count++;
             }
         } else if (tokens[1].equalsIgnoreCase("filters")) {
@@ -1309,18 +1393,129 @@ public class Kernel {
         }
     }
 
+    /**
+     * Creates the buffer for a newly added reporter as configured by the
+     * buffer_capacity, buffer_wait_strategy and buffer_full_policy settings.
+     *
+     * @return A new buffer.
+     */
+    private static Buffer createBuffer() {
+        if (BUFFER_CAPACITY > 0) {
+            return new RingBuffer(BUFFER_CAPACITY, BUFFER_WAIT_STRATEGY, BUFFER_BLOCK_WHEN_FULL);
+        }
+        return new Buffer();
+    }
+
+    /**
+     * Shuts down a storage. Storages with a writer are shut down on the writer
+     * thread after their queue has been drained.
+     *
+     * @param storage The storage to shut down.
+     */
+    private static void shutdownStorage(AbstractStorage storage) {
+        StorageWriter writer = storageWriters.remove(storage);
+        if (writer == null) {
+            storage.shutdown();
+            return;
+        }
+        try {
+            writer.shutdown();
+        } catch (InterruptedException exception) {
+            logger.log(Level.WARNING, "Interrupted while shutting down storage", exception);
+        }
+    }
+
+    private static String getStorageSettingName(String setting, String storageName) {
+        return setting + "_" + storageName.toLowerCase();
+    }
+
+    /**
+     * Extracts a batch of elements from the buffer of the given reporter and
+     * passes them to the filter list. This is called by the main thread or by
+     * the dispatch worker that the reporter is assigned to.
+     *
+     * @param reporter The reporter whose buffer is to be drained.
+     * @return The number of elements dispatched, or -1 if the buffer is empty
+     * and the reporter was marked for removal.
+     */
+    static int drainBuffer(AbstractReporter reporter) {
+        Buffer buffer = reporter.getBuffer();
+        for (int i = 0; i < BATCH_BUFFER_ELEMENTS; i++) {
+            Object bufferelement = buffer.getBufferElement();
+            if (bufferelement instanceof AbstractVertex) {
+                AbstractVertex tempVertex = (AbstractVertex) bufferelement;
+                AbstractFilter.dispatchVertex(filters.get(FIRST_FILTER), tempVertex);
+            } else if (bufferelement instanceof AbstractEdge) {
+                AbstractEdge tempEdge = (AbstractEdge) bufferelement;
+                AbstractFilter.dispatchEdge(filters.get(FIRST_FILTER), tempEdge);
+            } else if (bufferelement == null) {
+                if (removereporters.remove(reporter)) {
+                    return -1;
+                }
+                return i;
+            }
+        }
+        return BATCH_BUFFER_ELEMENTS;
+    }
+
+    /**
+     * @return True if all elements taken out of the reporter buffers have been
+     * passed through the filters and committed to the storages.
+     */
+    private static boolean isDispatchDrained() {
+        return dispatcher == null || (dispatcher.isIdle() && !commitFilter.hasPending());
+    }
+
+    /**
+     * Called by a dispatching thread when all buffers are empty. With the park
+     * strategy the thread sleeps for at most MAIN_THREAD_SLEEP_DELAY or until
+     * a buffer wakes it up.
+     */
+    static void waitForBufferElements() {
+        if (BUFFER_CAPACITY > 0 && BUFFER_WAIT_STRATEGY != RingBuffer.WaitStrategy.PARK) {
+            BUFFER_WAIT_STRATEGY.idle();
+        } else {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(MAIN_THREAD_SLEEP_DELAY));
+        }
+    }
+
+    /**
+     * Reads an integer setting, falling back to the default if it is missing
+     * or invalid.
+     *
+     * @param property The name of the setting.
+     * @param defaultValue The value used if the setting is missing or invalid.
+     * @return The value of the setting.
+     */
+    static int parseIntSetting(String property, int defaultValue) {
+        String value = Settings.getProperty(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException exception) {
+            logger.log(Level.WARNING, "Invalid value for setting " + property + ": " + value, exception);
+            return defaultValue;
+        }
+    }
+
     /**
      * Method to shut down SPADE completely.
      */
     public static void shutdown() {
         logger.log(Level.INFO, "Shutting down SPADE....");
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
         // Shut down filters.
         for (int i = 0; i < filters.size() - 1; i++) {
             filters.get(i).shutdown();
         }
+        commitFilter.commitBatch();
         // Shut down storages.
         for (AbstractStorage storage : storages) {
-            storage.shutdown();
+            shutdownStorage(storage);
         }
         
         //before closing the sockets notify that the shutdown is complete
@@ -1340,6 +1535,8 @@ public class Kernel {
         	}
 		}
         
+        sketchConnections.closeAll();
+        queryConnections.closeAll();
         // Shut down server sockets.
         for (ServerSocket socket : serverSockets) {
             try {
@@ -1505,7 +1702,7 @@ class LocalQueryConnection implements Runnable {
         try {
             OutputStream outStream = querySocket.getOutputStream();
             InputStream inStream = querySocket.getInputStream();
-            ObjectOutputStream queryOutputStream = new ObjectOutputStream(outStream);
+            GraphWriter queryOutputStream = new GraphWriter(outStream);
             BufferedReader queryInputStream = new BufferedReader(new InputStreamReader(inStream));
 
             while (!Kernel.shutdown) {
@@ -1513,14 +1710,29 @@ class LocalQueryConnection implements Runnable {
                 String line = queryInputStream.readLine();
                 if (line.equalsIgnoreCase("exit")) {
                     break;
+                } else if (Query.isLineageQuery(line) && transformersEmpty()) {
+                    // Nothing to transform, so the result is sent as the
+                    // traversal produces it
+                    queryOutputStream.writeMessage("graph");
+                    queryOutputStream.beginGraph();
+                    boolean transformed;
+                    try {
+                        transformed = Query.executeLineageQuery(line, false, queryOutputStream.listener());
+                    } catch (GraphWriter.WriteFailure failure) {
+                        throw failure.getCause();
+                    }
+                    queryOutputStream.endGraph(transformed);
                 } else {
                     Graph resultGraph = Query.executeQuery(line, false);
                     if(resultGraph != null){
                     	resultGraph = iterateTransformers(resultGraph, line);
-                        queryOutputStream.writeObject("graph");
-                        queryOutputStream.writeObject(resultGraph);
+                    	if(resultGraph == null){
+                    		resultGraph = new Graph();
+                    	}
+                        queryOutputStream.writeMessage("graph");
+                        queryOutputStream.writeGraph(resultGraph);
                 	}else {
-                        queryOutputStream.writeObject(Kernel.getQueryCommands());
+                        queryOutputStream.writeMessage(Kernel.getQueryCommands());
                     }
                 }
             }
@@ -1535,6 +1747,12 @@ class LocalQueryConnection implements Runnable {
         }
     }
     
+    private boolean transformersEmpty() {
+        synchronized (Kernel.transformers) {
+            return Kernel.transformers.isEmpty();
+        }
+    }
+
     public Graph iterateTransformers(Graph graph, String query){
 		synchronized (Kernel.transformers) {
 			QueryParameters digQueryParams = QueryParameters.parseQuery(query);
@@ -27,38 +27,67 @@
  */
 package spade.core;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /*
  * @param <E> Object type that is to be inserted into the Bloom filter, e.g.
  * String or Integer. @author Magnus Skjegstad <magnus@skjegstad.com>
+ *
+ * The k Bloom filters of a vertex are selected with MD5 digests of its sketch
+ * string, or with sketch_hash=hash64 by double hashing one 64-bit hash of it
+ * (see BloomFilter.position), and are merged with lock-free or/and
+ * operations. Matrices received from peers keep the scheme they were built
+ * with, and filters of different schemes are never merged.
+ *
+ * Every filter (row) is stamped with the generation in which it last changed,
+ * so that peers holding a copy can fetch only the rows changed since the
+ * generation they last saw (see getDelta and applyDelta). The epoch identifies
+ * one instance; a copy from another epoch is replaced in full.
  */
 public class MatrixFilter implements Serializable {
 
-    private List<BloomFilter> filterSet;
+    private static final long serialVersionUID = -6033703304843621546L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("filterSet", List.class),
+        new ObjectStreamField("filterSetSize", int.class),
+        new ObjectStreamField("filtersPerElement", double.class),
+        new ObjectStreamField("expectedNumberOfElements", int.class),
+        new ObjectStreamField("numberOfAddedElements", int.class),
+        new ObjectStreamField("k", int.class),
+        new ObjectStreamField("hashScheme", int.class)
+    };
+
+    private transient BloomFilter<AbstractVertex>[] filterSet;
     private int filterSetSize;
     private double filtersPerElement;
     private int expectedNumberOfElements; // expected (maximum) number of elements to be added
-    private int numberOfAddedElements; // number of elements actually added to the Bloom filter
+    private transient AtomicInteger numberOfAddedElements; // number of elements actually added to the Bloom filter
     private int k; // number of hash functions
+    private int hashScheme = BloomFilter.DEFAULT_HASH;
+    private static final Random epochs = new Random();
+    private transient long epoch;
+    // Incremented by every getDelta call; rows changed afterwards are stamped with the new value
+    private transient AtomicLong generation;
+    private transient AtomicLongArray rowGenerations;
     static final Charset charset = Charset.forName("UTF-8"); // encoding used for storing hash values as strings
-    static final String hashName = "MD5"; // MD5 gives good enough accuracy in most circumstances. Change to SHA1 if it's needed
-    static final MessageDigest digestFunction;
-
-    static { // The digest method is reused between instances
-        MessageDigest tmp;
-        try {
-            tmp = java.security.MessageDigest.getInstance(hashName);
-        } catch (NoSuchAlgorithmException e) {
-            tmp = null;
-        }
-        digestFunction = tmp;
-    }
 
     /**
      * Constructs an empty Bloom filter. The total length of the Bloom filter
@@ -73,11 +102,38 @@ public class MatrixFilter implements Serializable {
         this.k = k;
         this.filtersPerElement = c;
         this.filterSetSize = (int) Math.ceil(c * n);
-        numberOfAddedElements = 0;
-        this.filterSet = new LinkedList<>();
+        numberOfAddedElements = new AtomicInteger();
+        this.filterSet = newFilterSet(this.filterSetSize);
         for (int i = 0; i < this.filterSetSize; i++) {
-            this.filterSet.add(new BloomFilter(c, n, k));
+            this.filterSet[i] = new BloomFilter<>(c, n, k);
+        }
+        initializeGenerations();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BloomFilter<AbstractVertex>[] newFilterSet(int length) {
+        return (BloomFilter<AbstractVertex>[]) new BloomFilter<?>[length];
+    }
+
+    private void initializeGenerations() {
+        synchronized (epochs) {
+            epoch = epochs.nextLong();
         }
+        generation = new AtomicLong(1);
+        rowGenerations = new AtomicLongArray(filterSet.length);
+    }
+
+    /**
+     * Stamps a row after it was modified. The stamp is rewritten if a delta
+     * was taken in between, so a delta either saw the modified row or the row
+     * carries a generation the next delta ships.
+     */
+    private void touch(int row) {
+        long current;
+        do {
+            current = generation.get();
+            rowGenerations.set(row, current);
+        } while (generation.get() != current);
     }
 
     /**
@@ -112,16 +168,292 @@ public class MatrixFilter implements Serializable {
                 (int) Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2)))); // k = ceil(-log_2(false prob.))
     }
 
-    public BloomFilter getAllBloomFilters() {
-        BloomFilter result = new BloomFilter(filtersPerElement, expectedNumberOfElements, k);
-        result.getBitSet().set(0, result.getBitSet().size() - 1, false);
-        for (int i = 0; i < filterSet.size(); i++) {
-            BloomFilter currentFilter = filterSet.get(i);
-            result.getBitSet().or(currentFilter.getBitSet());
+    /**
+     * Returns the union of all filters of the matrix.
+     *
+     * @return the union.
+     * @throws IllegalArgumentException if a filter does not use the hash
+     * scheme of the matrix.
+     */
+    public BloomFilter<AbstractVertex> getAllBloomFilters() {
+        BloomFilter<AbstractVertex> result = new BloomFilter<>(filtersPerElement, expectedNumberOfElements, k);
+        result.setHashScheme(hashScheme);
+        for (BloomFilter<AbstractVertex> currentFilter : filterSet) {
+            result.or(currentFilter);
         }
         return result;
     }
 
+    /**
+     * Returns the positions of the k Bloom filters of a vertex.
+     */
+    private int[] positions(AbstractVertex vertex) {
+        int[] positions = new int[k];
+        String valString = sketchString(vertex);
+        if (hashScheme == BloomFilter.FAST_HASH) {
+            long hash = BloomFilter.hash64(valString);
+            for (int x = 0; x < k; x++) {
+                positions[x] = BloomFilter.position(hash, x, filterSetSize);
+            }
+        } else {
+            // The digest of the string followed by x, without building the
+            // string for each x
+            byte[] prefix = valString.getBytes(charset);
+            MessageDigest digestFunction = BloomFilter.digestFunction.get();
+            for (int x = 0; x < k; x++) {
+                digestFunction.update(prefix);
+                long hash = firstWord(digestFunction.digest(Integer.toString(x).getBytes(charset)));
+                hash = hash % (long) filterSetSize;
+                positions[x] = Math.abs((int) hash);
+            }
+        }
+        return positions;
+    }
+
+    void setHashScheme(int hashScheme) {
+        this.hashScheme = hashScheme;
+        for (BloomFilter<AbstractVertex> currentFilter : filterSet) {
+            currentFilter.setHashScheme(hashScheme);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("filterSet", new ArrayList<>(Arrays.asList(filterSet)));
+        fields.put("filterSetSize", filterSetSize);
+        fields.put("filtersPerElement", filtersPerElement);
+        fields.put("expectedNumberOfElements", expectedNumberOfElements);
+        fields.put("numberOfAddedElements", numberOfAddedElements.get());
+        fields.put("k", k);
+        fields.put("hashScheme", hashScheme);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        Object filters = fields.get("filterSet", null);
+        if (filters != null && !(filters instanceof List)) {
+            throw new InvalidObjectException("Invalid filter set: " + filters.getClass().getName());
+        }
+        List<?> filterList = (filters == null) ? new ArrayList<>() : (List<?>) filters;
+        filterSet = newFilterSet(filterList.size());
+        for (int i = 0; i < filterSet.length; i++) {
+            Object filter = filterList.get(i);
+            if (!(filter instanceof BloomFilter)) {
+                throw new InvalidObjectException("Invalid filter at row " + i);
+            }
+            filterSet[i] = asVertexFilter((BloomFilter<?>) filter);
+        }
+        filterSetSize = fields.get("filterSetSize", 0);
+        filtersPerElement = fields.get("filtersPerElement", 0.0);
+        expectedNumberOfElements = fields.get("expectedNumberOfElements", 0);
+        numberOfAddedElements = new AtomicInteger(fields.get("numberOfAddedElements", 0));
+        k = fields.get("k", 0);
+        // Streams from older peers have no hash scheme and were built with MD5
+        hashScheme = fields.get("hashScheme", BloomFilter.LEGACY_HASH);
+        initializeGenerations();
+    }
+
+    // Filters only use the string form of their elements, so a filter of any
+    // element type can hold vertices.
+    @SuppressWarnings("unchecked")
+    private static BloomFilter<AbstractVertex> asVertexFilter(BloomFilter<?> filter) {
+        return (BloomFilter<AbstractVertex>) filter;
+    }
+
+    /**
+     * @return the random identifier of this instance.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the rows that changed since a peer last synchronized.
+     *
+     * @param known the epoch and generation returned by the peer's previous
+     * delta, or null if the peer holds no copy.
+     * @return all rows if known is null or from another epoch, the changed
+     * rows otherwise, or null if no row changed.
+     */
+    public Delta getDelta(long[] known) {
+        boolean full = (known == null || known.length < 2 || known[0] != epoch);
+        long since = full ? 0 : known[1];
+        long next = generation.incrementAndGet();
+        int[] rows = new int[16];
+        int rowCount = 0;
+        for (int row = 0; row < filterSet.length; row++) {
+            if (full || rowGenerations.get(row) >= since) {
+                if (rowCount == rows.length) {
+                    rows = Arrays.copyOf(rows, rowCount * 2);
+                }
+                rows[rowCount++] = row;
+            }
+        }
+        if (rowCount == 0) {
+            return null;
+        }
+        return new Delta(this, Arrays.copyOf(rows, rowCount), next, full);
+    }
+
+    /**
+     * Installs the rows of a delta taken from the instance this is a copy of.
+     * The copy keeps its own epoch and generations, so it can in turn serve
+     * deltas to other peers.
+     */
+    public void applyDelta(Delta delta) {
+        long[] words = delta.words();
+        int wordsPerRow = (delta.rows.length == 0) ? 0 : words.length / delta.rows.length;
+        for (int i = 0; i < delta.rows.length; i++) {
+            int row = delta.rows[i];
+            if (row < 0 || row >= filterSet.length) {
+                continue;
+            }
+            filterSet[row].setWords(Arrays.copyOfRange(words, i * wordsPerRow, (i + 1) * wordsPerRow), delta.rowCounts[i]);
+            touch(row);
+        }
+        numberOfAddedElements.set(delta.count);
+    }
+
+    /**
+     * Creates a copy of a remote matrix from a full delta.
+     */
+    public static MatrixFilter fromDelta(Delta delta) {
+        MatrixFilter result = new MatrixFilter(delta.filtersPerElement, delta.expectedNumberOfElements, delta.k);
+        result.setHashScheme(delta.hashScheme);
+        result.applyDelta(delta);
+        return result;
+    }
+
+    /**
+     * Rows of a matrix with the generation they were taken at. The words of
+     * all rows are shipped as one deflated array when that is smaller.
+     */
+    public static final class Delta implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final long epoch;
+        private final long generation;
+        private final boolean full;
+        private final double filtersPerElement;
+        private final int expectedNumberOfElements;
+        private final int k;
+        private final int hashScheme;
+        private final int count;
+        private final int[] rows;
+        private final int[] rowCounts;
+        private final int wordCount;
+        private final boolean compressed;
+        private final byte[] data;
+
+        private Delta(MatrixFilter matrix, int[] rows, long generation, boolean full) {
+            this.epoch = matrix.epoch;
+            this.generation = generation;
+            this.full = full;
+            this.filtersPerElement = matrix.filtersPerElement;
+            this.expectedNumberOfElements = matrix.expectedNumberOfElements;
+            this.k = matrix.k;
+            this.hashScheme = matrix.hashScheme;
+            this.count = matrix.numberOfAddedElements.get();
+            this.rows = rows;
+            this.rowCounts = new int[rows.length];
+            long[][] rowWords = new long[rows.length][];
+            int words = 0;
+            for (int i = 0; i < rows.length; i++) {
+                BloomFilter<AbstractVertex> filter = matrix.filterSet[rows[i]];
+                rowCounts[i] = filter.getNumberOfAddedElements();
+                rowWords[i] = filter.getWords();
+                words += rowWords[i].length;
+            }
+            this.wordCount = words;
+            byte[] raw = new byte[words * 8];
+            int offset = 0;
+            for (long[] row : rowWords) {
+                for (long word : row) {
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        raw[offset++] = (byte) (word >>> shift);
+                    }
+                }
+            }
+            byte[] deflated = deflate(raw);
+            this.compressed = deflated.length < raw.length;
+            this.data = compressed ? deflated : raw;
+        }
+
+        private static byte[] deflate(byte[] raw) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            deflater.end();
+            return out.toByteArray();
+        }
+
+        private long[] words() {
+            byte[] raw = data;
+            if (compressed) {
+                raw = new byte[wordCount * 8];
+                Inflater inflater = new Inflater();
+                inflater.setInput(data);
+                try {
+                    int offset = 0;
+                    while (offset < raw.length && !inflater.finished()) {
+                        int inflated = inflater.inflate(raw, offset, raw.length - offset);
+                        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        offset += inflated;
+                    }
+                } catch (DataFormatException exception) {
+                    throw new IllegalStateException(exception);
+                } finally {
+                    inflater.end();
+                }
+            }
+            long[] words = new long[wordCount];
+            for (int i = 0; i < wordCount; i++) {
+                long word = 0;
+                for (int j = 0; j < 8; j++) {
+                    word = (word << 8) | (raw[i * 8 + j] & 0xFF);
+                }
+                words[i] = word;
+            }
+            return words;
+        }
+
+        /**
+         * @return the epoch and generation to send with the next request.
+         */
+        public long[] getVersion() {
+            return new long[]{epoch, generation};
+        }
+
+        /**
+         * @return true if the delta holds every row of the matrix.
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * @return the number of rows in the delta.
+         */
+        public int size() {
+            return rows.length;
+        }
+
+        /**
+         * @return the number of bytes of row data.
+         */
+        public int byteSize() {
+            return data.length;
+        }
+    }
+
     /**
      * Generates a digest based on the contents of a String.
      *
@@ -151,13 +483,11 @@ public class MatrixFilter implements Serializable {
      * @return digest as long.
      */
     public static long createHash(byte[] data) {
-        long h = 0;
-        byte[] res;
-
-        synchronized (digestFunction) {
-            res = digestFunction.digest(data);
-        }
+        return firstWord(BloomFilter.digestFunction.get().digest(data));
+    }
 
+    private static long firstWord(byte[] res) {
+        long h = 0;
         for (int i = 0; i < 4; i++) {
             h <<= 8;
             h |= ((int) res[i]) & 0xFF;
@@ -189,10 +519,10 @@ public class MatrixFilter implements Serializable {
         if (this.filterSetSize != other.filterSetSize) {
             return false;
         }
-        if (this.filterSet != other.filterSet && (this.filterSet == null || !this.filterSet.equals(other.filterSet))) {
+        if (this.hashScheme != other.hashScheme) {
             return false;
         }
-        return true;
+        return Arrays.equals(this.filterSet, other.filterSet);
     }
 
     /**
@@ -203,7 +533,7 @@ public class MatrixFilter implements Serializable {
     @Override
     public int hashCode() {
         int hash = 7;
-        hash = 61 * hash + (this.filterSet != null ? this.filterSet.hashCode() : 0);
+        hash = 61 * hash + Arrays.asList(this.filterSet).hashCode();
         hash = 61 * hash + this.expectedNumberOfElements;
         hash = 61 * hash + this.filterSetSize;
         hash = 61 * hash + this.k;
@@ -247,7 +577,7 @@ public class MatrixFilter implements Serializable {
      * @return probability of false positives.
      */
     public double getFalsePositiveProbability() {
-        return getFalsePositiveProbability(numberOfAddedElements);
+        return getFalsePositiveProbability(numberOfAddedElements.get());
     }
 
     /**
@@ -265,8 +595,11 @@ public class MatrixFilter implements Serializable {
      * Sets all bits to false in the Bloom filter.
      */
     public void clear() {
-        filterSet.clear();
-        numberOfAddedElements = 0;
+        for (int row = 0; row < filterSet.length; row++) {
+            filterSet[row].clear();
+            touch(row);
+        }
+        numberOfAddedElements.set(0);
     }
 
     /**
@@ -277,39 +610,58 @@ public class MatrixFilter implements Serializable {
      * @param sourceVertex
      */
     public void add(AbstractVertex destinationVertex, AbstractVertex sourceVertex) {
-        long hash;
-        String valString = sketchString(destinationVertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            filterSet.get(Math.abs((int) hash)).add(sourceVertex);
+        // The source vertex is hashed or encoded once for all k filters
+        String source = sourceVertex.toString();
+        boolean fast = (hashScheme == BloomFilter.FAST_HASH);
+        long sourceHash = fast ? BloomFilter.hash64(source) : 0;
+        byte[] sourceBytes = null;
+        for (int position : positions(destinationVertex)) {
+            BloomFilter<AbstractVertex> currentFilter = filterSet[position];
+            if (fast && currentFilter.isFastHash()) {
+                currentFilter.addHash(sourceHash);
+            } else {
+                if (sourceBytes == null) {
+                    sourceBytes = source.getBytes(charset);
+                }
+                currentFilter.add(sourceBytes);
+            }
+            touch(position);
         }
-        numberOfAddedElements++;
+        numberOfAddedElements.incrementAndGet();
     }
 
-    public void updateAncestors(AbstractVertex vertex, BloomFilter ancestorsToAdd) {
-        long hash;
-        String valString = sketchString(vertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            filterSet.get(Math.abs((int) hash)).getBitSet().or(ancestorsToAdd.getBitSet());
+    /**
+     * Adds ancestors to the filters of a vertex.
+     *
+     * @param vertex the vertex.
+     * @param ancestorsToAdd the ancestors, usually from the matrix of a peer.
+     * @throws IllegalArgumentException if the ancestors were built with
+     * another size or hash scheme, in which case nothing is changed.
+     */
+    public void updateAncestors(AbstractVertex vertex, BloomFilter<?> ancestorsToAdd) {
+        int[] positions = positions(vertex);
+        for (int position : positions) {
+            if (!filterSet[position].isCompatible(ancestorsToAdd)) {
+                throw new IllegalArgumentException("Ancestors of " + vertex + " do not match the size or hash scheme of this matrix filter");
+            }
         }
-        numberOfAddedElements++;
+        for (int position : positions) {
+            filterSet[position].or(ancestorsToAdd);
+            touch(position);
+        }
+        numberOfAddedElements.incrementAndGet();
     }
 
-    public BloomFilter get(AbstractVertex vertex) {
-        BloomFilter result = new BloomFilter(filtersPerElement, expectedNumberOfElements, k);
-        result.getBitSet().set(0, result.getBitSet().size() - 1, true);
-        long hash;
-        String valString = sketchString(vertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            BloomFilter tempBloomFilter = filterSet.get(Math.abs((int) hash));
-            result.getBitSet().and(tempBloomFilter.getBitSet());
+    public BloomFilter<AbstractVertex> get(AbstractVertex vertex) {
+        BloomFilter<AbstractVertex> result = null;
+        for (int position : positions(vertex)) {
+            if (result == null) {
+                result = filterSet[position].copy();
+            } else {
+                result.and(filterSet[position]);
+            }
         }
-        return result;
+        return (result != null) ? result : new BloomFilter<AbstractVertex>(filtersPerElement, expectedNumberOfElements, k);
     }
 
     /**
@@ -322,12 +674,22 @@ public class MatrixFilter implements Serializable {
      * filter.
      */
     public boolean contains(AbstractVertex vertex) {
-        long hash;
-        String valString = sketchString(vertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            if (!filterSet.get(Math.abs((int) hash)).contains(vertex)) {
+        String element = vertex.toString();
+        boolean fast = (hashScheme == BloomFilter.FAST_HASH);
+        long hash = fast ? BloomFilter.hash64(element) : 0;
+        byte[] bytes = null;
+        for (int position : positions(vertex)) {
+            BloomFilter<AbstractVertex> currentFilter = filterSet[position];
+            boolean found;
+            if (fast && currentFilter.isFastHash()) {
+                found = currentFilter.containsHash(hash);
+            } else {
+                if (bytes == null) {
+                    bytes = element.getBytes(charset);
+                }
+                found = currentFilter.contains(bytes);
+            }
+            if (!found) {
                 return false;
             }
         }
@@ -351,7 +713,7 @@ public class MatrixFilter implements Serializable {
      * @return number of elements added to the Bloom filter.
      */
     public int count() {
-        return this.numberOfAddedElements;
+        return this.numberOfAddedElements.get();
     }
 
     /**
@@ -383,7 +745,7 @@ public class MatrixFilter implements Serializable {
      * @return number of bits per element.
      */
     public double getBitsPerElement() {
-        return this.filterSetSize / (double) numberOfAddedElements;
+        return this.filterSetSize / (double) numberOfAddedElements.get();
     }
 
     public String sketchString(AbstractVertex vertex) {
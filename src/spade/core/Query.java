@@ -20,22 +20,30 @@
 package spade.core;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.net.ssl.SSLSocket;
 
 /**
  *
@@ -62,18 +70,9 @@ public class Query {
      */
     public static Graph executeQuery(String line, boolean resolveRemote) {
         Graph resultGraph = null;
-        Kernel.flushTransactions = true;
-
         long begintime = 0, endtime = 0;
 
-        while (Kernel.flushTransactions) {
-            try {
-                // wait for other thread to flush transactions
-                Thread.sleep(WAIT_FOR_FLUSH);
-            } catch (Exception exception) {
-                logger.log(Level.SEVERE, null, exception);
-            }
-        }
+        waitForFlush();
         if ((line == null) || (Kernel.storages.isEmpty())) {
             return null;
         }
@@ -96,9 +95,6 @@ public class Query {
                         resultGraph = queryRemoteVertices(tokens[3], storage);
                     } else if (tokens[2].equalsIgnoreCase("lineage")) {
                         resultGraph = queryLineage(tokens[3], storage, resolveRemote);
-                        if (resolveRemote) {
-                            transformNetworkBoundaries(resultGraph);
-                        }
                     } else if (tokens[2].equalsIgnoreCase("paths")) {
                         resultGraph = queryPaths(tokens[3], storage);
                     } else if (tokens[2].equalsIgnoreCase("sketchpaths")) {
@@ -129,6 +125,89 @@ public class Query {
         return resultGraph;
     }
 
+    /**
+     * Checks whether a query is a well-formed lineage query on a loaded
+     * storage, which executeLineageQuery can stream. Other queries, including
+     * malformed lineage queries, are left to executeQuery.
+     *
+     * @param line The query string.
+     * @return True if it is such a lineage query.
+     */
+    public static boolean isLineageQuery(String line) {
+        if (line == null) {
+            return false;
+        }
+        String[] tokens = line.split("\\s+", 4);
+        if ((tokens.length < 4) || !tokens[2].equalsIgnoreCase("lineage") || (findStorage(tokens[1]) == null)) {
+            return false;
+        }
+        String[] arguments = tokens[3].split("\\s+", 4);
+        if (arguments.length < 4) {
+            return false;
+        }
+        try {
+            Integer.parseInt(arguments[0]);
+            Integer.parseInt(arguments[1]);
+        } catch (NumberFormatException exception) {
+            return false;
+        }
+        String direction = arguments[2].toLowerCase();
+        return Settings.getProperty("direction_ancestors").startsWith(direction)
+                || Settings.getProperty("direction_descendants").startsWith(direction)
+                || Settings.getProperty("direction_both").startsWith(direction);
+    }
+
+    /**
+     * Runs a lineage query and passes the elements of its result to the
+     * listener as the storage traversal produces them, followed by the
+     * results of the remote queries as they arrive. Nothing is kept in memory
+     * apart from the network vertices.
+     *
+     * @param line The query string, which must pass isLineageQuery.
+     * @param resolveRemote A boolean used to indicate whether or not remote
+     * edges need to be resolved.
+     * @param listener The listener that receives the elements of the result.
+     * @return The transformed flag of the result.
+     */
+    public static boolean executeLineageQuery(String line, boolean resolveRemote, GraphReader.Listener listener) {
+        waitForFlush();
+        String[] tokens = line.split("\\s+", 4);
+        try {
+            long begintime = System.currentTimeMillis();
+            boolean transformed = streamLineage(tokens[3], findStorage(tokens[1]), resolveRemote, listener);
+            if (DEBUG_OUTPUT) {
+                logger.log(Level.INFO, "Time taken for query \"({0})\": {1}", new Object[]{line, System.currentTimeMillis() - begintime});
+            }
+            return transformed;
+        } catch (GraphWriter.WriteFailure failure) {
+            throw failure;
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, null, exception);
+            return false;
+        }
+    }
+
+    private static void waitForFlush() {
+        Kernel.flushTransactions = true;
+        while (Kernel.flushTransactions) {
+            try {
+                // wait for other thread to flush transactions
+                Thread.sleep(WAIT_FOR_FLUSH);
+            } catch (Exception exception) {
+                logger.log(Level.SEVERE, null, exception);
+            }
+        }
+    }
+
+    private static AbstractStorage findStorage(String name) {
+        for (AbstractStorage storage : Kernel.storages) {
+            if (storage.getClass().getName().equals("spade.storage." + name)) {
+                return storage;
+            }
+        }
+        return null;
+    }
+
     private static Graph queryEdges(String queryLine, AbstractStorage storage) {
         try {
             String[] expression = queryLine.split(",");
@@ -162,84 +241,102 @@ public class Query {
             String[] tokens = queryLine.split("\\s+", 2);
             String host = tokens[0];
             String queryExpression = tokens[1];
-            // Connect to the specified host and query for vertices.
-            int port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(host, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectInputStream graphInputStream = new ObjectInputStream(inStream);
-            PrintWriter remoteSocketOut = new PrintWriter(outStream, true);
-
+            // Query the specified host for vertices.
             String srcExpression = "query Neo4j vertices " + queryExpression;
-            remoteSocketOut.println(srcExpression);
-            Graph resultGraph = (Graph) graphInputStream.readObject();
-
-            remoteSocketOut.println("close");
-            graphInputStream.close();
-            remoteSocketOut.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
-            return resultGraph;
-        } catch (NumberFormatException | IOException | ClassNotFoundException badQuery) {
+            return Kernel.queryConnections.query(host, srcExpression);
+        } catch (NumberFormatException | IOException badQuery) {
             logger.log(Level.SEVERE, null, badQuery);
             return null;
         }
     }
 
     private static Graph queryLineage(String queryLine, AbstractStorage storage, boolean resolveRemote) {
-        Graph resultGraph;
+        Graph resultGraph = new Graph();
         try {
-            String[] tokens = queryLine.split("\\s+", 4);
-            String vertexId = tokens[0];
-            int depth = Integer.parseInt(tokens[1]);
-            String direction = tokens[2];
-            String terminatingExpression = tokens[3];
-            resultGraph = storage.getLineage(Integer.parseInt(vertexId), depth, direction, terminatingExpression);
-            if (resolveRemote) {
-                // Perform the remote queries here. A temporary remoteGraph is
-                // created to store the results of the remote queries and then
-                // added to the final resultGraph
-                Graph remoteGraph = new Graph();
-                // Get the map of network vertexes of our current graph
-                Map<AbstractVertex, Integer> currentNetworkMap = resultGraph.networkMap();
-                // Perform remote queries until the network map is exhausted
-                while (!currentNetworkMap.isEmpty()) {
-                    // Perform remote query on current network vertex and union
-                    // the result with the remoteGraph. This also adds the network
-                    // vertexes to the remoteGraph as well, so that deeper level
-                    // network queries are resolved iteratively
-                    for (Map.Entry<AbstractVertex, Integer> currentEntry : currentNetworkMap.entrySet()) {
-                        AbstractVertex networkVertex = currentEntry.getKey();
-                        int currentDepth = currentEntry.getValue();
-                        // Execute remote query
-                        Graph tempRemoteGraph = queryNetworkVertex(networkVertex, depth - currentDepth, direction, terminatingExpression);
-                        // Update the depth values of all network artifacts in the
-                        // remote network map to reflect current level of iteration
-                        for (Map.Entry<AbstractVertex, Integer> currentNetworkEntry : tempRemoteGraph.networkMap().entrySet()) {
-                            AbstractVertex tempNetworkVertex = currentNetworkEntry.getKey();
-                            int updatedDepth = currentDepth + currentNetworkEntry.getValue();
-                            tempRemoteGraph.putNetworkVertex(tempNetworkVertex, updatedDepth);
-                        }
-                        // Add the lineage of the current network node to the
-                        // overall result
-                        remoteGraph = Graph.union(remoteGraph, tempRemoteGraph);
-                    }
-                    currentNetworkMap.clear();
-                    // Set the networkMap to network vertexes of the newly
-                    // create remoteGraph
-                    currentNetworkMap = remoteGraph.networkMap();
-                }
-                resultGraph = Graph.union(resultGraph, remoteGraph);
-            }
+            resultGraph.transformed = streamLineage(queryLine, storage, resolveRemote, GraphReader.graphBuilder(resultGraph));
         } catch (Exception exception) {
             logger.log(Level.SEVERE, null, exception);
             return null;
         }
+        resultGraph.commitIndex();
         return resultGraph;
     }
 
+    private static boolean streamLineage(String queryLine, AbstractStorage storage, boolean resolveRemote, GraphReader.Listener listener) throws InterruptedException {
+        String[] tokens = queryLine.split("\\s+", 4);
+        int vertexId = Integer.parseInt(tokens[0]);
+        int depth = Integer.parseInt(tokens[1]);
+        String direction = tokens[2];
+        String terminatingExpression = tokens[3];
+        if (!resolveRemote) {
+            if (!storage.getLineage(vertexId, depth, direction, terminatingExpression, listener)) {
+                throw new IllegalArgumentException("Invalid lineage direction: " + direction);
+            }
+            return false;
+        }
+        NetworkBoundaries boundaries = new NetworkBoundaries(listener);
+        if (!storage.getLineage(vertexId, depth, direction, terminatingExpression, boundaries)) {
+            throw new IllegalArgumentException("Invalid lineage direction: " + direction);
+        }
+        // Perform the remote queries here. Their results are passed on as
+        // they arrive.
+        new RemoteLineageResolver(depth, direction, terminatingExpression).resolve(boundaries.networkMap, boundaries);
+        boundaries.putBoundaryEdges();
+        return true;
+    }
+
+    /**
+     * Passes the elements of a lineage that is being resolved on remote hosts
+     * on to a listener, keeping its network vertices so that the remote
+     * queries can be made and the network boundaries connected at the end.
+     * The network map is not passed on since the remote hosts resolve the
+     * network vertices of their own results.
+     */
+    private static final class NetworkBoundaries implements GraphReader.Listener {
+
+        private final GraphReader.Listener listener;
+        final Map<AbstractVertex, Integer> networkMap = new HashMap<>();
+        private final Set<AbstractVertex> networkVertices = new LinkedHashSet<>();
+
+        NetworkBoundaries(GraphReader.Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void putVertex(AbstractVertex vertex) {
+            if ("true".equalsIgnoreCase(vertex.getAnnotation("network"))) {
+                networkVertices.add(vertex);
+            }
+            listener.putVertex(vertex);
+        }
+
+        @Override
+        public void putEdge(AbstractEdge edge) {
+            listener.putEdge(edge);
+        }
+
+        @Override
+        public void putNetworkVertex(AbstractVertex vertex, int depth) {
+            networkMap.put(vertex, depth);
+        }
+
+        @Override
+        public void chunkReceived() {
+        }
+
+        void putBoundaryEdges() {
+            try {
+                for (AbstractEdge edge : networkBoundaryEdges(new ArrayList<>(networkVertices))) {
+                    listener.putEdge(edge);
+                }
+            } catch (GraphWriter.WriteFailure failure) {
+                throw failure;
+            } catch (Exception exception) {
+                Logger.getLogger(Query.class.getName()).log(Level.WARNING, null, exception);
+            }
+        }
+    }
+
     private static Graph queryPaths(String queryLine, AbstractStorage storage) {
         try {
             String[] tokens = queryLine.split("\\s+");
@@ -270,51 +367,19 @@ public class Query {
             } else {
                 Graph srcGraph, dstGraph;
 
-                // Connect to source host and get upward lineage
-                int port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-                SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(srcHost, port);
-
-                OutputStream outStream = remoteSocket.getOutputStream();
-                InputStream inStream = remoteSocket.getInputStream();
-                ObjectInputStream graphInputStream = new ObjectInputStream(inStream);
-                PrintWriter remoteSocketOut = new PrintWriter(outStream, true);
-
+                // Get upward lineage from the source host
                 String srcExpression = "query Neo4j lineage " + srcVertexId + " " + maxLength + " ancestors null";
-                remoteSocketOut.println(srcExpression);
-                srcGraph = (Graph) graphInputStream.readObject();
-
-                remoteSocketOut.println("close");
-                graphInputStream.close();
-                remoteSocketOut.close();
-                inStream.close();
-                outStream.close();
-                remoteSocket.close();
-
-                // Connect to destination host and get downward lineage
-                port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-                remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(dstHost, port);
-
-                outStream = remoteSocket.getOutputStream();
-                inStream = remoteSocket.getInputStream();
-                graphInputStream = new ObjectInputStream(inStream);
-                remoteSocketOut = new PrintWriter(outStream, true);
+                srcGraph = Kernel.queryConnections.query(srcHost, srcExpression);
 
+                // Get downward lineage from the destination host
                 String dstExpression = "query Neo4j lineage " + dstVertexId + " " + maxLength + " descendants null";
-                remoteSocketOut.println(dstExpression);
-                dstGraph = (Graph) graphInputStream.readObject();
-
-                remoteSocketOut.println("close");
-                graphInputStream.close();
-                remoteSocketOut.close();
-                inStream.close();
-                outStream.close();
-                remoteSocket.close();
+                dstGraph = Kernel.queryConnections.query(dstHost, dstExpression);
 
                 // The result path is the intersection of the two lineages
                 Graph resultGraph = Graph.intersection(srcGraph, dstGraph);
                 return resultGraph;
             }
-        } catch (NumberFormatException | IOException | ClassNotFoundException badQuery) {
+        } catch (NumberFormatException | IOException badQuery) {
             logger.log(Level.SEVERE, null, badQuery);
             return null;
         }
@@ -598,6 +663,8 @@ public class Query {
         }
 
         executeQuery(null, false); // To flush transactions
+        // Remote sketches may have been rebuilt as well, ask for their changes
+        RemoteSketchCache.expire();
         try {
             AbstractSketch mySketch = Kernel.sketches.iterator().next();
             Set<AbstractEdge> usedEdges = Kernel.storages.iterator().next().getEdges(null, "network:true", "type:Used").edgeSet();
@@ -746,25 +813,14 @@ public class Query {
         Set<AbstractVertex> destinationNetworkVertices = new HashSet<>();
 
         try {
-            // Connect to destination host and get all the destination network vertices
-            int port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(dstHost, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectInputStream graphInputStream = new ObjectInputStream(inStream);
-            PrintWriter remoteSocketOut = new PrintWriter(outStream, true);
-
+            // Get all the destination network vertices from the destination host
             String expression = "query Neo4j vertices network:true";
-            remoteSocketOut.println(expression);
-            // Check whether the remote query server returned a graph in response
-            Graph tempResultGraph = (Graph) graphInputStream.readObject();
+            Graph tempResultGraph = Kernel.queryConnections.query(dstHost, expression);
             // Add those network vertices to the destination set that have a path
             // to the specified vertex
             for (AbstractVertex currentVertex : tempResultGraph.vertexSet()) {
                 expression = "query Neo4j paths " + currentVertex.getAnnotation(ID_STRING) + " " + dstVertexId + " 20";
-                remoteSocketOut.println(expression);
-                Graph currentGraph = (Graph) graphInputStream.readObject();
+                Graph currentGraph = Kernel.queryConnections.query(dstHost, expression);
                 if (!currentGraph.edgeSet().isEmpty()) {
                     destinationNetworkVertices.add(currentVertex);
 
@@ -775,34 +831,16 @@ public class Query {
                 }
             }
 
-            remoteSocketOut.println("close");
-            remoteSocketOut.close();
-            graphInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
-
             if (DEBUG_OUTPUT) {
                 logger.log(Level.INFO, "sketchPaths.1 - received data from {0}", dstHost);
             }
 
-            // Connect to the source host and get all source network vertices.
-            port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-            remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(srcHost, port);
-
-            inStream = remoteSocket.getInputStream();
-            outStream = remoteSocket.getOutputStream();
-            graphInputStream = new ObjectInputStream(inStream);
-            remoteSocketOut = new PrintWriter(outStream, true);
-
+            // Get all source network vertices from the source host.
             expression = "query Neo4j vertices network:true";
-            remoteSocketOut.println(expression);
-            // Check whether the remote query server returned a graph in response
-            tempResultGraph = (Graph) graphInputStream.readObject();
+            tempResultGraph = Kernel.queryConnections.query(srcHost, expression);
             for (AbstractVertex currentVertex : tempResultGraph.vertexSet()) {
                 expression = "query Neo4j paths " + srcVertexId + " " + currentVertex.getAnnotation(ID_STRING) + " 20";
-                remoteSocketOut.println(expression);
-                Graph currentGraph = (Graph) graphInputStream.readObject();
+                Graph currentGraph = Kernel.queryConnections.query(srcHost, expression);
                 if (!currentGraph.edgeSet().isEmpty()) {
                     sourceNetworkVertices.add(currentVertex);
 
@@ -813,13 +851,6 @@ public class Query {
                 }
             }
 
-            remoteSocketOut.println("close");
-            remoteSocketOut.close();
-            graphInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
-
             if (DEBUG_OUTPUT) {
                 logger.log(Level.INFO, "sketchPaths.2 - received data from {0}", srcHost);
             }
@@ -890,7 +921,7 @@ public class Query {
                 result = Graph.union(result, graphResults.get(i));
             }
 
-        } catch (NumberFormatException | IOException | ClassNotFoundException | InterruptedException exception) {
+        } catch (NumberFormatException | IOException | InterruptedException exception) {
             logger.log(Level.SEVERE, null, exception);
         }
 
@@ -925,32 +956,44 @@ public class Query {
                 }
             }
 
-            for (int i = 0; i < networkVertices.size(); i++) {
-                AbstractVertex vertex1 = networkVertices.get(i);
-                String source_host = vertex1.getAnnotation("source host");
-                String source_port = vertex1.getAnnotation("source port");
-                String destination_host = vertex1.getAnnotation("destination host");
-                String destination_port = vertex1.getAnnotation("destination port");
-                for (int j = 0; j < networkVertices.size(); j++) {
-                    AbstractVertex vertex2 = networkVertices.get(j);
-                    if ((vertex2.getAnnotation("source host").equals(destination_host))
-                            && (vertex2.getAnnotation("source port").equals(destination_port))
-                            && (vertex2.getAnnotation("destination host").equals(source_host))
-                            && (vertex2.getAnnotation("destination port").equals(source_port))) {
-                        Edge newEdge1 = new Edge((Vertex) vertex1, (Vertex) vertex2);
-                        newEdge1.addAnnotation("type", "Network Boundary");
-                        graph.putEdge(newEdge1);
-                        Edge newEdge2 = new Edge((Vertex) vertex2, (Vertex) vertex1);
-                        newEdge2.addAnnotation("type", "Network Boundary");
-                        graph.putEdge(newEdge2);
-                    }
-                }
+            for (AbstractEdge edge : networkBoundaryEdges(networkVertices)) {
+                graph.putEdge(edge);
             }
         } catch (Exception exception) {
             Logger.getLogger(Query.class.getName()).log(Level.WARNING, null, exception);
         }
     }
 
+    /**
+     * Creates the edges that connect the two ends of each network connection
+     * found among the given network vertices.
+     */
+    private static List<AbstractEdge> networkBoundaryEdges(List<AbstractVertex> networkVertices) {
+        List<AbstractEdge> edges = new ArrayList<>();
+        for (int i = 0; i < networkVertices.size(); i++) {
+            AbstractVertex vertex1 = networkVertices.get(i);
+            String source_host = vertex1.getAnnotation("source host");
+            String source_port = vertex1.getAnnotation("source port");
+            String destination_host = vertex1.getAnnotation("destination host");
+            String destination_port = vertex1.getAnnotation("destination port");
+            for (int j = 0; j < networkVertices.size(); j++) {
+                AbstractVertex vertex2 = networkVertices.get(j);
+                if ((vertex2.getAnnotation("source host").equals(destination_host))
+                        && (vertex2.getAnnotation("source port").equals(destination_port))
+                        && (vertex2.getAnnotation("destination host").equals(source_host))
+                        && (vertex2.getAnnotation("destination port").equals(source_port))) {
+                    Edge newEdge1 = new Edge((Vertex) vertex1, (Vertex) vertex2);
+                    newEdge1.addAnnotation("type", "Network Boundary");
+                    edges.add(newEdge1);
+                    Edge newEdge2 = new Edge((Vertex) vertex2, (Vertex) vertex1);
+                    newEdge2.addAnnotation("type", "Network Boundary");
+                    edges.add(newEdge2);
+                }
+            }
+        }
+        return edges;
+    }
+
     /**
      * Method used to get remote lineage of a network vertex.
      *
@@ -958,21 +1001,13 @@ public class Query {
      * @param depth Depth of lineage.
      * @param direction Direction of lineage.
      * @param terminatingExpression The terminating expression.
-     * @return The result represented by a Graph object.
+     * @param listener The listener that receives the elements of the result
+     * as they arrive.
+     * @return True if the result was received.
      */
-    private static Graph queryNetworkVertex(AbstractVertex networkVertex, int depth, String direction, String terminatingExpression) {
-        Graph resultGraph = null;
-
+    static boolean queryNetworkVertex(AbstractVertex networkVertex, int depth, String direction, String terminatingExpression, GraphReader.Listener listener) {
         try {
-            // Establish a connection to the remote host
             String host = networkVertex.getAnnotation("destination host");
-            int port = Integer.parseInt(Settings.getProperty("remote_query_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(host, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectInputStream graphInputStream = new ObjectInputStream(inStream);
-            PrintWriter remoteSocketOut = new PrintWriter(outStream, true);
 
             // The first query is used to determine the vertex id of the network
             // vertex on the remote host. This is needed to execute the lineage
@@ -987,9 +1022,7 @@ public class Query {
             if (DEBUG_OUTPUT) {
                 logger.log(Level.INFO, "Sending query expression: {0}", vertexQueryExpression);
             }
-            remoteSocketOut.println(vertexQueryExpression);
-            // Check whether the remote query server returned a graph in response
-            Graph vertexGraph = (Graph) graphInputStream.readObject();
+            Graph vertexGraph = Kernel.queryConnections.query(host, vertexQueryExpression);
             // The graph should only have one vertex which is the network vertex.
             // We use this to get the vertex id
             AbstractVertex targetVertex = vertexGraph.vertexSet().iterator().next();
@@ -998,23 +1031,15 @@ public class Query {
 
             // Build the expression for the remote lineage query
             String lineageQueryExpression = "query Neo4j lineage " + vertexId + " " + depth + " " + direction + " " + terminatingExpression;
-            remoteSocketOut.println(lineageQueryExpression);
 
-            // The graph object we get as a response is returned as the
-            // result of this method
-            resultGraph = (Graph) graphInputStream.readObject();
-
-            remoteSocketOut.println("close");
-            remoteSocketOut.close();
-            graphInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
-        } catch (NumberFormatException | IOException | ClassNotFoundException exception) {
+            // The elements of the response are passed to the listener as
+            // they arrive
+            Kernel.queryConnections.query(host, lineageQueryExpression, listener);
+            return true;
+        } catch (NumberFormatException | IOException exception) {
             logger.log(Level.SEVERE, null, exception);
+            return false;
         }
-
-        return resultGraph;
     }
 }
 
@@ -1022,6 +1047,29 @@ class QueryConnection implements Runnable {
 
     // An object of this class is instantiated when a query connection is made.
     Socket clientSocket;
+    // Runs the requests of multiplexed connections, with at most
+    // remote_query_threads threads and remote_query_backlog waiting requests.
+    // Beyond that a request runs on the thread reading its connection, which
+    // stops reading that client until the request is done. A request may wait
+    // on requests to other hosts that in turn query this one, so each
+    // connection can still make progress when all threads are waiting.
+    private static final int REQUEST_THREADS = Math.max(1, Kernel.parseIntSetting("remote_query_threads", 32));
+    private static final ThreadPoolExecutor requestExecutor = new ThreadPoolExecutor(REQUEST_THREADS, REQUEST_THREADS,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, Kernel.parseIntSetting("remote_query_backlog", 256))),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "remoteQueryRequest-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        requestExecutor.allowCoreThreadTimeOut(true);
+    }
 
     QueryConnection(Socket socket) {
         clientSocket = socket;
@@ -1037,10 +1085,15 @@ class QueryConnection implements Runnable {
 
             OutputStream outStream = clientSocket.getOutputStream();
             InputStream inStream = clientSocket.getInputStream();
-            ObjectOutputStream clientObjectOutputStream = new ObjectOutputStream(outStream);
+            GraphWriter clientGraphWriter = new GraphWriter(outStream);
             BufferedReader clientInputReader = new BufferedReader(new InputStreamReader(inStream));
 
             String queryLine = clientInputReader.readLine();
+            if (RemoteQueryClient.MULTIPLEX.equals(queryLine)) {
+                clientGraphWriter.writeMessage(RemoteQueryClient.MULTIPLEX);
+                serveMultiplexed(clientInputReader, clientGraphWriter);
+                queryLine = "close";
+            }
             while (!queryLine.equalsIgnoreCase("close")) {
                 // Read lines from the querying client until 'close' is called
 
@@ -1048,16 +1101,27 @@ class QueryConnection implements Runnable {
                     Logger.getLogger(QueryConnection.class.getName()).log(Level.INFO, "Received query line: {0}", queryLine);
                 }
 
-                Graph resultGraph = Query.executeQuery(queryLine, true);
-                if (resultGraph == null) {
-                    resultGraph = new Graph();
+                if (Query.isLineageQuery(queryLine)) {
+                    // Sent as the traversal produces it
+                    clientGraphWriter.beginGraph();
+                    boolean transformed;
+                    try {
+                        transformed = Query.executeLineageQuery(queryLine, true, clientGraphWriter.listener());
+                    } catch (GraphWriter.WriteFailure failure) {
+                        throw failure.getCause();
+                    }
+                    clientGraphWriter.endGraph(transformed);
+                } else {
+                    Graph resultGraph = Query.executeQuery(queryLine, true);
+                    if (resultGraph == null) {
+                        resultGraph = new Graph();
+                    }
+                    clientGraphWriter.writeGraph(resultGraph);
                 }
-                clientObjectOutputStream.writeObject(resultGraph);
-                clientObjectOutputStream.flush();
                 queryLine = clientInputReader.readLine();
             }
 
-            clientObjectOutputStream.close();
+            clientGraphWriter.close();
             clientInputReader.close();
             inStream.close();
             outStream.close();
@@ -1071,6 +1135,143 @@ class QueryConnection implements Runnable {
             Logger.getLogger(QueryConnection.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
+
+    /**
+     * Runs the requests of a multiplexed connection concurrently. Each request
+     * line starts with an id that is sent back as a message right before the
+     * result graph, so results can be written as soon as they are ready.
+     * Lineage results are sent in parts as they are produced.
+     */
+    private void serveMultiplexed(BufferedReader clientInputReader, final GraphWriter clientGraphWriter) throws IOException, InterruptedException {
+        final Object inFlightLock = new Object();
+        final int[] inFlight = {0};
+        String requestLine;
+        while ((requestLine = clientInputReader.readLine()) != null && !requestLine.equalsIgnoreCase("close")) {
+            String[] tokens = requestLine.split(" ", 2);
+            if (tokens.length < 2) {
+                continue;
+            }
+            final String requestId = tokens[0];
+            final String queryLine = tokens[1];
+            synchronized (inFlightLock) {
+                inFlight[0]++;
+            }
+            requestExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (Query.isLineageQuery(queryLine)) {
+                            ResultParts parts = new ResultParts(requestId, clientGraphWriter);
+                            boolean transformed;
+                            try {
+                                transformed = Query.executeLineageQuery(queryLine, true, parts);
+                            } catch (GraphWriter.WriteFailure failure) {
+                                throw failure.getCause();
+                            }
+                            parts.finish(transformed);
+                            return;
+                        }
+                        Graph resultGraph = Query.executeQuery(queryLine, true);
+                        if (resultGraph == null) {
+                            resultGraph = new Graph();
+                        }
+                        synchronized (clientGraphWriter) {
+                            clientGraphWriter.writeMessage(requestId);
+                            clientGraphWriter.writeGraph(resultGraph);
+                        }
+                    } catch (IOException exception) {
+                        Logger.getLogger(QueryConnection.class.getName()).log(Level.FINE, null, exception);
+                    } finally {
+                        synchronized (inFlightLock) {
+                            inFlight[0]--;
+                            inFlightLock.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+        // Let running requests finish writing before the socket is closed
+        synchronized (inFlightLock) {
+            while (inFlight[0] > 0) {
+                inFlightLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Collects the elements of a result and writes them as a part whenever a
+     * chunk is full. The connection is only held while a part is written, so
+     * a request that waits for remote hosts does not hold up the others.
+     * Edges whose endpoints were sent in an earlier part carry them again.
+     */
+    private static final class ResultParts implements GraphReader.Listener {
+
+        private final String requestId;
+        private final GraphWriter writer;
+        private final Set<AbstractVertex> vertices = new LinkedHashSet<>();
+        private final List<AbstractEdge> edges = new ArrayList<>();
+        private final Map<AbstractVertex, Integer> networkMap = new LinkedHashMap<>();
+
+        ResultParts(String requestId, GraphWriter writer) {
+            this.requestId = requestId;
+            this.writer = writer;
+        }
+
+        @Override
+        public void putVertex(AbstractVertex vertex) {
+            vertices.add(vertex);
+            elementAdded();
+        }
+
+        @Override
+        public void putEdge(AbstractEdge edge) {
+            edges.add(edge);
+            elementAdded();
+        }
+
+        @Override
+        public void putNetworkVertex(AbstractVertex vertex, int depth) {
+            networkMap.put(vertex, depth);
+        }
+
+        @Override
+        public void chunkReceived() {
+        }
+
+        private void elementAdded() {
+            if (vertices.size() + edges.size() >= GraphWriter.CHUNK_SIZE) {
+                try {
+                    write(requestId + " " + RemoteQueryClient.PART, false);
+                } catch (IOException exception) {
+                    throw new GraphWriter.WriteFailure(exception);
+                }
+            }
+        }
+
+        void finish(boolean transformed) throws IOException {
+            write(requestId, transformed);
+        }
+
+        private void write(String message, boolean transformed) throws IOException {
+            synchronized (writer) {
+                writer.writeMessage(message);
+                writer.beginGraph();
+                for (AbstractVertex vertex : vertices) {
+                    writer.putVertex(vertex);
+                }
+                for (AbstractEdge edge : edges) {
+                    writer.putEdge(edge);
+                }
+                for (Map.Entry<AbstractVertex, Integer> entry : networkMap.entrySet()) {
+                    writer.putNetworkVertex(entry.getKey(), entry.getValue());
+                }
+                writer.endGraph(transformed);
+            }
+            vertices.clear();
+            edges.clear();
+            networkMap.clear();
+        }
+    }
 }
 
 class SketchConnection implements Runnable {
@@ -1111,6 +1312,11 @@ class SketchConnection implements Runnable {
 
                     Logger.getLogger(SketchConnection.class.getName()).log(Level.INFO, "Sent sketches");
 
+                } else if (sketchLine.equals("giveSketchDeltas")) {
+                    // Send only the matrix rows the client does not have yet
+                    Map<String, long[]> known = RemoteSketchCache.readMap(clientObjectInputStream, long[].class);
+                    clientObjectOutputStream.writeObject(RemoteSketchCache.getDeltas(known));
+                    clientObjectOutputStream.flush();
                 } else if (sketchLine.equals("pathFragment_mid")) {
                     // Get a non-terminal path fragment
                     AbstractSketch remoteSketch = (AbstractSketch) clientObjectInputStream.readObject();
@@ -1128,15 +1334,30 @@ class SketchConnection implements Runnable {
                     clientObjectOutputStream.flush();
                 } else if (sketchLine.startsWith("notifyRebuildSketches")) {
                     String tokens[] = sketchLine.split("\\s+");
-                    int currentLevel = Integer.parseInt(tokens[1]);
-                    int maxLevel = Integer.parseInt(tokens[2]);
-                    Query.notifyRebuildSketches(currentLevel, maxLevel);
+                    final int currentLevel = Integer.parseInt(tokens[1]);
+                    final int maxLevel = Integer.parseInt(tokens[2]);
+                    // Rebuilding takes a while and the client does not wait
+                    // for it, so the connection is free for its next command.
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Query.notifyRebuildSketches(currentLevel, maxLevel);
+                        }
+                    }, "notifyRebuildSketches-Thread").start();
                 } else if (sketchLine.startsWith("propagateSketches")) {
                     String tokens[] = sketchLine.split("\\s+");
-                    int currentLevel = Integer.parseInt(tokens[1]);
-                    int maxLevel = Integer.parseInt(tokens[2]);
-                    Query.propagateSketches(currentLevel, maxLevel);
+                    final int currentLevel = Integer.parseInt(tokens[1]);
+                    final int maxLevel = Integer.parseInt(tokens[2]);
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Query.propagateSketches(currentLevel, maxLevel);
+                        }
+                    }, "propagateSketches-Thread").start();
                 }
+                // Clients keep the connection open for later commands, so
+                // objects sent again must not be written as back references
+                clientObjectOutputStream.reset();
                 sketchLine = (String) clientObjectInputStream.readObject();
             }
 
@@ -1150,6 +1371,13 @@ class SketchConnection implements Runnable {
                 Logger.getLogger(SketchConnection.class.getName()).log(Level.INFO, "Sketch socket closed");
             }
 
+        } catch (EOFException ex) {
+            // Pooled client connections may be dropped without 'close'
+            try {
+                clientSocket.close();
+            } catch (IOException closeException) {
+                Logger.getLogger(SketchConnection.class.getName()).log(Level.FINE, null, closeException);
+            }
         } catch (IOException | ClassNotFoundException | NumberFormatException ex) {
             Logger.getLogger(QueryConnection.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -1175,31 +1403,25 @@ class RebuildSketch implements Runnable {
 
     @Override
     public void run() {
+        int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
+        RemoteConnectionPool.Connection connection = null;
         try {
-            int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(remoteHost, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outStream);
-            ObjectInputStream objectInputStream = new ObjectInputStream(inStream);
+            // Not pooled: the notification gets no reply, so a write to an
+            // idle connection the peer has closed would be lost unnoticed.
+            connection = Kernel.sketchConnections.connect(remoteHost, port);
 
             if (Query.DEBUG_OUTPUT) {
                 Logger.getLogger(RebuildSketch.class.getName()).log(Level.INFO, "notifyRebuildSketch - notifying {0}", remoteHost);
             }
 
             String expression = "notifyRebuildSketches " + currentLevel + " " + maxLevel;
-            objectOutputStream.writeObject(expression);
-            objectOutputStream.flush();
-            objectOutputStream.writeObject("close");
-            objectOutputStream.flush();
-
-            objectOutputStream.close();
-            objectInputStream.close();
-            outStream.close();
-            inStream.close();
-            remoteSocket.close();
-        } catch (NumberFormatException | IOException exception) {
+            connection.output.writeObject(expression);
+            connection.output.flush();
+            Kernel.sketchConnections.close(connection);
+        } catch (IOException exception) {
+            if (connection != null) {
+                Kernel.sketchConnections.invalidate(connection);
+            }
             Logger.getLogger(RebuildSketch.class.getName()).log(Level.SEVERE, null, exception);
         }
     }
@@ -1224,31 +1446,24 @@ class PropagateSketch implements Runnable {
 
     @Override
     public void run() {
+        int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
+        RemoteConnectionPool.Connection connection = null;
         try {
-            int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(remoteHost, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outStream);
-            ObjectInputStream objectInputStream = new ObjectInputStream(inStream);
+            // Not pooled, like the rebuild notification
+            connection = Kernel.sketchConnections.connect(remoteHost, port);
 
             if (Query.DEBUG_OUTPUT) {
                 Logger.getLogger(PropagateSketch.class.getName()).log(Level.INFO, "propagateSketches - propagating to {0}", remoteHost);
             }
 
             String expression = "propagateSketches " + currentLevel + " " + maxLevel;
-            objectOutputStream.writeObject(expression);
-            objectOutputStream.flush();
-            objectOutputStream.writeObject("close");
-            objectOutputStream.flush();
-
-            objectOutputStream.close();
-            objectInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
-        } catch (NumberFormatException | IOException exception) {
+            connection.output.writeObject(expression);
+            connection.output.flush();
+            Kernel.sketchConnections.close(connection);
+        } catch (IOException exception) {
+            if (connection != null) {
+                Kernel.sketchConnections.invalidate(connection);
+            }
             Logger.getLogger(PropagateSketch.class.getName()).log(Level.SEVERE, null, exception);
         }
     }
@@ -1271,35 +1486,29 @@ class PathFragment implements Runnable {
 
     @Override
     public void run() {
+        int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
+        RemoteConnectionPool.Connection connection = null;
         try {
-            int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(remoteHost, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outStream);
-            ObjectInputStream objectInputStream = new ObjectInputStream(inStream);
+            connection = Kernel.sketchConnections.borrow(remoteHost, port);
             // Send the sketch
-            objectOutputStream.writeObject(pathFragment);
-            objectOutputStream.flush();
-            objectOutputStream.writeObject(Kernel.sketches.iterator().next());
-            objectOutputStream.flush();
+            connection.output.writeObject(pathFragment);
+            connection.output.flush();
+            connection.output.writeObject(Kernel.sketches.iterator().next());
+            connection.output.flush();
             // Receive the graph fragment
-            Graph tempResultGraph = (Graph) objectInputStream.readObject();
-            objectOutputStream.writeObject("close");
-            objectOutputStream.flush();
-            objectOutputStream.close();
-            objectInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
+            Graph tempResultGraph = (Graph) connection.input.readObject();
+            Kernel.sketchConnections.release(connection);
+            connection = null;
 
             if (Query.DEBUG_OUTPUT) {
                 Logger.getLogger(PathFragment.class.getName()).log(Level.INFO, "PathFragment - received path fragment from {0}", remoteHost);
             }
 
             graphResults.add(tempResultGraph);
-        } catch (NumberFormatException | IOException | ClassNotFoundException exception) {
+        } catch (IOException | ClassNotFoundException exception) {
+            if (connection != null) {
+                Kernel.sketchConnections.invalidate(connection);
+            }
             Logger.getLogger(PathFragment.class.getName()).log(Level.SEVERE, null, exception);
         }
     }
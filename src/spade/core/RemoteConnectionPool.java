@@ -0,0 +1,243 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps connections to remote SPADE instances open between requests. A
+ * connection is borrowed for one exchange of objects and then released for
+ * reuse, or invalidated if the exchange failed. Commands that get no reply
+ * cannot tell a connection the peer has closed from a live one, so they are
+ * sent on a connection of their own instead. The servers handle any number
+ * of commands per connection until they receive "close", which is sent when
+ * an idle connection is discarded.
+ */
+public class RemoteConnectionPool {
+
+    private static final Logger logger = Logger.getLogger(RemoteConnectionPool.class.getName());
+
+    /**
+     * A connection with object streams that stay open for its lifetime.
+     */
+    public static final class Connection {
+
+        private final String key;
+        private final Socket socket;
+        public final ObjectOutputStream output;
+        public final ObjectInputStream input;
+        private long lastUsed;
+        private boolean reused;
+
+        private Connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            output = new ObjectOutputStream(socket.getOutputStream());
+            output.flush();
+            input = new ObjectInputStream(socket.getInputStream());
+        }
+
+        /**
+         * @return true if the connection was used for an earlier exchange, in
+         * which case a failure may only mean that the peer closed it since.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        private void close() {
+            try {
+                output.writeObject("close");
+                output.flush();
+            } catch (IOException exception) {
+                // The peer may already be gone
+            }
+            try {
+                socket.close();
+            } catch (IOException exception) {
+                logger.log(Level.FINE, null, exception);
+            }
+        }
+    }
+
+    private final int maxIdlePerHost;
+    private final long idleTimeoutMillis;
+    private final int readTimeoutMillis;
+    // Guarded by this
+    private final Map<String, Deque<Connection>> idle = new HashMap<>();
+    private long created = 0;
+    private long reused = 0;
+
+    /**
+     * @param maxIdlePerHost The number of idle connections kept per host and
+     * port.
+     * @param idleTimeoutMillis Idle connections older than this are closed
+     * instead of being reused.
+     * @param readTimeoutMillis The socket read timeout, 0 for none.
+     */
+    public RemoteConnectionPool(int maxIdlePerHost, long idleTimeoutMillis, int readTimeoutMillis) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Returns an idle connection to the given host and port or opens a new
+     * one.
+     */
+    public Connection borrow(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        long now = System.currentTimeMillis();
+        List<Connection> expired = new ArrayList<>();
+        Connection connection = null;
+        synchronized (this) {
+            Deque<Connection> connections = idle.get(key);
+            while (connections != null && !connections.isEmpty()) {
+                Connection candidate = connections.pollFirst();
+                if (now - candidate.lastUsed > idleTimeoutMillis || candidate.socket.isClosed()) {
+                    expired.add(candidate);
+                } else {
+                    connection = candidate;
+                    connection.reused = true;
+                    reused++;
+                    break;
+                }
+            }
+            if (connection == null) {
+                created++;
+            }
+        }
+        for (Connection candidate : expired) {
+            candidate.close();
+        }
+        if (connection != null) {
+            return connection;
+        }
+        return open(key, host, port);
+    }
+
+    /**
+     * Opens a connection that is not taken from or returned to the pool, for
+     * commands without a reply. It is closed with close once the command is
+     * written.
+     */
+    public Connection connect(String host, int port) throws IOException {
+        synchronized (this) {
+            created++;
+        }
+        return open(host + ":" + port, host, port);
+    }
+
+    /**
+     * Ends a connection opened with connect, letting the server finish the
+     * commands written before.
+     */
+    public void close(Connection connection) {
+        connection.close();
+    }
+
+    private Connection open(String key, String host, int port) throws IOException {
+        Socket socket = Kernel.sslSocketFactory.createSocket(host, port);
+        socket.setSoTimeout(readTimeoutMillis);
+        try {
+            return new Connection(key, socket);
+        } catch (IOException exception) {
+            socket.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Returns a connection after a completed exchange so that it can be
+     * reused.
+     */
+    public void release(Connection connection) {
+        try {
+            // Forget the objects written so far so that later writes send
+            // their current state instead of back references
+            connection.output.reset();
+        } catch (IOException exception) {
+            invalidate(connection);
+            return;
+        }
+        connection.lastUsed = System.currentTimeMillis();
+        boolean keep;
+        synchronized (this) {
+            Deque<Connection> connections = idle.get(connection.key);
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                idle.put(connection.key, connections);
+            }
+            keep = connections.size() < maxIdlePerHost;
+            if (keep) {
+                connections.addFirst(connection);
+            }
+        }
+        if (!keep) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes a connection whose exchange failed.
+     */
+    public void invalidate(Connection connection) {
+        try {
+            connection.socket.close();
+        } catch (IOException exception) {
+            logger.log(Level.FINE, null, exception);
+        }
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void closeAll() {
+        List<Connection> connections = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<Connection> hostConnections : idle.values()) {
+                connections.addAll(hostConnections);
+            }
+            idle.clear();
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    public synchronized String getMetrics() {
+        int idleConnections = 0;
+        for (Deque<Connection> connections : idle.values()) {
+            idleConnections += connections.size();
+        }
+        return "connections: idle=" + idleConnections + ", created=" + created + ", reused=" + reused;
+    }
+}
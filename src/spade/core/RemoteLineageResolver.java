@@ -0,0 +1,246 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the network vertices of a lineage result on their remote hosts.
+ * The remote queries of one level are issued concurrently, at most
+ * remote_lineage_parallelism at a time per lineage query, taking the hosts in
+ * turn so that one host with many network vertices does not hold up the
+ * others. All lineage queries share at most remote_lineage_threads threads.
+ * A remote vertex is queried again within a lineage query only when it is
+ * reached with more remaining depth than before, and the elements of every
+ * result are passed on as they arrive.
+ */
+class RemoteLineageResolver {
+
+    private static final Logger logger = Logger.getLogger(RemoteLineageResolver.class.getName());
+    private static final int PARALLELISM = Math.max(1, Kernel.parseIntSetting("remote_lineage_parallelism", 8));
+    private static final int THREADS = Math.max(1, Kernel.parseIntSetting("remote_lineage_threads", 64));
+    // Shared by all lineage queries, each of which also limits its own
+    // requests. When every thread is busy a request runs on the thread of its
+    // lineage query, so a query served for another host never waits for a
+    // thread held by one that queries that host.
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "remoteLineage-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final int depth;
+    private final String direction;
+    private final String terminatingExpression;
+    // The largest remaining depth each remote vertex was queried with
+    private final Map<String, Integer> queried = new HashMap<>();
+
+    RemoteLineageResolver(int depth, String direction, String terminatingExpression) {
+        this.depth = depth;
+        this.direction = direction;
+        this.terminatingExpression = terminatingExpression;
+    }
+
+    /**
+     * Passes the remote lineage of the network vertices of a local lineage to
+     * a listener. The listener is called by one thread at a time, but not
+     * always the same one.
+     *
+     * @param networkMap The network vertices of the local lineage with their
+     * depths.
+     * @param sink The listener that receives the elements of the remote
+     * results.
+     * @throws InterruptedException If the querying thread is interrupted.
+     */
+    void resolve(Map<AbstractVertex, Integer> networkMap, GraphReader.Listener sink) throws InterruptedException {
+        Map<AbstractVertex, Integer> currentNetworkMap = new HashMap<>(networkMap);
+        while (!currentNetworkMap.isEmpty()) {
+            currentNetworkMap = resolveLevel(sink, currentNetworkMap);
+        }
+    }
+
+    /**
+     * Queries the network vertices of one level and returns the network
+     * vertices of the results, with their depths relative to the source
+     * vertex.
+     */
+    private Map<AbstractVertex, Integer> resolveLevel(GraphReader.Listener sink, Map<AbstractVertex, Integer> networkMap) throws InterruptedException {
+        // Keep the request with the most remaining depth for each remote
+        // vertex, unless it was queried before with at least as much
+        Map<String, Map.Entry<AbstractVertex, Integer>> levelRequests = new LinkedHashMap<>();
+        for (Map.Entry<AbstractVertex, Integer> currentEntry : networkMap.entrySet()) {
+            String key = requestKey(currentEntry.getKey());
+            Map.Entry<AbstractVertex, Integer> previous = levelRequests.get(key);
+            if (previous == null || currentEntry.getValue() < previous.getValue()) {
+                levelRequests.put(key, currentEntry);
+            }
+        }
+        // Group the requests by host
+        Map<String, Deque<Map.Entry<AbstractVertex, Integer>>> hostRequests = new LinkedHashMap<>();
+        for (Map.Entry<String, Map.Entry<AbstractVertex, Integer>> levelRequest : levelRequests.entrySet()) {
+            Map.Entry<AbstractVertex, Integer> currentEntry = levelRequest.getValue();
+            int remainingDepth = depth - currentEntry.getValue();
+            Integer queriedDepth = queried.get(levelRequest.getKey());
+            if (queriedDepth != null && queriedDepth >= remainingDepth) {
+                continue;
+            }
+            queried.put(levelRequest.getKey(), remainingDepth);
+            String host = currentEntry.getKey().getAnnotation("destination host");
+            Deque<Map.Entry<AbstractVertex, Integer>> requests = hostRequests.get(host);
+            if (requests == null) {
+                requests = new ArrayDeque<>();
+                hostRequests.put(host, requests);
+            }
+            requests.add(currentEntry);
+        }
+
+        List<Map.Entry<AbstractVertex, Integer>> order = new ArrayList<>();
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (Deque<Map.Entry<AbstractVertex, Integer>> requests : hostRequests.values()) {
+                if (!requests.isEmpty()) {
+                    order.add(requests.poll());
+                    added = true;
+                }
+            }
+        }
+
+        Map<AbstractVertex, Integer> nextNetworkMap = new HashMap<>();
+        CompletionService<Map<AbstractVertex, Integer>> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Map<AbstractVertex, Integer>>> futures = new ArrayList<>();
+        int inFlight = 0;
+        try {
+            for (Map.Entry<AbstractVertex, Integer> request : order) {
+                if (inFlight == PARALLELISM) {
+                    merge(completionService.take(), nextNetworkMap);
+                    inFlight--;
+                }
+                futures.add(completionService.submit(new RemoteQuery(request.getKey(), request.getValue(), sink)));
+                inFlight++;
+            }
+            while (inFlight > 0) {
+                merge(completionService.take(), nextNetworkMap);
+                inFlight--;
+            }
+        } finally {
+            for (Future<Map<AbstractVertex, Integer>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return nextNetworkMap;
+    }
+
+    private void merge(Future<Map<AbstractVertex, Integer>> future, Map<AbstractVertex, Integer> nextNetworkMap) throws InterruptedException {
+        try {
+            nextNetworkMap.putAll(future.get());
+        } catch (ExecutionException exception) {
+            logger.log(Level.SEVERE, null, exception.getCause());
+        }
+    }
+
+    // The remote vertex is the network vertex of the other end of the connection
+    private String requestKey(AbstractVertex networkVertex) {
+        return networkVertex.getAnnotation("destination host") + "\n"
+                + networkVertex.getAnnotation("destination port") + "\n"
+                + networkVertex.getAnnotation("source host") + "\n"
+                + networkVertex.getAnnotation("source port") + "\n"
+                + direction;
+    }
+
+    /**
+     * Queries the remote host of a network vertex and passes the elements of
+     * the result to the sink as they arrive. Returns the network vertices of
+     * the result, with their depths relative to the source vertex of the
+     * lineage.
+     */
+    private final class RemoteQuery implements Callable<Map<AbstractVertex, Integer>>, GraphReader.Listener {
+
+        private final AbstractVertex networkVertex;
+        private final int currentDepth;
+        private final GraphReader.Listener sink;
+        private final Map<AbstractVertex, Integer> networkMap = new HashMap<>();
+
+        RemoteQuery(AbstractVertex networkVertex, int currentDepth, GraphReader.Listener sink) {
+            this.networkVertex = networkVertex;
+            this.currentDepth = currentDepth;
+            this.sink = sink;
+        }
+
+        @Override
+        public Map<AbstractVertex, Integer> call() {
+            Query.queryNetworkVertex(networkVertex, depth - currentDepth, direction, terminatingExpression, this);
+            return networkMap;
+        }
+
+        @Override
+        public void putVertex(AbstractVertex vertex) {
+            synchronized (sink) {
+                sink.putVertex(vertex);
+            }
+        }
+
+        @Override
+        public void putEdge(AbstractEdge edge) {
+            synchronized (sink) {
+                sink.putEdge(edge);
+            }
+        }
+
+        @Override
+        public void putNetworkVertex(AbstractVertex vertex, int depth) {
+            // Update the depth values of the remote network vertices to
+            // reflect the current level of iteration
+            networkMap.put(vertex, currentDepth + depth);
+        }
+
+        @Override
+        public void chunkReceived() {
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends queries to the remote query servers of other hosts over long-lived
+ * connections. Each host gets a few connections that are opened on first use
+ * and shared by all querying threads. A connection carries any number of
+ * concurrent requests: every request line is prefixed with a request id and
+ * the server answers each request with its id followed by the result graph,
+ * in whatever order the results become ready. A large result is sent in
+ * parts, each preceded by the id and the word "part", except for the last,
+ * so the elements can be passed on while the server is still producing them.
+ * Servers that do not answer the "multiplex" greeting are sent one request at
+ * a time on a connection.
+ */
+public class RemoteQueryClient {
+
+    private static final Logger logger = Logger.getLogger(RemoteQueryClient.class.getName());
+    /**
+     * The greeting that switches a query connection to multiplexed requests.
+     */
+    public static final String MULTIPLEX = "multiplex";
+    /**
+     * Follows the request id of a result part that is not the last.
+     */
+    public static final String PART = "part";
+    private static final long IDLE_TIMEOUT_MILLIS = 300000;
+
+    private final int connectionsPerHost;
+    private final int connectTimeoutMillis;
+    private final long requestTimeoutMillis;
+    // Guarded by this
+    private final Map<String, List<Channel>> channels = new HashMap<>();
+    private final Map<String, Integer> nextChannel = new HashMap<>();
+    private final Map<String, Integer> connecting = new HashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+
+    /**
+     * @param connectionsPerHost The number of connections opened to a host.
+     * @param connectTimeoutMillis The time allowed for the greeting to be
+     * answered.
+     * @param requestTimeoutMillis The time after which a request fails if
+     * nothing of its result has arrived, 0 for none.
+     */
+    public RemoteQueryClient(int connectionsPerHost, int connectTimeoutMillis, long requestTimeoutMillis) {
+        this.connectionsPerHost = Math.max(1, connectionsPerHost);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    /**
+     * Runs a query on a remote host.
+     *
+     * @param host The remote host.
+     * @param queryLine The query, e.g., "query Neo4j vertices network:true".
+     * @return The result graph.
+     * @throws IOException If the host cannot be reached or the result did not
+     * arrive in time.
+     */
+    public Graph query(String host, String queryLine) throws IOException {
+        Graph graph = new Graph();
+        graph.transformed = query(host, queryLine, GraphReader.graphBuilder(graph));
+        graph.commitIndex();
+        return graph;
+    }
+
+    /**
+     * Runs a query on a remote host and passes the elements of the result to
+     * a listener as they arrive. The listener is called by a connection
+     * thread, and no longer once this method has returned.
+     *
+     * @param host The remote host.
+     * @param queryLine The query, e.g., "query Neo4j lineage 5 3 a null".
+     * @param listener The listener that receives the elements of the result.
+     * @return The transformed flag of the result.
+     * @throws IOException If the host cannot be reached or the result stopped
+     * arriving.
+     */
+    public boolean query(String host, String queryLine, GraphReader.Listener listener) throws IOException {
+        requests.incrementAndGet();
+        Channel channel = channel(host);
+        Response response = new Response(listener);
+        try {
+            return channel.request(queryLine, response);
+        } catch (SocketTimeoutException exception) {
+            timeouts.incrementAndGet();
+            if (channel.isClosed()) {
+                remove(channel);
+            }
+            throw exception;
+        } catch (InterruptedIOException exception) {
+            // Only this caller gave up; other requests share the channel
+            if (channel.isClosed()) {
+                remove(channel);
+            }
+            throw exception;
+        } catch (IOException exception) {
+            remove(channel);
+            channel.close();
+            if (channel.isStale() && !response.received) {
+                // The server may have dropped a connection that was idle
+                return channel(host).request(queryLine, new Response(listener));
+            }
+            throw exception;
+        }
+    }
+
+    private Channel channel(String host) throws IOException {
+        int port = Integer.parseInt(Settings.getProperty("remote_query_port"));
+        String key = host + ":" + port;
+        List<Channel> expired = new ArrayList<>();
+        Channel channel = null;
+        synchronized (this) {
+            List<Channel> hostChannels = channels.get(key);
+            if (hostChannels == null) {
+                hostChannels = new ArrayList<>();
+                channels.put(key, hostChannels);
+            }
+            long now = System.currentTimeMillis();
+            for (int i = hostChannels.size() - 1; i >= 0; i--) {
+                Channel candidate = hostChannels.get(i);
+                if (candidate.isClosed() || candidate.isIdleSince(now - IDLE_TIMEOUT_MILLIS)) {
+                    hostChannels.remove(i);
+                    expired.add(candidate);
+                }
+            }
+            // Requests share the open connections while more are being
+            // opened, and only wait if there is none yet
+            while (hostChannels.isEmpty() && count(connecting, key) >= connectionsPerHost) {
+                try {
+                    wait();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while connecting to " + key);
+                }
+            }
+            if (hostChannels.size() + count(connecting, key) >= connectionsPerHost) {
+                int index = count(nextChannel, key) % hostChannels.size();
+                nextChannel.put(key, index + 1);
+                channel = hostChannels.get(index);
+            } else {
+                connecting.put(key, count(connecting, key) + 1);
+            }
+        }
+        for (Channel candidate : expired) {
+            candidate.close();
+        }
+        if (channel != null) {
+            return channel;
+        }
+        // Connect outside the lock, other hosts need not wait for the handshake
+        try {
+            channel = new Channel(key, Kernel.sslSocketFactory.createSocket(host, port));
+            handshakes.incrementAndGet();
+            return channel;
+        } finally {
+            synchronized (this) {
+                connecting.put(key, count(connecting, key) - 1);
+                if (channel != null) {
+                    List<Channel> hostChannels = channels.get(key);
+                    if (hostChannels == null) {
+                        hostChannels = new ArrayList<>();
+                        channels.put(key, hostChannels);
+                    }
+                    hostChannels.add(channel);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private static int count(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        return (count == null) ? 0 : count;
+    }
+
+    private synchronized void remove(Channel channel) {
+        List<Channel> hostChannels = channels.get(channel.key);
+        if (hostChannels != null) {
+            hostChannels.remove(channel);
+        }
+    }
+
+    /**
+     * Closes all connections. Requests still waiting for results fail.
+     */
+    public void closeAll() {
+        List<Channel> open = new ArrayList<>();
+        synchronized (this) {
+            for (List<Channel> hostChannels : channels.values()) {
+                open.addAll(hostChannels);
+            }
+            channels.clear();
+        }
+        for (Channel channel : open) {
+            channel.close();
+        }
+    }
+
+    public String getMetrics() {
+        int open = 0;
+        synchronized (this) {
+            for (List<Channel> hostChannels : channels.values()) {
+                open += hostChannels.size();
+            }
+        }
+        return "remote queries: requests=" + requests.get() + ", timeouts=" + timeouts.get()
+                + ", connections=" + open + ", handshakes=" + handshakes.get();
+    }
+
+    /**
+     * A result that a querying thread waits for. Its elements are passed on
+     * to the listener of the request until the request gives up on it.
+     */
+    private static final class Response implements GraphReader.Listener {
+
+        private final GraphReader.Listener listener;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean transformed;
+        volatile IOException failure;
+        volatile RuntimeException listenerFailure;
+        volatile boolean received = false;
+        volatile long lastReceived = System.currentTimeMillis();
+        // Guarded by this
+        private boolean abandoned = false;
+
+        Response(GraphReader.Listener listener) {
+            this.listener = listener;
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+        }
+
+        @Override
+        public synchronized void putVertex(AbstractVertex vertex) {
+            received = true;
+            if (!abandoned) {
+                try {
+                    listener.putVertex(vertex);
+                } catch (RuntimeException exception) {
+                    listenerFailed(exception);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void putEdge(AbstractEdge edge) {
+            received = true;
+            if (!abandoned) {
+                try {
+                    listener.putEdge(edge);
+                } catch (RuntimeException exception) {
+                    listenerFailed(exception);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void putNetworkVertex(AbstractVertex vertex, int depth) {
+            if (!abandoned) {
+                try {
+                    listener.putNetworkVertex(vertex, depth);
+                } catch (RuntimeException exception) {
+                    listenerFailed(exception);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void chunkReceived() {
+            lastReceived = System.currentTimeMillis();
+            if (!abandoned) {
+                try {
+                    listener.chunkReceived();
+                } catch (RuntimeException exception) {
+                    listenerFailed(exception);
+                }
+            }
+        }
+
+        // The rest of the result is read and dropped, the request fails with
+        // the exception of the listener
+        private void listenerFailed(RuntimeException exception) {
+            listenerFailure = exception;
+            abandoned = true;
+        }
+    }
+
+    // Reads past the results of requests that have given up
+    private static final GraphReader.Listener DISCARD = new GraphReader.Listener() {
+        @Override
+        public void putVertex(AbstractVertex vertex) {
+        }
+
+        @Override
+        public void putEdge(AbstractEdge edge) {
+        }
+
+        @Override
+        public void putNetworkVertex(AbstractVertex vertex, int depth) {
+        }
+
+        @Override
+        public void chunkReceived() {
+        }
+    };
+
+    /**
+     * One connection to a remote query server. In multiplexed mode a reader
+     * thread hands each result to the request with the id it was sent with.
+     */
+    private final class Channel implements Runnable {
+
+        private final String key;
+        private final Socket socket;
+        private final PrintWriter out;
+        private final GraphReader in;
+        private final boolean multiplexed;
+        private final Map<Long, Response> pending = new ConcurrentHashMap<>();
+        private volatile boolean closed = false;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean answered = false;
+
+        Channel(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            try {
+                out = new PrintWriter(socket.getOutputStream(), true);
+                in = new GraphReader(socket.getInputStream());
+                socket.setSoTimeout(connectTimeoutMillis);
+                out.println(MULTIPLEX);
+                // Servers without multiplexing run the greeting as a query and
+                // send back an empty graph
+                multiplexed = MULTIPLEX.equals(in.readMessageOrGraph());
+                socket.setSoTimeout(multiplexed ? 0 : (int) requestTimeoutMillis);
+            } catch (IOException exception) {
+                socket.close();
+                throw exception;
+            }
+            if (multiplexed) {
+                Thread reader = new Thread(this, "remoteQueryReader-" + key);
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+
+        boolean request(String queryLine, Response response) throws IOException {
+            lastUsed = System.currentTimeMillis();
+            if (!multiplexed) {
+                synchronized (this) {
+                    if (closed) {
+                        throw new IOException("Connection to " + key + " is closed");
+                    }
+                    try {
+                        out.println(queryLine);
+                        response.transformed = in.readGraph(response);
+                        answered = true;
+                    } catch (IOException exception) {
+                        // The rest of the result may still arrive, so the
+                        // connection cannot be used for another request
+                        close();
+                        throw exception;
+                    }
+                }
+                if (response.listenerFailure != null) {
+                    throw response.listenerFailure;
+                }
+                return response.transformed;
+            }
+            long id = nextRequestId.incrementAndGet();
+            pending.put(id, response);
+            synchronized (out) {
+                out.println(id + " " + queryLine);
+            }
+            if (closed || out.checkError()) {
+                pending.remove(id);
+                throw new IOException("Connection to " + key + " is closed");
+            }
+            try {
+                if (requestTimeoutMillis > 0) {
+                    // Large results take a while, only a pause in their
+                    // arrival counts
+                    while (!response.done.await(requestTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        if (System.currentTimeMillis() - response.lastReceived >= requestTimeoutMillis) {
+                            throw new SocketTimeoutException("No result from " + key + " for " + requestTimeoutMillis + " ms");
+                        }
+                    }
+                } else {
+                    response.done.await();
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + key);
+            } finally {
+                pending.remove(id);
+                response.abandon();
+            }
+            if (response.failure != null) {
+                throw response.failure;
+            }
+            answered = true;
+            lastUsed = System.currentTimeMillis();
+            if (response.listenerFailure != null) {
+                throw response.listenerFailure;
+            }
+            return response.transformed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    String[] message = in.readMessage().split(" ", 2);
+                    long id = Long.parseLong(message[0]);
+                    boolean last = (message.length == 1);
+                    Response response = pending.get(id);
+                    if (response == null) {
+                        // Results of requests that timed out are dropped
+                        in.readGraph(DISCARD);
+                        continue;
+                    }
+                    response.lastReceived = System.currentTimeMillis();
+                    response.transformed = in.readGraph(response);
+                    if (last) {
+                        pending.remove(id);
+                        response.done.countDown();
+                    }
+                }
+            } catch (IOException | NumberFormatException exception) {
+                if (!closed) {
+                    logger.log(Level.FINE, "Query connection to " + key + " failed", exception);
+                }
+                IOException failure = (exception instanceof IOException) ? (IOException) exception : new IOException(exception);
+                closed = true;
+                remove(this);
+                for (Response response : pending.values()) {
+                    response.failure = failure;
+                    response.done.countDown();
+                }
+                pending.clear();
+                closeSocket();
+            }
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @return true if the connection had answered requests before, so
+         * that a failure may only mean that the server dropped it.
+         */
+        boolean isStale() {
+            return answered;
+        }
+
+        boolean isIdleSince(long time) {
+            return lastUsed < time && pending.isEmpty();
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            synchronized (out) {
+                out.println("close");
+            }
+            closeSocket();
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException exception) {
+                logger.log(Level.FINE, null, exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the sketches of remote hosts in Kernel.remoteSketches up to date. A
+ * peer is asked for changes at most once per time-to-live
+ * (remote_sketch_ttl milliseconds); it then sends only the matrix rows that
+ * changed since the versions this host holds, for its own sketch and for the
+ * sketches it has cached from other hosts. Peers that do not know the delta
+ * command are sent the full giveSketch request instead, until
+ * LEGACY_RETRY_MILLIS have passed and deltas are tried again.
+ */
+public class RemoteSketchCache {
+
+    private static final Logger logger = Logger.getLogger(RemoteSketchCache.class.getName());
+    /**
+     * The key under which a peer reports its own sketch in a delta map.
+     */
+    public static final String OWN_SKETCH = "";
+    private static final long TTL_MILLIS = parseLongSetting("remote_sketch_ttl", 5000);
+    // How long a peer that did not answer the delta command is sent full requests
+    private static final long LEGACY_RETRY_MILLIS = 10 * 60 * 1000;
+
+    private static final Map<String, Peer> peers = new HashMap<>();
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong rowsReceived = new AtomicLong();
+    private static final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * What this host holds of one peer: the versions of the peer's copies that
+     * were last applied and when the peer was last asked.
+     */
+    private static final class Peer {
+
+        final Map<String, Known> known = new HashMap<>();
+        volatile long lastChecked = 0;
+        long legacyUntil = 0;
+    }
+
+    /**
+     * A version of a peer's copy together with the local copy it was applied
+     * to. The version only describes that copy; once the copy is replaced,
+     * e.g., by a full sketch from another peer, it must not be sent again.
+     */
+    private static final class Known {
+
+        final long[] version;
+        final MatrixFilter copy;
+
+        Known(long[] version, MatrixFilter copy) {
+            this.version = version;
+            this.copy = copy;
+        }
+    }
+
+    private RemoteSketchCache() {
+    }
+
+    /**
+     * Makes sure that Kernel.remoteSketches holds a current copy of the
+     * sketch of a remote host.
+     *
+     * @param remoteHost The host to synchronize with.
+     * @param localHost This host, whose own sketch is not cached.
+     * @param template A local sketch; copies of remote sketches are created
+     * as instances of its class.
+     * @return The cached sketch of the remote host, or null if it could not
+     * be fetched.
+     */
+    public static AbstractSketch get(String remoteHost, String localHost, AbstractSketch template) {
+        Peer peer;
+        synchronized (peers) {
+            peer = peers.get(remoteHost);
+            if (peer == null) {
+                peer = new Peer();
+                peers.put(remoteHost, peer);
+            }
+        }
+        // One request per peer at a time; concurrent callers wait for it and
+        // then find the peer checked.
+        synchronized (peer) {
+            long now = System.currentTimeMillis();
+            if (now - peer.lastChecked < TTL_MILLIS && Kernel.remoteSketches.containsKey(remoteHost)) {
+                cacheHits.incrementAndGet();
+                return Kernel.remoteSketches.get(remoteHost);
+            }
+            requests.incrementAndGet();
+            int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
+            for (int attempt = 0; attempt < 3; attempt++) {
+                RemoteConnectionPool.Connection connection = null;
+                try {
+                    connection = Kernel.sketchConnections.borrow(remoteHost, port);
+                    if (now < peer.legacyUntil) {
+                        fetchAll(connection, remoteHost, localHost);
+                    } else {
+                        fetchDeltas(connection, peer, remoteHost, localHost, template);
+                    }
+                    Kernel.sketchConnections.release(connection);
+                    peer.lastChecked = System.currentTimeMillis();
+                    break;
+                } catch (IOException exception) {
+                    peer.known.clear();
+                    if (connection == null) {
+                        logger.log(Level.SEVERE, null, exception);
+                        break;
+                    }
+                    Kernel.sketchConnections.invalidate(connection);
+                    if (connection.isReused()) {
+                        // The peer may have closed the idle connection
+                        continue;
+                    }
+                    if (now >= peer.legacyUntil && (exception instanceof EOFException || exception instanceof SocketTimeoutException)) {
+                        // Older peers drop or ignore the delta command. The
+                        // failure may also be transient, so deltas are tried
+                        // again later.
+                        logger.log(Level.INFO, "No sketch delta from {0}, requesting full sketches", remoteHost);
+                        peer.legacyUntil = now + LEGACY_RETRY_MILLIS;
+                        continue;
+                    }
+                    logger.log(Level.SEVERE, null, exception);
+                    break;
+                } catch (ReflectiveOperationException exception) {
+                    Kernel.sketchConnections.invalidate(connection);
+                    peer.known.clear();
+                    logger.log(Level.SEVERE, null, exception);
+                    break;
+                }
+            }
+            return Kernel.remoteSketches.get(remoteHost);
+        }
+    }
+
+    private static void fetchDeltas(RemoteConnectionPool.Connection connection, Peer peer, String remoteHost, String localHost, AbstractSketch template)
+            throws IOException, ReflectiveOperationException {
+        // Versions of copies that were replaced or dropped locally are not sent,
+        // so those copies are sent in full again.
+        Map<String, Known> sent = new HashMap<>();
+        Map<String, long[]> known = new HashMap<>();
+        for (Map.Entry<String, Known> entry : peer.known.entrySet()) {
+            String host = entry.getKey().equals(OWN_SKETCH) ? remoteHost : entry.getKey();
+            if (isCurrentCopy(host, entry.getValue().copy)) {
+                sent.put(entry.getKey(), entry.getValue());
+                known.put(entry.getKey(), entry.getValue().version);
+            }
+        }
+        connection.output.writeObject("giveSketchDeltas");
+        connection.output.writeObject(known);
+        connection.output.flush();
+        Map<String, MatrixFilter.Delta> deltas = readMap(connection.input, MatrixFilter.Delta.class);
+        peer.known.clear();
+        peer.known.putAll(sent);
+        for (Map.Entry<String, MatrixFilter.Delta> entry : deltas.entrySet()) {
+            String host = entry.getKey().equals(OWN_SKETCH) ? remoteHost : entry.getKey();
+            if (host.equals(localHost)) {
+                continue;
+            }
+            MatrixFilter.Delta delta = entry.getValue();
+            MatrixFilter applied;
+            // Requests to other peers replace copies concurrently, so the copy
+            // is checked and updated in one step.
+            synchronized (Kernel.remoteSketches) {
+                AbstractSketch cached = Kernel.remoteSketches.get(host);
+                Known base = sent.get(entry.getKey());
+                if (delta.isFull()) {
+                    AbstractSketch copy = template.getClass().getDeclaredConstructor().newInstance();
+                    copy.matrixFilter = MatrixFilter.fromDelta(delta);
+                    Kernel.remoteSketches.put(host, copy);
+                    applied = copy.matrixFilter;
+                } else if (cached != null && base != null && cached.matrixFilter == base.copy) {
+                    cached.matrixFilter.applyDelta(delta);
+                    applied = cached.matrixFilter;
+                } else {
+                    // The copy the delta was computed for has been replaced;
+                    // without a version it is sent in full next time.
+                    peer.known.remove(entry.getKey());
+                    continue;
+                }
+            }
+            peer.known.put(entry.getKey(), new Known(delta.getVersion(), applied));
+            rowsReceived.addAndGet(delta.size());
+            bytesReceived.addAndGet(delta.byteSize());
+        }
+        logger.log(Level.FINE, "Received {0} sketch deltas from {1}", new Object[]{deltas.size(), remoteHost});
+    }
+
+    private static boolean isCurrentCopy(String host, MatrixFilter copy) {
+        AbstractSketch cached = Kernel.remoteSketches.get(host);
+        return cached != null && cached.matrixFilter == copy;
+    }
+
+    private static void fetchAll(RemoteConnectionPool.Connection connection, String remoteHost, String localHost)
+            throws IOException, ClassNotFoundException {
+        connection.output.writeObject("giveSketch");
+        connection.output.flush();
+        AbstractSketch remoteSketch = (AbstractSketch) connection.input.readObject();
+        Map<String, AbstractSketch> receivedSketches = readMap(connection.input, AbstractSketch.class);
+        Kernel.remoteSketches.put(remoteHost, remoteSketch);
+        receivedSketches.remove(localHost);
+        Kernel.remoteSketches.putAll(receivedSketches);
+    }
+
+    /**
+     * Reads a map with String keys sent by a peer and checks its entries.
+     *
+     * @param input The stream to read from.
+     * @param valueType The expected type of the values.
+     * @return A copy of the map.
+     * @throws InvalidObjectException If the object is not such a map.
+     */
+    static <V> Map<String, V> readMap(ObjectInputStream input, Class<V> valueType) throws IOException, ClassNotFoundException {
+        Object object = input.readObject();
+        if (!(object instanceof Map)) {
+            throw new InvalidObjectException("Expected a map but received " + (object == null ? "null" : object.getClass().getName()));
+        }
+        Map<String, V> result = new HashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+            if (!(entry.getKey() instanceof String) || !valueType.isInstance(entry.getValue())) {
+                throw new InvalidObjectException("Expected a map of " + valueType.getSimpleName() + " values keyed by host");
+            }
+            result.put((String) entry.getKey(), valueType.cast(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the changes a peer needs to bring its copies up to date: the
+     * rows of the local sketch and of every cached remote sketch that changed
+     * since the versions the peer sent. Sketches the peer holds no version of
+     * are sent in full and unchanged sketches are left out.
+     *
+     * @param known The versions held by the peer, keyed by host, with the
+     * local sketch under OWN_SKETCH.
+     * @return The deltas keyed like known.
+     */
+    public static Map<String, MatrixFilter.Delta> getDeltas(Map<String, long[]> known) {
+        Map<String, MatrixFilter.Delta> result = new HashMap<>();
+        AbstractSketch localSketch = Kernel.sketches.iterator().next();
+        MatrixFilter.Delta delta = localSketch.matrixFilter.getDelta(known.get(OWN_SKETCH));
+        if (delta != null) {
+            result.put(OWN_SKETCH, delta);
+        }
+        Map<String, AbstractSketch> cached;
+        synchronized (Kernel.remoteSketches) {
+            cached = new HashMap<>(Kernel.remoteSketches);
+        }
+        for (Map.Entry<String, AbstractSketch> entry : cached.entrySet()) {
+            delta = entry.getValue().matrixFilter.getDelta(known.get(entry.getKey()));
+            if (delta != null) {
+                result.put(entry.getKey(), delta);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Makes the next request for every peer ask for changes, e.g., after
+     * remote hosts were told to rebuild their sketches.
+     */
+    public static void expire() {
+        synchronized (peers) {
+            for (Peer peer : peers.values()) {
+                peer.lastChecked = 0;
+            }
+        }
+    }
+
+    public static String getMetrics() {
+        return "sketch cache: requests=" + requests.get() + ", hits=" + cacheHits.get()
+                + ", rows received=" + rowsReceived.get() + ", bytes received=" + bytesReceived.get()
+                + ", " + Kernel.sketchConnections.getMetrics();
+    }
+
+    private static long parseLongSetting(String property, long defaultValue) {
+        String value = Settings.getProperty(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException exception) {
+            logger.log(Level.WARNING, "Invalid value for setting " + property + ": " + value, exception);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded buffer backed by a preallocated single-producer/single-consumer
+ * ring. Reporters that send elements from more than one thread are serialized
+ * on a producer lock so that the ring itself only ever sees one writer. The
+ * consumer is woken up by the producer when the ring goes from empty to
+ * non-empty instead of having to poll it.
+ *
+ * When the ring is full the producer either waits for the consumer to make
+ * space (using the configured wait strategy) or the element is rejected so
+ * that the reporter can throttle itself.
+ */
+public class RingBuffer extends Buffer {
+
+    /**
+     * Strategies used by a thread that has to wait on the ring.
+     */
+    public enum WaitStrategy {
+
+        SPIN, YIELD, PARK;
+
+        private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+        /**
+         * Waits for a short while according to the strategy.
+         */
+        public void idle() {
+            switch (this) {
+                case SPIN:
+                    break;
+                case YIELD:
+                    Thread.yield();
+                    break;
+                default:
+                    LockSupport.parkNanos(PARK_NANOS);
+                    break;
+            }
+        }
+
+        /**
+         * Parses the given value into a wait strategy.
+         *
+         * @param value The name of the strategy (case-insensitive).
+         * @param defaultStrategy The strategy returned if the value is null or
+         * unknown.
+         * @return The wait strategy.
+         */
+        public static WaitStrategy parse(String value, WaitStrategy defaultStrategy) {
+            if (value != null) {
+                for (WaitStrategy strategy : values()) {
+                    if (strategy.name().equalsIgnoreCase(value.trim())) {
+                        return strategy;
+                    }
+                }
+            }
+            return defaultStrategy;
+        }
+    }
+
+    private final Object[] slots;
+    private final int mask;
+    // Index of the next slot to be read. Only written by the consumer.
+    private final AtomicLong head = new AtomicLong();
+    // Index of the next slot to be written. Only written by the producer.
+    private final AtomicLong tail = new AtomicLong();
+    private final Object producerLock = new Object();
+    private final WaitStrategy waitStrategy;
+    private final boolean blockWhenFull;
+    private volatile Thread blockedProducer;
+    private volatile long rejectedCount;
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity The maximum number of elements held. Rounded up to the
+     * next power of two.
+     * @param waitStrategy The strategy used by a producer waiting for space.
+     * @param blockWhenFull If true, a producer blocks until there is space in
+     * the ring. Otherwise the element is rejected and put methods return false.
+     */
+    public RingBuffer(int capacity, WaitStrategy waitStrategy, boolean blockWhenFull) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Object[size];
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.blockWhenFull = blockWhenFull;
+    }
+
+    @Override
+    public boolean putVertex(AbstractVertex incomingVertex) {
+        if (incomingVertex == null) {
+            return false;
+        } else {
+            return offer(incomingVertex);
+        }
+    }
+
+    @Override
+    public boolean putEdge(AbstractEdge incomingEdge) {
+        if ((incomingEdge == null)
+                || (incomingEdge.getSourceVertex() == null)
+                || (incomingEdge.getDestinationVertex() == null)) {
+            return false;
+        } else {
+            return offer(incomingEdge);
+        }
+    }
+
+    private boolean offer(Object element) {
+        synchronized (producerLock) {
+            long currentTail = tail.get();
+            while (currentTail - head.get() >= slots.length) {
+                if (!blockWhenFull) {
+                    rejectedCount++;
+                    return false;
+                }
+                if (waitStrategy == WaitStrategy.PARK) {
+                    blockedProducer = Thread.currentThread();
+                    if (currentTail - head.get() >= slots.length) {
+                        waitStrategy.idle();
+                    }
+                    blockedProducer = null;
+                } else {
+                    waitStrategy.idle();
+                }
+            }
+            slots[(int) currentTail & mask] = element;
+            tail.set(currentTail + 1);
+            // Only the transition from empty to non-empty needs a wakeup since
+            // the consumer does not park while there are elements left.
+            if (head.get() == currentTail) {
+                wakeConsumer();
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public Object getBufferElement() {
+        long currentHead = head.get();
+        if (currentHead >= tail.get()) {
+            return null;
+        }
+        int index = (int) currentHead & mask;
+        Object element = slots[index];
+        slots[index] = null;
+        head.set(currentHead + 1);
+        Thread producer = blockedProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        return element;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    @Override
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    @Override
+    public boolean isFull() {
+        return size() >= slots.length;
+    }
+
+    /**
+     * @return The maximum number of elements this buffer can hold.
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return The number of elements rejected because the buffer was full.
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+}
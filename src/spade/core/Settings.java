@@ -43,6 +43,14 @@ public class Settings {
             setProperty("remote_query_port", "29999");
             setProperty("remote_sketch_port", "29998");
             setProperty("connection_timeout", "15000");
+            setProperty("remote_sketch_ttl", "5000");
+            setProperty("remote_query_connections", "2");
+            setProperty("remote_query_timeout", "120000");
+            setProperty("remote_query_threads", "32");
+            setProperty("remote_query_backlog", "256");
+            setProperty("remote_lineage_parallelism", "8");
+            setProperty("remote_lineage_threads", "64");
+            setProperty("sketch_hash", "md5");
             setProperty("source_reporter", "source_reporter");
             setProperty("direction_ancestors", "ancestors");
             setProperty("direction_descendants", "descendants");
@@ -50,6 +58,14 @@ public class Settings {
             setProperty("storage_identifier", "storageID");
             setProperty("default_query_storage", "Neo4j");
             setProperty("neo4j_webserver", "true");
+            setProperty("neo4j_cache_sync", "false");
+            setProperty("buffer_capacity", "0");
+            setProperty("buffer_wait_strategy", "park");
+            setProperty("buffer_full_policy", "block");
+            setProperty("dispatch_mode", "single");
+            setProperty("dispatch_threads", "0");
+            setProperty("storage_queue_capacity", "0");
+            setProperty("storage_overflow_policy", "block");
         }
     }
 
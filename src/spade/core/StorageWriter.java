@@ -0,0 +1,375 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feeds a single storage from its own bounded queue and writer thread so that
+ * a slow storage does not hold up the others. All calls to the storage
+ * (including flushing and shutting it down) are made on the writer thread,
+ * which keeps storages that are sensitive to thread-context for their
+ * transactions working.
+ */
+public class StorageWriter implements Runnable {
+
+    /**
+     * What to do with an element when the queue of a storage is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Wait for the writer to make space.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued element.
+         */
+        DROP_OLDEST,
+        /**
+         * Write the element to a spill file on disk and read it back once the
+         * queue has been drained.
+         */
+        SPILL;
+
+        public static OverflowPolicy parse(String value, OverflowPolicy defaultPolicy) {
+            if (value != null) {
+                String name = value.trim().replace('-', '_');
+                for (OverflowPolicy policy : values()) {
+                    if (policy.name().equalsIgnoreCase(name)) {
+                        return policy;
+                    }
+                }
+            }
+            return defaultPolicy;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(StorageWriter.class.getName());
+    private static final long POLL_TIMEOUT = 10;
+    private static final int WRITE_BATCH_SIZE = 1000;
+    private final AbstractStorage storage;
+    private final BlockingQueue<Object> queue;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread thread;
+    // Number of elements handed to this writer and number of elements either
+    // written or dropped. Used to find out when a flush can be performed.
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final Object flushLock = new Object();
+    private long flushTarget = -1;
+    private volatile boolean closing = false;
+    // Spill file state, guarded by spillLock.
+    private final Object spillLock = new Object();
+    private File spillFile;
+    private ObjectOutputStream spillOutput;
+    private ObjectInputStream spillInput;
+    private long spillWritten;
+    private long spillRead;
+
+    /**
+     * @param storage The storage to write to.
+     * @param capacity The maximum number of queued elements.
+     * @param overflowPolicy The policy to apply when the queue is full.
+     */
+    public StorageWriter(AbstractStorage storage, int capacity, OverflowPolicy overflowPolicy) {
+        this.storage = storage;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.thread = new Thread(this, "storage-" + storage.getClass().getSimpleName());
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    public void putVertex(AbstractVertex incomingVertex) {
+        put(incomingVertex);
+    }
+
+    public void putEdge(AbstractEdge incomingEdge) {
+        put(incomingEdge);
+    }
+
+    private void put(Object element) {
+        acceptedCount.incrementAndGet();
+        try {
+            switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    while (!queue.offer(element)) {
+                        if (queue.poll() != null) {
+                            droppedCount.incrementAndGet();
+                            completedCount.incrementAndGet();
+                        }
+                    }
+                    break;
+                case SPILL:
+                    synchronized (spillLock) {
+                        // Once spilling has started, everything is spilled
+                        // until the file is drained to keep elements in order.
+                        if (spillOutput != null || !queue.offer(element)) {
+                            spill(element);
+                        }
+                    }
+                    break;
+                default:
+                    queue.put(element);
+                    break;
+            }
+        } catch (InterruptedException exception) {
+            logger.log(Level.WARNING, "Interrupted while queuing element for storage", exception);
+            completedCount.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void spill(Object element) {
+        try {
+            if (spillOutput == null) {
+                spillFile = File.createTempFile("spade-" + storage.getClass().getSimpleName() + "-", ".spill");
+                spillFile.deleteOnExit();
+                spillOutput = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+                spillOutput.flush();
+                spillInput = new ObjectInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+                spillWritten = 0;
+                spillRead = 0;
+            }
+            spillOutput.writeObject(element);
+            // Reset so that the stream does not keep references to every
+            // element written.
+            spillOutput.reset();
+            spillOutput.flush();
+            spillWritten++;
+            spilledCount.incrementAndGet();
+        } catch (IOException exception) {
+            logger.log(Level.SEVERE, "Failed to spill element for storage " + storage.getClass().getSimpleName(), exception);
+            droppedCount.incrementAndGet();
+            completedCount.incrementAndGet();
+        }
+    }
+
+    private Object readSpilled() {
+        synchronized (spillLock) {
+            if (spillOutput == null) {
+                return null;
+            }
+            if (spillRead == spillWritten) {
+                closeSpillFile();
+                return null;
+            }
+            try {
+                Object element = spillInput.readObject();
+                spillRead++;
+                return element;
+            } catch (IOException | ClassNotFoundException exception) {
+                logger.log(Level.SEVERE, "Failed to read spilled elements for storage " + storage.getClass().getSimpleName(), exception);
+                long lost = spillWritten - spillRead;
+                droppedCount.addAndGet(lost);
+                completedCount.addAndGet(lost);
+                closeSpillFile();
+                return null;
+            }
+        }
+    }
+
+    private void closeSpillFile() {
+        try {
+            spillOutput.close();
+            spillInput.close();
+        } catch (IOException exception) {
+            logger.log(Level.WARNING, null, exception);
+        }
+        spillFile.delete();
+        spillOutput = null;
+        spillInput = null;
+        spillFile = null;
+    }
+
+    private boolean hasSpilled() {
+        synchronized (spillLock) {
+            return spillOutput != null;
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Object> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+        try {
+            while (true) {
+                Object element = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (element != null) {
+                    batch.add(element);
+                    queue.drainTo(batch, WRITE_BATCH_SIZE - 1);
+                } else {
+                    element = readSpilled();
+                    while (element != null) {
+                        batch.add(element);
+                        if (batch.size() == WRITE_BATCH_SIZE) {
+                            break;
+                        }
+                        element = readSpilled();
+                    }
+                }
+                boolean idle = batch.isEmpty();
+                if (!idle) {
+                    writeBatch(storage, batch);
+                    completedCount.addAndGet(batch.size());
+                    batch.clear();
+                }
+                checkFlush();
+                if (idle && closing && queue.isEmpty() && !hasSpilled()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException exception) {
+            logger.log(Level.WARNING, "Storage writer interrupted", exception);
+        }
+        storage.shutdown();
+        synchronized (flushLock) {
+            flushTarget = -1;
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * Writes a batch of elements to a storage and updates its counts. Runs of
+     * consecutive vertices and edges are passed to the batch methods of the
+     * storage so that the order of elements is preserved.
+     *
+     * @param storage The storage to write to.
+     * @param elements The vertices and edges to write, in order.
+     */
+    public static void writeBatch(AbstractStorage storage, List<Object> elements) {
+        int start = 0;
+        while (start < elements.size()) {
+            boolean vertices = elements.get(start) instanceof AbstractVertex;
+            int end = start + 1;
+            while (end < elements.size() && (elements.get(end) instanceof AbstractVertex) == vertices) {
+                end++;
+            }
+            try {
+                if (vertices) {
+                    List<AbstractVertex> run = new ArrayList<>(end - start);
+                    for (int i = start; i < end; i++) {
+                        run.add((AbstractVertex) elements.get(i));
+                    }
+                    storage.vertexCount += storage.putVertices(run);
+                } else {
+                    List<AbstractEdge> run = new ArrayList<>(end - start);
+                    for (int i = start; i < end; i++) {
+                        run.add((AbstractEdge) elements.get(i));
+                    }
+                    storage.edgeCount += storage.putEdges(run);
+                }
+            } catch (Exception exception) {
+                logger.log(Level.SEVERE, null, exception);
+            }
+            start = end;
+        }
+    }
+
+    private void checkFlush() {
+        synchronized (flushLock) {
+            if (flushTarget >= 0 && completedCount.get() >= flushTarget) {
+                storage.flushTransactions();
+                flushTarget = -1;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Flushes the transactions of the storage once all elements handed to
+     * this writer so far have been written. Blocks until this is done.
+     *
+     * @throws InterruptedException
+     */
+    public void flushTransactions() throws InterruptedException {
+        synchronized (flushLock) {
+            if (!thread.isAlive()) {
+                return;
+            }
+            flushTarget = acceptedCount.get();
+            while (flushTarget >= 0 && thread.isAlive()) {
+                flushLock.wait(POLL_TIMEOUT);
+            }
+        }
+    }
+
+    /**
+     * Writes all remaining elements, shuts the storage down on the writer
+     * thread and waits for the thread to finish.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        closing = true;
+        thread.join();
+    }
+
+    public AbstractStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return The number of elements waiting in memory and on disk.
+     */
+    public long getQueueDepth() {
+        return acceptedCount.get() - completedCount.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+}
@@ -65,6 +65,12 @@ public class Blacklist extends AbstractFilter{
 		return false;
 	}
 
+	// The exclusion pattern is only read after initialization.
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+
 	@Override
 	public void putVertex(AbstractVertex incomingVertex) {
 		if(!isVertexInExclusionPattern(incomingVertex)){
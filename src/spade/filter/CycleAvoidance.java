@@ -19,18 +19,56 @@
  */
 package spade.filter;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
+import spade.utility.CommonFunctions;
+import spade.utility.CompactVertexIds;
 
 public class CycleAvoidance extends AbstractFilter {
 
-    private final HashMap<AbstractVertex, HashSet<AbstractVertex>> ancestors;
+    private static final int DEFAULT_WINDOW = 1 << 20;
+    private CompactVertexIds vertexIds;
+    // The handles of the sources of forwarded edges, indexed by the slot of
+    // the destination vertex
+    private CompactVertexIds.HandleSet[] ancestors;
 
     public CycleAvoidance() {
-        ancestors = new HashMap<>();
+        createState(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Arguments (optional): window=&lt;number of live vertices for which state
+     * is kept before the least recently used ones are evicted&gt;
+     */
+    @Override
+    public boolean initialize(String arguments) {
+        Map<String, String> argumentMap = CommonFunctions.parseKeyValPairs(arguments);
+        if (argumentMap.containsKey("window")) {
+            try {
+                createState(Integer.parseInt(argumentMap.get("window")));
+            } catch (NumberFormatException exception) {
+                Logger.getLogger(CycleAvoidance.class.getName()).log(Level.SEVERE, null, exception);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void createState(int window) {
+        ancestors = new CompactVertexIds.HandleSet[16];
+        vertexIds = new CompactVertexIds(window, new CompactVertexIds.EvictionListener() {
+            @Override
+            public void evicted(int slot) {
+                if (slot < ancestors.length) {
+                    ancestors[slot] = null;
+                }
+            }
+        });
     }
 
     @Override
@@ -40,18 +78,18 @@ public class CycleAvoidance extends AbstractFilter {
 
     @Override
     public void putEdge(AbstractEdge incomingEdge) {
-        AbstractVertex sourceVertex = incomingEdge.getSourceVertex();
-        AbstractVertex destinationVertex = incomingEdge.getDestinationVertex();
-        if (ancestors.containsKey(destinationVertex)) {
-            HashSet<AbstractVertex> tempSet = ancestors.get(destinationVertex);
-            if (tempSet.contains(sourceVertex) == false) {
-                tempSet.add(sourceVertex);
-                putInNextFilter(incomingEdge);
-            }
-        } else {
-            HashSet<AbstractVertex> tempSet = new HashSet<>();
-            tempSet.add(sourceVertex);
-            ancestors.put(destinationVertex, tempSet);
+        long destinationHandle = vertexIds.acquire(incomingEdge.getDestinationVertex());
+        long sourceHandle = vertexIds.acquire(incomingEdge.getSourceVertex());
+        int slot = CompactVertexIds.slot(destinationHandle);
+        if (slot >= ancestors.length) {
+            ancestors = Arrays.copyOf(ancestors, Math.max(slot + 1, ancestors.length * 2));
+        }
+        CompactVertexIds.HandleSet tempSet = ancestors[slot];
+        if (tempSet == null) {
+            tempSet = new CompactVertexIds.HandleSet(vertexIds);
+            ancestors[slot] = tempSet;
+        }
+        if (tempSet.add(sourceHandle)) {
             putInNextFilter(incomingEdge);
         }
     }
@@ -19,44 +19,176 @@
  */
 package spade.filter;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractSketch;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
+import spade.core.StorageWriter;
 
 public class FinalCommitFilter extends AbstractFilter {
 
+    private static final Logger logger = Logger.getLogger(FinalCommitFilter.class.getName());
+    // Maximum number of elements collected before they are written to the
+    // storages as a batch.
+    private static final int COMMIT_BATCH_SIZE = 1000;
+
     // Reference to the set of storages maintained by the Kernel.
     public Set<AbstractStorage> storages = new HashSet<>();
     public Set<AbstractSketch> sketches = new HashSet<>();
+    // Reference to the writers of storages that are fed asynchronously.
+    public Map<AbstractStorage, StorageWriter> storageWriters = new HashMap<>();
+    // Queue of elements waiting to be committed. Only used when the Kernel
+    // dispatches elements from multiple threads, in which case the storages
+    // are still fed from a single thread (some storages, like the embedded
+    // neo4j database, are sensitive to thread-context for transactions).
+    private volatile BlockingQueue<Object> commitQueue;
+    // Elements waiting to be written to the storages as a batch. Only accessed
+    // by the committing thread.
+    private final List<Object> pendingElements = new ArrayList<>(COMMIT_BATCH_SIZE);
+
+    /**
+     * Makes this filter hand elements over to the given queue instead of
+     * committing them on the calling thread. The queue is drained by calling
+     * commitPending.
+     *
+     * @param queue The queue or null to commit on the calling thread.
+     */
+    public void setCommitQueue(BlockingQueue<Object> queue) {
+        commitQueue = queue;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return commitQueue != null;
+    }
 
     // This filter is the last filter in the list so any vertices or edges
     // received by it need to be passed to the storages. On receiving any
     // provenance elements, it is passed to all storages.
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
-        for (AbstractStorage storage : storages) {
-            if (storage.putVertex(incomingVertex)) {
-                incrementStorageVertexCount(storage);
-            }
-        }
-        for (AbstractSketch sketch : sketches) {
-            sketch.putVertex(incomingVertex);
+        if (commitQueue != null) {
+            enqueue(incomingVertex);
+        } else {
+            commitVertex(incomingVertex);
         }
     }
 
     @Override
     public void putEdge(AbstractEdge incomingEdge) {
+        if (commitQueue != null) {
+            enqueue(incomingEdge);
+        } else {
+            commitEdge(incomingEdge);
+        }
+    }
+
+    private void enqueue(Object element) {
+        try {
+            commitQueue.put(element);
+        } catch (InterruptedException exception) {
+            logger.log(Level.WARNING, "Interrupted while queuing element for commit", exception);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Commits up to the given number of queued elements to the storages,
+     * waiting for at most the given time for the first element to arrive.
+     *
+     * @param maxElements The maximum number of elements to commit.
+     * @param timeoutMillis The maximum time to wait if the queue is empty.
+     * @return The number of elements committed.
+     */
+    public int commitPending(int maxElements, long timeoutMillis) throws InterruptedException {
+        BlockingQueue<Object> queue = commitQueue;
+        if (queue == null) {
+            return 0;
+        }
+        Object element = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        int count = 0;
+        while (element != null) {
+            if (element instanceof AbstractVertex) {
+                commitVertex((AbstractVertex) element);
+            } else {
+                commitEdge((AbstractEdge) element);
+            }
+            if (++count == maxElements) {
+                break;
+            }
+            element = queue.poll();
+        }
+        commitBatch();
+        return count;
+    }
+
+    /**
+     * @return True if there are queued elements that have not been committed.
+     */
+    public boolean hasPending() {
+        BlockingQueue<Object> queue = commitQueue;
+        return queue != null && !queue.isEmpty();
+    }
+
+    private void commitVertex(AbstractVertex incomingVertex) {
+        addToBatch(incomingVertex);
+    }
+
+    private void commitEdge(AbstractEdge incomingEdge) {
+        addToBatch(incomingEdge);
+    }
+
+    private void addToBatch(Object element) {
+        pendingElements.add(element);
+        if (pendingElements.size() >= COMMIT_BATCH_SIZE) {
+            commitBatch();
+        }
+    }
+
+    /**
+     * Writes the elements collected so far to the storages and then passes
+     * them to the sketches. This is called by the Kernel on the committing
+     * thread whenever it has run out of elements to dispatch, and before
+     * transactions are flushed or storages are shut down.
+     */
+    public void commitBatch() {
+        if (pendingElements.isEmpty()) {
+            return;
+        }
         for (AbstractStorage storage : storages) {
-            if (storage.putEdge(incomingEdge)) {
-                incrementStorageEdgeCount(storage);
+            StorageWriter writer = storageWriters.get(storage);
+            if (writer != null) {
+                for (Object element : pendingElements) {
+                    if (element instanceof AbstractVertex) {
+                        writer.putVertex((AbstractVertex) element);
+                    } else {
+                        writer.putEdge((AbstractEdge) element);
+                    }
+                }
+            } else {
+                StorageWriter.writeBatch(storage, pendingElements);
             }
         }
         for (AbstractSketch sketch : sketches) {
-            sketch.putEdge(incomingEdge);
+            for (Object element : pendingElements) {
+                if (element instanceof AbstractVertex) {
+                    sketch.putVertex((AbstractVertex) element);
+                } else {
+                    sketch.putEdge((AbstractEdge) element);
+                }
+            }
         }
+        pendingElements.clear();
     }
 }
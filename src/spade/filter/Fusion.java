@@ -21,8 +21,11 @@ package spade.filter;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,240 +34,329 @@ import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
 import spade.core.Settings;
 import spade.core.Vertex;
+import spade.utility.CommonFunctions;
 
 public class Fusion extends AbstractFilter {
 
-    private LinkedList<Object> leftList;
-    private LinkedList<Object> rightList;
+    private static final int DEFAULT_WINDOW_SIZE = 10000;
+    private static final long DEFAULT_WINDOW_MILLIS = 5000;
+    private static final int DEFAULT_MAX_FUSED = 100000;
+    private ArrayDeque<Element> leftWindow;
+    private ArrayDeque<Element> rightWindow;
     private Map<AbstractVertex, AbstractVertex> fusedVertices;
-    private Map<RuleIdentifier, RuleIdentifier> rules;
+    private List<Rule> rules;
     private static final String SPADE_ROOT = Settings.getProperty("spade_root");
     private final String configFile = SPADE_ROOT + "cfg/fusion.config";
     private final String SOURCE_REPORTER = Settings.getProperty("source_reporter");
-    private int MAX_LIST_LENGTH = 5;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private int maxFused = DEFAULT_MAX_FUSED;
     private String leftReporter;
     private String rightReporter;
     private String FUSED_SOURCE_REPORTER;
 
     public Fusion() {
-        // The left and right lists are used to store provenance elements from the
-        // two reporters respectively. Elements are added and removed using the queue
-        // interface but the lists are initialized as LinkedLists to allow for
-        // traversal and checking for matching elements
-        leftList = new LinkedList<>();
-        rightList = new LinkedList<>();
-
-        // The fusedVertices is a map containing all the previously-fused vertices.
-        // This is checked when new vertices and edges are received by this filter
-        // for quick replacement
-        fusedVertices = new HashMap<>();
-
-        // The rules map is used to store the rules. This is used in the compare
-        // function
-        rules = new HashMap<>();
+        // The left and right windows are used to store provenance elements from
+        // the two reporters respectively. Elements leave a window in arrival
+        // order when it holds more than windowSize elements or when they have
+        // been held longer than windowMillis. Matching does not traverse the
+        // windows; it goes through the per-rule indexes instead
+        leftWindow = new ArrayDeque<>();
+        rightWindow = new ArrayDeque<>();
+
+        // The fusedVertices is a map containing the most recently used fused
+        // vertices. This is checked when new vertices and edges are received by
+        // this filter for quick replacement
+        fusedVertices = new LinkedHashMap<AbstractVertex, AbstractVertex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<AbstractVertex, AbstractVertex> eldest) {
+                return size() > maxFused;
+            }
+        };
+
+        // The rules list holds one entry per rule line in the configuration
+        // file. Each rule keeps a hash index per side from the (case-folded)
+        // annotation value to the windowed vertex that carries it
+        rules = new ArrayList<>();
 
         // Read and process the configuration file. Currently, the file syntax is:
         // -- BEGIN FILE --
         // <1st reporter>
         // <2nd reporter>
         // <1st reporter>.<annotation>=<2nd reporter>.<annotation>
+        // [<1st reporter>.<annotation>=<2nd reporter>.<annotation>]...
         // -- EOF --
-        try {
-            BufferedReader configReader = new BufferedReader(new FileReader(configFile));
-            leftReporter = configReader.readLine();
-            rightReporter = configReader.readLine();
+        // Blank lines and lines starting with '#' are ignored
+        try (BufferedReader configReader = new BufferedReader(new FileReader(configFile))) {
+            leftReporter = readConfigLine(configReader);
+            rightReporter = readConfigLine(configReader);
             FUSED_SOURCE_REPORTER = leftReporter + " + " + rightReporter;
-            String ruleLine = configReader.readLine();
-            String leftRuleString = ruleLine.split("=")[0].trim();
-            RuleIdentifier leftRule = new RuleIdentifier(leftRuleString);
-            String rightRuleString = ruleLine.split("=")[1].trim();
-            RuleIdentifier rightRule = new RuleIdentifier(rightRuleString);
-            rules.put(leftRule, rightRule);
-            rules.put(rightRule, leftRule);
+            String ruleLine;
+            while ((ruleLine = readConfigLine(configReader)) != null) {
+                RuleIdentifier firstRule = new RuleIdentifier(ruleLine.split("=")[0].trim());
+                RuleIdentifier secondRule = new RuleIdentifier(ruleLine.split("=")[1].trim());
+                // Rules may be written in either order; normalize them so that the
+                // left identifier always refers to the left reporter
+                if (firstRule.reporter.equalsIgnoreCase(leftReporter)) {
+                    rules.add(new Rule(firstRule, secondRule));
+                } else {
+                    rules.add(new Rule(secondRule, firstRule));
+                }
+            }
         } catch (Exception exception) {
             Logger.getLogger(Fusion.class.getName()).log(Level.SEVERE, null, exception);
         }
     }
 
+    /**
+     * Arguments (all optional): window=&lt;elements per reporter&gt;
+     * windowMillis=&lt;maximum time an element is held&gt;
+     * maxFused=&lt;number of fused vertices remembered for replacement&gt;
+     */
+    @Override
+    public boolean initialize(String arguments) {
+        Map<String, String> argumentMap = CommonFunctions.parseKeyValPairs(arguments);
+        try {
+            if (argumentMap.containsKey("window")) {
+                windowSize = Integer.parseInt(argumentMap.get("window"));
+            }
+            if (argumentMap.containsKey("windowMillis")) {
+                windowMillis = Long.parseLong(argumentMap.get("windowMillis"));
+            }
+            if (argumentMap.containsKey("maxFused")) {
+                maxFused = Integer.parseInt(argumentMap.get("maxFused"));
+            }
+        } catch (NumberFormatException exception) {
+            Logger.getLogger(Fusion.class.getName()).log(Level.SEVERE, null, exception);
+            return false;
+        }
+        return true;
+    }
+
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
-        // The 'compare' boolean flag is used to determine whether the lists needed
-        // to be traversed and checked when the element is added. This is needed
-        // because comparison is unnecessary in the following cases:
-        // 1) When an already-fused vertex is added to the list
-        // 2) When an edge is added to the list
-        boolean compare = true;
+        // The 'index' boolean flag is used to determine whether the vertex needs
+        // to be matched against and added to the rule indexes. This is
+        // unnecessary when an already-fused vertex is added
+        boolean index = true;
 
         // If this vertex has already been fused before, replace it.
-        if (fusedVertices.containsKey(incomingVertex)) {
-            incomingVertex = fusedVertices.get(incomingVertex);
-            compare = false;
+        AbstractVertex fusedVertex = fusedVertices.get(incomingVertex);
+        if (fusedVertex != null) {
+            incomingVertex = fusedVertex;
+            index = false;
         }
 
-        // Determine the source reporter of the incoming vertex so that it is added
-        // to the appropriate list and the checkLists() function is called on the
-        // correct lists
+        // Determine the source reporter of the incoming vertex so that it is
+        // added to the appropriate window and matched against the other side
         String incomingSource = incomingVertex.getAnnotation(SOURCE_REPORTER);
-        if (incomingSource.equalsIgnoreCase(leftReporter)) {
-            leftList.add(incomingVertex);
-            checkLists(leftList, rightList, compare);
-        } else if (incomingSource.equalsIgnoreCase(rightReporter)) {
-            rightList.add(incomingVertex);
-            checkLists(rightList, leftList, compare);
+        long now = System.currentTimeMillis();
+        if (leftReporter != null && leftReporter.equalsIgnoreCase(incomingSource)) {
+            Element element = new Element(incomingVertex, now);
+            leftWindow.add(element);
+            if (index) {
+                match(element, true);
+            }
+            expire(now);
+        } else if (rightReporter != null && rightReporter.equalsIgnoreCase(incomingSource)) {
+            Element element = new Element(incomingVertex, now);
+            rightWindow.add(element);
+            if (index) {
+                match(element, false);
+            }
+            expire(now);
         } else {
             // If the incoming vertex is from any other reporter, simply forward it
+            expire(now);
             putInNextFilter(incomingVertex);
         }
     }
 
     @Override
     public void putEdge(AbstractEdge incomingEdge) {
-        // Determine if the source or destination vertices of this edge have been
-        // fused before. If yes, then replace them with the fused vertices
-        if (fusedVertices.containsKey(incomingEdge.getSourceVertex())) {
-            incomingEdge.setSourceVertex(fusedVertices.get(incomingEdge.getSourceVertex()));
-        }
-        if (fusedVertices.containsKey(incomingEdge.getDestinationVertex())) {
-            incomingEdge.setDestinationVertex(fusedVertices.get(incomingEdge.getDestinationVertex()));
-        }
-
-        // Determine the source reporter of the incoming vertex so that it is added
-        // to the appropriate list. The checkLists() function is called without
-        // comparison because we do not fuse edges
+        // Determine the source reporter of the incoming edge so that it is added
+        // to the appropriate window. Edges are not fused; their endpoints are
+        // replaced by fused vertices when they leave the window
         String incomingSource = incomingEdge.getAnnotation(SOURCE_REPORTER);
-        if (incomingSource.equalsIgnoreCase(leftReporter)) {
-            leftList.add(incomingEdge);
-            checkLists(leftList, rightList, false);
-        } else if (incomingSource.equalsIgnoreCase(rightReporter)) {
-            rightList.add(incomingEdge);
-            checkLists(rightList, leftList, false);
+        long now = System.currentTimeMillis();
+        if (leftReporter != null && leftReporter.equalsIgnoreCase(incomingSource)) {
+            leftWindow.add(new Element(incomingEdge, now));
+            expire(now);
+        } else if (rightReporter != null && rightReporter.equalsIgnoreCase(incomingSource)) {
+            rightWindow.add(new Element(incomingEdge, now));
+            expire(now);
         } else {
             // If the incoming edge is from any other reporter, forward it
+            expire(now);
+            replaceFused(incomingEdge);
             putInNextFilter(incomingEdge);
         }
     }
 
-    private void checkLists(LinkedList sourceList, LinkedList destinationList, boolean compare) {
-        // Comparison and fusion is done if the compare flag is set
-        if (compare) {
-            // Get the most recently added element to the source list. This is
-            // compared to all the elements in the other list
-            Object newElement = sourceList.peekLast();
-            if (newElement instanceof AbstractVertex) {
-                AbstractVertex newVertex = (AbstractVertex) newElement;
-                for (int i = 0; i < destinationList.size(); i++) {
-                    Object otherElement = destinationList.get(i);
-                    if (otherElement instanceof AbstractVertex) {
-                        AbstractVertex otherVertex = (AbstractVertex) otherElement;
-                        // This condition is used to check for elements in the list that
-                        // have already been fused in which case comparison and fusion
-                        // is unnecessary
-                        if (!otherVertex.getAnnotation(SOURCE_REPORTER).equalsIgnoreCase(FUSED_SOURCE_REPORTER)
-                                && compare(newVertex, otherVertex)) {
-                            fuseAndReplace(newVertex, otherVertex);
-                        }
-                    }
-                }
+    private void match(Element element, boolean left) {
+        // Look up the vertex's value for every rule in the index of the other
+        // side. The first match is fused with this vertex. If there is
+        // none, the vertex is indexed so that later vertices from the other
+        // side can find it
+        AbstractVertex vertex = (AbstractVertex) element.element;
+        String[] keys = new String[rules.size()];
+        for (int i = 0; i < keys.length; i++) {
+            Rule rule = rules.get(i);
+            keys[i] = rule.key(vertex, left);
+            if (keys[i] == null) {
+                continue;
             }
-        }
-        // Check if the list size is exceeded. If yes, remove the element from
-        // the head of the list and forward it to the next filter
-        if (sourceList.size() > MAX_LIST_LENGTH) {
-            Object removedElement = sourceList.poll();
-            if (removedElement instanceof AbstractVertex) {
-                putInNextFilter((AbstractVertex) removedElement);
-            } else if (removedElement instanceof AbstractEdge) {
-                putInNextFilter((AbstractEdge) removedElement);
+            Element other = rule.index(!left).get(keys[i]);
+            if (other != null) {
+                fuse(element, other, !left);
+                return;
             }
         }
-    }
-
-    private boolean compare(AbstractVertex firstVertex, AbstractVertex secondVertex) {
-        // Use the rules map to determine if the two vertices match. First, the
-        // source reporters are checked and then the annotations
-        for (RuleIdentifier currentRule : rules.keySet()) {
-            RuleIdentifier otherRule = rules.get(currentRule);
-            if (firstVertex.getAnnotation(SOURCE_REPORTER).equalsIgnoreCase(currentRule.reporter)
-                    && secondVertex.getAnnotation(SOURCE_REPORTER).equalsIgnoreCase(otherRule.reporter)) {
-                String firstValue = firstVertex.getAnnotation(currentRule.annotation);
-                String secondValue = secondVertex.getAnnotation(currentRule.annotation);
-                if (firstValue != null && secondValue != null && firstValue.equalsIgnoreCase(secondValue)) {
-                    return true;
-                }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                rules.get(i).index(left).put(keys[i], element);
             }
         }
-        // If no match is found in the rules map for these two vertices,
-        // return false
-        return false;
+        element.keys = keys;
     }
 
-    private void fuseAndReplace(AbstractVertex firstVertex, AbstractVertex secondVertex) {
+    private void fuse(Element firstElement, Element secondElement, boolean secondLeft) {
         // Create a new fused vertex and add all annotations of the first and second
         // vertices. The 'source reporter' annotation is changed to reflect that
         // this vertex is now fused
+        AbstractVertex firstVertex = (AbstractVertex) firstElement.element;
+        AbstractVertex secondVertex = (AbstractVertex) secondElement.element;
         AbstractVertex fusedVertex = new Vertex();
         fusedVertex.getAnnotations().putAll(firstVertex.getAnnotations());
         fusedVertex.getAnnotations().putAll(secondVertex.getAnnotations());
         fusedVertex.addAnnotation(SOURCE_REPORTER, FUSED_SOURCE_REPORTER);
 
-        // Create references to the two lists which are assigned by evaluating
-        // the source reporters for the two vertices. These references are used
-        // when replacing vertices in the lists with the fused vertex
-        LinkedList firstList = null;
-        LinkedList secondList = null;
-        String firstSource = firstVertex.getAnnotation(SOURCE_REPORTER);
-        if (firstSource.equalsIgnoreCase(leftReporter)) {
-            firstList = leftList;
-            secondList = rightList;
-        } else if (firstSource.equalsIgnoreCase(rightReporter)) {
-            firstList = rightList;
-            secondList = leftList;
+        // Replace both windowed vertices in place. Edges in the windows that
+        // refer to either vertex are resolved through fusedVertices when they
+        // are forwarded. A fused vertex is not matched again, so the second
+        // vertex is taken out of the indexes
+        firstElement.element = fusedVertex;
+        secondElement.element = fusedVertex;
+        unindex(secondElement, secondLeft);
+        fusedVertices.put(firstVertex, fusedVertex);
+        fusedVertices.put(secondVertex, fusedVertex);
+    }
+
+    private void expire(long now) {
+        // Both windows are checked on every arrival, so that elements of a
+        // reporter that has gone quiet still leave on time
+        expire(leftWindow, true, now);
+        expire(rightWindow, false, now);
+    }
+
+    private void expire(ArrayDeque<Element> window, boolean left, long now) {
+        // Forward elements from the head of the window while it is over its size
+        // limit or the head has been held longer than the time limit
+        Element head;
+        while ((head = window.peek()) != null
+                && (window.size() > windowSize || now - head.arrival > windowMillis)) {
+            forward(window.poll(), left);
         }
+    }
 
-        // Replace all occurrences of a vertex in it's list by the fused vertex.
-        // Also, check if the source or destination vertices of any edges in this
-        // list point to the vertex we are replacing. If yes, replace those
-        // references by the fused vertex as well
-        for (int i = 0; i < firstList.size(); i++) {
-            if (firstVertex.equals(firstList.get(i))) {
-                firstList.set(i, fusedVertex);
-            } else if (firstList.get(i) instanceof AbstractEdge) {
-                AbstractEdge tempEdge = (AbstractEdge) firstList.get(i);
-                if (tempEdge.getSourceVertex().equals(firstVertex)) {
-                    tempEdge.setSourceVertex(fusedVertex);
-                } else if (tempEdge.getDestinationVertex().equals(firstVertex)) {
-                    tempEdge.setDestinationVertex(fusedVertex);
-                }
-            }
+    private void forward(Element element, boolean left) {
+        if (element.element instanceof AbstractVertex) {
+            unindex(element, left);
+            putInNextFilter((AbstractVertex) element.element);
+        } else if (element.element instanceof AbstractEdge) {
+            AbstractEdge edge = (AbstractEdge) element.element;
+            replaceFused(edge);
+            putInNextFilter(edge);
         }
-        // Perform the same function for the other vertex and the other list
-        for (int i = 0; i < secondList.size(); i++) {
-            if (secondVertex.equals(secondList.get(i))) {
-                secondList.set(i, fusedVertex);
-            } else if (secondList.get(i) instanceof AbstractEdge) {
-                AbstractEdge tempEdge = (AbstractEdge) secondList.get(i);
-                if (tempEdge.getSourceVertex().equals(secondVertex)) {
-                    tempEdge.setSourceVertex(fusedVertex);
-                } else if (tempEdge.getDestinationVertex().equals(secondVertex)) {
-                    tempEdge.setDestinationVertex(fusedVertex);
+    }
+
+    private void unindex(Element element, boolean left) {
+        // Remove the vertex from the indexes unless a newer vertex with the
+        // same value has taken its place
+        if (element.keys == null) {
+            return;
+        }
+        for (int i = 0; i < element.keys.length; i++) {
+            if (element.keys[i] != null) {
+                Map<String, Element> index = rules.get(i).index(left);
+                if (index.get(element.keys[i]) == element) {
+                    index.remove(element.keys[i]);
                 }
             }
         }
+        element.keys = null;
+    }
+
+    private void replaceFused(AbstractEdge edge) {
+        // Determine if the source or destination vertices of this edge have been
+        // fused. If yes, then replace them with the fused vertices
+        AbstractVertex fusedSource = fusedVertices.get(edge.getSourceVertex());
+        if (fusedSource != null) {
+            edge.setSourceVertex(fusedSource);
+        }
+        AbstractVertex fusedDestination = fusedVertices.get(edge.getDestinationVertex());
+        if (fusedDestination != null) {
+            edge.setDestinationVertex(fusedDestination);
+        }
+    }
 
-        // Finally, add the fused vertex to the map
-        fusedVertices.put(firstVertex, fusedVertex);
-        fusedVertices.put(secondVertex, fusedVertex);
+    private static String readConfigLine(BufferedReader reader) throws java.io.IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                return line;
+            }
+        }
+        return null;
     }
 
     @Override
     public boolean shutdown() {
-        while (MAX_LIST_LENGTH > 0) {
-            checkLists(leftList, rightList, true);
-            checkLists(rightList, leftList, true);
-            MAX_LIST_LENGTH--;
+        // Forward everything that is still held in the windows
+        while (!leftWindow.isEmpty()) {
+            forward(leftWindow.poll(), true);
+        }
+        while (!rightWindow.isEmpty()) {
+            forward(rightWindow.poll(), false);
         }
         return true;
     }
+
+    private static class Element {
+
+        Object element;
+        final long arrival;
+        // Index keys per rule while the vertex is indexed, null otherwise
+        String[] keys;
+
+        Element(Object element, long arrival) {
+            this.element = element;
+            this.arrival = arrival;
+        }
+    }
+
+    private static class Rule {
+
+        final RuleIdentifier left;
+        final RuleIdentifier right;
+        final Map<String, Element> leftIndex = new HashMap<>();
+        final Map<String, Element> rightIndex = new HashMap<>();
+
+        Rule(RuleIdentifier left, RuleIdentifier right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        String key(AbstractVertex vertex, boolean fromLeft) {
+            String value = vertex.getAnnotation(fromLeft ? left.annotation : right.annotation);
+            return (value == null) ? null : value.toLowerCase();
+        }
+
+        Map<String, Element> index(boolean fromLeft) {
+            return fromLeft ? leftIndex : rightIndex;
+        }
+    }
 }
 
 class RuleIdentifier {
@@ -19,19 +19,56 @@
  */
 package spade.filter;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
+import spade.utility.CommonFunctions;
+import spade.utility.CompactVertexIds;
 
 public class GraphFinesse extends AbstractFilter {
 
-    private final HashMap<AbstractVertex, HashSet<AbstractVertex>> edges;
+    private static final int DEFAULT_WINDOW = 1 << 20;
+    private CompactVertexIds vertexIds;
+    // The handles of all vertices reachable from a vertex through forwarded
+    // edges, indexed by the slot of that vertex
+    private CompactVertexIds.HandleSet[] edges;
 
     public GraphFinesse() {
-        edges = new HashMap<>();
+        createState(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Arguments (optional): window=&lt;number of live vertices for which state
+     * is kept before the least recently used ones are evicted&gt;
+     */
+    @Override
+    public boolean initialize(String arguments) {
+        Map<String, String> argumentMap = CommonFunctions.parseKeyValPairs(arguments);
+        if (argumentMap.containsKey("window")) {
+            try {
+                createState(Integer.parseInt(argumentMap.get("window")));
+            } catch (NumberFormatException exception) {
+                Logger.getLogger(GraphFinesse.class.getName()).log(Level.SEVERE, null, exception);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void createState(int window) {
+        edges = new CompactVertexIds.HandleSet[16];
+        vertexIds = new CompactVertexIds(window, new CompactVertexIds.EvictionListener() {
+            @Override
+            public void evicted(int slot) {
+                if (slot < edges.length) {
+                    edges[slot] = null;
+                }
+            }
+        });
     }
 
     @Override
@@ -41,39 +78,28 @@ public class GraphFinesse extends AbstractFilter {
 
     @Override
     public void putEdge(AbstractEdge incomingEdge) {
-        AbstractVertex sourceVertex = incomingEdge.getSourceVertex();
-        AbstractVertex destinationVertex = incomingEdge.getDestinationVertex();
-        if (edges.containsKey(sourceVertex)) {
-            HashSet<AbstractVertex> checkSet = edges.get(sourceVertex);
-            if (checkSet.contains(destinationVertex)) {
-                return;
-            }
+        long destinationHandle = vertexIds.acquire(incomingEdge.getDestinationVertex());
+        long sourceHandle = vertexIds.acquire(incomingEdge.getSourceVertex());
+        int sourceSlot = CompactVertexIds.slot(sourceHandle);
+        int destinationSlot = CompactVertexIds.slot(destinationHandle);
+        if (Math.max(sourceSlot, destinationSlot) >= edges.length) {
+            edges = Arrays.copyOf(edges, Math.max(Math.max(sourceSlot, destinationSlot) + 1, edges.length * 2));
+        }
+        CompactVertexIds.HandleSet checkSet = edges[sourceSlot];
+        if (checkSet != null && checkSet.contains(destinationHandle)) {
+            return;
         }
 
-        if (edges.get(destinationVertex) == null) {
-            HashSet<AbstractVertex> tempSet = new HashSet<>();
-            tempSet.add(sourceVertex);
-            edges.put(destinationVertex, tempSet);
-            if (edges.containsKey(sourceVertex)) {
-                HashSet<AbstractVertex> copytempSet = edges.get(sourceVertex);
-                Iterator iterator = copytempSet.iterator();
-                while (iterator.hasNext()) {
-                    tempSet.add((AbstractVertex) iterator.next());
-                }
+        CompactVertexIds.HandleSet tempSet = edges[destinationSlot];
+        if (tempSet == null) {
+            tempSet = new CompactVertexIds.HandleSet(vertexIds);
+            edges[destinationSlot] = tempSet;
+        }
+        if (tempSet.add(sourceHandle)) {
+            if (checkSet != null) {
+                tempSet.addAll(checkSet);
             }
             putInNextFilter(incomingEdge);
-        } else {
-            HashSet<AbstractVertex> tempSet = edges.get(destinationVertex);
-            if (tempSet.add(sourceVertex)) {
-                if (edges.containsKey(sourceVertex)) {
-                    HashSet<AbstractVertex> copytempSet = edges.get(sourceVertex);
-                    Iterator iterator = copytempSet.iterator();
-                    while (iterator.hasNext()) {
-                        tempSet.add((AbstractVertex) iterator.next());
-                    }
-                }
-                putInNextFilter(incomingEdge);
-            }
         }
     }
 }
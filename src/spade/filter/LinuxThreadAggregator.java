@@ -19,10 +19,10 @@
  */
 package spade.filter;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
@@ -34,14 +34,26 @@ import spade.vertex.opm.Process;
 
 public class LinuxThreadAggregator extends AbstractFilter {
 
-    Set<AbstractVertex> processes = new HashSet<>();
-    Map<String, AbstractVertex> aggregates = new HashMap<>();
+    Set<AbstractVertex> processes = Collections.newSetFromMap(new ConcurrentHashMap<AbstractVertex, Boolean>());
+    Map<String, AbstractVertex> aggregates = new ConcurrentHashMap<>();
+
+    // State is kept per thread group so that processes of different thread
+    // groups can be aggregated concurrently.
+    @Override
+    public boolean isPartitioned() {
+        return true;
+    }
+
+    @Override
+    public String getPartitionKey(AbstractVertex vertex) {
+        return vertex.getAnnotation("tgid");
+    }
 
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
         putInNextFilter(incomingVertex);
         if (incomingVertex.type().equalsIgnoreCase("Process")) {
-            String tgid = incomingVertex.getAnnotation("tgid");
+            String tgid = String.valueOf(incomingVertex.getAnnotation("tgid"));
             if (!processes.contains(incomingVertex)) {
                 if (!aggregates.containsKey(tgid)) {
                     Artifact aggregate = new Artifact();
@@ -33,6 +33,12 @@ import spade.vertex.prov.Entity;
  */
 public class OPM2Prov extends AbstractFilter {
 
+    // Elements are converted without keeping any state.
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
         putInNextFilter(createProvVertex(incomingVertex));
@@ -22,17 +22,21 @@ package spade.reporter;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -46,14 +50,19 @@ import spade.edge.opm.WasDerivedFrom;
 import spade.edge.opm.WasGeneratedBy;
 import spade.edge.opm.WasTriggeredBy;
 import spade.reporter.audit.ArtifactInfo;
+import spade.reporter.audit.AuditEventData;
+import spade.reporter.audit.AuditLogIngest;
+import spade.reporter.audit.AuditPipeline;
+import spade.reporter.audit.BoundedStateMap;
 import spade.reporter.audit.DescriptorManager;
 import spade.reporter.audit.FileInfo;
 import spade.reporter.audit.MemoryInfo;
 import spade.reporter.audit.PipeInfo;
+import spade.reporter.audit.ProcfsReader;
 import spade.reporter.audit.SocketInfo;
 import spade.reporter.audit.UnixSocketInfo;
 import spade.reporter.audit.UnknownInfo;
-import spade.utility.CommandUtility;
+import spade.utility.FingerprintIndex;
 import spade.vertex.opm.Artifact;
 import spade.vertex.opm.Process;
 
@@ -70,14 +79,12 @@ public class Audit extends AbstractReporter {
     private String DEBUG_DUMP_FILE;
     private BufferedReader eventReader;
     private volatile boolean shutdown = false;
-    private long boottime = 0;
     private final long THREAD_CLEANUP_TIMEOUT = 1000;
     private final boolean USE_PROCFS = false;
     private boolean USE_READ_WRITE = false;
     // To toggle monitoring of system calls: sendmsg, recvmsg, sendto, and recvfrom
     private boolean USE_SOCK_SEND_RCV = false;
     private Boolean ARCH_32BIT = true;
-    private final String simpleDatePattern = "EEE MMM d H:mm:ss yyyy";
     private static final String SPADE_ROOT = Settings.getProperty("spade_root");
     private String AUDIT_EXEC_PATH;
     // Process map based on <pid, stack of vertices> pairs
@@ -86,54 +93,42 @@ public class Audit extends AbstractReporter {
     private final Map<String, Long> unitNumber = new HashMap<String, Long>();
 
     private final DescriptorManager descriptors = new DescriptorManager();
-    // Event buffer map based on <audit_record_id <key, value>> pairs
-    private final Map<String, Map<String, String>> eventBuffer = new HashMap<>();
+    // Reads process and descriptor information without running lsof
+    private final ProcfsReader procfs = new ProcfsReader();
+    // Assembles records into events on worker threads and hands them back in order
+    private AuditPipeline pipeline;
+    // Reads the log given with inputLog instead of the pipeline
+    private AuditLogIngest logIngest;
     // File and memory version map based on <path, version> pairs
-    private final Map<ArtifactInfo, Integer> artifactVersions = new HashMap<>();
+    private Map<ArtifactInfo, Integer> artifactVersions;
     // Socket read version map based on <location, version> pairs
-    private final Map<ArtifactInfo, Integer> socketReadVersions = new HashMap<>();
+    private Map<ArtifactInfo, Integer> socketReadVersions;
     // Socket write version map based on <location, version> pairs
-    private final Map<ArtifactInfo, Integer> socketWriteVersions = new HashMap<>();
+    private Map<ArtifactInfo, Integer> socketWriteVersions;
+    // Receives the version and byte count entries evicted from memory, if enabled
+    private FingerprintIndex stateSpillIndex;
+    private final List<BoundedStateMap<?, ?>> stateMaps = new ArrayList<BoundedStateMap<?, ?>>();
     private Thread eventProcessorThread = null;
     private String auditRules;
     
-    private Map<ArtifactInfo, Long> networkLocationToBytesWrittenMap = new HashMap<ArtifactInfo, Long>(){
-    	public Long get(Object key){
-    		if(super.get(key) == null){
-    			super.put((ArtifactInfo)key, 0L);
-    		}
-    		return super.get(key);
-    	}
-    };
+    private Map<ArtifactInfo, Long> networkLocationToBytesWrittenMap;
     
-    private Map<ArtifactInfo, Long> networkLocationToBytesReadMap = new HashMap<ArtifactInfo, Long>(){
-    	public Long get(Object key){
-    		if(super.get(key) == null){
-    			super.put((ArtifactInfo)key, 0L);
-    		}
-    		return super.get(key);
-    	}
-    };
+    private Map<ArtifactInfo, Long> networkLocationToBytesReadMap;
+    
+    private long lastStateReportTime = System.currentTimeMillis();
+    private long stateReportInterval;
     
     private final static long MAX_BYTES_PER_NETWORK_ARTIFACT = 100;
     
+    private final static int DEFAULT_PIPELINE_QUEUE = 64;
+    private final static int DEFAULT_MAX_ARTIFACT_STATES = 1 << 20;
+    private final static long DEFAULT_EVENT_TIMEOUT_SECONDS = 60;
+    private final static long DEFAULT_STATE_REPORT_INTERVAL_SECONDS = 600;
+    
     // Group 1: key
     // Group 2: value
     private static final Pattern pattern_key_value = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
 
-    // Group 1: node
-    // Group 2: type
-    // Group 3: time
-    // Group 4: recordid
-    private static final Pattern pattern_message_start = Pattern.compile("(?:node=(\\S+) )?type=(\\w*) msg=audit\\(([0-9\\.]+)\\:([0-9]+)\\):\\s*");
-
-    // Group 1: cwd
-    private static final Pattern pattern_cwd = Pattern.compile("cwd=\"*((?<=\")[^\"]*(?=\"))\"*");
-
-    // Group 1: item number
-    // Group 2: name
-    private static final Pattern pattern_path = Pattern.compile("item=([0-9]*)\\s*name=\"*((?<=\")[^\"]*(?=\"))\"*");
-    
     //  Added to indicate in the output from where the process info was read. Either from 
     //  1) procfs or directly from 2) audit log. 
     private static final String PROC_INFO_SRC_KEY = "source",
@@ -200,22 +195,42 @@ public class Audit extends AbstractReporter {
         	CREATE_BEEP_UNITS = true;
         }
 
-        // Get system boot time from /proc/stat. This is later used to determine
-        // the start time for processes.
-        try {
-            BufferedReader boottimeReader = new BufferedReader(new FileReader("/proc/stat"));
-            String line;
-            while ((line = boottimeReader.readLine()) != null) {
-                StringTokenizer st = new StringTokenizer(line);
-                if (st.nextToken().equals("btime")) {
-                    boottime = Long.parseLong(st.nextToken()) * 1000;
-                    break;
-                }
-            }
-            boottimeReader.close();
-        } catch (IOException | NumberFormatException e) {
-            logger.log(Level.SEVERE, "error reading boot time information from /proc/", e);
+        // Number of threads assembling records into events, and the number of
+        // record batches each of them may have waiting when reading live
+        int pipelineThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int pipelineQueue = DEFAULT_PIPELINE_QUEUE;
+        try{
+        	if(args.get("pipelineThreads") != null){
+        		pipelineThreads = Integer.parseInt(args.get("pipelineThreads"));
+        	}
+        	if(args.get("pipelineQueue") != null){
+        		pipelineQueue = Integer.parseInt(args.get("pipelineQueue"));
+        	}
+        }catch(NumberFormatException e){
+        	logger.log(Level.WARNING, "Invalid pipeline arguments. Using defaults", e);
         }
+        if(!createStateMaps(args)){
+        	return false;
+        }
+        long eventTimeout = DEFAULT_EVENT_TIMEOUT_SECONDS;
+        stateReportInterval = DEFAULT_STATE_REPORT_INTERVAL_SECONDS;
+        try{
+        	if(args.get("eventTimeout") != null){
+        		eventTimeout = Long.parseLong(args.get("eventTimeout"));
+        	}
+        	if(args.get("stateReportInterval") != null){
+        		stateReportInterval = Long.parseLong(args.get("stateReportInterval"));
+        	}
+        }catch(NumberFormatException e){
+        	logger.log(Level.WARNING, "Invalid state arguments. Using defaults", e);
+        }
+        stateReportInterval *= 1000;
+        
+        AuditPipeline.EventHandler eventHandler = new AuditPipeline.EventHandler(){
+        	public void handleEvent(AuditEventData eventData){
+        		finishEvent(eventData);
+        	}
+        };
         
         final String inputAuditLogFile = args.get("inputLog");
         if(inputAuditLogFile != null){ //if a path is passed but it is not a valid file then throw an error
@@ -238,14 +253,20 @@ public class Audit extends AbstractReporter {
         		return false;
         	}
         	
+        	// The offset up to which the log has been handled is kept in the
+        	// checkpoint file. With resume=true the ingest continues from there.
+        	String checkpointPath = args.get("checkpoint");
+        	if(checkpointPath == null || checkpointPath.isEmpty()){
+        		checkpointPath = inputAuditLogFile + ".checkpoint";
+        	}
+        	logIngest = new AuditLogIngest(new File(inputAuditLogFile), new File(checkpointPath), pipelineThreads, eventHandler);
+        	final long startOffset = "true".equals(args.get("resume")) ? logIngest.readCheckpoint() : 0;
+        	
         	auditLogThread = new Thread(new Runnable(){
     			public void run(){
-    				BatchReader inputLogReader = null;
     	        	try{
-    	        		inputLogReader = new BatchReader(new BufferedReader(new FileReader(inputAuditLogFile)));
-    	        		String line = null;
-    	        		while(!shutdown && (line = inputLogReader.readLine()) != null){
-    	        			parseEventLine(line);
+    	        		if(!logIngest.run(startOffset)){
+    	        			return;
     	        		}
     	        		boolean printed = false;
         	        	while(!shutdown){
@@ -264,53 +285,16 @@ public class Audit extends AbstractReporter {
         	        	}
     	        	}catch(Exception e){
     	        		logger.log(Level.WARNING, "Audit log processing failed: " + inputAuditLogFile, e);
-    	        	}finally{
-    	        		try{
-    	        			if(inputLogReader != null){
-    	        				inputLogReader.close();
-    	        			}
-    	        		}catch(Exception e){
-    	        			logger.log(Level.SEVERE, "Failed to close audit input log reader", e);
-    	        		}
     	        	}
     			}
-    		});
+    		}, "Audit-Log-Thread");
         	auditLogThread.start();
         	
         }else{
 
-	        // Build the process tree using the directories under /proc/.
-	        // Directories which have a numeric name represent processes.
-	        String path = "/proc";
-	        java.io.File directory = new java.io.File(path);
-	        java.io.File[] listOfFiles = directory.listFiles();
-	        for (int i = 0; i < listOfFiles.length; i++) {
-	            if (listOfFiles[i].isDirectory()) {
-	
-	                String currentPID = listOfFiles[i].getName();
-	                try {
-	                    // Parse the current directory name to make sure it is
-	                    // numeric. If not, ignore and continue.
-	                    Integer.parseInt(currentPID);
-	                    Process processVertex = createProcess(currentPID);
-	                    addProcess(currentPID, processVertex);
-	                    Process parentVertex = getProcess(processVertex.getAnnotation("ppid"));
-	                    putVertex(processVertex);
-	                    if (parentVertex != null) {
-	                        WasTriggeredBy wtb = new WasTriggeredBy(processVertex, parentVertex);
-	                        putEdge(wtb);
-	                    }
+	        scanProcfs();
 	
-	                    // Get existing file descriptors for this process
-	                    Map<String, ArtifactInfo> fds = getFileDescriptors(currentPID);
-	                    if (fds != null) {
-	                        descriptors.addDescriptors(currentPID, fds);
-	                    }
-	                } catch (Exception e) {
-	                    // Continue
-	                }
-	            }
-	        }
+	        pipeline = new AuditPipeline(pipelineThreads, pipelineQueue, eventTimeout * 1000, eventHandler);
 	
 	        try {
 	            // Start auditd and clear existing rules.
@@ -325,6 +309,9 @@ public class Audit extends AbstractReporter {
 	                            if ((line != null) && !line.isEmpty()) {
 	                                parseEventLine(line);
 	                            }
+	                            if (!eventReader.ready()) {
+	                                pipeline.flush();
+	                            }
 	                        }
 	                        //Added this command here because once the spadeSocketBridge process has exited any rules involving it cannot be cleared.
 	                        //So, deleting the rules before destroying the spadeSocketBridge process.
@@ -355,6 +342,11 @@ public class Audit extends AbstractReporter {
 	                    + "-S connect -S accept -S chmod -S fchmod -S pipe -S truncate -S ftruncate -S pipe2 "
 	                    + (log_successful_events_only ? "-F success=1 " : "") + ignorePids.toString();
 	            Runtime.getRuntime().exec("auditctl " + auditRules).waitFor();
+	            // exit_group() never returns, so it cannot be filtered on success.
+	            // Its records are used to drop the state of exited processes.
+	            String exitRule = "-a exit,always -S exit_group " + ignorePids.toString();
+	            Runtime.getRuntime().exec("auditctl " + exitRule).waitFor();
+	            auditRules += "; " + exitRule;
 	            logger.log(Level.INFO, "configured audit rules: {0}", auditRules);
 	        } catch (IOException | InterruptedException e) {
 	            logger.log(Level.SEVERE, "error configuring audit rules", e);
@@ -365,6 +357,175 @@ public class Audit extends AbstractReporter {
         return true;
     }
     
+    /*
+     * Creates the version and byte count maps. Each keeps at most
+     * maxArtifactStates entries in memory. Evicted entries are dropped, or
+     * kept in the file given by stateSpill and read back when needed.
+     */
+    private boolean createStateMaps(Map<String, String> args) {
+        int maxArtifactStates = DEFAULT_MAX_ARTIFACT_STATES;
+        try {
+            if (args.get("maxArtifactStates") != null) {
+                maxArtifactStates = Integer.parseInt(args.get("maxArtifactStates"));
+            }
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "Invalid maxArtifactStates. Using default", e);
+        }
+        String spillPath = args.get("stateSpill");
+        if (spillPath != null && !spillPath.isEmpty()) {
+            try {
+                // Versions from an earlier run do not match the new graph
+                File spillFile = new File(spillPath);
+                spillFile.delete();
+                stateSpillIndex = new FingerprintIndex(spillFile, maxArtifactStates);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to open state spill file " + spillPath, e);
+                return false;
+            }
+        }
+        BoundedStateMap<ArtifactInfo, Integer> artifactVersions = new BoundedStateMap<ArtifactInfo, Integer>("artifactVersions", maxArtifactStates, createVersionSpillStore("artifactVersions"));
+        BoundedStateMap<ArtifactInfo, Integer> socketReadVersions = new BoundedStateMap<ArtifactInfo, Integer>("socketReadVersions", maxArtifactStates, createVersionSpillStore("socketReadVersions"));
+        BoundedStateMap<ArtifactInfo, Integer> socketWriteVersions = new BoundedStateMap<ArtifactInfo, Integer>("socketWriteVersions", maxArtifactStates, createVersionSpillStore("socketWriteVersions"));
+        BoundedStateMap<ArtifactInfo, Long> networkLocationToBytesWrittenMap = createByteCountMap("networkLocationToBytesWrittenMap", maxArtifactStates);
+        BoundedStateMap<ArtifactInfo, Long> networkLocationToBytesReadMap = createByteCountMap("networkLocationToBytesReadMap", maxArtifactStates);
+        this.artifactVersions = artifactVersions;
+        this.socketReadVersions = socketReadVersions;
+        this.socketWriteVersions = socketWriteVersions;
+        this.networkLocationToBytesWrittenMap = networkLocationToBytesWrittenMap;
+        this.networkLocationToBytesReadMap = networkLocationToBytesReadMap;
+        stateMaps.add(artifactVersions);
+        stateMaps.add(socketReadVersions);
+        stateMaps.add(socketWriteVersions);
+        stateMaps.add(networkLocationToBytesWrittenMap);
+        stateMaps.add(networkLocationToBytesReadMap);
+        return true;
+    }
+
+    private BoundedStateMap.SpillStore<ArtifactInfo, Integer> createVersionSpillStore(String name) {
+        if (stateSpillIndex == null) {
+            return null;
+        }
+        return new BoundedStateMap.ArtifactSpillStore<Integer>(stateSpillIndex, name) {
+            protected Integer valueOf(long value) {
+                return (int) value;
+            }
+        };
+    }
+
+    // Byte counts start at zero for locations not seen before
+    private BoundedStateMap<ArtifactInfo, Long> createByteCountMap(String name, int maxArtifactStates) {
+        BoundedStateMap.SpillStore<ArtifactInfo, Long> spillStore = null;
+        if (stateSpillIndex != null) {
+            spillStore = new BoundedStateMap.ArtifactSpillStore<Long>(stateSpillIndex, name) {
+                protected Long valueOf(long value) {
+                    return value;
+                }
+            };
+        }
+        return new BoundedStateMap<ArtifactInfo, Long>(name, maxArtifactStates, spillStore) {
+            private static final long serialVersionUID = 1L;
+
+            public Long get(Object key) {
+                Long value = super.get(key);
+                if (value == null) {
+                    value = 0L;
+                    super.put((ArtifactInfo) key, value);
+                }
+                return value;
+            }
+        };
+    }
+
+    /*
+     * Logs the size of the reporter state at most once per stateReportInterval.
+     */
+    private void reportStateMetrics() {
+        long now = System.currentTimeMillis();
+        if (stateReportInterval <= 0 || now - lastStateReportTime < stateReportInterval) {
+            return;
+        }
+        lastStateReportTime = now;
+        StringBuilder metrics = new StringBuilder("Audit state: ");
+        metrics.append("processUnitStack: size=").append(processUnitStack.size());
+        metrics.append("; unitNumber: size=").append(unitNumber.size());
+        metrics.append("; pidToMemAddress: size=").append(pidToMemAddress.size());
+        metrics.append("; descriptors: pids=").append(descriptors.getPidCount());
+        for (BoundedStateMap<?, ?> stateMap : stateMaps) {
+            metrics.append("; ").append(stateMap.getMetrics());
+        }
+        if (pipeline != null) {
+            metrics.append("; ").append(pipeline.getMetrics());
+        }
+        logger.log(Level.INFO, metrics.toString());
+    }
+
+    /*
+     * Drops all state kept for a process that has exited.
+     */
+    private void processExit(Map<String, String> eventData) {
+        String pid = eventData.get("pid");
+        processUnitStack.remove(pid);
+        unitNumber.remove(pid);
+        pidToMemAddress.remove(pid);
+        descriptors.removeDescriptors(pid);
+    }
+
+    /*
+     * Builds the process tree using the directories under /proc/.
+     * Directories which have a numeric name represent processes. They are
+     * read in parallel and added in directory order.
+     */
+    private void scanProcfs() {
+        File[] listOfFiles = new File("/proc").listFiles();
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<Object[]>> scans = new ArrayList<Future<Object[]>>();
+            for (File file : listOfFiles) {
+                final String currentPID = file.getName();
+                if (!file.isDirectory() || !isAnInteger(currentPID)) {
+                    continue;
+                }
+                scans.add(executor.submit(new Callable<Object[]>() {
+                    public Object[] call() {
+                        Process processVertex = createProcess(currentPID);
+                        if (processVertex == null) {
+                            return null;
+                        }
+                        // Get existing file descriptors for this process
+                        return new Object[]{currentPID, processVertex, getFileDescriptors(currentPID)};
+                    }
+                }));
+            }
+            for (Future<Object[]> scan : scans) {
+                Object[] result;
+                try {
+                    result = scan.get();
+                } catch (ExecutionException e) {
+                    continue;
+                }
+                if (result == null) {
+                    continue;
+                }
+                String currentPID = (String) result[0];
+                Process processVertex = (Process) result[1];
+                @SuppressWarnings("unchecked")
+                Map<String, ArtifactInfo> fds = (Map<String, ArtifactInfo>) result[2];
+                addProcess(currentPID, processVertex);
+                Process parentVertex = getProcess(processVertex.getAnnotation("ppid"));
+                putVertex(processVertex);
+                if (parentVertex != null) {
+                    WasTriggeredBy wtb = new WasTriggeredBy(processVertex, parentVertex);
+                    putEdge(wtb);
+                }
+                descriptors.addDescriptors(currentPID, fds);
+            }
+        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "interrupted while reading /proc/", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     static private StringBuilder ignorePidsString(String ignoreProcesses) {
         StringBuilder ignorePids = new StringBuilder();
         try {
@@ -395,59 +556,8 @@ public class Audit extends AbstractReporter {
     }
 
 	private Map<String, ArtifactInfo> getFileDescriptors(String pid){
-    	
-    	Map<String, ArtifactInfo> fds = new HashMap<String, ArtifactInfo>();
-    	
-    	Map<String, String> inodefd0 = new HashMap<String, String>();
-    	
-    	try{
-    		List<String> lines = CommandUtility.getOutputOfCommand("lsof -p " + pid);
-    		if(lines != null && lines.size() > 1){
-    			lines.remove(0); //remove the heading line
-    			for(String line : lines){
-    				String tokens[] = line.split("\\s+");
-    				if(tokens.length >= 9){
-    					String type = tokens[4].toLowerCase().trim();
-    					String fd = tokens[3].trim();
-    					fd = fd.substring(0, fd.length() - 1); //last character is either r(read), w(write) or u(read and write)
-    					if(isAnInteger(fd)){
-	    					if("fifo".equals(type)){
-	    						String path = tokens[8];
-	    						if("pipe".equals(path)){ //unnamed pipe
-	    							String inode = tokens[7];
-		    						if(inodefd0.get(inode) == null){
-		    							inodefd0.put(inode, fd);
-		    						}else{
-		    							ArtifactInfo pipeInfo = new PipeInfo(fd, inodefd0.get(inode));
-		    							fds.put(fd, pipeInfo);
-		    							fds.put(inodefd0.get(inode), pipeInfo);
-		    							inodefd0.remove(inode);
-		    						}
-	    						}else{ //named pipe
-	    							fds.put(fd, new PipeInfo(path));
-	    						}	    						
-	    					}else if("ipv4".equals(type) || "ipv6".equals(type)){
-	    						String[] hostport = tokens[8].split("->")[0].split(":");
-	    						fds.put(fd, new SocketInfo(hostport[0], hostport[1]));
-	    					}else if("reg".equals(type) || "chr".equals(type)){
-	    						String path = tokens[8];
-	    						fds.put(fd, new FileInfo(path));  						
-	    					}else if("unix".equals(type)){
-	    						String path = tokens[8];
-	    						if(!path.equals("socket")){
-	    							fds.put(fd, new UnixSocketInfo(path));
-	    						}
-	    					}
-    					}
-    				}
-    			}
-    		}
-    	}catch(Exception e){
-    		logger.log(Level.SEVERE, null, e);
-    	}
-    	
-    	return fds;
-    }
+		return procfs.readFileDescriptors(pid);
+	}
     
     public boolean isAnInteger(String string){
     	try{
@@ -461,6 +571,9 @@ public class Audit extends AbstractReporter {
     @Override
     public boolean shutdown() {
         shutdown = true;
+        if(logIngest != null){
+        	logIngest.shutdown();
+        }
         try {
         	if(dumpWriter != null){
         		dumpWriter.close();
@@ -471,13 +584,19 @@ public class Audit extends AbstractReporter {
         	if(auditLogThread != null){
         		auditLogThread.join(THREAD_CLEANUP_TIMEOUT);
         	}
+        	if(pipeline != null){
+        		pipeline.shutdown();
+        	}
+        	if(stateSpillIndex != null){
+        		stateSpillIndex.close();
+        	}
         } catch (Exception e) {
             logger.log(Level.SEVERE, "error shutting down", e);
         }
         return true;
     }
 
-    private void parseEventLine(String line) {
+    private void parseEventLine(String line) throws InterruptedException {
     	
     	if (DEBUG_DUMP_LOG) {
     		try{
@@ -488,71 +607,20 @@ public class Audit extends AbstractReporter {
     		}
         }
     	
-        Matcher event_start_matcher = pattern_message_start.matcher(line);
-        if (event_start_matcher.find()) {
-            String node = event_start_matcher.group(1);
-            String type = event_start_matcher.group(2);
-            String time = event_start_matcher.group(3);
-            String eventId = event_start_matcher.group(4);
-            String messageData = line.substring(event_start_matcher.end());
-            
-            if(eventBuffer.get(eventId) == null){
-            	eventBuffer.put(eventId, new HashMap<String, String>());
-            	eventBuffer.get(eventId).put("eventid", eventId);
-            }
-            
-            if (type.equals("SYSCALL")) {
-                Map<String, String> eventData = parseKeyValPairs(messageData);
-                eventData.put("time", time);
-            	eventBuffer.get(eventId).putAll(eventData);
-            } else if (type.equals("EOE")) {
-                if (ARCH_32BIT) {
-                    finishEvent32(eventId);
-                } else {
-                    finishEvent64(eventId);
-                }
-            } else if (type.equals("CWD")) {
-                Matcher cwd_matcher = pattern_cwd.matcher(messageData);
-                if (cwd_matcher.find()) {
-                    String cwd = cwd_matcher.group(1);
-                    eventBuffer.get(eventId).put("cwd", cwd);
-                }
-            } else if (type.equals("PATH")) {
-                Matcher path_matcher = pattern_path.matcher(messageData);
-                if (path_matcher.find()) {
-                    String item = path_matcher.group(1);
-                    String name = path_matcher.group(2);
-                    eventBuffer.get(eventId).put("path" + item, name);
-                }
-            } else if (type.equals("EXECVE")) {
-                Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-                while (key_value_matcher.find()) {
-                    eventBuffer.get(eventId).put("execve_" + key_value_matcher.group(1), key_value_matcher.group(2));
-                }
-            } else if (type.equals("FD_PAIR")) {
-                Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-                while (key_value_matcher.find()) {
-                    eventBuffer.get(eventId).put(key_value_matcher.group(1), key_value_matcher.group(2));
-                }
-            } else if (type.equals("SOCKETCALL")) {
-                Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-                while (key_value_matcher.find()) {
-                    eventBuffer.get(eventId).put("socketcall_" + key_value_matcher.group(1), key_value_matcher.group(2));
-                }
-            } else if (type.equals("SOCKADDR")) {
-                Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-                while (key_value_matcher.find()) {
-                    eventBuffer.get(eventId).put(key_value_matcher.group(1), key_value_matcher.group(2));
-                }
-            } else if(type.equals("PROCTITLE")){
-            	//event type not being handled at the moment. TO-DO
+        pipeline.submit(line);
+    }
+
+    private void finishEvent(AuditEventData eventData) {
+        try {
+            if (ARCH_32BIT) {
+                finishEvent32(eventData);
             } else {
-                logger.log(Level.WARNING, "unknown type {0} for message: {1}", new Object[]{type, line});
+                finishEvent64(eventData);
             }
-            
-        } else {
-            logger.log(Level.WARNING, "unable to match line: {0}", line);
+        } finally {
+            AuditEventData.release(eventData);
         }
+        reportStateMetrics();
     }
 
     /*
@@ -569,21 +637,15 @@ public class Audit extends AbstractReporter {
         return keyValPairs;
     }
 
-    private void finishEvent32(String eventId) {
+    private void finishEvent32(AuditEventData eventData) {
         try {
             // System call numbers are derived from:
             // https://android.googlesource.com/platform/bionic/+/android-4.1.1_r1/libc/SYSCALLS.TXT
             // TODO: Update the calls to make them linux specific.
 
-            if (!eventBuffer.containsKey(eventId)) {
-                logger.log(Level.WARNING, "EOE for eventID {0} received with no prior Event Info", new Object[]{eventId});
-                return;
-            }
-            Map<String, String> eventData = eventBuffer.get(eventId);
             int syscall = Integer.parseInt(eventData.get("syscall"));
             
-            if(log_successful_events_only && "no".equals(eventData.get("success")) && syscall != 129){ //in case the audit log is being read from a user provided file and syscall must not be kill to log units properly
-            	eventBuffer.remove(eventId);
+            if(log_successful_events_only && "no".equals(eventData.get("success")) && syscall != 129 && syscall != 252){ //in case the audit log is being read from a user provided file and syscall must not be kill to log units properly or exit_group to drop process state
             	return;
             }
 
@@ -684,12 +746,14 @@ public class Audit extends AbstractReporter {
                 case 129:
                 	processKill(eventData);
                 	break;
+                case 252: // exit_group()
+                    processExit(eventData);
+                    break;
                 default:
                     break;
             }
-            eventBuffer.remove(eventId);
         } catch (Exception e) {
-            logger.log(Level.SEVERE, "error processing finish syscall event with eventid '"+eventId+"'", e);
+            logger.log(Level.SEVERE, "error processing finish syscall event with eventid '"+eventData.get("eventid")+"'", e);
         }
     }
     
@@ -805,20 +869,14 @@ public class Audit extends AbstractReporter {
     	}
     }
 
-    private void finishEvent64(String eventId) {
+    private void finishEvent64(AuditEventData eventData) {
         try {
             // System call numbers are derived from:
             // http://blog.rchapman.org/post/36801038863/linux-system-call-table-for-x86-64
 
-            if (!eventBuffer.containsKey(eventId)) {
-                logger.log(Level.WARNING, "EOE for eventID {0} received with no prior Event Info", new Object[]{eventId});
-                return;
-            }
-            Map<String, String> eventData = eventBuffer.get(eventId);
             int syscall = Integer.parseInt(eventData.get("syscall"));
 
-            if(log_successful_events_only && "no".equals(eventData.get("success")) && syscall != 62){ //in case the audit log is being read from a user provided file and syscall must not be kill to log units properly
-            	eventBuffer.remove(eventId);
+            if(log_successful_events_only && "no".equals(eventData.get("success")) && syscall != 62 && syscall != 231){ //in case the audit log is being read from a user provided file and syscall must not be kill to log units properly or exit_group to drop process state
             	return;
             }
             
@@ -920,12 +978,14 @@ public class Audit extends AbstractReporter {
                 case 62:
                 	processKill(eventData);
                 	break;
+                case 231: // exit_group()
+                    processExit(eventData);
+                    break;
                 default:
                     break;
             }
-            eventBuffer.remove(eventId);
         } catch (Exception e) {
-            logger.log(Level.SEVERE, "error processing finish syscall event with eventid '"+eventId+"'", e);
+            logger.log(Level.SEVERE, "error processing finish syscall event with eventid '"+eventData.get("eventid")+"'", e);
         }
     }
 
@@ -1780,77 +1840,22 @@ public class Audit extends AbstractReporter {
     }
 
     private Process createProcess(String pid) {
-        // Check if this pid exists in the /proc/ filesystem
-        if ((new java.io.File("/proc/" + pid).exists())) {
-            // The process vertex is created using the proc filesystem.
-            try {
-                Process newProcess = new Process();
-                // order of keys in the status file changed. So, now looping through the file to get the necessary ones
-                int keysGottenCount = 0; //used to stop reading the file once all the required keys have been gotten
-                String line = null, nameline = null, ppidline = null, uidline = null, gidline = null;
-                BufferedReader procReader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
-                while ((line = procReader.readLine()) != null && keysGottenCount < 4) {
-                    String tokens[] = line.split(":");
-                    String key = tokens[0].trim().toLowerCase();
-                    switch (key) {
-                        case "name":
-                            nameline = line;
-                            keysGottenCount++;
-                            break;
-                        case "ppid":
-                            ppidline = line;
-                            keysGottenCount++;
-                            break;
-                        case "uid":
-                            uidline = line;
-                            keysGottenCount++;
-                            break;
-                        case "gid":
-                            gidline = line;
-                            keysGottenCount++;
-                            break;
-                        default:
-                            break;
-                    }
-                }
-                procReader.close();
-
-                BufferedReader statReader = new BufferedReader(new FileReader("/proc/" + pid + "/stat"));
-                String statline = statReader.readLine();
-                statReader.close();
-
-                BufferedReader cmdlineReader = new BufferedReader(new FileReader("/proc/" + pid + "/cmdline"));
-                String cmdline = cmdlineReader.readLine();
-                cmdlineReader.close();
-
-                String stats[] = statline.split("\\s+");
-                long elapsedtime = Long.parseLong(stats[21]) * 10;
-                long starttime = boottime + elapsedtime;
-                String stime_readable = new java.text.SimpleDateFormat(simpleDatePattern).format(new java.util.Date(starttime));
-                String stime = Long.toString(starttime);
-
-                String name = nameline.split("\\s+")[1];
-                String ppid = ppidline.split("\\s+")[1];
-                String uid = uidline.split("\\s+", 2)[1];
-                String gid = gidline.split("\\s+", 2)[1];
-                cmdline = (cmdline == null) ? "" : cmdline.replace("\0", " ").replace("\"", "'").trim();
-
-                newProcess.addAnnotation("name", name);
-                newProcess.addAnnotation("pid", pid);
-                newProcess.addAnnotation("ppid", ppid);
-                newProcess.addAnnotation("uid", uid);
-                newProcess.addAnnotation("gid", gid);
-                // newProcess.addAnnotation("starttime_unix", stime);
-                // newProcess.addAnnotation("starttime_simple", stime_readable);
-                // newProcess.addAnnotation("commandline", cmdline);
-
-                newProcess.addAnnotation(PROC_INFO_SRC_KEY, PROC_INFO_PROCFS);
-                return newProcess;
-            } catch (IOException | NumberFormatException e) {
-                logger.log(Level.WARNING, "unable to create process vertex for pid " + pid + " from /proc/", e);
+        // The process vertex is created using the proc filesystem.
+        try {
+            Map<String, String> status = procfs.readStatus(pid);
+            if (status == null) { // no such pid in the /proc/ filesystem
                 return null;
             }
-        } else {
+            Process newProcess = new Process();
+            newProcess.addAnnotation("name", status.get("name"));
+            newProcess.addAnnotation("pid", pid);
+            newProcess.addAnnotation("ppid", status.get("ppid"));
+            newProcess.addAnnotation("uid", status.get("uid"));
+            newProcess.addAnnotation("gid", status.get("gid"));
+            newProcess.addAnnotation(PROC_INFO_SRC_KEY, PROC_INFO_PROCFS);
+            return newProcess;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "unable to create process vertex for pid " + pid + " from /proc/", e);
             return null;
         }
     }
@@ -1936,61 +1941,4 @@ public class Audit extends AbstractReporter {
     	copy.addAnnotations(process.getAnnotations());
     	return copy;
     }
-      
-    //all records of any event are assumed to be placed contiguously in the file
-    private class BatchReader{
-    	private final Pattern event_line_pattern = Pattern.compile("msg=(audit[()0-9.:]+:)\\s*");
-    	private BufferedReader br = null;
-    	
-    	private boolean EOF = false;
-    	private String nextLine = null;
-    	private String lastMsg = null;
-    	
-    	public BatchReader(BufferedReader br){
-    		this.br = br;
-    	}
-    	
-    	public String readLine() throws IOException{
-    		if(EOF || nextLine != null){
-    			String temp = nextLine;
-    			nextLine = null;
-    			return temp;
-    		}
-    		String line = br.readLine();
-    		if(line == null){
-    			EOF = true;
-    			nextLine = null;
-    			if(lastMsg != null){
-    				return "type=EOE msg="+lastMsg;
-    			}else{
-    				return null;
-    			}    			
-    		} else {
-    			Matcher matcher = event_line_pattern.matcher(line);
-    			if(matcher.find()){
-    				String msg = matcher.group(1);
-    				
-    				if(lastMsg == null){
-    					lastMsg = msg;
-    				}
-    				
-    				if(!msg.equals(lastMsg)){
-    					String tempMsg = lastMsg;
-    					lastMsg = msg;
-    					nextLine = line;
-    					return "type=EOE msg="+tempMsg;
-    				}else{
-    					return line;
-    				}
-    			}else{
-    				return line;
-    			}
-    		}
-    	}
-    	
-    	public void close() throws IOException{
-    		br.close();
-    	}
-    
-    }
 }
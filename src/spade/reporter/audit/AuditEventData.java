@@ -0,0 +1,224 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The key-value pairs of all the records of one audit event. Keys are the
+ * interned strings produced by AuditLineParser, so lookups with string
+ * literals are usually answered by reference comparison. Instances are meant
+ * to be reused through acquire() and release() instead of allocating a
+ * HashMap per event.
+ */
+public final class AuditEventData extends AbstractMap<String, String> {
+
+	private static final int MAXIMUM_POOL_SIZE = 1024;
+	private static final AuditEventData[] pool = new AuditEventData[MAXIMUM_POOL_SIZE];
+	private static int poolSize;
+
+	private String[] keys = new String[32];
+	private String[] values = new String[32];
+	private int size;
+	private long startTime;
+
+	/**
+	 * @return An empty event from the pool or a new one.
+	 */
+	public static AuditEventData acquire(){
+		synchronized(pool){
+			if(poolSize > 0){
+				AuditEventData eventData = pool[--poolSize];
+				pool[poolSize] = null;
+				eventData.startTime = System.currentTimeMillis();
+				return eventData;
+			}
+		}
+		AuditEventData eventData = new AuditEventData();
+		eventData.startTime = System.currentTimeMillis();
+		return eventData;
+	}
+
+	/**
+	 * @return The time at which the event was acquired.
+	 */
+	public long getStartTime(){
+		return startTime;
+	}
+
+	/**
+	 * Returns an event to the pool. The event must not be used afterwards.
+	 *
+	 * @param eventData The event, or null.
+	 */
+	public static void release(AuditEventData eventData){
+		if(eventData == null){
+			return;
+		}
+		eventData.clear();
+		synchronized(pool){
+			if(poolSize < MAXIMUM_POOL_SIZE){
+				pool[poolSize++] = eventData;
+			}
+		}
+	}
+
+	private int indexOf(Object key){
+		for(int i = 0; i < size; i++){
+			if(keys[i] == key){
+				return i;
+			}
+		}
+		if(key != null){
+			for(int i = 0; i < size; i++){
+				if(keys[i].equals(key)){
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int size(){
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object key){
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public String get(Object key){
+		int index = indexOf(key);
+		return index < 0 ? null : values[index];
+	}
+
+	@Override
+	public String put(String key, String value){
+		return putAt(indexOf(key), key, value);
+	}
+
+	/**
+	 * Like put() for keys that are known to be interned, which are compared by
+	 * reference only.
+	 */
+	String putInterned(String key, String value){
+		int index = -1;
+		for(int i = 0; i < size; i++){
+			if(keys[i] == key){
+				index = i;
+				break;
+			}
+		}
+		return putAt(index, key, value);
+	}
+
+	private String putAt(int index, String key, String value){
+		if(index >= 0){
+			String oldValue = values[index];
+			values[index] = value;
+			return oldValue;
+		}
+		if(size == keys.length){
+			keys = Arrays.copyOf(keys, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		keys[size] = key;
+		values[size] = value;
+		size++;
+		return null;
+	}
+
+	@Override
+	public String remove(Object key){
+		int index = indexOf(key);
+		if(index < 0){
+			return null;
+		}
+		String oldValue = values[index];
+		removeAt(index);
+		return oldValue;
+	}
+
+	private void removeAt(int index){
+		size--;
+		keys[index] = keys[size];
+		values[index] = values[size];
+		keys[size] = null;
+		values[size] = null;
+	}
+
+	@Override
+	public void clear(){
+		Arrays.fill(keys, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet(){
+		return new AbstractSet<Map.Entry<String, String>>(){
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator(){
+				return new Iterator<Map.Entry<String, String>>(){
+					private int next = 0;
+					private int last = -1;
+
+					@Override
+					public boolean hasNext(){
+						return next < size;
+					}
+
+					@Override
+					public Map.Entry<String, String> next(){
+						if(next >= size){
+							throw new NoSuchElementException();
+						}
+						last = next++;
+						return new SimpleEntry<String, String>(keys[last], values[last]);
+					}
+
+					@Override
+					public void remove(){
+						if(last < 0){
+							throw new IllegalStateException();
+						}
+						removeAt(last);
+						next = last;
+						last = -1;
+					}
+				};
+			}
+
+			@Override
+			public int size(){
+				return size;
+			}
+		};
+	}
+}
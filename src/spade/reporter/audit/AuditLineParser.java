@@ -0,0 +1,371 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+/**
+ * A single-pass tokenizer for Linux audit records of the form
+ *
+ *   [node=NODE ]type=TYPE msg=audit(TIME:SERIAL): key=value key="value" ...
+ *
+ * that replaces the regular expressions used by the Audit reporter. The
+ * record type and all keys are interned, the event id string is reused while
+ * consecutive records belong to the same event, and the time is only turned
+ * into a string when asked for. Key-value pairs are written directly into an
+ * AuditEventData. An instance keeps the state of the last parsed line and
+ * must only be used by one thread at a time.
+ */
+public final class AuditLineParser {
+
+	public static final String TYPE_SYSCALL = "SYSCALL";
+	public static final String TYPE_EOE = "EOE";
+	public static final String TYPE_CWD = "CWD";
+	public static final String TYPE_PATH = "PATH";
+	public static final String TYPE_EXECVE = "EXECVE";
+	public static final String TYPE_FD_PAIR = "FD_PAIR";
+	public static final String TYPE_SOCKETCALL = "SOCKETCALL";
+	public static final String TYPE_SOCKADDR = "SOCKADDR";
+	public static final String TYPE_PROCTITLE = "PROCTITLE";
+
+	private static final String MESSAGE_START = " msg=audit(";
+
+	private final KeyTable keyTable = new KeyTable();
+
+	private CharSequence line;
+	private String type;
+	private int timeStart, timeEnd;
+	private String eventId;
+	private int dataStart;
+
+	/**
+	 * Parses the header of a record.
+	 *
+	 * @param line The record.
+	 * @return False if the line is not an audit record.
+	 */
+	public boolean parse(CharSequence line){
+		this.line = line;
+		int length = line.length();
+		int typeStart = indexOf(line, "type=", 0);
+		while(typeStart >= 0){
+			if(parseHeaderAt(typeStart + 5, length)){
+				return true;
+			}
+			typeStart = indexOf(line, "type=", typeStart + 1);
+		}
+		return false;
+	}
+
+	private boolean parseHeaderAt(int position, int length){
+		int typeEnd = position;
+		while(typeEnd < length && isWordChar(line.charAt(typeEnd))){
+			typeEnd++;
+		}
+		if(!regionMatches(line, typeEnd, MESSAGE_START)){
+			return false;
+		}
+		int i = typeEnd + MESSAGE_START.length();
+		int newTimeStart = i;
+		while(i < length && (isDigit(line.charAt(i)) || line.charAt(i) == '.')){
+			i++;
+		}
+		if(i == newTimeStart || i >= length || line.charAt(i) != ':'){
+			return false;
+		}
+		int newTimeEnd = i++;
+		int serialStart = i;
+		while(i < length && isDigit(line.charAt(i))){
+			i++;
+		}
+		if(i == serialStart || i + 1 >= length || line.charAt(i) != ')' || line.charAt(i + 1) != ':'){
+			return false;
+		}
+		int serialEnd = i;
+		i += 2;
+		while(i < length && Character.isWhitespace(line.charAt(i))){
+			i++;
+		}
+		type = keyTable.intern("", line, position, typeEnd);
+		timeStart = newTimeStart;
+		timeEnd = newTimeEnd;
+		if(eventId == null || !regionEquals(line, serialStart, serialEnd, eventId)){
+			eventId = line.subSequence(serialStart, serialEnd).toString();
+		}
+		dataStart = i;
+		return true;
+	}
+
+	/**
+	 * @return The interned type of the last record, e.g. TYPE_SYSCALL.
+	 */
+	public String getType(){
+		return type;
+	}
+
+	/**
+	 * @return The event id of the last record.
+	 */
+	public String getEventId(){
+		return eventId;
+	}
+
+	/**
+	 * @return The time of the last record.
+	 */
+	public String getTime(){
+		return line.subSequence(timeStart, timeEnd).toString();
+	}
+
+	/**
+	 * Adds the last record to the event in the way its type requires.
+	 * EOE and PROCTITLE records add nothing.
+	 *
+	 * @param eventData The event to add to.
+	 * @return False if the type of the record is unknown.
+	 */
+	public boolean addRecord(AuditEventData eventData){
+		if(type == TYPE_SYSCALL){
+			addKeyValues(eventData, "");
+			eventData.putInterned("time", getTime());
+		}else if(type == TYPE_CWD){
+			addCwd(eventData);
+		}else if(type == TYPE_PATH){
+			addPath(eventData);
+		}else if(type == TYPE_EXECVE){
+			addKeyValues(eventData, "execve_");
+		}else if(type == TYPE_FD_PAIR || type == TYPE_SOCKADDR){
+			addKeyValues(eventData, "");
+		}else if(type == TYPE_SOCKETCALL){
+			addKeyValues(eventData, "socketcall_");
+		}else if(type == TYPE_PROCTITLE){
+			//event type not being handled at the moment. TO-DO
+		}else if(type != TYPE_EOE){
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds all key-value pairs of the last record to the event.
+	 *
+	 * @param eventData The event to add to.
+	 * @param prefix A prefix for the keys, such as "execve_", or "".
+	 */
+	public void addKeyValues(AuditEventData eventData, String prefix){
+		int length = line.length();
+		int i = dataStart;
+		while(i < length){
+			if(!isWordChar(line.charAt(i))){
+				i++;
+				continue;
+			}
+			int keyStart = i;
+			while(i < length && isWordChar(line.charAt(i))){
+				i++;
+			}
+			if(i >= length || line.charAt(i) != '='){
+				continue;
+			}
+			int keyEnd = i++;
+			boolean quoted = false;
+			while(i < length && line.charAt(i) == '"'){
+				quoted = true;
+				i++;
+			}
+			int valueStart = i;
+			if(quoted){
+				while(i < length && line.charAt(i) != '"'){
+					i++;
+				}
+			}else{
+				while(i < length && !Character.isWhitespace(line.charAt(i))){
+					i++;
+				}
+			}
+			int valueEnd = i;
+			while(i < length && line.charAt(i) == '"'){
+				i++;
+			}
+			if(valueEnd > valueStart){
+				eventData.putInterned(keyTable.intern(prefix, line, keyStart, keyEnd), line.subSequence(valueStart, valueEnd).toString());
+			}
+		}
+	}
+
+	/**
+	 * Adds the quoted cwd of the last record, a CWD record, to the event.
+	 *
+	 * @param eventData The event to add to.
+	 */
+	public void addCwd(AuditEventData eventData){
+		int start = indexOf(line, "cwd=\"", dataStart);
+		if(start < 0){
+			return;
+		}
+		start += 5;
+		int end = start;
+		int length = line.length();
+		while(end < length && line.charAt(end) != '"'){
+			end++;
+		}
+		if(end < length){
+			eventData.putInterned("cwd", line.subSequence(start, end).toString());
+		}
+	}
+
+	/**
+	 * Adds the quoted name of the last record, a PATH record, to the event as
+	 * "path" followed by the item number.
+	 *
+	 * @param eventData The event to add to.
+	 */
+	public void addPath(AuditEventData eventData){
+		int itemStart = indexOf(line, "item=", dataStart);
+		if(itemStart < 0){
+			return;
+		}
+		itemStart += 5;
+		int length = line.length();
+		int itemEnd = itemStart;
+		while(itemEnd < length && isDigit(line.charAt(itemEnd))){
+			itemEnd++;
+		}
+		int nameStart = itemEnd;
+		while(nameStart < length && Character.isWhitespace(line.charAt(nameStart))){
+			nameStart++;
+		}
+		if(!regionMatches(line, nameStart, "name=\"")){
+			return;
+		}
+		nameStart += 6;
+		int nameEnd = nameStart;
+		while(nameEnd < length && line.charAt(nameEnd) != '"'){
+			nameEnd++;
+		}
+		if(nameEnd < length){
+			eventData.putInterned(keyTable.intern("path", line, itemStart, itemEnd), line.subSequence(nameStart, nameEnd).toString());
+		}
+	}
+
+	private static boolean isWordChar(char c){
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	private static boolean isDigit(char c){
+		return c >= '0' && c <= '9';
+	}
+
+	private static int indexOf(CharSequence sequence, String string, int from){
+		int last = sequence.length() - string.length();
+		for(int i = from; i <= last; i++){
+			if(regionMatches(sequence, i, string)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean regionMatches(CharSequence sequence, int offset, String string){
+		if(offset + string.length() > sequence.length()){
+			return false;
+		}
+		for(int i = 0; i < string.length(); i++){
+			if(sequence.charAt(offset + i) != string.charAt(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean regionEquals(CharSequence sequence, int start, int end, String string){
+		return end - start == string.length() && regionMatches(sequence, start, string);
+	}
+
+	/**
+	 * Interns prefix + key without building the string when it is known.
+	 * Keys are looked up by the prefix reference and the characters of the
+	 * key in the line.
+	 */
+	private static final class KeyTable{
+
+		// Beyond this many keys new keys are not interned, which protects
+		// against unbounded growth from malformed input
+		private static final int MAXIMUM_KEYS = 1 << 14;
+
+		private String[] prefixes = new String[256];
+		private String[] rawKeys = new String[256];
+		private String[] fullKeys = new String[256];
+		private int count;
+
+		String intern(String prefix, CharSequence sequence, int start, int end){
+			int hash = prefix.hashCode();
+			for(int i = start; i < end; i++){
+				hash = 31 * hash + sequence.charAt(i);
+			}
+			int mask = fullKeys.length - 1;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while(fullKeys[slot] != null){
+				if(prefixes[slot] == prefix && regionEquals(sequence, start, end, rawKeys[slot])){
+					return fullKeys[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			String rawKey = sequence.subSequence(start, end).toString();
+			String fullKey = (prefix.isEmpty() ? rawKey : prefix + rawKey).intern();
+			if(count >= MAXIMUM_KEYS){
+				return fullKey;
+			}
+			prefixes[slot] = prefix;
+			rawKeys[slot] = rawKey;
+			fullKeys[slot] = fullKey;
+			count++;
+			if(count * 2 > fullKeys.length){
+				grow();
+			}
+			return fullKey;
+		}
+
+		private void grow(){
+			String[] oldPrefixes = prefixes;
+			String[] oldRawKeys = rawKeys;
+			String[] oldFullKeys = fullKeys;
+			prefixes = new String[oldFullKeys.length * 2];
+			rawKeys = new String[oldFullKeys.length * 2];
+			fullKeys = new String[oldFullKeys.length * 2];
+			int mask = fullKeys.length - 1;
+			for(int i = 0; i < oldFullKeys.length; i++){
+				if(oldFullKeys[i] == null){
+					continue;
+				}
+				int hash = oldPrefixes[i].hashCode();
+				String rawKey = oldRawKeys[i];
+				for(int j = 0; j < rawKey.length(); j++){
+					hash = 31 * hash + rawKey.charAt(j);
+				}
+				int slot = (hash ^ (hash >>> 16)) & mask;
+				while(fullKeys[slot] != null){
+					slot = (slot + 1) & mask;
+				}
+				prefixes[slot] = oldPrefixes[i];
+				rawKeys[slot] = rawKey;
+				fullKeys[slot] = oldFullKeys[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,441 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Offline ingest of an audit log file. The file is split into chunks that
+ * start and end on event boundaries, the chunks are memory-mapped and
+ * assembled into events by a pool of threads, and the events of the chunks
+ * are passed to the EventHandler in file order on the thread calling run().
+ *
+ * Records belong to the same event as long as their event id does not
+ * change, so logs without EOE records are handled too. After all events of
+ * a chunk have been handled the offset of the end of the chunk is written to
+ * the checkpoint file, from which an interrupted ingest can be resumed.
+ */
+public class AuditLogIngest {
+
+	private static final Logger logger = Logger.getLogger(AuditLogIngest.class.getName());
+
+	private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+	private static final int SCAN_SIZE = 64 * 1024;
+	private static final long PROGRESS_INTERVAL_MILLIS = 10000;
+	private static final String MESSAGE_START = "msg=audit(";
+
+	private final File logFile;
+	private final File checkpointFile;
+	private final int threads;
+	private final AuditPipeline.EventHandler handler;
+
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param logFile The audit log.
+	 * @param checkpointFile The file to keep the offset of the handled part
+	 * of the log in, or null for no checkpoints.
+	 * @param threads The number of threads assembling chunks.
+	 * @param handler Receives the events in file order.
+	 */
+	public AuditLogIngest(File logFile, File checkpointFile, int threads, AuditPipeline.EventHandler handler){
+		this.logFile = logFile;
+		this.checkpointFile = checkpointFile;
+		this.threads = Math.max(1, threads);
+		this.handler = handler;
+	}
+
+	/**
+	 * @return The offset stored in the checkpoint file, or 0 if there is none.
+	 */
+	public long readCheckpoint(){
+		if(checkpointFile == null || !checkpointFile.exists()){
+			return 0;
+		}
+		try{
+			return Long.parseLong(new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.US_ASCII).trim());
+		}catch(IOException | NumberFormatException e){
+			logger.log(Level.WARNING, "Invalid checkpoint file " + checkpointFile + ". Starting from the beginning", e);
+			return 0;
+		}
+	}
+
+	/**
+	 * Makes run() return after the chunk it is handling.
+	 */
+	public void shutdown(){
+		shutdown = true;
+	}
+
+	/**
+	 * Ingests the log from the given offset to its end.
+	 *
+	 * @param startOffset Offset of the first event to ingest.
+	 * @return True if the end of the log was reached.
+	 * @throws IOException If the log could not be read.
+	 */
+	public boolean run(long startOffset) throws IOException{
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "Audit-Ingest-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try(RandomAccessFile file = new RandomAccessFile(logFile, "r")){
+			FileChannel channel = file.getChannel();
+			long fileSize = channel.size();
+			long startTime = System.currentTimeMillis();
+			long lastReport = startTime;
+			long events = 0;
+			long offset = Math.min(startOffset, fileSize);
+			long handledOffset = offset;
+			if(offset > 0){
+				logger.log(Level.INFO, "Resuming audit log ingest at offset {0} of {1}", new Object[]{offset, fileSize});
+			}
+
+			// Keep a few chunks per thread queued so that no thread waits for
+			// the ordered handling of events
+			ArrayDeque<Future<Chunk>> chunks = new ArrayDeque<Future<Chunk>>();
+			int maximumChunks = threads * 2;
+			while(!shutdown && (offset < fileSize || !chunks.isEmpty())){
+				while(offset < fileSize && chunks.size() < maximumChunks){
+					long end = findEventBoundary(channel, offset + CHUNK_SIZE, fileSize);
+					chunks.add(executor.submit(new Chunk(channel, offset, end)));
+					offset = end;
+				}
+				Chunk chunk;
+				try{
+					chunk = chunks.remove().get();
+				}catch(Exception e){
+					throw new IOException("Failed to assemble audit log chunk", e);
+				}
+				for(AuditEventData eventData : chunk.events){
+					if(shutdown){
+						AuditEventData.release(eventData);
+						continue;
+					}
+					try{
+						handler.handleEvent(eventData);
+					}catch(Exception e){
+						logger.log(Level.SEVERE, null, e);
+					}
+				}
+				if(shutdown){
+					break;
+				}
+				events += chunk.events.size();
+				handledOffset = chunk.end;
+				writeCheckpoint(handledOffset);
+
+				long now = System.currentTimeMillis();
+				if(now - lastReport >= PROGRESS_INTERVAL_MILLIS){
+					lastReport = now;
+					reportProgress(handledOffset - startOffset, handledOffset, fileSize, events, now - startTime);
+				}
+			}
+			for(Future<Chunk> pending : chunks){
+				pending.cancel(true);
+			}
+			reportProgress(handledOffset - startOffset, handledOffset, fileSize, events, System.currentTimeMillis() - startTime);
+			return handledOffset == fileSize;
+		}finally{
+			executor.shutdownNow();
+		}
+	}
+
+	private void reportProgress(long bytes, long offset, long fileSize, long events, long millis){
+		double seconds = Math.max(1, millis) / 1000.0;
+		logger.log(Level.INFO, String.format("Audit log ingest: %d of %d bytes (%.1f%%), %.1f MB/s, %.0f events/s",
+				offset, fileSize, fileSize == 0 ? 100.0 : 100.0 * offset / fileSize, bytes / seconds / (1024 * 1024), events / seconds));
+	}
+
+	private void writeCheckpoint(long offset){
+		if(checkpointFile == null){
+			return;
+		}
+		File temporaryFile = new File(checkpointFile.getPath() + ".tmp");
+		try{
+			try(FileOutputStream out = new FileOutputStream(temporaryFile)){
+				out.write(String.valueOf(offset).getBytes(StandardCharsets.US_ASCII));
+				out.getFD().sync();
+			}
+			Files.move(temporaryFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e){
+			logger.log(Level.WARNING, "Failed to write audit log checkpoint " + checkpointFile, e);
+		}
+	}
+
+	/**
+	 * Finds the start of the first line at or after the given offset whose
+	 * event id differs from that of the line before it.
+	 *
+	 * @return The offset of the boundary, or fileSize if there is none.
+	 */
+	private static long findEventBoundary(FileChannel channel, long from, long fileSize) throws IOException{
+		if(from >= fileSize){
+			return fileSize;
+		}
+		LineScanner scanner = new LineScanner(channel, ByteBuffer.allocate(SCAN_SIZE), fileSize);
+		long lineStart = scanner.startOfNextLine(from);
+		byte[] lastId = null;
+		while(lineStart < fileSize){
+			long lineEnd = scanner.endOfLine(lineStart);
+			byte[] id = scanner.eventId(lineStart, lineEnd);
+			if(id != null){
+				if(lastId != null && !Arrays.equals(id, lastId)){
+					return lineStart;
+				}
+				lastId = id;
+			}else if(lastId == null && lineStart - from > CHUNK_SIZE){
+				// No records at all, any line will do
+				return lineStart;
+			}
+			lineStart = lineEnd + 1;
+		}
+		return fileSize;
+	}
+
+	/**
+	 * Reads lines around an offset through a small window.
+	 */
+	private static final class LineScanner{
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final long fileSize;
+		private long bufferStart = -1;
+
+		LineScanner(FileChannel channel, ByteBuffer buffer, long fileSize){
+			this.channel = channel;
+			this.buffer = buffer;
+			this.fileSize = fileSize;
+		}
+
+		private byte byteAt(long position) throws IOException{
+			if(bufferStart < 0 || position < bufferStart || position >= bufferStart + buffer.limit()){
+				buffer.clear();
+				bufferStart = position;
+				while(buffer.hasRemaining() && channel.read(buffer, bufferStart + buffer.position()) > 0){
+				}
+				buffer.flip();
+			}
+			return buffer.get((int)(position - bufferStart));
+		}
+
+		/**
+		 * @return The position if it is the start of a line, otherwise the
+		 * start of the line after it.
+		 */
+		long startOfNextLine(long position) throws IOException{
+			if(position == 0 || byteAt(position - 1) == '\n'){
+				return position;
+			}
+			return endOfLine(position) + 1;
+		}
+
+		long endOfLine(long position) throws IOException{
+			while(position < fileSize && byteAt(position) != '\n'){
+				position++;
+			}
+			return position;
+		}
+
+		byte[] eventId(long lineStart, long lineEnd) throws IOException{
+			int length = (int)Math.min(lineEnd - lineStart, SCAN_SIZE);
+			byte[] line = new byte[length];
+			for(int i = 0; i < length; i++){
+				line[i] = byteAt(lineStart + i);
+			}
+			int start = indexOf(line, 0, length, MESSAGE_START);
+			if(start < 0){
+				return null;
+			}
+			int end = start + MESSAGE_START.length();
+			while(end < length && line[end] != ')'){
+				end++;
+			}
+			return Arrays.copyOfRange(line, start, end);
+		}
+	}
+
+	private static int indexOf(byte[] bytes, int from, int to, String string){
+		int last = to - string.length();
+		outer:
+		for(int i = from; i <= last; i++){
+			for(int j = 0; j < string.length(); j++){
+				if(bytes[i + j] != string.charAt(j)){
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * A part of the log starting and ending on an event boundary, assembled
+	 * into events.
+	 */
+	private static final class Chunk implements Callable<Chunk>{
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final List<AuditEventData> events = new ArrayList<AuditEventData>();
+
+		Chunk(FileChannel channel, long start, long end){
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public Chunk call() throws IOException{
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			AuditLineParser parser = new AuditLineParser();
+			ByteLine byteLine = new ByteLine(buffer);
+			AuditEventData eventData = null;
+			String eventId = null;
+			int length = buffer.limit();
+			int lineStart = 0;
+			while(lineStart < length){
+				int lineEnd = lineStart;
+				boolean ascii = true;
+				while(lineEnd < length){
+					byte b = buffer.get(lineEnd);
+					if(b == '\n'){
+						break;
+					}
+					if(b < 0){
+						ascii = false;
+					}
+					lineEnd++;
+				}
+				int contentEnd = lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+				CharSequence line;
+				if(ascii){
+					byteLine.set(lineStart, contentEnd);
+					line = byteLine;
+				}else{
+					byte[] bytes = new byte[contentEnd - lineStart];
+					for(int i = 0; i < bytes.length; i++){
+						bytes[i] = buffer.get(lineStart + i);
+					}
+					line = new String(bytes, StandardCharsets.UTF_8);
+				}
+				lineStart = lineEnd + 1;
+
+				if(line.length() == 0){
+					continue;
+				}
+				if(!parser.parse(line)){
+					logger.log(Level.WARNING, "unable to match line: {0}", line);
+					continue;
+				}
+				if(eventData != null && !eventId.equals(parser.getEventId())){
+					events.add(eventData);
+					eventData = null;
+				}
+				if(parser.getType() == AuditLineParser.TYPE_EOE){
+					if(eventData != null){
+						events.add(eventData);
+						eventData = null;
+					}
+					continue;
+				}
+				if(eventData == null){
+					eventId = parser.getEventId();
+					eventData = AuditEventData.acquire();
+					eventData.put("eventid", eventId);
+				}
+				if(!parser.addRecord(eventData)){
+					logger.log(Level.WARNING, "unknown type {0} for message: {1}", new Object[]{parser.getType(), line});
+				}
+			}
+			if(eventData != null){
+				events.add(eventData);
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * An ASCII line in a mapped buffer, read without copying.
+	 */
+	private static final class ByteLine implements CharSequence{
+		private final ByteBuffer buffer;
+		private int start;
+		private int end;
+
+		ByteLine(ByteBuffer buffer){
+			this.buffer = buffer;
+		}
+
+		void set(int start, int end){
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length(){
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index){
+			return (char)buffer.get(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to){
+			char[] chars = new char[to - from];
+			for(int i = 0; i < chars.length; i++){
+				chars[i] = (char)buffer.get(start + from + i);
+			}
+			return new String(chars);
+		}
+
+		@Override
+		public String toString(){
+			return subSequence(0, length()).toString();
+		}
+	}
+}
@@ -0,0 +1,373 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Turns audit records into events in stages that run on separate threads:
+ *
+ * 1) The reader thread calls submit() for every line. It only locates the
+ * event id of the line and hands the line, in batches, to the assembly shard
+ * that owns that event id.
+ * 2) Each assembly shard tokenizes its lines with its own AuditLineParser and
+ * collects the records of its events. When the EOE record of an event
+ * arrives, the event is complete.
+ * 3) A single ordered stage receives the completed events and passes them to
+ * the EventHandler in the order in which their EOE records were submitted,
+ * which is the order in which a single-threaded parser would have finished
+ * them. All stateful syscall processing therefore stays sequential.
+ *
+ * The queues between the stages are bounded, so a slow stage slows the
+ * reader down instead of buffering without limit. Events whose EOE record
+ * does not arrive within the event timeout are dropped.
+ */
+public class AuditPipeline {
+
+	/**
+	 * Receives completed events on the ordered stage thread.
+	 */
+	public interface EventHandler{
+		/**
+		 * @param eventData The records of the event. Owned by the handler,
+		 * which should release it when done.
+		 */
+		void handleEvent(AuditEventData eventData);
+	}
+
+	private static final Logger logger = Logger.getLogger(AuditPipeline.class.getName());
+
+	private static final int BATCH_SIZE = 256;
+	private static final String MESSAGE_START = " msg=audit(";
+	private static final String EOE_PREFIX = "type=EOE";
+	private static final long NOT_AN_EOE = -1;
+	private static final long POLL_TIMEOUT_MILLIS = 100;
+
+	private final EventHandler handler;
+	private final long eventTimeoutMillis;
+	private final Shard[] shards;
+	private final Thread orderedThread;
+	private final BlockingQueue<CompletedEvent> completedQueue;
+
+	// Only used by the thread calling submit()
+	private final Batch[] openBatches;
+	private long nextSequence = 0;
+	private long submittedLines = 0;
+
+	private final AtomicLong processedLines = new AtomicLong();
+	private final AtomicLong expiredEvents = new AtomicLong();
+	private volatile long handledEvents = 0;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param threads Number of assembly shards, at least one.
+	 * @param queueCapacity Maximum number of batches waiting for each shard.
+	 * @param eventTimeoutMillis Time after which an incomplete event is
+	 * dropped, or 0 to keep incomplete events.
+	 * @param handler Receives completed events in order.
+	 */
+	public AuditPipeline(int threads, int queueCapacity, long eventTimeoutMillis, EventHandler handler){
+		this.handler = handler;
+		this.eventTimeoutMillis = eventTimeoutMillis;
+		int shardCount = Math.max(1, threads);
+		shards = new Shard[shardCount];
+		openBatches = new Batch[shardCount];
+		completedQueue = new ArrayBlockingQueue<CompletedEvent>(Math.max(1, queueCapacity) * BATCH_SIZE);
+		for(int i = 0; i < shardCount; i++){
+			shards[i] = new Shard(queueCapacity);
+			shards[i].setName("Audit-Assembly-" + i);
+			shards[i].setDaemon(true);
+			shards[i].start();
+			openBatches[i] = new Batch();
+		}
+		orderedThread = new Thread(new Runnable(){
+			public void run(){
+				runOrderedStage();
+			}
+		}, "Audit-Events");
+		orderedThread.setDaemon(true);
+		orderedThread.start();
+	}
+
+	/**
+	 * Hands a line to its assembly shard. Must only be called by one thread.
+	 * Lines are batched, so flush() should be called when no more input is
+	 * immediately available.
+	 *
+	 * @param line An audit record.
+	 * @throws InterruptedException If interrupted while the shard is full.
+	 */
+	public void submit(String line) throws InterruptedException{
+		int messageStart = line.indexOf(MESSAGE_START);
+		int shard = 0;
+		long sequence = NOT_AN_EOE;
+		if(messageStart >= 0){
+			shard = (eventIdHash(line, messageStart + MESSAGE_START.length()) & Integer.MAX_VALUE) % shards.length;
+			if(messageStart >= EOE_PREFIX.length() && line.startsWith(EOE_PREFIX, messageStart - EOE_PREFIX.length())){
+				sequence = nextSequence++;
+			}
+		}
+		Batch batch = openBatches[shard];
+		batch.add(line, sequence);
+		submittedLines++;
+		if(batch.size == BATCH_SIZE){
+			offer(shards[shard].queue, batch);
+			openBatches[shard] = new Batch();
+		}
+	}
+
+	/**
+	 * Hands all partially filled batches to their shards.
+	 *
+	 * @throws InterruptedException If interrupted while a shard is full.
+	 */
+	public void flush() throws InterruptedException{
+		for(int i = 0; i < shards.length; i++){
+			if(openBatches[i].size > 0){
+				offer(shards[i].queue, openBatches[i]);
+				openBatches[i] = new Batch();
+			}
+		}
+	}
+
+	/**
+	 * Puts an element into a full queue as soon as there is space, unless
+	 * the pipeline is shut down in the meantime.
+	 */
+	private <T> boolean offer(BlockingQueue<T> queue, T element) throws InterruptedException{
+		while(!shutdown){
+			if(queue.offer(element, POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Must only be called by the thread calling submit().
+	 *
+	 * @return True if every flushed line has been assembled and every
+	 * completed event has been handled.
+	 */
+	public boolean isIdle(){
+		long pendingLines = 0;
+		for(Batch batch : openBatches){
+			pendingLines += batch.size;
+		}
+		return processedLines.get() == submittedLines - pendingLines && handledEvents == nextSequence;
+	}
+
+	/**
+	 * @return The number of incomplete events held by the shards and the
+	 * number of events dropped because they timed out.
+	 */
+	public String getMetrics(){
+		long incompleteEvents = 0;
+		for(Shard shard : shards){
+			incompleteEvents += shard.incompleteEvents;
+		}
+		return "incompleteEvents: size=" + incompleteEvents + ", expired=" + expiredEvents.get();
+	}
+
+	/**
+	 * Stops all stages. Events that have not been handled yet are dropped.
+	 */
+	public void shutdown(){
+		shutdown = true;
+		try{
+			for(Shard shard : shards){
+				shard.join();
+			}
+			orderedThread.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static int eventIdHash(String line, int position){
+		int length = line.length();
+		while(position < length && line.charAt(position) != ':'){
+			position++;
+		}
+		int hash = 0;
+		for(position++; position < length; position++){
+			char c = line.charAt(position);
+			if(c < '0' || c > '9'){
+				break;
+			}
+			hash = 31 * hash + c;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private void runOrderedStage(){
+		Map<Long, CompletedEvent> outOfOrder = new HashMap<Long, CompletedEvent>();
+		long expected = 0;
+		while(!shutdown){
+			CompletedEvent completedEvent;
+			try{
+				completedEvent = completedQueue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			}catch(InterruptedException e){
+				break;
+			}
+			if(completedEvent == null){
+				continue;
+			}
+			outOfOrder.put(completedEvent.sequence, completedEvent);
+			while((completedEvent = outOfOrder.remove(expected)) != null){
+				if(completedEvent.eventData != null){
+					try{
+						handler.handleEvent(completedEvent.eventData);
+					}catch(Exception e){
+						logger.log(Level.SEVERE, null, e);
+					}
+				}
+				expected++;
+				handledEvents = expected;
+			}
+		}
+	}
+
+	private static final class Batch{
+		final String[] lines = new String[BATCH_SIZE];
+		final long[] sequences = new long[BATCH_SIZE];
+		int size;
+
+		void add(String line, long sequence){
+			lines[size] = line;
+			sequences[size] = sequence;
+			size++;
+		}
+	}
+
+	private static final class CompletedEvent{
+		final long sequence;
+		final AuditEventData eventData;
+
+		CompletedEvent(long sequence, AuditEventData eventData){
+			this.sequence = sequence;
+			this.eventData = eventData;
+		}
+	}
+
+	private final class Shard extends Thread{
+
+		final BlockingQueue<Batch> queue;
+		private final AuditLineParser parser = new AuditLineParser();
+		// Event buffer map based on <audit_record_id <key, value>> pairs, in
+		// the order in which the events started
+		private final LinkedHashMap<String, AuditEventData> eventBuffer = new LinkedHashMap<String, AuditEventData>();
+		private volatile int incompleteEvents;
+
+		Shard(int queueCapacity){
+			queue = new ArrayBlockingQueue<Batch>(Math.max(1, queueCapacity));
+		}
+
+		@Override
+		public void run(){
+			try{
+				while(!shutdown){
+					Batch batch = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+					expireEvents();
+					if(batch == null){
+						continue;
+					}
+					for(int i = 0; i < batch.size; i++){
+						AuditEventData eventData = null;
+						try{
+							eventData = assemble(batch.lines[i], batch.sequences[i] != NOT_AN_EOE);
+						}catch(Exception e){
+							logger.log(Level.SEVERE, null, e);
+						}
+						if(batch.sequences[i] != NOT_AN_EOE){
+							offer(completedQueue, new CompletedEvent(batch.sequences[i], eventData));
+						}
+						processedLines.incrementAndGet();
+					}
+					incompleteEvents = eventBuffer.size();
+				}
+			}catch(InterruptedException e){
+				// Stopped
+			}
+		}
+
+		/**
+		 * Drops the events that started more than the event timeout ago.
+		 */
+		private void expireEvents(){
+			if(eventTimeoutMillis <= 0){
+				return;
+			}
+			long expiryTime = System.currentTimeMillis() - eventTimeoutMillis;
+			Iterator<AuditEventData> iterator = eventBuffer.values().iterator();
+			while(iterator.hasNext()){
+				AuditEventData eventData = iterator.next();
+				if(eventData.getStartTime() > expiryTime){
+					break;
+				}
+				logger.log(Level.WARNING, "dropping event {0} with no EOE record", eventData.get("eventid"));
+				iterator.remove();
+				AuditEventData.release(eventData);
+				expiredEvents.incrementAndGet();
+			}
+			incompleteEvents = eventBuffer.size();
+		}
+
+		/**
+		 * @return The completed event if the line is its EOE record.
+		 */
+		private AuditEventData assemble(String line, boolean endOfEvent){
+			if(!parser.parse(line)){
+				logger.log(Level.WARNING, "unable to match line: {0}", line);
+				return null;
+			}
+			String type = parser.getType();
+			String eventId = parser.getEventId();
+
+			AuditEventData eventData = eventBuffer.get(eventId);
+			if(eventData == null){
+				if(endOfEvent){
+					// Nothing left of the event, e.g. because it timed out
+					return null;
+				}
+				eventData = AuditEventData.acquire();
+				eventData.put("eventid", eventId);
+				eventBuffer.put(eventId, eventData);
+			}
+
+			if(endOfEvent){
+				return eventBuffer.remove(eventId);
+			}
+			if(!parser.addRecord(eventData)){
+				logger.log(Level.WARNING, "unknown type {0} for message: {1}", new Object[]{type, line});
+			}
+			return null;
+		}
+	}
+}
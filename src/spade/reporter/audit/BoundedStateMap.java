@@ -0,0 +1,144 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import spade.utility.Fingerprint;
+import spade.utility.FingerprintIndex;
+
+/**
+ * A map for reporter state that keeps at most a fixed number of entries in
+ * memory. The least recently used entry is evicted when the map is full.
+ * Evicted entries are either dropped or written to a SpillStore, from which
+ * they are read back on the next lookup.
+ */
+public class BoundedStateMap<K, V> extends LinkedHashMap<K, V> {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Keeps evicted entries outside of the heap.
+	 */
+	public interface SpillStore<K, V>{
+		void write(K key, V value);
+
+		/**
+		 * @return The value last written for the key, or null.
+		 */
+		V read(K key);
+	}
+
+	private final String name;
+	private final int maximumSize;
+	private final SpillStore<K, V> spillStore;
+
+	private long evictions;
+	private long spillReads;
+
+	/**
+	 * @param name Name of the map in the metrics.
+	 * @param maximumSize Maximum number of entries kept in memory.
+	 * @param spillStore Receives evicted entries, or null to drop them.
+	 */
+	public BoundedStateMap(String name, int maximumSize, SpillStore<K, V> spillStore){
+		super(16, 0.75f, true);
+		this.name = name;
+		this.maximumSize = Math.max(1, maximumSize);
+		this.spillStore = spillStore;
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<K, V> eldest){
+		if(size() <= maximumSize){
+			return false;
+		}
+		evictions++;
+		if(spillStore != null){
+			spillStore.write(eldest.getKey(), eldest.getValue());
+		}
+		return true;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key){
+		V value = super.get(key);
+		if(value == null && spillStore != null && key != null){
+			value = spillStore.read((K)key);
+			if(value != null){
+				spillReads++;
+				super.put((K)key, value);
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(Object key){
+		return super.containsKey(key) || (spillStore != null && get(key) != null);
+	}
+
+	/**
+	 * @return The entries in memory, the limit, the number of evicted entries
+	 * and the number of entries read back from the spill store.
+	 */
+	public String getMetrics(){
+		return name + ": size=" + size() + "/" + maximumSize + ", evictions=" + evictions
+				+ (spillStore == null ? "" : ", spill reads=" + spillReads);
+	}
+
+	/**
+	 * Spills ArtifactInfo keyed state with numeric values into a
+	 * FingerprintIndex. The index may be shared by several maps with
+	 * different namespaces.
+	 */
+	public static abstract class ArtifactSpillStore<V extends Number> implements SpillStore<ArtifactInfo, V>{
+
+		private final FingerprintIndex index;
+		private final String namespace;
+
+		public ArtifactSpillStore(FingerprintIndex index, String namespace){
+			this.index = index;
+			this.namespace = namespace;
+		}
+
+		private Fingerprint fingerprint(ArtifactInfo artifactInfo){
+			return Fingerprint.of(namespace + '\0' + artifactInfo.getClass().getName() + '\0' + artifactInfo.getStringFormattedValue());
+		}
+
+		@Override
+		public void write(ArtifactInfo key, V value){
+			index.put(fingerprint(key), value.longValue());
+		}
+
+		@Override
+		public V read(ArtifactInfo key){
+			long value = index.get(fingerprint(key));
+			return value == FingerprintIndex.ABSENT ? null : valueOf(value);
+		}
+
+		/**
+		 * Converts a stored value back into the type of the map.
+		 */
+		protected abstract V valueOf(long value);
+	}
+}
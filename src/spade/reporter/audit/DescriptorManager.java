@@ -19,39 +19,54 @@
  */
 package spade.reporter.audit;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * The open descriptors of every process. Processes are kept in an open
+ * addressing table keyed by the numeric pid and their descriptors in arrays
+ * indexed by the numeric fd, so lookups do not hash strings or allocate.
+ * Processes that share their descriptors (clone) share one table. A copied
+ * table (fork) shares the arrays of the original until either of them is
+ * changed.
+ */
 public class DescriptorManager {
 
-	private Map<String, Map<String, ArtifactInfo>> descriptors = new HashMap<>();
+	private static final int INITIAL_PIDS = 1024;
+	private static final int INITIAL_FDS = 64;
+	// Larger, negative or non-numeric fds are kept in a map
+	private static final int MAXIMUM_ARRAY_FD = 1 << 16;
+
+	private int[] pids = new int[INITIAL_PIDS];
+	private DescriptorTable[] tables = new DescriptorTable[INITIAL_PIDS];
+	private int pidCount = 0;
+	// Pids that are not numbers
+	private final Map<String, DescriptorTable> otherPids = new HashMap<String, DescriptorTable>();
 	
 	public void addDescriptor(String pid, String fd, ArtifactInfo artifactInfo){
-		if(descriptors.get(pid) == null){
-			descriptors.put(pid, new HashMap<String, ArtifactInfo>());
-		}
-		descriptors.get(pid).put(fd, artifactInfo);
+		getOrCreateTable(pid).put(fd, artifactInfo);
 	}
 	
 	public void addDescriptors(String pid, Map<String, ArtifactInfo> newDescriptors){
-		if(descriptors.get(pid) == null){
-			descriptors.put(pid, new HashMap<String, ArtifactInfo>());
+		DescriptorTable table = getOrCreateTable(pid);
+		for(Map.Entry<String, ArtifactInfo> entry : newDescriptors.entrySet()){
+			table.put(entry.getKey(), entry.getValue());
 		}
-		descriptors.get(pid).putAll(newDescriptors);
 	}
 	
 	public ArtifactInfo removeDescriptor(String pid, String fd){
-		if(descriptors.get(pid) == null){
+		DescriptorTable table = getTable(pid);
+		if(table == null){
 			return null;
 		}
-		return descriptors.get(pid).remove(fd);
+		return table.remove(fd);
 	}
 	
 	public ArtifactInfo getDescriptor(String pid, String fd){
-		if(descriptors.get(pid) == null){
-			descriptors.put(pid, new HashMap<String, ArtifactInfo>());
-		}
-		if(descriptors.get(pid).get(fd) == null){
+		DescriptorTable table = getOrCreateTable(pid);
+		ArtifactInfo artifactInfo = table.get(fd);
+		if(artifactInfo == null){
 			String path = null;
 			if("0".equals(fd)){
 	    		path = "stdin";
@@ -61,30 +76,270 @@ public class DescriptorManager {
 	    		path = "stderr";
 	    	}
 			if(path != null){
-				descriptors.get(pid).put(fd, new FileInfo(path));
+				artifactInfo = new FileInfo(path);
+				table.put(fd, artifactInfo);
 			}
 		}
-		return descriptors.get(pid).get(fd);
+		return artifactInfo;
 	}
 	
+	/**
+	 * Copies the descriptors of one process into another, as fork does. If
+	 * the other process has no table yet this takes constant time.
+	 */
 	public void copyDescriptors(String fromPid, String toPid){
-		if(descriptors.get(fromPid) == null){
+		DescriptorTable from = getTable(fromPid);
+		if(from == null){
 			return;
 		}
-		descriptors.get(toPid).putAll(descriptors.get(fromPid));
+		DescriptorTable to = getTable(toPid);
+		if(to == null){
+			putTable(toPid, from.copy());
+		}else{
+			to.putAll(from);
+		}
 	}
 	
+	/**
+	 * Makes two processes share one table, as clone with CLONE_FILES does.
+	 */
 	public void linkDescriptors(String fromPid, String toPid){
-		if(descriptors.get(fromPid) == null){
-			descriptors.put(fromPid, new HashMap<String, ArtifactInfo>());
-		}
-		descriptors.put(toPid, descriptors.get(fromPid));
+		putTable(toPid, getOrCreateTable(fromPid));
 	}
 	
+	/**
+	 * Gives a process its own copy of a table it shares with others.
+	 */
 	public void unlinkDescriptors(String pid){
-		if(descriptors.get(pid) == null){
+		DescriptorTable table = getTable(pid);
+		if(table == null){
+			return;
+		}
+		putTable(pid, table.copy());
+	}
+	
+	/**
+	 * Drops the descriptors of a process that has exited. Descriptors shared
+	 * with other processes through linkDescriptors stay with those.
+	 */
+	public void removeDescriptors(String pid){
+		int key = parseNonNegative(pid);
+		if(key < 0){
+			otherPids.remove(pid);
+			return;
+		}
+		int mask = pids.length - 1;
+		int slot = slotOf(key);
+		while(tables[slot] != null){
+			if(pids[slot] == key){
+				tables[slot] = null;
+				pidCount--;
+				// Reinsert the rest of the cluster so that lookups still find it
+				slot = (slot + 1) & mask;
+				while(tables[slot] != null){
+					int movedPid = pids[slot];
+					DescriptorTable movedTable = tables[slot];
+					tables[slot] = null;
+					pidCount--;
+					insert(movedPid, movedTable);
+					slot = (slot + 1) & mask;
+				}
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	public int getPidCount(){
+		return pidCount + otherPids.size();
+	}
+
+	private DescriptorTable getTable(String pid){
+		int key = parseNonNegative(pid);
+		if(key < 0){
+			return otherPids.get(pid);
+		}
+		int mask = pids.length - 1;
+		for(int slot = slotOf(key); tables[slot] != null; slot = (slot + 1) & mask){
+			if(pids[slot] == key){
+				return tables[slot];
+			}
+		}
+		return null;
+	}
+
+	private DescriptorTable getOrCreateTable(String pid){
+		DescriptorTable table = getTable(pid);
+		if(table == null){
+			table = new DescriptorTable();
+			putTable(pid, table);
+		}
+		return table;
+	}
+
+	private void putTable(String pid, DescriptorTable table){
+		int key = parseNonNegative(pid);
+		if(key < 0){
+			otherPids.put(pid, table);
 			return;
 		}
-		descriptors.put(pid, new HashMap<String, ArtifactInfo>(descriptors.get(pid)));
+		insert(key, table);
+	}
+
+	private void insert(int pid, DescriptorTable table){
+		int mask = pids.length - 1;
+		int slot = slotOf(pid);
+		while(tables[slot] != null){
+			if(pids[slot] == pid){
+				tables[slot] = table;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		pids[slot] = pid;
+		tables[slot] = table;
+		pidCount++;
+		if(pidCount * 2 > pids.length){
+			int[] oldPids = pids;
+			DescriptorTable[] oldTables = tables;
+			pids = new int[oldPids.length * 2];
+			tables = new DescriptorTable[oldTables.length * 2];
+			pidCount = 0;
+			for(int i = 0; i < oldTables.length; i++){
+				if(oldTables[i] != null){
+					insert(oldPids[i], oldTables[i]);
+				}
+			}
+		}
+	}
+
+	private int slotOf(int pid){
+		int hash = pid * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & (pids.length - 1);
+	}
+
+	/**
+	 * Parses a decimal number without allocating.
+	 *
+	 * @return The number, or -1 if the string is not a non-negative int in
+	 * its shortest form.
+	 */
+	static int parseNonNegative(String string){
+		int length = string.length();
+		if(length == 0 || length > 9 || (length > 1 && string.charAt(0) == '0')){
+			return -1;
+		}
+		int value = 0;
+		for(int i = 0; i < length; i++){
+			char c = string.charAt(i);
+			if(c < '0' || c > '9'){
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * The descriptors of one process, or of several processes that share
+	 * them. The storage may be shared with copies of this table, so it is
+	 * copied before the first change.
+	 */
+	private static final class DescriptorTable{
+
+		private Storage storage;
+
+		DescriptorTable(){
+			storage = new Storage();
+		}
+
+		private DescriptorTable(Storage storage){
+			this.storage = storage;
+			storage.sharers++;
+		}
+
+		DescriptorTable copy(){
+			return new DescriptorTable(storage);
+		}
+
+		ArtifactInfo get(String fd){
+			int key = parseNonNegative(fd);
+			if(key < 0 || key >= MAXIMUM_ARRAY_FD){
+				return storage.others == null ? null : storage.others.get(fd);
+			}
+			return key < storage.byFd.length ? storage.byFd[key] : null;
+		}
+
+		void put(String fd, ArtifactInfo artifactInfo){
+			if(artifactInfo == null){
+				remove(fd);
+				return;
+			}
+			Storage writable = writable();
+			int key = parseNonNegative(fd);
+			if(key < 0 || key >= MAXIMUM_ARRAY_FD){
+				if(writable.others == null){
+					writable.others = new HashMap<String, ArtifactInfo>();
+				}
+				writable.others.put(fd, artifactInfo);
+				return;
+			}
+			if(key >= writable.byFd.length){
+				writable.byFd = Arrays.copyOf(writable.byFd, Math.min(MAXIMUM_ARRAY_FD, Math.max(key + 1, writable.byFd.length * 2)));
+			}
+			writable.byFd[key] = artifactInfo;
+		}
+
+		ArtifactInfo remove(String fd){
+			if(get(fd) == null){
+				return null;
+			}
+			Storage writable = writable();
+			int key = parseNonNegative(fd);
+			ArtifactInfo removed;
+			if(key < 0 || key >= MAXIMUM_ARRAY_FD){
+				removed = writable.others.remove(fd);
+			}else{
+				removed = writable.byFd[key];
+				writable.byFd[key] = null;
+			}
+			return removed;
+		}
+
+		void putAll(DescriptorTable from){
+			Storage source = from.storage;
+			for(int fd = 0; fd < source.byFd.length; fd++){
+				if(source.byFd[fd] != null){
+					put(String.valueOf(fd), source.byFd[fd]);
+				}
+			}
+			if(source.others != null){
+				for(Map.Entry<String, ArtifactInfo> entry : source.others.entrySet()){
+					put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+
+		private Storage writable(){
+			if(storage.sharers > 0){
+				storage.sharers--;
+				storage = storage.copy();
+			}
+			return storage;
+		}
+	}
+
+	private static final class Storage{
+		ArtifactInfo[] byFd = new ArtifactInfo[INITIAL_FDS];
+		Map<String, ArtifactInfo> others;
+		// Number of other tables using this storage
+		int sharers;
+
+		Storage copy(){
+			Storage copy = new Storage();
+			copy.byFd = byFd.clone();
+			copy.others = others == null ? null : new HashMap<String, ArtifactInfo>(others);
+			return copy;
+		}
 	}
 }
@@ -0,0 +1,389 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads process information directly from the proc filesystem instead of
+ * running lsof. Files are read into small per-thread buffers that are
+ * reused. The sockets listed in /proc/net are cached by inode for a short
+ * time since many descriptors are usually resolved together. Instances may
+ * be used by several threads.
+ */
+public class ProcfsReader {
+
+	private static final String PROC = "/proc";
+	private static final String[] INET_TABLES = {"tcp", "udp", "tcp6", "udp6"};
+	private static final long SOCKET_CACHE_TTL_MILLIS = 1000;
+	// A socket that is not in the cache is looked up again only after this
+	private static final long SOCKET_CACHE_MINIMUM_AGE_MILLIS = 100;
+	private static final String DELETED_SUFFIX = " (deleted)";
+
+	private static final int S_IFMT = 0170000;
+	private static final int S_IFREG = 0100000;
+	private static final int S_IFCHR = 0020000;
+	private static final int S_IFIFO = 0010000;
+
+	private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>(){
+		@Override
+		protected byte[] initialValue(){
+			return new byte[4096];
+		}
+	};
+
+	private Map<Long, ArtifactInfo> socketsByInode = new HashMap<Long, ArtifactInfo>();
+	private long socketsLoadTime = 0;
+
+	/**
+	 * Reads the name, ppid, uid and gid lines of /proc/[pid]/status. The
+	 * values are formatted as before: the name and ppid are the first word of
+	 * their line and uid and gid are the rest of their line.
+	 *
+	 * @param pid The process.
+	 * @return The values by those keys, or null if the process does not exist.
+	 * @throws IOException If the file could not be read.
+	 */
+	public Map<String, String> readStatus(String pid) throws IOException{
+		File statusFile = new File(PROC + "/" + pid + "/status");
+		if(!statusFile.exists()){
+			return null;
+		}
+		int length = readFile(statusFile);
+		byte[] buffer = buffers.get();
+		Map<String, String> status = new HashMap<String, String>();
+		int lineStart = 0;
+		while(lineStart < length && status.size() < 4){
+			int lineEnd = indexOf(buffer, lineStart, length, (byte)'\n');
+			String key = null;
+			boolean firstWord = false;
+			if(startsWith(buffer, lineStart, lineEnd, "Name:")){
+				key = "name";
+				firstWord = true;
+			}else if(startsWith(buffer, lineStart, lineEnd, "PPid:")){
+				key = "ppid";
+				firstWord = true;
+			}else if(startsWith(buffer, lineStart, lineEnd, "Uid:")){
+				key = "uid";
+			}else if(startsWith(buffer, lineStart, lineEnd, "Gid:")){
+				key = "gid";
+			}
+			if(key != null){
+				int valueStart = indexOf(buffer, lineStart, lineEnd, (byte)':') + 1;
+				while(valueStart < lineEnd && isWhitespace(buffer[valueStart])){
+					valueStart++;
+				}
+				int valueEnd = valueStart;
+				while(valueEnd < lineEnd && !(firstWord && isWhitespace(buffer[valueEnd]))){
+					valueEnd++;
+				}
+				status.put(key, new String(buffer, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8));
+			}
+			lineStart = lineEnd + 1;
+		}
+		return status;
+	}
+
+	/**
+	 * Resolves the open file descriptors of a process the way lsof output was
+	 * interpreted: regular files and character devices as files, named and
+	 * unnamed pipes as pipes, and internet and named unix sockets as sockets.
+	 * Other descriptors are left out.
+	 *
+	 * @param pid The process.
+	 * @return Descriptor number to artifact. Empty if the process is gone.
+	 */
+	public Map<String, ArtifactInfo> readFileDescriptors(String pid){
+		Map<String, ArtifactInfo> fds = new HashMap<String, ArtifactInfo>();
+		String fdDirectory = PROC + "/" + pid + "/fd";
+		String[] names = new File(fdDirectory).list();
+		if(names == null){
+			return fds;
+		}
+		// In increasing order, so the pipe end with the higher number is
+		// paired with the lower one as lsof listed them
+		int[] numbers = new int[names.length];
+		int count = 0;
+		for(String name : names){
+			try{
+				numbers[count] = Integer.parseInt(name);
+				count++;
+			}catch(NumberFormatException e){
+				// Not a descriptor
+			}
+		}
+		Arrays.sort(numbers, 0, count);
+
+		Map<String, String> unpairedPipes = new HashMap<String, String>();
+		for(int i = 0; i < count; i++){
+			String fd = String.valueOf(numbers[i]);
+			Path fdPath = Paths.get(fdDirectory, fd);
+			String target;
+			try{
+				target = Files.readSymbolicLink(fdPath).toString();
+			}catch(IOException | UnsupportedOperationException e){
+				// Closed in the meantime
+				continue;
+			}
+			if(target.startsWith("pipe:[")){
+				String inode = target.substring(6, target.length() - 1);
+				String otherFd = unpairedPipes.remove(inode);
+				if(otherFd == null){
+					unpairedPipes.put(inode, fd);
+				}else{
+					ArtifactInfo pipeInfo = new PipeInfo(fd, otherFd);
+					fds.put(fd, pipeInfo);
+					fds.put(otherFd, pipeInfo);
+				}
+			}else if(target.startsWith("socket:[")){
+				try{
+					ArtifactInfo socketInfo = getSocket(Long.parseLong(target.substring(8, target.length() - 1)));
+					if(socketInfo != null){
+						fds.put(fd, socketInfo);
+					}
+				}catch(NumberFormatException e){
+					// Not a socket inode
+				}
+			}else if(target.startsWith("/")){
+				if(target.endsWith(DELETED_SUFFIX)){
+					target = target.substring(0, target.length() - DELETED_SUFFIX.length());
+				}
+				int mode;
+				try{
+					mode = (Integer)Files.getAttribute(fdPath, "unix:mode");
+				}catch(IOException | UnsupportedOperationException | IllegalArgumentException e){
+					continue;
+				}
+				int type = mode & S_IFMT;
+				if(type == S_IFREG || type == S_IFCHR){
+					fds.put(fd, new FileInfo(target));
+				}else if(type == S_IFIFO){
+					fds.put(fd, new PipeInfo(target));
+				}
+			}
+		}
+		return fds;
+	}
+
+	/**
+	 * @param inode The inode of a socket.
+	 * @return The internet or named unix socket with the inode, or null.
+	 */
+	public synchronized ArtifactInfo getSocket(long inode){
+		long age = System.currentTimeMillis() - socketsLoadTime;
+		if(age > SOCKET_CACHE_TTL_MILLIS || (age > SOCKET_CACHE_MINIMUM_AGE_MILLIS && !socketsByInode.containsKey(inode))){
+			loadSockets();
+		}
+		return socketsByInode.get(inode);
+	}
+
+	private void loadSockets(){
+		Map<Long, ArtifactInfo> sockets = new HashMap<Long, ArtifactInfo>();
+		for(String table : INET_TABLES){
+			try{
+				loadInetSockets(new File(PROC + "/net/" + table), sockets);
+			}catch(IOException e){
+				// Protocol not available
+			}
+		}
+		try{
+			loadUnixSockets(new File(PROC + "/net/unix"), sockets);
+		}catch(IOException e){
+			// Protocol not available
+		}
+		socketsByInode = sockets;
+		socketsLoadTime = System.currentTimeMillis();
+	}
+
+	// Columns: sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode
+	private void loadInetSockets(File table, Map<Long, ArtifactInfo> sockets) throws IOException{
+		int length = readFile(table);
+		byte[] buffer = buffers.get();
+		int lineStart = indexOf(buffer, 0, length, (byte)'\n') + 1;
+		int[] columns = new int[20];
+		while(lineStart < length){
+			int lineEnd = indexOf(buffer, lineStart, length, (byte)'\n');
+			int columnCount = split(buffer, lineStart, lineEnd, columns);
+			if(columnCount >= 10){
+				int address = columns[2];
+				int colon = indexOf(buffer, address, columns[3], (byte)':');
+				String host = formatAddress(buffer, address, colon);
+				String port = String.valueOf(parseHex(buffer, colon + 1, columns[3]));
+				long inode = parseDecimal(buffer, columns[18], columns[19]);
+				if(host != null && inode != 0){
+					sockets.put(inode, new SocketInfo(host, port));
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	// Columns: Num RefCount Protocol Flags Type St Inode Path
+	private void loadUnixSockets(File table, Map<Long, ArtifactInfo> sockets) throws IOException{
+		int length = readFile(table);
+		byte[] buffer = buffers.get();
+		int lineStart = indexOf(buffer, 0, length, (byte)'\n') + 1;
+		int[] columns = new int[20];
+		while(lineStart < length){
+			int lineEnd = indexOf(buffer, lineStart, length, (byte)'\n');
+			int columnCount = split(buffer, lineStart, lineEnd, columns);
+			if(columnCount >= 8){
+				long inode = parseDecimal(buffer, columns[12], columns[13]);
+				String path = new String(buffer, columns[14], lineEnd - columns[14], StandardCharsets.UTF_8).trim();
+				if(inode != 0 && !path.isEmpty()){
+					sockets.put(inode, new UnixSocketInfo(path));
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	/**
+	 * Formats an address from the kernel's hex notation, in which every 32
+	 * bit word is in host (little endian) byte order, the way addresses from
+	 * audit records are formatted.
+	 */
+	private static String formatAddress(byte[] buffer, int start, int end){
+		int[] bytes = new int[(end - start) / 2];
+		for(int word = 0; word < bytes.length / 4; word++){
+			for(int i = 0; i < 4; i++){
+				int offset = start + word * 8 + i * 2;
+				bytes[word * 4 + 3 - i] = (int)parseHex(buffer, offset, offset + 2);
+			}
+		}
+		if(bytes.length == 4){
+			return bytes[0] + "." + bytes[1] + "." + bytes[2] + "." + bytes[3];
+		}else if(bytes.length == 16){
+			boolean mapped = bytes[10] == 0xff && bytes[11] == 0xff;
+			for(int i = 0; i < 10 && mapped; i++){
+				mapped = bytes[i] == 0;
+			}
+			if(mapped){
+				return "::ffff:" + bytes[12] + "." + bytes[13] + "." + bytes[14] + "." + bytes[15];
+			}
+			StringBuilder address = new StringBuilder();
+			for(int i = 0; i < 16; i += 2){
+				if(i > 0){
+					address.append(':');
+				}
+				address.append(Integer.toHexString((bytes[i] << 8) | bytes[i + 1]));
+			}
+			return address.toString();
+		}
+		return null;
+	}
+
+	/**
+	 * Reads a whole file into the buffer of the thread, growing it as needed.
+	 *
+	 * @return The number of bytes read.
+	 */
+	private int readFile(File file) throws IOException{
+		byte[] buffer = buffers.get();
+		int length = 0;
+		try(FileInputStream in = new FileInputStream(file)){
+			int read;
+			while((read = in.read(buffer, length, buffer.length - length)) > 0){
+				length += read;
+				if(length == buffer.length){
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					buffers.set(buffer);
+				}
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Splits a line on whitespace.
+	 *
+	 * @param columns Receives the start and end of each column.
+	 * @return The number of columns found, at most columns.length / 2.
+	 */
+	private static int split(byte[] buffer, int start, int end, int[] columns){
+		int count = 0;
+		int i = start;
+		while(i < end && count < columns.length / 2){
+			while(i < end && isWhitespace(buffer[i])){
+				i++;
+			}
+			if(i == end){
+				break;
+			}
+			columns[count * 2] = i;
+			while(i < end && !isWhitespace(buffer[i])){
+				i++;
+			}
+			columns[count * 2 + 1] = i;
+			count++;
+		}
+		return count;
+	}
+
+	private static boolean isWhitespace(byte b){
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private static int indexOf(byte[] buffer, int start, int end, byte b){
+		for(int i = start; i < end; i++){
+			if(buffer[i] == b){
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private static boolean startsWith(byte[] buffer, int start, int end, String prefix){
+		if(end - start < prefix.length()){
+			return false;
+		}
+		for(int i = 0; i < prefix.length(); i++){
+			if(buffer[start + i] != prefix.charAt(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long parseHex(byte[] buffer, int start, int end){
+		long value = 0;
+		for(int i = start; i < end; i++){
+			value = (value << 4) | Character.digit(buffer[i], 16);
+		}
+		return value;
+	}
+
+	private static long parseDecimal(byte[] buffer, int start, int end){
+		long value = 0;
+		for(int i = start; i < end; i++){
+			value = value * 10 + (buffer[i] - '0');
+		}
+		return value;
+	}
+}
@@ -19,30 +19,43 @@
  */
 package spade.sketch;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.net.ssl.SSLSocket;
 import spade.core.*;
 
 public class Sketch extends AbstractSketch {
 
+    private static final long serialVersionUID = -9099366691554492483L;
     private static final double falsePositiveProbability = 0.1;
+    private static final int UPDATE_THREADS = 2;
+    // Shared by all local sketches; not part of the serialized sketch
+    private static final SketchUpdateQueue updates = new SketchUpdateQueue(UPDATE_THREADS);
     private static final int expectedSize = 20;
     private static final Logger logger = Logger.getLogger(Sketch.class.getName());
-    private static final boolean USE_CACHE = false;
 
     public Sketch() {
         matrixFilter = new MatrixFilter(falsePositiveProbability, expectedSize);
         objects = new HashMap<>();
     }
 
+    /**
+     * @return Counts of pending, coalesced and processed sketch updates.
+     */
+    public static String getUpdateMetrics() {
+        return updates.getMetrics();
+    }
+
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
     }
@@ -56,95 +69,198 @@ public class Sketch extends AbstractSketch {
                 AbstractVertex networkVertex = incomingEdge.getDestinationVertex();
                 String remoteHost = networkVertex.getAnnotation("destination host");
                 String localHost = networkVertex.getAnnotation("source host");
-                if (!USE_CACHE || (USE_CACHE && !Kernel.remoteSketches.containsKey(remoteHost))) {
-                    logger.log(Level.INFO, "concreteSketch - Attempting to receive sketches from {0}", remoteHost);
-                    int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
-                    SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(remoteHost, port);
-
-                    OutputStream outStream = remoteSocket.getOutputStream();
-                    InputStream inStream = remoteSocket.getInputStream();
-                    ObjectOutputStream clientObjectOutputStream = new ObjectOutputStream(outStream);
-                    ObjectInputStream clientObjectInputStream = new ObjectInputStream(inStream);
-
-                    clientObjectOutputStream.writeObject("giveSketch");
-                    clientObjectOutputStream.flush();
-                    AbstractSketch tmpSketch = (AbstractSketch) clientObjectInputStream.readObject();
-                    Map<String, AbstractSketch> receivedSketches = (Map<String, AbstractSketch>) clientObjectInputStream.readObject();
-                    Kernel.remoteSketches.put(remoteHost, tmpSketch);
-                    receivedSketches.remove(localHost);
-                    Kernel.remoteSketches.putAll(receivedSketches);
-
-                    logger.log(Level.INFO, "concreteSketch - Received sketches from {0}", remoteHost);
-                    clientObjectOutputStream.writeObject("close");
-                    clientObjectOutputStream.flush();
-                    clientObjectOutputStream.close();
-                    clientObjectInputStream.close();
-                    outStream.close();
-                    inStream.close();
-                    remoteSocket.close();
+                AbstractSketch remoteSketch = RemoteSketchCache.get(remoteHost, localHost, this);
+                if (remoteSketch == null) {
+                    return;
                 }
                 // Update sketch bloom filters
-                BloomFilter newAncestors = Kernel.remoteSketches.get(remoteHost).matrixFilter.get(networkVertex);
+                BloomFilter newAncestors = remoteSketch.matrixFilter.get(networkVertex);
                 if (newAncestors != null) {
                     logger.log(Level.INFO, "concreteSketch - Found bloomfilter for networkVertex");
-                    Runnable update = new updateMatrixThread(this, networkVertex, incomingEdge.type());
-                    new Thread(update).start();
+                    updates.submit(this, networkVertex, incomingEdge.type());
                 }
             } else if (incomingEdge.type().equalsIgnoreCase("WasGeneratedBy")
                     && incomingEdge.getSourceVertex().getAnnotation("network").equalsIgnoreCase("true")) {
                 AbstractVertex networkVertex = incomingEdge.getSourceVertex();
-                Runnable update = new updateMatrixThread(this, networkVertex, incomingEdge.type());
-                new Thread(update).start();
+                updates.submit(this, networkVertex, incomingEdge.type());
             }
-        } catch (NumberFormatException | IOException | ClassNotFoundException exception) {
+        } catch (NumberFormatException exception) {
             Logger.getLogger(Sketch.class.getName()).log(Level.SEVERE, null, exception);
         }
     }
 }
 
-class updateMatrixThread implements Runnable {
+/**
+ * Applies sketch updates on a small fixed pool of worker threads. Updates are
+ * keyed by network vertex and edge type; an update that is still waiting when
+ * the same vertex is reported again absorbs the new report, since it reads the
+ * current lineage and remote filters when it runs. Workers take pending
+ * updates in batches and run each distinct storage id lookup and lineage
+ * query of a batch only once.
+ */
+class SketchUpdateQueue {
 
-    private final AbstractSketch sketch;
-    private final AbstractVertex vertex;
-    private final String type;
-    private static final Logger logger = Logger.getLogger(updateMatrixThread.class.getName());
+    private static final Logger logger = Logger.getLogger(SketchUpdateQueue.class.getName());
     private static final String ID_STRING = Settings.getProperty("storage_identifier");
+    private static final int BATCH_SIZE = 64;
+    private static final int MAX_CACHED_STORAGE_IDS = 10000;
+    private static final long METRICS_INTERVAL_MILLIS = 60000;
+
+    private final int threads;
+    private final ExecutorService executor;
+    // Guarded by this
+    private final Map<String, Update> pending = new LinkedHashMap<>();
+    private int activeWorkers = 0;
+    private final Map<String, String> storageIds = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_STORAGE_IDS;
+        }
+    });
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong lineageQueries = new AtomicLong();
+    private volatile long lastMetricsTime = System.currentTimeMillis();
+
+    SketchUpdateQueue(int threads) {
+        this.threads = threads;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
 
-    public updateMatrixThread(AbstractSketch workingSketch, AbstractVertex networkVertex, String edgeType) {
-        sketch = workingSketch;
-        vertex = networkVertex;
-        type = edgeType;
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "sketch-update-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
-    @Override
-    public void run() {
+    /**
+     * Queues an update of the sketch for an edge of the given type that
+     * touches a network vertex.
+     */
+    void submit(AbstractSketch sketch, AbstractVertex networkVertex, String edgeType) {
+        submitted.incrementAndGet();
+        String key = edgeType.toLowerCase() + "|" + networkKey(networkVertex);
+        synchronized (this) {
+            if (pending.containsKey(key)) {
+                coalesced.incrementAndGet();
+                return;
+            }
+            pending.put(key, new Update(sketch, networkVertex, edgeType));
+            if (activeWorkers < threads) {
+                activeWorkers++;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            }
+        }
+    }
+
+    synchronized int getPending() {
+        return pending.size();
+    }
+
+    String getMetrics() {
+        return "sketchUpdates: pending=" + getPending() + ", submitted=" + submitted.get() + ", coalesced=" + coalesced.get()
+                + ", processed=" + processed.get() + ", failed=" + failed.get() + ", lineageQueries=" + lineageQueries.get();
+    }
+
+    private void drain() {
+        while (true) {
+            List<Update> batch = new ArrayList<>();
+            synchronized (this) {
+                Iterator<Update> iterator = pending.values().iterator();
+                while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+                    batch.add(iterator.next());
+                    iterator.remove();
+                }
+                if (batch.isEmpty()) {
+                    activeWorkers--;
+                    return;
+                }
+            }
+            process(batch);
+            long now = System.currentTimeMillis();
+            if (now - lastMetricsTime >= METRICS_INTERVAL_MILLIS) {
+                lastMetricsTime = now;
+                logger.log(Level.INFO, getMetrics() + "; " + RemoteSketchCache.getMetrics());
+            }
+        }
+    }
+
+    private void process(List<Update> batch) {
+        // Lineage results shared by the updates of this batch
+        Map<String, Graph> lineages = new HashMap<>();
+        for (Update update : batch) {
+            try {
+                if (apply(update, lineages)) {
+                    processed.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            } catch (Exception exception) {
+                failed.incrementAndGet();
+                logger.log(Level.SEVERE, null, exception);
+            }
+        }
+    }
+
+    private boolean apply(Update update, Map<String, Graph> lineages) {
+        AbstractVertex vertex = update.networkVertex;
         String storageId = getStorageId(vertex);
-        if (type.equalsIgnoreCase("Used")) {
-            logger.log(Level.INFO, "concreteSketch - Updating matrixfilter for USED edge for storageId: {0}", storageId);
+        if (storageId == null) {
+            return false;
+        }
+        if (update.edgeType.equalsIgnoreCase("Used")) {
+            logger.log(Level.FINE, "concreteSketch - Updating matrixfilter for USED edge for storageId: {0}", storageId);
             String remoteHost = vertex.getAnnotation("destination host");
             BloomFilter newAncestors = Kernel.remoteSketches.get(remoteHost).matrixFilter.get(vertex);
-            Graph descendants = Query.executeQuery("query Neo4j lineage " + storageId + " 20 d null", false);
+            Graph descendants = lineage(storageId, "d", lineages);
             for (AbstractVertex currentVertex : descendants.vertexSet()) {
-                if (currentVertex.getAnnotation("network").equalsIgnoreCase("true")) {
-                    sketch.matrixFilter.updateAncestors(currentVertex, newAncestors);
+                if ("true".equalsIgnoreCase(currentVertex.getAnnotation("network"))) {
+                    update.sketch.matrixFilter.updateAncestors(currentVertex, newAncestors);
                 }
             }
-            logger.log(Level.INFO, "concreteSketch - Updated bloomfilters for USED edge - storageId: {0}", storageId);
-        } else if (type.equalsIgnoreCase("WasGeneratedBy")) {
-            logger.log(Level.INFO, "concreteSketch - Updating matrixfilter for WGB edge for storageId: {0}", storageId);
-            Graph ancestors = Query.executeQuery("query Neo4j lineage " + storageId + " 20 a null", false);
+            logger.log(Level.FINE, "concreteSketch - Updated bloomfilters for USED edge - storageId: {0}", storageId);
+        } else if (update.edgeType.equalsIgnoreCase("WasGeneratedBy")) {
+            logger.log(Level.FINE, "concreteSketch - Updating matrixfilter for WGB edge for storageId: {0}", storageId);
+            Graph ancestors = lineage(storageId, "a", lineages);
             for (AbstractVertex currentVertex : ancestors.vertexSet()) {
-                if (currentVertex.getAnnotation("network").equalsIgnoreCase("true")) {
-                    sketch.matrixFilter.add(vertex, currentVertex);
+                if ("true".equalsIgnoreCase(currentVertex.getAnnotation("network"))) {
+                    update.sketch.matrixFilter.add(vertex, currentVertex);
                 }
             }
-            logger.log(Level.INFO, "concreteSketch - Updated bloomfilters for WGB edge - storageId: {0}", storageId);
+            logger.log(Level.FINE, "concreteSketch - Updated bloomfilters for WGB edge - storageId: {0}", storageId);
+        }
+        return true;
+    }
+
+    private Graph lineage(String storageId, String direction, Map<String, Graph> lineages) {
+        String query = "query Neo4j lineage " + storageId + " 20 " + direction + " null";
+        Graph result = lineages.get(query);
+        if (result == null) {
+            lineageQueries.incrementAndGet();
+            result = Query.executeQuery(query, false);
+            lineages.put(query, result);
         }
+        return result;
     }
 
     private String getStorageId(AbstractVertex networkVertex) {
+        String key = networkKey(networkVertex);
+        String storageId = storageIds.get(key);
+        if (storageId != null) {
+            return storageId;
+        }
         try {
-            logger.log(Level.INFO, "concreteSketch - Getting storageId of networkVertex");
+            logger.log(Level.FINE, "concreteSketch - Getting storageId of networkVertex");
             String vertexQueryExpression = "query Neo4j vertices";
             vertexQueryExpression += " source\\ host:" + networkVertex.getAnnotation("source host");
             vertexQueryExpression += " AND source\\ port:" + networkVertex.getAnnotation("source port");
@@ -152,11 +268,33 @@ class updateMatrixThread implements Runnable {
             vertexQueryExpression += " AND destination\\ port:" + networkVertex.getAnnotation("destination port");
             Graph result = Query.executeQuery(vertexQueryExpression, false);
             AbstractVertex resultVertex = result.vertexSet().iterator().next();
-            logger.log(Level.INFO, "concreteSketch - Returning storageId: {0}", resultVertex.getAnnotation(ID_STRING));
-            return resultVertex.getAnnotation(ID_STRING);
+            storageId = resultVertex.getAnnotation(ID_STRING);
+            logger.log(Level.FINE, "concreteSketch - Returning storageId: {0}", storageId);
+            if (storageId != null) {
+                storageIds.put(key, storageId);
+            }
+            return storageId;
         } catch (Exception exception) {
-            Logger.getLogger(Sketch.class.getName()).log(Level.SEVERE, null, exception);
+            logger.log(Level.SEVERE, null, exception);
             return null;
         }
     }
+
+    private static String networkKey(AbstractVertex networkVertex) {
+        return networkVertex.getAnnotation("source host") + ":" + networkVertex.getAnnotation("source port")
+                + "|" + networkVertex.getAnnotation("destination host") + ":" + networkVertex.getAnnotation("destination port");
+    }
+
+    private static class Update {
+
+        final AbstractSketch sketch;
+        final AbstractVertex networkVertex;
+        final String edgeType;
+
+        Update(AbstractSketch sketch, AbstractVertex networkVertex, String edgeType) {
+            this.sketch = sketch;
+            this.networkVertex = networkVertex;
+            this.edgeType = edgeType;
+        }
+    }
 }
@@ -20,7 +20,10 @@
 package spade.storage;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -29,33 +32,44 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
-
-import org.deri.iris.Configuration;
-import org.deri.iris.EvaluationException;
-import org.deri.iris.KnowledgeBaseFactory;
-import org.deri.iris.api.IKnowledgeBase;
-import org.deri.iris.api.basics.IPredicate;
-import org.deri.iris.api.basics.IQuery;
-import org.deri.iris.api.basics.IRule;
-import org.deri.iris.api.basics.ITuple;
-import org.deri.iris.api.terms.IVariable;
-import org.deri.iris.compiler.Parser;
-import org.deri.iris.compiler.ParserException;
-import org.deri.iris.storage.IRelation;
+import spade.core.Settings;
+import spade.utility.CommonFunctions;
 
 /**
+ * Datalog storage. The parent(child, parent) relation is kept in memory as
+ * primitive id pairs indexed on both columns and grows as edges arrive, so the
+ * recursive ancestor/descendant rules are evaluated directly against the index
+ * instead of re-parsing the whole program for every query.
  *
  * @author Dawood Tariq
  */
 public class Datalog extends AbstractStorage {
 
-    StringBuilder datalogProgram = new StringBuilder();
-    Map<Long, AbstractVertex> vertexMap = new HashMap<>();
-    Map<AbstractVertex, Long> vertexMapReversed = new HashMap<>();
+    private static final String DIRECTION_ANCESTORS = Settings.getProperty("direction_ancestors");
+    private static final String DIRECTION_DESCENDANTS = Settings.getProperty("direction_descendants");
+    private static final String DIRECTION_BOTH = Settings.getProperty("direction_both");
+    private static final int MAX_MEMOIZED_ROOTS = 1024;
     static final Logger logger = Logger.getLogger(Datalog.class.getName());
 
+    private final List<AbstractVertex> vertexMap = new ArrayList<>();
+    private final Map<AbstractVertex, Long> vertexMapReversed = new HashMap<>();
+    private final ParentRelation parent = new ParentRelation();
+    private boolean memoize = false;
+    // Transitive closure per (root, direction), valid until the next fact is added.
+    private Map<String, long[]> closures;
+
     @Override
     public boolean initialize(String arguments) {
+        Map<String, String> argumentMap = CommonFunctions.parseKeyValPairs(arguments);
+        memoize = "true".equalsIgnoreCase(argumentMap.get("memoize"));
+        if (memoize) {
+            closures = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                    return size() > MAX_MEMOIZED_ROOTS;
+                }
+            };
+        }
         return true;
     }
 
@@ -65,54 +79,189 @@ public class Datalog extends AbstractStorage {
     }
 
     @Override
-    public boolean putVertex(AbstractVertex incomingVertex) {
-        vertexMap.put(getVertexCount(), incomingVertex);
-        vertexMapReversed.put(incomingVertex, getVertexCount());
+    public synchronized boolean putVertex(AbstractVertex incomingVertex) {
+        long vertexId = vertexMap.size();
+        vertexMap.add(incomingVertex);
+        vertexMapReversed.put(incomingVertex, vertexId);
         return true;
     }
 
     @Override
-    public boolean putEdge(AbstractEdge incomingEdge) {
-        long srcVertexId = vertexMapReversed.get(incomingEdge.getSourceVertex());
-        long dstVertexId = vertexMapReversed.get(incomingEdge.getDestinationVertex());
-        datalogProgram.append("parent('").append(srcVertexId).append("', '").append(dstVertexId).append("')\r\n");
+    public synchronized boolean putEdge(AbstractEdge incomingEdge) {
+        Long srcVertexId = vertexMapReversed.get(incomingEdge.getSourceVertex());
+        Long dstVertexId = vertexMapReversed.get(incomingEdge.getDestinationVertex());
+        if (srcVertexId == null || dstVertexId == null) {
+            return false;
+        }
+        parent.add(srcVertexId, dstVertexId);
+        if (closures != null) {
+            closures.clear();
+        }
         return true;
     }
 
     @Override
-    public Graph getLineage(String vertexExpression, int depth, String direction, String terminatingExpression) {
+    public synchronized Graph getLineage(String vertexExpression, int depth, String direction, String terminatingExpression) {
         Graph result = new Graph();
-        String program = datalogProgram.toString();
-        program += "ancestor(?x, ?y) :- parent(?x, ?y).\r\n";
-        program += "ancestor(?x, ?y) :- parent(?x, ?z), ancestor(?z, ?y).\r\n";
-        program += "?-ancestor('" + vertexExpression + "', ?x).";
-
+        long root;
+        long terminatingId = -1;
         try {
-            Configuration configuration = KnowledgeBaseFactory.getDefaultConfiguration();
-            Parser parser = new Parser();
-            parser.parse(program);
-
-            Map<IPredicate, IRelation> facts = parser.getFacts();
-            List<IRule> rules = parser.getRules();
-            IKnowledgeBase knowledgeBase = KnowledgeBaseFactory.createKnowledgeBase(facts, rules, configuration);
-
-            List<IVariable> variableBindings = new ArrayList<>();
-            IQuery query = parser.getQueries().get(0);
-            IRelation results = knowledgeBase.execute(query, variableBindings);
-
-            for (int t = 0; t < results.size(); ++t) {
-                ITuple tuple = results.get(t);
-                long id = Integer.parseInt(tuple.toString().substring(2, tuple.toString().length() - 2));
-                AbstractVertex v = vertexMap.get(id);
-                result.putVertex(v);
+            root = Long.parseLong(vertexExpression.trim());
+            if (terminatingExpression != null && !terminatingExpression.trim().isEmpty()
+                    && !terminatingExpression.trim().equalsIgnoreCase("null")) {
+                terminatingId = Long.parseLong(terminatingExpression.trim());
             }
-
-        } catch (ParserException | EvaluationException | NumberFormatException exception) {
+        } catch (NumberFormatException exception) {
             logger.log(Level.SEVERE, null, exception);
             return null;
         }
+        if (root < 0 || root >= vertexMap.size()) {
+            return result;
+        }
 
+        String dir = (direction == null) ? DIRECTION_ANCESTORS : direction.toLowerCase();
+        boolean ancestors = DIRECTION_ANCESTORS.startsWith(dir) || DIRECTION_BOTH.startsWith(dir);
+        boolean descendants = DIRECTION_DESCENDANTS.startsWith(dir) || DIRECTION_BOTH.startsWith(dir);
+        if (!ancestors && !descendants) {
+            return null;
+        }
+        if (ancestors) {
+            addReached(result, root, depth, true, terminatingId);
+        }
+        if (descendants) {
+            addReached(result, root, depth, false, terminatingId);
+        }
         return result;
     }
 
+    /**
+     * Adds every vertex derivable from ancestor(root, ?x) (or descendant(root, ?x)
+     * when up is false) within depth hops. A negative depth is unbounded.
+     */
+    private void addReached(Graph result, long root, int depth, boolean up, long terminatingId) {
+        if (closures != null && terminatingId < 0) {
+            String key = (up ? "a" : "d") + root;
+            long[] closure = closures.get(key);
+            if (closure == null) {
+                closure = evaluate(root, -1, up, -1);
+                closures.put(key, closure);
+            }
+            for (int i = 0; i < closure.length; i += 2) {
+                if (depth < 0 || closure[i + 1] <= depth) {
+                    result.putVertex(vertexMap.get((int) closure[i]));
+                }
+            }
+            return;
+        }
+        long[] reached = evaluate(root, depth, up, terminatingId);
+        for (int i = 0; i < reached.length; i += 2) {
+            result.putVertex(vertexMap.get((int) reached[i]));
+        }
+    }
+
+    /**
+     * Semi-naive evaluation of the recursive rule over the indexed relation:
+     * each round only joins the facts derived in the previous round. Returns
+     * (vertex, distance) pairs. The terminating vertex is neither reported nor
+     * expanded.
+     */
+    private long[] evaluate(long root, int depth, boolean up, long terminatingId) {
+        long[] reached = new long[16];
+        int reachedCount = 0;
+        BitSet seen = new BitSet(vertexMap.size());
+        seen.set((int) root);
+        long[] frontier = {root};
+        int frontierSize = 1;
+        long[] next = new long[16];
+        for (int distance = 1; frontierSize > 0 && (depth < 0 || distance <= depth); distance++) {
+            int nextSize = 0;
+            for (int f = 0; f < frontierSize; f++) {
+                for (int e = parent.first(frontier[f], up); e >= 0; e = parent.next(e, up)) {
+                    long vertexId = parent.other(e, up);
+                    if (seen.get((int) vertexId)) {
+                        continue;
+                    }
+                    seen.set((int) vertexId);
+                    if (vertexId == terminatingId) {
+                        continue;
+                    }
+                    if (nextSize == next.length) {
+                        next = Arrays.copyOf(next, nextSize * 2);
+                    }
+                    next[nextSize++] = vertexId;
+                    if (reachedCount + 2 > reached.length) {
+                        reached = Arrays.copyOf(reached, reached.length * 2);
+                    }
+                    reached[reachedCount++] = vertexId;
+                    reached[reachedCount++] = distance;
+                }
+            }
+            long[] swap = frontier;
+            frontier = next;
+            frontierSize = nextSize;
+            next = (swap.length >= 16) ? swap : new long[16];
+        }
+        return Arrays.copyOf(reached, reachedCount);
+    }
+
+    /**
+     * The parent relation as parallel primitive columns with a chained index on
+     * each column: headBySrc/nextBySrc enumerate the facts with a given first
+     * column and headByDst/nextByDst those with a given second column.
+     */
+    private static final class ParentRelation {
+
+        private long[] src = new long[1024];
+        private long[] dst = new long[1024];
+        private int[] nextBySrc = new int[1024];
+        private int[] nextByDst = new int[1024];
+        private int[] headBySrc = new int[0];
+        private int[] headByDst = new int[0];
+        private int size = 0;
+
+        void add(long srcId, long dstId) {
+            if (size == src.length) {
+                int capacity = size * 2;
+                src = Arrays.copyOf(src, capacity);
+                dst = Arrays.copyOf(dst, capacity);
+                nextBySrc = Arrays.copyOf(nextBySrc, capacity);
+                nextByDst = Arrays.copyOf(nextByDst, capacity);
+            }
+            ensureIndex(Math.max(srcId, dstId));
+            src[size] = srcId;
+            dst[size] = dstId;
+            nextBySrc[size] = headBySrc[(int) srcId];
+            headBySrc[(int) srcId] = size;
+            nextByDst[size] = headByDst[(int) dstId];
+            headByDst[(int) dstId] = size;
+            size++;
+        }
+
+        private void ensureIndex(long vertexId) {
+            if (vertexId < headBySrc.length) {
+                return;
+            }
+            int capacity = Math.max((int) vertexId + 1, Math.max(1024, headBySrc.length * 2));
+            int oldLength = headBySrc.length;
+            headBySrc = Arrays.copyOf(headBySrc, capacity);
+            headByDst = Arrays.copyOf(headByDst, capacity);
+            Arrays.fill(headBySrc, oldLength, capacity, -1);
+            Arrays.fill(headByDst, oldLength, capacity, -1);
+        }
+
+        /** First fact whose bound column is vertexId, or -1. */
+        int first(long vertexId, boolean bySrc) {
+            int[] head = bySrc ? headBySrc : headByDst;
+            return (vertexId < head.length) ? head[(int) vertexId] : -1;
+        }
+
+        int next(int fact, boolean bySrc) {
+            return bySrc ? nextBySrc[fact] : nextByDst[fact];
+        }
+
+        /** The free column of a fact. */
+        long other(int fact, boolean bySrc) {
+            return bySrc ? dst[fact] : src[fact];
+        }
+    }
 }
@@ -21,13 +21,13 @@ package spade.storage;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -43,6 +43,7 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
@@ -63,8 +64,12 @@ import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Edge;
 import spade.core.Graph;
+import spade.core.GraphReader;
 import spade.core.Settings;
 import spade.core.Vertex;
+import spade.utility.Fingerprint;
+import spade.utility.FingerprintIndex;
+import spade.utility.FingerprintLog;
 
 /**
  * Neo4j storage implementation.
@@ -92,8 +97,12 @@ public class Neo4j extends AbstractStorage {
     private Transaction transaction;
     private int transactionCount;
     private int flushCount;
-    private Map<String, Long> spadeNeo4jCache;
-    private Map<String, Long> uncommittedSpadeNeo4jCache;
+    // Fingerprints of committed elements mapped to their Neo4j ids
+    private FingerprintIndex spadeNeo4jCache;
+    // Durable record of every committed cache entry
+    private FingerprintLog spadeNeo4jCacheLog;
+    private int commitsSinceCacheCheckpoint;
+    private Map<Fingerprint, Long> uncommittedSpadeNeo4jCache;
     private final Pattern longPattern = Pattern.compile("^[-+]?[0-9]+$");
     private final Pattern doublePattern = Pattern.compile("^[-+]?[0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?$");
     static final Logger logger = Logger.getLogger(Neo4j.class.getName());
@@ -104,7 +113,16 @@ public class Neo4j extends AbstractStorage {
     private enum MyNodeTypes implements Label { VERTEX }
     
     private String neo4jDatabaseDirectoryPath = null;
-    private String spadeNeo4jCacheFilePath = "spade-neo4j-cache";
+    private String spadeNeo4jCacheFilePath = "spade-neo4j-index";
+    private String spadeNeo4jCacheLogFilePath = "spade-neo4j-log";
+    // Serialized SHA-256 cache written by earlier versions
+    private String legacySpadeNeo4jCacheFilePath = "spade-neo4j-cache";
+    private static final long EXPECTED_CACHE_SIZE = 1 << 16;
+    // Number of commits after which the index is written to disk so that
+    // fewer log records have to be replayed after a crash
+    private static final int CACHE_CHECKPOINT_INTERVAL = 10;
+    // Whether each commit of the cache log waits for the device
+    private static final boolean CACHE_SYNC = Boolean.parseBoolean(Settings.getProperty("neo4j_cache_sync"));
 
     @Override
     public boolean initialize(String arguments) {
@@ -132,8 +150,7 @@ public class Neo4j extends AbstractStorage {
             // Create HashMap to store IDs of incoming vertices
             transactionCount = 0;
             flushCount = 0;
-            spadeNeo4jCache = new HashMap<String, Long>();
-            uncommittedSpadeNeo4jCache = new HashMap<String, Long>();
+            uncommittedSpadeNeo4jCache = new HashMap<Fingerprint, Long>();
             loadSpadeNeo4jCache();
             
             return true;
@@ -143,27 +160,170 @@ public class Neo4j extends AbstractStorage {
         }
     }
     
-    private void loadSpadeNeo4jCache(){
-    	File spadeNeo4jCacheFile = new File(neo4jDatabaseDirectoryPath + File.separatorChar + spadeNeo4jCacheFilePath);
-    	if(spadeNeo4jCacheFile.exists()){
-    		long start = System.currentTimeMillis();
-    		ObjectInputStream cacheObjectInputStream = null;
-    		try{
-    			cacheObjectInputStream = new ObjectInputStream(new FileInputStream(spadeNeo4jCacheFile));
-    			spadeNeo4jCache = (Map<String, Long>)cacheObjectInputStream.readObject();
-    		}catch(Exception e){
-    			logger.log(Level.SEVERE, "Failed to read the spade-neo4j cache", e);
-    		}finally{
-    			try{
-    				if(cacheObjectInputStream != null){
-    					cacheObjectInputStream.close();
-    				}
-    			}catch(Exception e){
-    				logger.log(Level.SEVERE, "Failed to close cache file reader", e);
-    			}
-    		}
-    		//logger.log(Level.INFO, "Loaded cache size = " + spadeNeo4jCache.size() + " in time " + (System.currentTimeMillis() - start) + " ms");
-    	}
+    /**
+     * Opens the dedup cache kept in the database directory. Every committed
+     * entry is in the cache log, and the memory-mapped index records how much
+     * of the log it contained when it was last written to disk, so only the
+     * tail of the log is replayed after a crash. Without a log, as for a
+     * database written by a version that used the serialized cache, the log
+     * is rebuilt from the entries of that cache or, failing that, by scanning
+     * the database.
+     */
+    private void loadSpadeNeo4jCache() throws IOException {
+        long start = System.currentTimeMillis();
+        File spadeNeo4jCacheFile = new File(neo4jDatabaseDirectoryPath + File.separatorChar + spadeNeo4jCacheFilePath);
+        File spadeNeo4jCacheLogFile = new File(neo4jDatabaseDirectoryPath + File.separatorChar + spadeNeo4jCacheLogFilePath);
+        File legacySpadeNeo4jCacheFile = new File(neo4jDatabaseDirectoryPath + File.separatorChar + legacySpadeNeo4jCacheFilePath);
+        boolean rebuild = !spadeNeo4jCacheLogFile.exists();
+        spadeNeo4jCacheLog = new FingerprintLog(spadeNeo4jCacheLogFile);
+        // The legacy file is only removed once its entries are committed
+        rebuild |= legacySpadeNeo4jCacheFile.exists() && spadeNeo4jCacheLog.size() == 0;
+        try {
+            spadeNeo4jCache = new FingerprintIndex(spadeNeo4jCacheFile, EXPECTED_CACHE_SIZE);
+        } catch (IOException exception) {
+            logger.log(Level.WARNING, "Recreating cache index", exception);
+            spadeNeo4jCacheFile.delete();
+            spadeNeo4jCache = new FingerprintIndex(spadeNeo4jCacheFile, EXPECTED_CACHE_SIZE);
+        }
+        if (rebuild) {
+            spadeNeo4jCache.clear();
+            if (!legacySpadeNeo4jCacheFile.exists() || !migrateSpadeNeo4jCache(legacySpadeNeo4jCacheFile)) {
+                rebuildSpadeNeo4jCache();
+            }
+        } else {
+            long checkpoint = spadeNeo4jCache.getCheckpoint();
+            if (checkpoint > spadeNeo4jCacheLog.size()) {
+                spadeNeo4jCache.clear();
+                checkpoint = 0;
+            }
+            long replayed = spadeNeo4jCacheLog.replay(spadeNeo4jCache, checkpoint);
+            if (replayed > 0) {
+                logger.log(Level.INFO, "Replayed " + replayed + " cache log records in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+        spadeNeo4jCache.checkpoint(spadeNeo4jCacheLog.size());
+        commitsSinceCacheCheckpoint = 0;
+        if (legacySpadeNeo4jCacheFile.exists()) {
+            // Its entries are in the cache log now
+            logger.log(Level.INFO, "Removing migrated legacy cache file " + legacySpadeNeo4jCacheFile);
+            legacySpadeNeo4jCacheFile.delete();
+        }
+    }
+
+    /**
+     * Fills the cache log and index from the serialized cache of an earlier
+     * version, which maps the SHA-256 of the string of each element to its
+     * id. Node and relationship ids overlap, so each entry is put in as the
+     * element with that id whose legacy hash matches. Returns false, leaving
+     * the log and index empty, if the file cannot be read or any of its
+     * entries does not match an element.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean migrateSpadeNeo4jCache(File legacySpadeNeo4jCacheFile) throws IOException {
+        long start = System.currentTimeMillis();
+        logger.log(Level.INFO, "Migrating legacy cache file " + legacySpadeNeo4jCacheFile);
+        Map<String, Long> legacySpadeNeo4jCache;
+        try (ObjectInputStream cacheObjectInputStream = new ObjectInputStream(new FileInputStream(legacySpadeNeo4jCacheFile))) {
+            legacySpadeNeo4jCache = (Map<String, Long>) cacheObjectInputStream.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException exception) {
+            logger.log(Level.WARNING, "Failed to read legacy cache file, rebuilding cache from database", exception);
+            return false;
+        }
+        int unmatched = 0;
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Map.Entry<String, Long> entry : legacySpadeNeo4jCache.entrySet()) {
+                Fingerprint fingerprint = getMigratedHash(entry.getKey(), entry.getValue());
+                if (fingerprint == null) {
+                    unmatched++;
+                } else {
+                    appendToCache(fingerprint, entry.getValue());
+                }
+            }
+            tx.success();
+        }
+        if (unmatched > 0) {
+            logger.log(Level.WARNING, unmatched + " legacy cache entries did not match the database, rebuilding cache from database");
+            spadeNeo4jCacheLog.rollback();
+            spadeNeo4jCache.clear();
+            return false;
+        }
+        spadeNeo4jCacheLog.commit(true);
+        logger.log(Level.INFO, "Migrated cache of size " + spadeNeo4jCache.size() + " in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    // Returns the fingerprint of the node or relationship with the given id
+    // whose legacy hash is legacyHash, or null if neither matches.
+    private Fingerprint getMigratedHash(String legacyHash, long id) {
+        try {
+            AbstractVertex vertex = convertNodeToStoredVertex(graphDb.getNodeById(id));
+            if (legacyHash.equals(DigestUtils.sha256Hex(getLegacyString(vertex.getAnnotations())))) {
+                return getHashOfVertex(vertex);
+            }
+        } catch (NotFoundException exception) {
+            // Not a node id
+        }
+        try {
+            Relationship relationship = graphDb.getRelationshipById(id);
+            AbstractEdge edge = convertRelationshipToEdge(relationship);
+            edge.removeAnnotation(ID_STRING);
+            edge.setSourceVertex(convertNodeToStoredVertex(relationship.getStartNode()));
+            edge.setDestinationVertex(convertNodeToStoredVertex(relationship.getEndNode()));
+            String completeEdgeString = getLegacyString(edge.getSourceVertex().getAnnotations())
+                    + getLegacyString(edge.getAnnotations())
+                    + getLegacyString(edge.getDestinationVertex().getAnnotations());
+            if (legacyHash.equals(DigestUtils.sha256Hex(completeEdgeString))) {
+                return getHashOfEdge(edge);
+            }
+        } catch (NotFoundException exception) {
+            // Not a relationship id
+        }
+        return null;
+    }
+
+    // Earlier versions kept annotations in a HashMap filled one at a time and
+    // hashed them in its iteration order.
+    private static String getLegacyString(Map<String, String> annotations) {
+        Map<String, String> legacyAnnotations = new HashMap<String, String>();
+        for (Map.Entry<String, String> currentEntry : annotations.entrySet()) {
+            legacyAnnotations.put(currentEntry.getKey(), currentEntry.getValue());
+        }
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> currentEntry : legacyAnnotations.entrySet()) {
+            result.append(currentEntry.getKey());
+            result.append(":");
+            result.append(currentEntry.getValue());
+            result.append("|");
+        }
+        return result.length() == 0 ? "" : result.substring(0, result.length() - 1);
+    }
+
+    private void rebuildSpadeNeo4jCache() throws IOException {
+        long start = System.currentTimeMillis();
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Node node : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+                appendToCache(getHashOfVertex(convertNodeToStoredVertex(node)), node.getId());
+            }
+            for (Relationship relationship : GlobalGraphOperations.at(graphDb).getAllRelationships()) {
+                AbstractEdge edge = convertRelationshipToEdge(relationship);
+                edge.removeAnnotation(ID_STRING);
+                edge.setSourceVertex(convertNodeToStoredVertex(relationship.getStartNode()));
+                edge.setDestinationVertex(convertNodeToStoredVertex(relationship.getEndNode()));
+                appendToCache(getHashOfEdge(edge), relationship.getId());
+            }
+            tx.success();
+        }
+        spadeNeo4jCacheLog.commit(true);
+        if (spadeNeo4jCache.size() > 0) {
+            logger.log(Level.INFO, "Rebuilt cache of size " + spadeNeo4jCache.size() + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    // Returns the vertex as it was before being stored, i.e. without the id.
+    private AbstractVertex convertNodeToStoredVertex(Node node) {
+        AbstractVertex vertex = convertNodeToVertex(node);
+        vertex.removeAnnotation(ID_STRING);
+        return vertex;
     }
 
     private void checkTransactionCount() {
@@ -219,37 +379,20 @@ public class Neo4j extends AbstractStorage {
         // Flush all transactions before shutting down the database
     	commitTransaction(transaction);
         graphDb.shutdown();
-        saveSpadeNeo4jCache();
+        try {
+            spadeNeo4jCache.checkpoint(spadeNeo4jCacheLog.size());
+            spadeNeo4jCache.close();
+            spadeNeo4jCacheLog.close();
+        } catch (IOException exception) {
+            logger.log(Level.SEVERE, "Failed to close spade neo4j cache", exception);
+        }
         return true;
     }
     
-    private void saveSpadeNeo4jCache(){
-    	ObjectOutputStream cacheObjectOutputStream = null;
-    	try{
-	    	File spadeNeo4jCacheFile = new File(neo4jDatabaseDirectoryPath + File.separator + spadeNeo4jCacheFilePath);
-	    	if(spadeNeo4jCacheFile.exists()){
-	    		spadeNeo4jCacheFile.delete();
-	    	}
-	    	long start = System.currentTimeMillis();
-	    	cacheObjectOutputStream = new ObjectOutputStream(new FileOutputStream(spadeNeo4jCacheFile));
-	    	cacheObjectOutputStream.writeObject(spadeNeo4jCache);
-	    	//logger.log(Level.INFO, "Saved cache size = " + spadeNeo4jCache.size() + " in time " + (System.currentTimeMillis() - start) + " ms");
-    	}catch(Exception e){
-    		logger.log(Level.SEVERE, "Failed to save spade neo4j cache", e);
-    	}finally{
-    		try{
-    			if(cacheObjectOutputStream != null){
-    				cacheObjectOutputStream.close();
-    			}
-    		}catch(Exception e){
-    			logger.log(Level.SEVERE, "Failed to close cache output writer", e);
-    		}
-    	}
-    }
-
     @Override
     public boolean putVertex(AbstractVertex incomingVertex) {
-    	if(existsInCache(getHashOfVertex(incomingVertex))){
+        Fingerprint vertexHash = getHashOfVertex(incomingVertex);
+    	if(existsInCache(vertexHash)){
     		return false;
     	}
         try {
@@ -257,19 +400,7 @@ public class Neo4j extends AbstractStorage {
                 transaction = graphDb.beginTx();
             }
             try ( Transaction tx = graphDb.beginTx() ) {
-                Node newVertex = graphDb.createNode(MyNodeTypes.VERTEX);
-                for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet()) {
-                    String key = currentEntry.getKey();
-                    String value = currentEntry.getValue();
-                    if (key.equalsIgnoreCase(ID_STRING)) {
-                        continue;
-                    }
-                    newVertex.setProperty(key, value);
-                    vertexIndex.add(newVertex, key, value);
-                }
-                newVertex.setProperty(ID_STRING, newVertex.getId());
-                vertexIndex.add(newVertex, ID_STRING, Long.toString(newVertex.getId()));
-                putInCache(getHashOfVertex(incomingVertex), newVertex.getId());
+                createNode(incomingVertex, vertexHash);
                 checkTransactionCount();
                 tx.success();
             } 
@@ -282,35 +413,21 @@ public class Neo4j extends AbstractStorage {
 
     @Override
     public boolean putEdge(AbstractEdge incomingEdge) {
-    	if(existsInCache(getHashOfEdge(incomingEdge))){
+        Fingerprint edgeHash = getHashOfEdge(incomingEdge);
+    	if(existsInCache(edgeHash)){
     		return false;
     	}
         try {
-            AbstractVertex srcVertex = incomingEdge.getSourceVertex();
-            AbstractVertex dstVertex = incomingEdge.getDestinationVertex();
-            if (!existsInCache(getHashOfVertex(srcVertex)) || !existsInCache(getHashOfVertex(dstVertex))) {
+            Long srcNodeId = getFromCache(getHashOfVertex(incomingEdge.getSourceVertex()));
+            Long dstNodeId = getFromCache(getHashOfVertex(incomingEdge.getDestinationVertex()));
+            if (srcNodeId == null || dstNodeId == null) {
                 return false;
             }
             if (transactionCount == 0) {
                 transaction = graphDb.beginTx();
             }
             try ( Transaction tx = graphDb.beginTx() ) {
-                Node srcNode = graphDb.getNodeById(getFromCache(getHashOfVertex(srcVertex)));
-                Node dstNode = graphDb.getNodeById(getFromCache(getHashOfVertex(dstVertex)));
-
-                Relationship newEdge = srcNode.createRelationshipTo(dstNode, MyRelationshipTypes.EDGE);
-                for (Map.Entry<String, String> currentEntry : incomingEdge.getAnnotations().entrySet()) {
-                    String key = currentEntry.getKey();
-                    String value = currentEntry.getValue();
-                    if (key.equalsIgnoreCase(ID_STRING)) {
-                        continue;
-                    }
-                    newEdge.setProperty(key, value);
-                    edgeIndex.add(newEdge, key, value);
-                }
-                newEdge.setProperty(ID_STRING, newEdge.getId());
-                edgeIndex.add(newEdge, ID_STRING, Long.toString(newEdge.getId()));
-                putInCache(getHashOfEdge(incomingEdge), newEdge.getId());
+                createRelationship(incomingEdge, edgeHash, srcNodeId, dstNodeId);
                 checkTransactionCount();
                 tx.success();
             } 
@@ -322,6 +439,103 @@ public class Neo4j extends AbstractStorage {
         }
     }
 
+    /**
+     * Writes a batch of vertices directly in the running transaction instead
+     * of opening a nested transaction for every vertex. The running
+     * transaction is still committed every TRANSACTION_LIMIT elements.
+     */
+    @Override
+    public int putVertices(List<AbstractVertex> incomingVertices) {
+        int count = 0;
+        for (AbstractVertex incomingVertex : incomingVertices) {
+            // A failing vertex is skipped like in putVertex, the rest of the
+            // batch is still written
+            try {
+                Fingerprint vertexHash = getHashOfVertex(incomingVertex);
+                if (existsInCache(vertexHash)) {
+                    continue;
+                }
+                if (transactionCount == 0) {
+                    transaction = graphDb.beginTx();
+                }
+                createNode(incomingVertex, vertexHash);
+                count++;
+                checkTransactionCount();
+            } catch (Exception exception) {
+                logger.log(Level.SEVERE, null, exception);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes a batch of edges directly in the running transaction. See
+     * putVertices.
+     */
+    @Override
+    public int putEdges(List<AbstractEdge> incomingEdges) {
+        int count = 0;
+        for (AbstractEdge incomingEdge : incomingEdges) {
+            try {
+                Fingerprint edgeHash = getHashOfEdge(incomingEdge);
+                if (existsInCache(edgeHash)) {
+                    continue;
+                }
+                Long srcNodeId = getFromCache(getHashOfVertex(incomingEdge.getSourceVertex()));
+                Long dstNodeId = getFromCache(getHashOfVertex(incomingEdge.getDestinationVertex()));
+                if (srcNodeId == null || dstNodeId == null) {
+                    continue;
+                }
+                if (transactionCount == 0) {
+                    transaction = graphDb.beginTx();
+                }
+                createRelationship(incomingEdge, edgeHash, srcNodeId, dstNodeId);
+                count++;
+                checkTransactionCount();
+            } catch (Exception exception) {
+                logger.log(Level.SEVERE, null, exception);
+            }
+        }
+        return count;
+    }
+
+    // Must be called inside a transaction.
+    private void createNode(AbstractVertex incomingVertex, Fingerprint vertexHash) {
+        Node newVertex = graphDb.createNode(MyNodeTypes.VERTEX);
+        for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet()) {
+            String key = currentEntry.getKey();
+            String value = currentEntry.getValue();
+            if (key.equalsIgnoreCase(ID_STRING)) {
+                continue;
+            }
+            newVertex.setProperty(key, value);
+            vertexIndex.add(newVertex, key, value);
+        }
+        newVertex.setProperty(ID_STRING, newVertex.getId());
+        vertexIndex.add(newVertex, ID_STRING, Long.toString(newVertex.getId()));
+        putInCache(vertexHash, newVertex.getId());
+    }
+
+    // Must be called inside a transaction.
+    private void createRelationship(AbstractEdge incomingEdge, Fingerprint edgeHash, long srcNodeId, long dstNodeId) {
+        Node srcNode = graphDb.getNodeById(srcNodeId);
+        Node dstNode = graphDb.getNodeById(dstNodeId);
+
+        Relationship newEdge = srcNode.createRelationshipTo(dstNode, MyRelationshipTypes.EDGE);
+        for (Map.Entry<String, String> currentEntry : incomingEdge.getAnnotations().entrySet()) {
+            String key = currentEntry.getKey();
+            String value = currentEntry.getValue();
+            if (key.equalsIgnoreCase(ID_STRING)) {
+                continue;
+            }
+            newEdge.setProperty(key, value);
+            edgeIndex.add(newEdge, key, value);
+        }
+        newEdge.setProperty(ID_STRING, newEdge.getId());
+        edgeIndex.add(newEdge, ID_STRING, Long.toString(newEdge.getId()));
+        putInCache(edgeHash, newEdge.getId());
+    }
+
     private AbstractVertex convertNodeToVertex(Node node) {
         AbstractVertex resultVertex = new Vertex();
         for (String key : node.getPropertyKeys()) {
@@ -501,28 +715,48 @@ public class Neo4j extends AbstractStorage {
 
     @Override
     public Graph getLineage(String vertexExpression, int depth, String direction, String terminatingExpression) {
+        Graph resultGraph = new Graph();
+        if (!getLineage(vertexExpression, depth, direction, terminatingExpression, GraphReader.graphBuilder(resultGraph))) {
+            return null;
+        }
+        resultGraph.commitIndex();
+        return resultGraph;
+    }
+
+    /**
+     * Passes the lineage of the vertices matching an expression to a listener
+     * level by level as the traversal reaches them, instead of collecting it
+     * in a graph first.
+     *
+     * @param vertexExpression The query expression for the source vertices.
+     * @param depth The maximum depth of the lineage.
+     * @param direction The direction in which to get the lineage.
+     * @param terminatingExpression The query expression on which to terminate
+     * lineage or null.
+     * @param listener The listener that receives the elements of the result.
+     * @return False if the direction is not valid.
+     */
+    public boolean getLineage(String vertexExpression, int depth, String direction, String terminatingExpression, GraphReader.Listener listener) {
         Direction dir;
         if (DIRECTION_ANCESTORS.startsWith(direction.toLowerCase())) {
             dir = Direction.OUTGOING;
         } else if (DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase())) {
             dir = Direction.INCOMING;
         } else if (DIRECTION_BOTH.startsWith(direction.toLowerCase())) {
-            Graph ancestor = getLineage(vertexExpression, depth, DIRECTION_ANCESTORS, terminatingExpression);
-            Graph descendant = getLineage(vertexExpression, depth, DIRECTION_DESCENDANTS, terminatingExpression);
-            Graph result = Graph.union(ancestor, descendant);
-            return result;
+            getLineage(vertexExpression, depth, DIRECTION_ANCESTORS, terminatingExpression, listener);
+            getLineage(vertexExpression, depth, DIRECTION_DESCENDANTS, terminatingExpression, listener);
+            return true;
         } else {
-            return null;
+            return false;
         }
 
-        Graph resultGraph = new Graph();
         Set<Node> doneSet = new HashSet<>();
         Set<Node> tempSet = new HashSet<>();
 
         try ( Transaction tx = graphDb.beginTx() ) {
             IndexHits<Node> queryHits = vertexIndex.query(vertexExpression);
             for (Node foundNode : queryHits) {
-                resultGraph.putVertex(convertNodeToVertex(foundNode));
+                listener.putVertex(convertNodeToVertex(foundNode));
                 tempSet.add(foundNode);
             }
             queryHits.close();
@@ -561,13 +795,14 @@ public class Neo4j extends AbstractStorage {
                         if (!doneSet.contains(otherNode)) {
                             newTempSet.add(otherNode);
                         }
-                        resultGraph.putVertex(convertNodeToVertex(otherNode));
-                        resultGraph.putEdge(convertRelationshipToEdge(nodeRelationship));
-                        // Add network artifacts to the network map of the graph.
-                        // This is needed to resolve remote queries
+                        AbstractVertex otherVertex = convertNodeToVertex(otherNode);
+                        listener.putVertex(otherVertex);
+                        listener.putEdge(convertRelationshipToEdge(nodeRelationship));
+                        // Report network artifacts, they are needed to
+                        // resolve remote queries
                         try {
                             if (((String) otherNode.getProperty("subtype")).equalsIgnoreCase("network")) {
-                                resultGraph.putNetworkVertex(convertNodeToVertex(otherNode), currentDepth);
+                                listener.putNetworkVertex(otherVertex, currentDepth);
                             }
                         } catch (Exception exception) {
                             // Ignore
@@ -581,9 +816,12 @@ public class Neo4j extends AbstractStorage {
             depth--;
             currentDepth++;
         }
+        return true;
+    }
 
-        resultGraph.commitIndex();
-        return resultGraph;
+    @Override
+    public boolean getLineage(int vertexId, int depth, String direction, String terminatingExpression, GraphReader.Listener listener) {
+        return getLineage(ID_STRING + ":" + vertexId, depth, direction, terminatingExpression, listener);
     }
 
     @Override
@@ -591,34 +829,61 @@ public class Neo4j extends AbstractStorage {
     	return getLineage(ID_STRING + ":" + vertexId, depth, direction, terminatingExpression);
     }
     
-    public String getHashOfEdge(AbstractEdge edge){
-    	String completeEdgeString = edge.getSourceVertex().toString() + edge.toString() + edge.getDestinationVertex().toString();
-    	return DigestUtils.sha256Hex(completeEdgeString);
+    public Fingerprint getHashOfEdge(AbstractEdge edge){
+    	return Fingerprint.of(edge);
     }
     
-    public String getHashOfVertex(AbstractVertex vertex){
-    	return DigestUtils.sha256Hex(vertex.toString());
+    public Fingerprint getHashOfVertex(AbstractVertex vertex){
+    	return Fingerprint.of(vertex);
     }
     
-    private boolean existsInCache(String hash){
-    	return spadeNeo4jCache.get(hash) != null || uncommittedSpadeNeo4jCache.get(hash) != null;
+    private boolean existsInCache(Fingerprint hash){
+    	return spadeNeo4jCache.contains(hash) || uncommittedSpadeNeo4jCache.containsKey(hash);
     }
     
-    private void putInCache(String hash, Long id){
+    private void putInCache(Fingerprint hash, Long id){
     	uncommittedSpadeNeo4jCache.put(hash, id);
     }
     
-    private Long getFromCache(String hash){
-    	Long value = spadeNeo4jCache.get(hash);
-    	if(value == null){
-    		value = uncommittedSpadeNeo4jCache.get(hash);
+    private Long getFromCache(Fingerprint hash){
+    	long value = spadeNeo4jCache.get(hash);
+    	if(value == FingerprintIndex.ABSENT){
+    		return uncommittedSpadeNeo4jCache.get(hash);
     	}
     	return value;
     }
     
+    private void appendToCache(Fingerprint hash, long id) throws IOException {
+    	spadeNeo4jCacheLog.append(hash, id);
+    	spadeNeo4jCache.put(hash, id);
+    }
+    
+    /**
+     * Moves the entries of a committed transaction to the cache log and
+     * index. The log commit makes them durable and only then are they put in
+     * the index, so the index never holds entries the log does not. The index
+     * is only written to disk every CACHE_CHECKPOINT_INTERVAL commits since
+     * it can be brought up to date from the log.
+     */
     private void commitCache(boolean success){
-    	if(success){
-    		spadeNeo4jCache.putAll(uncommittedSpadeNeo4jCache);
+    	if(success && !uncommittedSpadeNeo4jCache.isEmpty()){
+    		try{
+    			for(Map.Entry<Fingerprint, Long> entry : uncommittedSpadeNeo4jCache.entrySet()){
+    				spadeNeo4jCacheLog.append(entry.getKey(), entry.getValue());
+    			}
+    			spadeNeo4jCacheLog.commit(CACHE_SYNC);
+    			for(Map.Entry<Fingerprint, Long> entry : uncommittedSpadeNeo4jCache.entrySet()){
+    				spadeNeo4jCache.put(entry.getKey(), entry.getValue());
+    			}
+    		}catch(IOException | RuntimeException e){
+    			logger.log(Level.SEVERE, "Failed to append to spade neo4j cache log", e);
+    			spadeNeo4jCacheLog.rollback();
+    		}
+    		commitsSinceCacheCheckpoint++;
+    		if(commitsSinceCacheCheckpoint >= CACHE_CHECKPOINT_INTERVAL){
+    			spadeNeo4jCache.checkpoint(spadeNeo4jCacheLog.size());
+    			commitsSinceCacheCheckpoint = 0;
+    		}
     	}
     	uncommittedSpadeNeo4jCache.clear();
     }
@@ -21,14 +21,21 @@ package spade.storage;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import spade.core.AbstractEdge;
@@ -54,6 +61,11 @@ public class SQL extends AbstractStorage {
     private static final String ID_STRING = Settings.getProperty("storage_identifier");
     private static final String DIRECTION_ANCESTORS = Settings.getProperty("direction_ancestors");
     private static final String DIRECTION_DESCENDANTS = Settings.getProperty("direction_descendants");
+    // Maximum number of distinct prepared insert statements kept open
+    private static final int MAX_INSERT_STATEMENTS = 256;
+    // Prepared insert statements used by the batch write path, keyed by table
+    // and column set
+    private final Map<String, PreparedStatement> insertStatements = new HashMap<>();
 
     // private Statement batch_statement;
     @Override
@@ -103,6 +115,7 @@ public class SQL extends AbstractStorage {
     @Override
     public boolean shutdown() {
         try {
+            closeInsertStatements();
             dbConnection.commit();
             dbConnection.close();
             return true;
@@ -281,6 +294,178 @@ public class SQL extends AbstractStorage {
         return true;
     }
 
+    @Override
+    public int putVertices(List<AbstractVertex> incomingVertices) {
+        InsertBatch batch = new InsertBatch();
+        for (AbstractVertex incomingVertex : incomingVertices) {
+            // A failing vertex is skipped like in putVertex, the rest of the
+            // batch is still written
+            try {
+                Map<String, String> columnValues = getColumnValues(VERTEX_TABLE, incomingVertex.getAnnotations());
+                batch.add(VERTEX_TABLE, "type, hash", new Object[]{incomingVertex.type(), incomingVertex.hashCode()}, columnValues);
+            } catch (SQLException e) {
+                Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+        return batch.execute();
+    }
+
+    @Override
+    public int putEdges(List<AbstractEdge> incomingEdges) {
+        InsertBatch batch = new InsertBatch();
+        for (AbstractEdge incomingEdge : incomingEdges) {
+            try {
+                Map<String, String> columnValues = getColumnValues(EDGE_TABLE, incomingEdge.getAnnotations());
+                batch.add(EDGE_TABLE, "type, hash, srcVertexHash, dstVertexHash", new Object[]{incomingEdge.type(), incomingEdge.hashCode(),
+                    incomingEdge.getSourceVertex().hashCode(), incomingEdge.getDestinationVertex().hashCode()}, columnValues);
+            } catch (SQLException e) {
+                Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+        return batch.execute();
+    }
+
+    // Returns the sanitized columns and values of the given annotations sorted
+    // by column so that elements with the same keys share an insert statement.
+    // Columns are added to the table if they do not already exist.
+    private Map<String, String> getColumnValues(String table, Map<String, String> annotations) throws SQLException {
+        Map<String, String> columnValues = new TreeMap<>();
+        for (Map.Entry<String, String> annotation : annotations.entrySet()) {
+            if (annotation.getKey().equalsIgnoreCase("type")) {
+                continue;
+            }
+            String column = sanitizeColumn(annotation.getKey());
+            if (columnValues.containsKey(column)) {
+                // putVertex and putEdge fail on the duplicate column as well
+                throw new SQLException("More than one annotation maps to column " + column + " of table " + table);
+            }
+            addColumn(table, column);
+            String value = (ENABLE_SANITAZATION) ? annotation.getValue().replace("'", "\"") : annotation.getValue();
+            columnValues.put(column, value);
+        }
+        return columnValues;
+    }
+
+    /**
+     * The rows of one batch write, grouped by insert statement.
+     */
+    private final class InsertBatch {
+
+        private final Map<PreparedStatement, List<Object[]>> rows = new IdentityHashMap<>();
+        private int count;
+
+        void add(String table, String fixedColumns, Object[] fixedValues, Map<String, String> columnValues) throws SQLException {
+            StringBuilder columns = new StringBuilder(fixedColumns);
+            for (String column : columnValues.keySet()) {
+                columns.append(", ").append(column);
+            }
+            String key = table + ":" + columns;
+            PreparedStatement statement = insertStatements.get(key);
+            if (statement == null) {
+                if (insertStatements.size() >= MAX_INSERT_STATEMENTS) {
+                    // The pending rows need their statements, so they are
+                    // written before the statements are closed
+                    execute();
+                    closeInsertStatements();
+                }
+                StringBuilder insertStringBuilder = new StringBuilder("INSERT INTO " + table + " (" + columns + ") VALUES (");
+                for (int i = 0; i < fixedValues.length + columnValues.size(); i++) {
+                    insertStringBuilder.append(i == 0 ? "?" : ", ?");
+                }
+                insertStringBuilder.append(")");
+                statement = dbConnection.prepareStatement(insertStringBuilder.toString());
+                insertStatements.put(key, statement);
+            }
+            Object[] row = Arrays.copyOf(fixedValues, fixedValues.length + columnValues.size());
+            int parameter = fixedValues.length;
+            for (String value : columnValues.values()) {
+                row[parameter++] = value;
+            }
+            List<Object[]> statementRows = rows.get(statement);
+            if (statementRows == null) {
+                statementRows = new ArrayList<>();
+                rows.put(statement, statementRows);
+            }
+            statementRows.add(row);
+        }
+
+        // Writes the pending rows and returns the number of rows written by
+        // this batch so far.
+        int execute() {
+            for (Map.Entry<PreparedStatement, List<Object[]>> statementRows : rows.entrySet()) {
+                count += executeRows(statementRows.getKey(), statementRows.getValue());
+            }
+            rows.clear();
+            return count;
+        }
+    }
+
+    // Runs the rows of one insert statement as a JDBC batch. If the batch
+    // fails it is rolled back and its rows are inserted one at a time, so that
+    // only the failing rows are lost as with putVertex and putEdge. Without
+    // savepoints a failed batch cannot be undone, so the rows are always
+    // inserted one at a time.
+    private int executeRows(PreparedStatement statement, List<Object[]> rows) {
+        Savepoint savepoint;
+        try {
+            savepoint = dbConnection.setSavepoint();
+        } catch (SQLException e) {
+            savepoint = null;
+        }
+        if (savepoint != null) {
+            try {
+                for (Object[] row : rows) {
+                    setParameters(statement, row);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                dbConnection.releaseSavepoint(savepoint);
+                return rows.size();
+            } catch (SQLException e) {
+                Logger.getLogger(SQL.class.getName()).log(Level.WARNING, "Batch insert failed, inserting its rows one at a time", e);
+                try {
+                    statement.clearBatch();
+                    dbConnection.rollback(savepoint);
+                } catch (SQLException ex) {
+                    Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, null, ex);
+                    return 0;
+                }
+            }
+        }
+        int inserted = 0;
+        for (Object[] row : rows) {
+            try {
+                setParameters(statement, row);
+                statement.executeUpdate();
+                inserted++;
+            } catch (SQLException e) {
+                Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+        return inserted;
+    }
+
+    private void setParameters(PreparedStatement statement, Object[] row) throws SQLException {
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] instanceof Integer) {
+                statement.setInt(i + 1, (Integer) row[i]);
+            } else {
+                statement.setString(i + 1, (String) row[i]);
+            }
+        }
+    }
+
+    private void closeInsertStatements() {
+        for (PreparedStatement statement : insertStatements.values()) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                Logger.getLogger(SQL.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+        insertStatements.clear();
+    }
+
     @Override
     public Graph getVertices(String expression) {
         try {
@@ -0,0 +1,353 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.util.Arrays;
+import spade.core.AbstractVertex;
+
+/**
+ * Maps vertices to compact handles for filters that keep per-vertex state.
+ * A vertex is identified by its fingerprint and assigned a dense slot number
+ * below the configured capacity, so state can be kept in arrays indexed by
+ * slot instead of in maps holding the vertex objects. When all slots are in
+ * use, the least recently used vertex is evicted and its slot reused.
+ *
+ * A handle combines the slot with the slot's generation, which is advanced
+ * on every eviction. Handles of evicted vertices therefore never match a
+ * later vertex that reuses the slot, and sets of handles can drop them
+ * lazily.
+ */
+public class CompactVertexIds {
+
+    /**
+     * Notified before a slot is reused so that state kept for it can be
+     * released.
+     */
+    public interface EvictionListener {
+
+        void evicted(int slot);
+    }
+
+    private static final int EMPTY = -1;
+    private static final int INITIAL_SLOTS = 1 << 10;
+
+    private final int capacity;
+    private final EvictionListener listener;
+    // Open-addressing table from fingerprint to slot
+    private long[] tableHigh;
+    private long[] tableLow;
+    private int[] tableSlot;
+    private int tableMask;
+    // Per-slot fingerprint, generation and links of the recency list
+    private long[] slotHigh;
+    private long[] slotLow;
+    private int[] generation;
+    private int[] previous;
+    private int[] next;
+    private int size = 0;
+    private int head = EMPTY;
+    private int tail = EMPTY;
+    private long evictions = 0;
+
+    /**
+     * @param capacity The maximum number of live vertices (at least 2).
+     * @param listener Notified of evicted slots, may be null.
+     */
+    public CompactVertexIds(int capacity, EvictionListener listener) {
+        this.capacity = Math.max(2, capacity);
+        this.listener = listener;
+        int slots = Math.min(this.capacity, INITIAL_SLOTS);
+        slotHigh = new long[slots];
+        slotLow = new long[slots];
+        generation = new int[slots];
+        previous = new int[slots];
+        next = new int[slots];
+        allocateTable(Integer.highestOneBit(slots) * 4);
+    }
+
+    /**
+     * Returns the handle of a vertex, assigning a slot if it is not live, and
+     * marks it as most recently used.
+     *
+     * @param vertex The vertex.
+     * @return The handle of the vertex.
+     */
+    public long acquire(AbstractVertex vertex) {
+        return acquire(Fingerprint.of(vertex));
+    }
+
+    public long acquire(Fingerprint fingerprint) {
+        long high = fingerprint.getHigh();
+        long low = fingerprint.getLow();
+        int position = find(high, low);
+        int slot = tableSlot[position];
+        if (slot != EMPTY) {
+            unlink(slot);
+            append(slot);
+            return handle(slot);
+        }
+        if (size < capacity) {
+            if ((size + 1) * 2 > tableSlot.length) {
+                allocateTable(tableSlot.length * 2);
+                position = find(high, low);
+            }
+            slot = size++;
+            if (slot == slotHigh.length) {
+                growSlots();
+            }
+        } else {
+            slot = head;
+            evict(slot);
+            position = find(high, low);
+        }
+        slotHigh[slot] = high;
+        slotLow[slot] = low;
+        tableHigh[position] = high;
+        tableLow[position] = low;
+        tableSlot[position] = slot;
+        append(slot);
+        return handle(slot);
+    }
+
+    /**
+     * @param handle A handle returned by acquire.
+     * @return True if the vertex of the handle has not been evicted since.
+     */
+    public boolean isLive(long handle) {
+        int slot = slot(handle);
+        return slot < size && generation[slot] == (int) (handle >>> 32);
+    }
+
+    public static int slot(long handle) {
+        return (int) handle;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    private long handle(int slot) {
+        return ((long) generation[slot] << 32) | slot;
+    }
+
+    private void evict(int slot) {
+        unlink(slot);
+        remove(slotHigh[slot], slotLow[slot]);
+        generation[slot] = (generation[slot] + 1) & Integer.MAX_VALUE;
+        evictions++;
+        if (listener != null) {
+            listener.evicted(slot);
+        }
+    }
+
+    private void append(int slot) {
+        previous[slot] = tail;
+        next[slot] = EMPTY;
+        if (tail == EMPTY) {
+            head = slot;
+        } else {
+            next[tail] = slot;
+        }
+        tail = slot;
+    }
+
+    private void unlink(int slot) {
+        int before = previous[slot];
+        int after = next[slot];
+        if (before == EMPTY) {
+            head = after;
+        } else {
+            next[before] = after;
+        }
+        if (after == EMPTY) {
+            tail = before;
+        } else {
+            previous[after] = before;
+        }
+    }
+
+    private void growSlots() {
+        int slots = (int) Math.min((long) capacity, slotHigh.length * 2L);
+        slotHigh = Arrays.copyOf(slotHigh, slots);
+        slotLow = Arrays.copyOf(slotLow, slots);
+        generation = Arrays.copyOf(generation, slots);
+        previous = Arrays.copyOf(previous, slots);
+        next = Arrays.copyOf(next, slots);
+    }
+
+    private int home(long high, long low) {
+        long mixed = high ^ low;
+        return (int) (mixed ^ (mixed >>> 32)) & tableMask;
+    }
+
+    /**
+     * Returns the position holding the fingerprint or the empty position
+     * where it would be inserted.
+     */
+    private int find(long high, long low) {
+        int position = home(high, low);
+        while (tableSlot[position] != EMPTY
+                && (tableHigh[position] != high || tableLow[position] != low)) {
+            position = (position + 1) & tableMask;
+        }
+        return position;
+    }
+
+    private void remove(long high, long low) {
+        int hole = find(high, low);
+        if (tableSlot[hole] == EMPTY) {
+            return;
+        }
+        tableSlot[hole] = EMPTY;
+        // Shift later entries of the probe sequence back into the hole
+        int position = hole;
+        while (true) {
+            position = (position + 1) & tableMask;
+            if (tableSlot[position] == EMPTY) {
+                return;
+            }
+            int home = home(tableHigh[position], tableLow[position]);
+            boolean reachable = (hole <= position)
+                    ? (home <= hole || home > position)
+                    : (home <= hole && home > position);
+            if (reachable) {
+                tableHigh[hole] = tableHigh[position];
+                tableLow[hole] = tableLow[position];
+                tableSlot[hole] = tableSlot[position];
+                tableSlot[position] = EMPTY;
+                hole = position;
+            }
+        }
+    }
+
+    private void allocateTable(int length) {
+        tableHigh = new long[length];
+        tableLow = new long[length];
+        tableSlot = new int[length];
+        tableMask = length - 1;
+        Arrays.fill(tableSlot, EMPTY);
+        for (int slot = 0; slot < size; slot++) {
+            int position = find(slotHigh[slot], slotLow[slot]);
+            tableHigh[position] = slotHigh[slot];
+            tableLow[position] = slotLow[slot];
+            tableSlot[position] = slot;
+        }
+    }
+
+    /**
+     * An open-addressing set of handles. Handles of evicted vertices are
+     * ignored by contains and dropped when the set is resized.
+     */
+    public static final class HandleSet {
+
+        private static final long FREE = -1;
+
+        private final CompactVertexIds ids;
+        private long[] table;
+        private int size = 0;
+
+        public HandleSet(CompactVertexIds ids) {
+            this.ids = ids;
+            table = new long[4];
+            Arrays.fill(table, FREE);
+        }
+
+        /**
+         * @param handle The handle to add.
+         * @return True if the handle was not already in the set.
+         */
+        public boolean add(long handle) {
+            int position = find(table, handle);
+            if (table[position] == handle) {
+                return false;
+            }
+            if ((size + 1) * 2 > table.length) {
+                resize();
+                position = find(table, handle);
+            }
+            table[position] = handle;
+            size++;
+            return true;
+        }
+
+        public boolean contains(long handle) {
+            return table[find(table, handle)] == handle && ids.isLive(handle);
+        }
+
+        /**
+         * Adds every live handle of another set.
+         *
+         * @param other The set to add.
+         */
+        public void addAll(HandleSet other) {
+            for (long handle : other.table) {
+                if (handle != FREE && ids.isLive(handle)) {
+                    add(handle);
+                }
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private void resize() {
+            int live = 0;
+            for (long handle : table) {
+                if (handle != FREE && ids.isLive(handle)) {
+                    live++;
+                }
+            }
+            // Grow only if the set is still at least half full after dropping
+            // the handles of evicted vertices
+            int length = table.length;
+            while ((live + 1) * 4 > length) {
+                length *= 2;
+            }
+            long[] resized = new long[length];
+            Arrays.fill(resized, FREE);
+            for (long handle : table) {
+                if (handle != FREE && ids.isLive(handle)) {
+                    resized[find(resized, handle)] = handle;
+                }
+            }
+            table = resized;
+            size = live;
+        }
+
+        private static int find(long[] table, long handle) {
+            int mask = table.length - 1;
+            long mixed = handle * 0x9E3779B97F4A7C15L;
+            int position = (int) (mixed >>> 32) & mask;
+            while (table[position] != FREE && table[position] != handle) {
+                position = (position + 1) & mask;
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+
+/**
+ * A 128-bit non-cryptographic fingerprint of a vertex or an edge computed
+ * directly from its annotations, without building an intermediate string.
+ * The fingerprint does not depend on the iteration order of the annotations.
+ * The fingerprint of an edge also covers its source and destination vertices.
+ */
+public final class Fingerprint implements Serializable {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final long VERTEX_SEED = 0x9e3779b97f4a7c15L;
+    private static final long EDGE_SEED = 0xc2b2ae3d27d4eb4fL;
+    private static final long STRING_SEED = 0x165667b19e3779f9L;
+    private static final long NULL_MARKER = 0xfffe6e756c6c0000L;
+
+    private final long high;
+    private final long low;
+
+    public Fingerprint(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * Computes the fingerprint of a vertex.
+     *
+     * @param vertex The vertex.
+     * @return The fingerprint of the vertex.
+     */
+    public static Fingerprint of(AbstractVertex vertex) {
+        long[] lanes = hashAnnotations(vertex.getAnnotations(), VERTEX_SEED);
+        return new Fingerprint(lanes[0], lanes[1]);
+    }
+
+    /**
+     * Computes the fingerprint of an edge including its endpoints.
+     *
+     * @param edge The edge.
+     * @return The fingerprint of the edge.
+     */
+    public static Fingerprint of(AbstractEdge edge) {
+        return of(edge, of(edge.getSourceVertex()), of(edge.getDestinationVertex()));
+    }
+
+    /**
+     * Computes the fingerprint of an edge given the fingerprints of its
+     * endpoints, which callers often have at hand already.
+     *
+     * @param edge The edge.
+     * @param source The fingerprint of the source vertex.
+     * @param destination The fingerprint of the destination vertex.
+     * @return The fingerprint of the edge.
+     */
+    public static Fingerprint of(AbstractEdge edge, Fingerprint source, Fingerprint destination) {
+        long[] lanes = hashAnnotations(edge.getAnnotations(), EDGE_SEED);
+        // Unlike annotations, the endpoints are combined in an order dependent
+        // way so that reversed edges get different fingerprints.
+        long h1 = lanes[0];
+        long h2 = lanes[1];
+        h1 = fmix(h1 * C1 + source.high) ^ destination.low;
+        h2 = fmix(h2 * C2 + source.low) ^ destination.high;
+        h1 = fmix(h1 + h2 * C2);
+        h2 = fmix(h2 + h1 * C1);
+        return new Fingerprint(h1, h2);
+    }
+
+    /**
+     * Computes the fingerprint of a string.
+     *
+     * @param string The string.
+     * @return The fingerprint of the string.
+     */
+    public static Fingerprint of(String string) {
+        long[] lanes = {STRING_SEED, ~STRING_SEED};
+        hashString(string, lanes);
+        return new Fingerprint(fmix(lanes[0] + lanes[1]), fmix(lanes[1] ^ (lanes[0] * C1)));
+    }
+
+    private static long[] hashAnnotations(Map<String, String> annotations, long seed) {
+        long sum1 = 0;
+        long sum2 = 0;
+        long[] lanes = new long[2];
+        for (Map.Entry<String, String> entry : annotations.entrySet()) {
+            lanes[0] = seed;
+            lanes[1] = ~seed;
+            hashString(entry.getKey(), lanes);
+            // Separator so that ("ab", "c") and ("a", "bc") differ
+            mix(lanes, 0xffffL);
+            hashString(entry.getValue(), lanes);
+            // Entries are summed so the result does not depend on order
+            sum1 += fmix(lanes[0]);
+            sum2 += fmix(lanes[1]);
+        }
+        long count = annotations.size();
+        lanes[0] = fmix(sum1 ^ (count * C2) ^ seed);
+        lanes[1] = fmix(sum2 ^ (count * C1) ^ ~seed);
+        lanes[0] += lanes[1];
+        lanes[1] += lanes[0];
+        return lanes;
+    }
+
+    // Consumes four characters at a time into the two lanes. A null string
+    // (e.g. an annotation without a value) is hashed as a single marker block,
+    // so it differs from the empty string and from the text "null".
+    private static void hashString(String string, long[] lanes) {
+        if (string == null) {
+            mix(lanes, NULL_MARKER);
+            return;
+        }
+        int length = string.length();
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            long block = (long) string.charAt(i)
+                    | ((long) string.charAt(i + 1) << 16)
+                    | ((long) string.charAt(i + 2) << 32)
+                    | ((long) string.charAt(i + 3) << 48);
+            mix(lanes, block);
+        }
+        long tail = 0;
+        for (int shift = 0; i < length; i++, shift += 16) {
+            tail |= (long) string.charAt(i) << shift;
+        }
+        mix(lanes, tail ^ ((long) length << 48) ^ length);
+    }
+
+    private static void mix(long[] lanes, long block) {
+        long k1 = block * C1;
+        k1 = Long.rotateLeft(k1, 31) * C2;
+        lanes[0] ^= k1;
+        lanes[0] = Long.rotateLeft(lanes[0], 27) + lanes[1];
+        lanes[0] = lanes[0] * 5 + 0x52dce729;
+        long k2 = block * C2;
+        k2 = Long.rotateLeft(k2, 33) * C1;
+        lanes[1] ^= k2;
+        lanes[1] = Long.rotateLeft(lanes[1], 31) + lanes[0];
+        lanes[1] = lanes[1] * 5 + 0x38495ab5;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public boolean equals(Object thatObject) {
+        if (this == thatObject) {
+            return true;
+        }
+        if (!(thatObject instanceof Fingerprint)) {
+            return false;
+        }
+        Fingerprint thatFingerprint = (Fingerprint) thatObject;
+        return high == thatFingerprint.high && low == thatFingerprint.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * An open-addressing hash table from 128-bit fingerprints to long values kept
+ * outside the Java heap. Each slot is 24 bytes (two key longs and the value)
+ * so the table costs a small constant per entry instead of the several
+ * hundred bytes of a HashMap keyed by hex strings. The table is either backed
+ * by direct buffers or by a memory-mapped file, in which case it survives
+ * restarts without any serialization step.
+ */
+public class FingerprintIndex {
+
+    public static final long ABSENT = -1;
+
+    private static final long MAGIC = 0x5350414445465049L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 24;
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+    private static final long MINIMUM_CAPACITY = 1 << 10;
+    private static final double MAXIMUM_LOAD = 0.7;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private ByteBuffer header;
+    private ByteBuffer[] segments;
+    private long capacity;
+    private long mask;
+    private long size;
+    private long checkpoint;
+
+    /**
+     * Creates an index held in direct memory.
+     *
+     * @param expectedSize The number of entries to size the table for.
+     */
+    public FingerprintIndex(long expectedSize) {
+        this.file = null;
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Opens the index stored in the given file, creating it if needed.
+     *
+     * @param file The file backing the index.
+     * @param expectedSize The number of entries to size a new table for.
+     * @throws IOException If the file cannot be mapped or is not an index.
+     */
+    public FingerprintIndex(File file, long expectedSize) throws IOException {
+        this.file = file;
+        if (file.exists() && file.length() >= HEADER_SIZE) {
+            map(0);
+        } else {
+            map(capacityFor(expectedSize));
+        }
+    }
+
+    private static long capacityFor(long expectedSize) {
+        long capacity = MINIMUM_CAPACITY;
+        while (capacity * MAXIMUM_LOAD < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(long newCapacity) {
+        capacity = newCapacity;
+        mask = newCapacity - 1;
+        size = 0;
+        segments = new ByteBuffer[segmentCount(newCapacity)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer.allocateDirect(segmentSlots(i) * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    // A capacity of zero means that the capacity is read from the header.
+    private void map(long newCapacity) throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        FileChannel channel = randomAccessFile.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (newCapacity == 0) {
+            if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+                close();
+                throw new IOException("Not a fingerprint index: " + file);
+            }
+            capacity = header.getLong(16);
+            size = header.getLong(24);
+            checkpoint = header.getLong(32);
+            if (Long.bitCount(capacity) != 1 || file.length() < HEADER_SIZE + capacity * SLOT_SIZE) {
+                close();
+                throw new IOException("Truncated fingerprint index: " + file);
+            }
+        } else {
+            capacity = newCapacity;
+            size = 0;
+            randomAccessFile.setLength(HEADER_SIZE + newCapacity * SLOT_SIZE);
+            header.putLong(0, MAGIC);
+            header.putInt(8, VERSION);
+            header.putLong(16, capacity);
+            header.putLong(24, size);
+            header.putLong(32, checkpoint);
+        }
+        mask = capacity - 1;
+        segments = new ByteBuffer[segmentCount(capacity)];
+        for (int i = 0; i < segments.length; i++) {
+            long position = HEADER_SIZE + ((long) i << SEGMENT_SHIFT) * SLOT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) segmentSlots(i) * SLOT_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static int segmentCount(long capacity) {
+        return (int) ((capacity + SEGMENT_SLOTS - 1) >>> SEGMENT_SHIFT);
+    }
+
+    private int segmentSlots(int segment) {
+        return (int) Math.min(SEGMENT_SLOTS, capacity - ((long) segment << SEGMENT_SHIFT));
+    }
+
+    // The all-zero key marks an empty slot so it is folded onto another key.
+    private static long low(long high, long low) {
+        return (high == 0 && low == 0) ? 1 : low;
+    }
+
+    // Fingerprints are already well mixed but the keys given by callers
+    // are not required to be, so the bits are spread before probing.
+    private static long spread(long high, long low) {
+        long hash = (low ^ Long.rotateLeft(high, 32)) * 0x9e3779b97f4a7c15L;
+        return hash ^ (hash >>> 29);
+    }
+
+    // Returns the slot holding the key or the empty slot where it belongs.
+    private long find(long high, long low) {
+        long slot = spread(high, low) & mask;
+        while (true) {
+            ByteBuffer segment = segments[(int) (slot >>> SEGMENT_SHIFT)];
+            int offset = (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+            long slotHigh = segment.getLong(offset);
+            long slotLow = segment.getLong(offset + 8);
+            if ((slotHigh == high && slotLow == low) || (slotHigh == 0 && slotLow == 0)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private ByteBuffer segmentOf(long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offsetOf(long slot) {
+        return (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+    }
+
+    /**
+     * Looks up a fingerprint.
+     *
+     * @param fingerprint The fingerprint to look up.
+     * @return The value stored for the fingerprint or ABSENT.
+     */
+    public synchronized long get(Fingerprint fingerprint) {
+        long high = fingerprint.getHigh();
+        long low = low(high, fingerprint.getLow());
+        long slot = find(high, low);
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        if (segment.getLong(offset) == 0 && segment.getLong(offset + 8) == 0) {
+            return ABSENT;
+        }
+        return segment.getLong(offset + 16);
+    }
+
+    public boolean contains(Fingerprint fingerprint) {
+        return get(fingerprint) != ABSENT;
+    }
+
+    /**
+     * Stores a value for a fingerprint, replacing any previous value.
+     *
+     * @param fingerprint The fingerprint.
+     * @param value The value to store.
+     */
+    public synchronized void put(Fingerprint fingerprint, long value) {
+        long high = fingerprint.getHigh();
+        long low = low(high, fingerprint.getLow());
+        long slot = find(high, low);
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        if (segment.getLong(offset) == 0 && segment.getLong(offset + 8) == 0) {
+            if (size + 1 > capacity * MAXIMUM_LOAD) {
+                grow();
+                put(fingerprint, value);
+                return;
+            }
+            segment.putLong(offset, high);
+            segment.putLong(offset + 8, low);
+            size++;
+            if (header != null) {
+                header.putLong(24, size);
+            }
+        }
+        segment.putLong(offset + 16, value);
+    }
+
+    // Rehashes into a table twice as large. A file-backed table is rebuilt
+    // next to the current file and then moved over it.
+    private void grow() {
+        ByteBuffer[] oldSegments = segments;
+        long oldCapacity = capacity;
+        try {
+            if (file == null) {
+                allocate(oldCapacity << 1);
+                rehash(oldSegments, oldCapacity);
+            } else {
+                File growFile = new File(file.getPath() + ".grow");
+                Files.deleteIfExists(growFile.toPath());
+                FingerprintIndex grown = new FingerprintIndex(growFile, (long) ((oldCapacity << 1) * MAXIMUM_LOAD) - 1);
+                grown.rehash(oldSegments, oldCapacity);
+                grown.checkpoint(checkpoint);
+                grown.close();
+                randomAccessFile.close();
+                Files.move(growFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                map(0);
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Unable to grow fingerprint index", exception);
+        }
+    }
+
+    private void rehash(ByteBuffer[] oldSegments, long oldCapacity) {
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer segment = oldSegments[(int) (slot >>> SEGMENT_SHIFT)];
+            int offset = offsetOf(slot);
+            long high = segment.getLong(offset);
+            long low = segment.getLong(offset + 8);
+            if (high == 0 && low == 0) {
+                continue;
+            }
+            long newSlot = find(high, low);
+            ByteBuffer newSegment = segmentOf(newSlot);
+            int newOffset = offsetOf(newSlot);
+            newSegment.putLong(newOffset, high);
+            newSegment.putLong(newOffset + 8, low);
+            newSegment.putLong(newOffset + 16, segment.getLong(offset + 16));
+            size++;
+        }
+        if (header != null) {
+            header.putLong(24, size);
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Writes the mapped pages to disk. Does nothing for in-memory indexes.
+     */
+    public synchronized void force() {
+        if (header == null) {
+            return;
+        }
+        for (ByteBuffer segment : segments) {
+            ((MappedByteBuffer) segment).force();
+        }
+        ((MappedByteBuffer) header).force();
+    }
+
+    /**
+     * Writes the mapped pages to disk and then records a position that the
+     * caller associates with this state, such as the number of records of a
+     * FingerprintLog already contained in the index.
+     *
+     * @param position The position to record.
+     */
+    public synchronized void checkpoint(long position) {
+        force();
+        checkpoint = position;
+        if (header != null) {
+            header.putLong(32, position);
+            ((MappedByteBuffer) header).force();
+        }
+    }
+
+    /**
+     * @return The position recorded by the last checkpoint.
+     */
+    public synchronized long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        for (ByteBuffer segment : segments) {
+            for (int offset = 0; offset < segment.capacity(); offset += 8) {
+                segment.putLong(offset, 0);
+            }
+        }
+        size = 0;
+        checkpoint = 0;
+        if (header != null) {
+            header.putLong(24, size);
+            header.putLong(32, checkpoint);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (randomAccessFile != null) {
+            randomAccessFile.close();
+            randomAccessFile = null;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only, memory-mapped log of fingerprint to value records. Records
+ * are appended past the end of the log and only become part of it when
+ * commit() publishes the new record count in the header, so a crash never
+ * exposes a partially written batch. The log is the durable copy of a
+ * FingerprintIndex, which can be brought up to date by replaying the records
+ * it has not seen yet.
+ */
+public class FingerprintLog {
+
+    private static final long MAGIC = 0x5350414445464c47L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 24;
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_SHIFT;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private long committedCount;
+    private long appendedCount;
+
+    /**
+     * Opens the log stored in the given file, creating it if needed. Records
+     * appended but not committed before a crash are discarded.
+     *
+     * @param file The file backing the log.
+     * @throws IOException If the file cannot be mapped or is not a log.
+     */
+    public FingerprintLog(File file) throws IOException {
+        this.file = file;
+        boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (exists) {
+            if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+                randomAccessFile.close();
+                throw new IOException("Not a fingerprint log: " + file);
+            }
+            committedCount = header.getLong(16);
+        } else {
+            header.putLong(0, MAGIC);
+            header.putInt(8, VERSION);
+            header.putLong(16, 0);
+            header.force();
+            committedCount = 0;
+        }
+        appendedCount = committedCount;
+    }
+
+    private ByteBuffer segmentFor(long record) throws IOException {
+        int segment = (int) (record >>> SEGMENT_SHIFT);
+        while (segments.size() <= segment) {
+            long position = HEADER_SIZE + ((long) segments.size() << SEGMENT_SHIFT) * RECORD_SIZE;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) SEGMENT_RECORDS * RECORD_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            segments.add(buffer);
+        }
+        return segments.get(segment);
+    }
+
+    private static int offsetOf(long record) {
+        return (int) (record & (SEGMENT_RECORDS - 1)) * RECORD_SIZE;
+    }
+
+    /**
+     * Appends a record that becomes visible after the next commit().
+     *
+     * @param fingerprint The fingerprint.
+     * @param value The value for the fingerprint.
+     * @throws IOException If the log cannot be extended.
+     */
+    public synchronized void append(Fingerprint fingerprint, long value) throws IOException {
+        ByteBuffer segment = segmentFor(appendedCount);
+        int offset = offsetOf(appendedCount);
+        segment.putLong(offset, fingerprint.getHigh());
+        segment.putLong(offset + 8, fingerprint.getLow());
+        segment.putLong(offset + 16, value);
+        appendedCount++;
+    }
+
+    /**
+     * Makes all appended records part of the log.
+     *
+     * @param sync Whether to write the records to the device before
+     * returning. Without it the records survive a crash of the process but
+     * not of the machine.
+     */
+    public synchronized void commit(boolean sync) {
+        if (appendedCount == committedCount) {
+            return;
+        }
+        if (sync) {
+            int first = (int) (committedCount >>> SEGMENT_SHIFT);
+            int last = (int) ((appendedCount - 1) >>> SEGMENT_SHIFT);
+            for (int i = first; i <= last; i++) {
+                segments.get(i).force();
+            }
+        }
+        header.putLong(16, appendedCount);
+        if (sync) {
+            header.force();
+        }
+        committedCount = appendedCount;
+    }
+
+    /**
+     * Drops the records appended since the last commit.
+     */
+    public synchronized void rollback() {
+        appendedCount = committedCount;
+    }
+
+    /**
+     * @return The number of committed records.
+     */
+    public synchronized long size() {
+        return committedCount;
+    }
+
+    /**
+     * Puts the committed records starting at the given position into the
+     * index.
+     *
+     * @param index The index to update.
+     * @param from The position of the first record to replay.
+     * @return The number of records replayed.
+     * @throws IOException If the log cannot be read.
+     */
+    public synchronized long replay(FingerprintIndex index, long from) throws IOException {
+        for (long record = from; record < committedCount; record++) {
+            ByteBuffer segment = segmentFor(record);
+            int offset = offsetOf(record);
+            index.put(new Fingerprint(segment.getLong(offset), segment.getLong(offset + 8)), segment.getLong(offset + 16));
+        }
+        return Math.max(0, committedCount - from);
+    }
+
+    public synchronized void close() throws IOException {
+        header.force();
+        randomAccessFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
@@ -20,17 +20,23 @@
 package spade.utility;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -82,24 +88,6 @@ class Graph {
     public int regularEdges = 0;
     public int vertexCost = 0;
 
-    private static int countCommonAnnotations(Vertex v1, Vertex v2) {
-        Set<Map.Entry<String, String>> e1 = v1.getAnnotations().entrySet();
-        Set<Map.Entry<String, String>> e2 = v2.getAnnotations().entrySet();
-        Set<Map.Entry<String, String>> results = new HashSet<>();
-        results.addAll(e1);
-        results.retainAll(e2);
-        return results.size();
-    }
-
-    private static int countCommonAnnotations(Edge edge1, Edge edge2) {
-        Set<Map.Entry<String, String>> e1 = edge1.getAnnotations().entrySet();
-        Set<Map.Entry<String, String>> e2 = edge2.getAnnotations().entrySet();
-        Set<Map.Entry<String, String>> results = new HashSet<>();
-        results.addAll(e1);
-        results.retainAll(e2);
-        return results.size();
-    }
-
     private static Vertex integrateVertices(Graph g, List<Vertex> vertices, int tolerance) {
         Vertex vertex = new Vertex();
         int cost = 0;
@@ -165,8 +153,6 @@ class Graph {
     public static Graph integrate(Graph graph1, Graph graph2, int vthreshold, int ethreshold, int tolerance) {
         Map<Vertex, Vertex> integratedVertexMap = new HashMap<>();
         Map<Edge, Edge> integratedEdgeMap = new HashMap<>();
-        Set<Integer> vertexIndices = new HashSet<>();
-        Set<Integer> edgeIndices = new HashSet<>();
 
         List<Vertex> allVertices = new ArrayList<>();
         allVertices.addAll(graph1.vertexSet());
@@ -178,33 +164,24 @@ class Graph {
 
         Graph result = new Graph();
 
-        for (int i = 0; i < allVertices.size() - 1; i++) {
-            Vertex v1 = allVertices.get(i);
-            List<Vertex> commonSet = new ArrayList<>();
-            Set<Integer> tempIndices = new HashSet<>();
-            commonSet.add(v1);
-            tempIndices.add(i);
-            for (int j = i + 1; j < allVertices.size(); j++) {
-                if (vertexIndices.contains(i) || vertexIndices.contains(j)) {
-                    continue;
-                }
-                Vertex v2 = allVertices.get(j);
-                if (countCommonAnnotations(v1, v2) >= vthreshold) {
-                    commonSet.add(v2);
-                    tempIndices.add(j);
-                }
+        List<Map<String, String>> vertexAnnotations = new ArrayList<>(allVertices.size());
+        for (Vertex v : allVertices) {
+            vertexAnnotations.add(v.getAnnotations());
+        }
+        int[] vertexBlocks = new int[allVertices.size()];
+        for (IntList group : groupElements(vertexAnnotations, vertexBlocks, allVertices.size() - 1, vthreshold)) {
+            List<Vertex> commonSet = new ArrayList<>(group.size);
+            for (int k = 0; k < group.size; k++) {
+                commonSet.add(allVertices.get(group.values[k]));
             }
-            if (commonSet.size() > 1) {
-                vertexIndices.addAll(tempIndices);
-                Vertex integrated = integrateVertices(result, commonSet, tolerance);
-                if (integrated == null) {
-                    continue;
-                }
-                for (Vertex tempV : commonSet) {
-                    integratedVertexMap.put(tempV, integrated);
-                }
-                result.unintegratedVertices += commonSet.size();
+            Vertex integrated = integrateVertices(result, commonSet, tolerance);
+            if (integrated == null) {
+                continue;
             }
+            for (Vertex tempV : commonSet) {
+                integratedVertexMap.put(tempV, integrated);
+            }
+            result.unintegratedVertices += commonSet.size();
         }
         for (Vertex v : allVertices) {
             if (integratedVertexMap.containsKey(v)) {
@@ -216,7 +193,12 @@ class Graph {
             }
         }
 
+        // Edges are only integrated with edges between the same two vertices,
+        // so each (source, destination) pair forms a block
         List<Edge> tempEdges = new ArrayList<>();
+        List<Map<String, String>> edgeAnnotations = new ArrayList<>(allEdges.size());
+        int[] edgeBlocks = new int[allEdges.size()];
+        Map<List<Vertex>, Integer> blockIdentifiers = new HashMap<>();
         for (Edge e : allEdges) {
             Vertex newSrc = e.getSourceVertex();
             Vertex newDst = e.getDestinationVertex();
@@ -228,37 +210,29 @@ class Graph {
             if (integratedVertexMap.containsKey(newDst)) {
                 newEdge.setDestinationVertex(integratedVertexMap.get(newDst));
             }
+            List<Vertex> endpoints = Arrays.asList(newEdge.getSourceVertex(), newEdge.getDestinationVertex());
+            Integer block = blockIdentifiers.get(endpoints);
+            if (block == null) {
+                block = blockIdentifiers.size();
+                blockIdentifiers.put(endpoints, block);
+            }
+            edgeBlocks[tempEdges.size()] = block;
             tempEdges.add(newEdge);
+            edgeAnnotations.add(newEdge.getAnnotations());
         }
-        for (int i = 0; i < tempEdges.size() - 1; i++) {
-            Edge e1 = tempEdges.get(i);
-            List<Edge> commonSet = new ArrayList<>();
-            Set<Integer> tempIndices = new HashSet<>();
-            commonSet.add(e1);
-            tempIndices.add(i);
-            for (int j = i + 1; j < tempEdges.size() - 1; j++) {
-                if (edgeIndices.contains(i) || edgeIndices.contains(j)) {
-                    continue;
-                }
-                Edge e2 = tempEdges.get(j);
-                if (e1.getSourceVertex().equals(e2.getSourceVertex())
-                        && e1.getDestinationVertex().equals(e2.getDestinationVertex())
-                        && countCommonAnnotations(e1, e2) >= ethreshold) {
-                    commonSet.add(e2);
-                    tempIndices.add(j);
-                }
+        for (IntList group : groupElements(edgeAnnotations, edgeBlocks, tempEdges.size() - 2, ethreshold)) {
+            List<Edge> commonSet = new ArrayList<>(group.size);
+            for (int k = 0; k < group.size; k++) {
+                commonSet.add(tempEdges.get(group.values[k]));
             }
-            if (commonSet.size() > 1) {
-                edgeIndices.addAll(tempIndices);
-                Edge integrated = integrateEdges(result, commonSet);
-                if (integrated == null) {
-                    continue;
-                }
-                for (Edge tempE : commonSet) {
-                    integratedEdgeMap.put(tempE, integrated);
-                }
-                result.unintegratedEdges += commonSet.size();
+            Edge integrated = integrateEdges(result, commonSet);
+            if (integrated == null) {
+                continue;
             }
+            for (Edge tempE : commonSet) {
+                integratedEdgeMap.put(tempE, integrated);
+            }
+            result.unintegratedEdges += commonSet.size();
         }
         for (Edge e : tempEdges) {
             if (integratedEdgeMap.containsKey(e)) {
@@ -281,6 +255,220 @@ class Graph {
         return result;
     }
 
+    /**
+     * Groups elements greedily in order: each element not yet grouped is
+     * grouped with all later ungrouped elements of its block, up to index
+     * limit, that share at least threshold annotations with it. Every element
+     * of a group is excluded from later groups.
+     *
+     * @param annotations The annotations of the elements.
+     * @param blocks The block of each element.
+     * @param limit The highest index that may join a group.
+     * @param threshold The minimum number of common annotations.
+     * @return The groups with more than one element, each starting with the
+     * element that formed it.
+     */
+    private static List<IntList> groupElements(List<Map<String, String>> annotations, int[] blocks, int limit, int threshold) {
+        int n = annotations.size();
+        List<IntList> groups = new ArrayList<>();
+        boolean[] used = new boolean[n];
+        int[][] candidates = null;
+        int[] nextInBlock = null;
+        if (threshold > 0) {
+            candidates = findCandidates(annotations, blocks, limit, threshold);
+        } else {
+            // Every pair matches, so the candidates are simply the later
+            // elements of the same block
+            nextInBlock = new int[n];
+            Map<Integer, Integer> following = new HashMap<>();
+            for (int i = n - 1; i >= 0; i--) {
+                Integer next = following.put(blocks[i], i);
+                nextInBlock[i] = (next == null) ? -1 : next;
+            }
+        }
+        for (int i = 0; i < n - 1; i++) {
+            if (used[i]) {
+                continue;
+            }
+            IntList group = new IntList();
+            group.add(i);
+            if (candidates != null) {
+                for (int j : candidates[i]) {
+                    if (!used[j]) {
+                        group.add(j);
+                    }
+                }
+            } else {
+                for (int j = nextInBlock[i]; j >= 0 && j <= limit; j = nextInBlock[j]) {
+                    if (!used[j]) {
+                        group.add(j);
+                    }
+                }
+            }
+            if (group.size > 1) {
+                for (int k = 0; k < group.size; k++) {
+                    used[group.values[k]] = true;
+                }
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Finds, for every element, the later elements of the same block up to
+     * index limit that share at least threshold annotations with it.
+     *
+     * Annotations are numbered in ascending order of global frequency and each
+     * element is indexed only under its first (size - threshold + 1) numbers.
+     * Two elements sharing threshold annotations must meet in one of these
+     * posting lists, so only such pairs are compared (prefix filtering). The
+     * comparisons merge the sorted annotation numbers of both elements and run
+     * in parallel on a fork/join pool.
+     */
+    private static int[][] findCandidates(List<Map<String, String>> annotations, final int[] blocks, final int limit, final int threshold) {
+        final int n = annotations.size();
+        final Map<String, Integer> frequency = new HashMap<>();
+        for (Map<String, String> map : annotations) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                String token = entry.getKey() + '\0' + entry.getValue();
+                Integer count = frequency.get(token);
+                frequency.put(token, (count == null) ? 1 : count + 1);
+            }
+        }
+        String[] ranked = frequency.keySet().toArray(new String[frequency.size()]);
+        Arrays.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String token1, String token2) {
+                int difference = frequency.get(token1) - frequency.get(token2);
+                return (difference != 0) ? difference : token1.compareTo(token2);
+            }
+        });
+        Map<String, Integer> ranks = new HashMap<>(ranked.length * 2);
+        for (int r = 0; r < ranked.length; r++) {
+            ranks.put(ranked[r], r);
+        }
+        frequency.clear();
+
+        final int[][] tokens = new int[n][];
+        final IntList[] postings = new IntList[ranked.length];
+        for (int i = 0; i < n; i++) {
+            Map<String, String> map = annotations.get(i);
+            int[] elementTokens = new int[map.size()];
+            int t = 0;
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                elementTokens[t++] = ranks.get(entry.getKey() + '\0' + entry.getValue());
+            }
+            Arrays.sort(elementTokens);
+            tokens[i] = elementTokens;
+            for (int k = 0; k < elementTokens.length - threshold + 1; k++) {
+                if (postings[elementTokens[k]] == null) {
+                    postings[elementTokens[k]] = new IntList();
+                }
+                postings[elementTokens[k]].add(i);
+            }
+        }
+        ranks.clear();
+
+        final int[][] candidates = new int[n][];
+        final ThreadLocal<int[]> marks = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[n];
+            }
+        };
+        class CandidateTask extends RecursiveAction {
+
+            private final int from;
+            private final int to;
+
+            CandidateTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from > 256) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new CandidateTask(from, middle), new CandidateTask(middle, to));
+                    return;
+                }
+                int[] marked = marks.get();
+                for (int i = from; i < to; i++) {
+                    IntList found = new IntList();
+                    int[] elementTokens = tokens[i];
+                    for (int k = 0; k < elementTokens.length - threshold + 1; k++) {
+                        IntList postingList = postings[elementTokens[k]];
+                        int start = Arrays.binarySearch(postingList.values, 0, postingList.size, i) + 1;
+                        for (int p = start; p < postingList.size; p++) {
+                            int j = postingList.values[p];
+                            if (j > limit) {
+                                break;
+                            }
+                            if (blocks[j] != blocks[i] || marked[j] == i + 1) {
+                                continue;
+                            }
+                            marked[j] = i + 1;
+                            if (hasCommonTokens(elementTokens, tokens[j], threshold)) {
+                                found.add(j);
+                            }
+                        }
+                    }
+                    int[] sorted = Arrays.copyOf(found.values, found.size);
+                    Arrays.sort(sorted);
+                    candidates[i] = sorted;
+                }
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new CandidateTask(0, n));
+        } finally {
+            pool.shutdown();
+        }
+        return candidates;
+    }
+
+    /**
+     * @return True if the two sorted arrays have at least threshold values in
+     * common.
+     */
+    private static boolean hasCommonTokens(int[] tokens1, int[] tokens2, int threshold) {
+        int common = 0;
+        int i = 0;
+        int j = 0;
+        while (i < tokens1.length && j < tokens2.length) {
+            // Stop early once the remaining values cannot reach the threshold
+            if (common + Math.min(tokens1.length - i, tokens2.length - j) < threshold) {
+                return false;
+            }
+            if (tokens1[i] < tokens2[j]) {
+                i++;
+            } else if (tokens1[i] > tokens2[j]) {
+                j++;
+            } else {
+                common++;
+                i++;
+                j++;
+            }
+        }
+        return common >= threshold;
+    }
+
+    private static final class IntList {
+
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
     public Vertex getVertex(int id) {
         return vertexIdentifiers.get(id);
     }
@@ -444,10 +632,9 @@ class Graph {
             return;
         }
         try {
-            FileWriter writer = new FileWriter(path, false);
+            Writer writer = new BufferedWriter(new FileWriter(path, false), 1 << 16);
             writer.write("digraph spade2dot {\n" + "graph [rankdir = \"RL\"];\n" + "node [fontname=\"Helvetica\" fontsize=\"8\" style=\"filled\" margin=\"0.0,0.0\"];\n"
                     + "edge [fontname=\"Helvetica\" fontsize=\"8\"];\n");
-            writer.flush();
 
             for (Vertex vertex : vertexSet) {
                 exportVertex(vertex, writer);
@@ -464,7 +651,7 @@ class Graph {
         }
     }
 
-    private void exportVertex(Vertex vertex, FileWriter writer) {
+    private void exportVertex(Vertex vertex, Writer writer) {
         try {
             StringBuilder annotationString = new StringBuilder();
             for (Map.Entry<String, String> currentEntry : vertex.getAnnotations().entrySet()) {
@@ -497,7 +684,7 @@ class Graph {
         }
     }
 
-    private void exportEdge(Edge edge, FileWriter writer) {
+    private void exportEdge(Edge edge, Writer writer) {
         try {
             StringBuilder annotationString = new StringBuilder();
             for (Map.Entry<String, String> currentEntry : edge.getAnnotations().entrySet()) {